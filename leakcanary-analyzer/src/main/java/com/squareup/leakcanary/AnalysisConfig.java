@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Configures the work done by a {@link HeapAnalyzer}. There is nothing to configure about the
+ * runtime that dumped the heap: how it stores strings and bitmap pixels is detected from the heap
+ * dump itself, so a heap dump is analyzed the same way on a device, in a unit test or on a server.
+ */
+public final class AnalysisConfig {
+
+  public static final AnalysisConfig DEFAULT = builder().build();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Whether leaks get a {@link AnalysisResult#retainedHeapSize}. Computing dominators is by far
+   * the longest step of an analysis, and can be skipped when only leak traces matter.
+   */
+  public final boolean computeRetainedHeapSize;
+
+  /**
+   * Whether the retained size includes the pixels of bitmaps held by native gc roots, when the
+   * heap dump stores them in {@code Bitmap.mBuffer} (Android before O). Has no effect unless
+   * {@link #computeRetainedHeapSize} is true.
+   */
+  public final boolean includeBitmapBuffers;
+
+  /**
+   * Maximum number of classes in {@link AnalysisResult#retainedHistogram}, 0 to skip building it.
+   * Has no effect unless {@link #computeRetainedHeapSize} is true.
+   */
+  public final int retainedHistogramSize;
+
+  /**
+   * Maximum number of classes in {@link AnalysisResult#heapHistogram}, 0 to skip building it.
+   * The heap histogram is computed by {@link HprofHistogram}, in a fraction of the parsing time.
+   */
+  public final int heapHistogramSize;
+
+  /**
+   * Whether to also report the destroyed activities and fragments that are still reachable, even
+   * when they were never watched. The heap dump is scanned for them and all their paths are found
+   * in a single traversal; their results are keyed by class name and instance id.
+   */
+  public final boolean findDestroyedComponents;
+
+  /**
+   * Maximum number of paths to GC roots reported for each leaking instance: {@link
+   * AnalysisResult#leakTrace} and up to {@code maxLeakTraces - 1} {@link
+   * AnalysisResult#otherLeakTraces}. Looking for other paths can visit the whole heap, where the
+   * shortest path is usually found after visiting a small part of it.
+   */
+  public final int maxLeakTraces;
+
+  AnalysisConfig(Builder builder) {
+    computeRetainedHeapSize = builder.computeRetainedHeapSize;
+    includeBitmapBuffers = builder.includeBitmapBuffers;
+    retainedHistogramSize = builder.retainedHistogramSize;
+    heapHistogramSize = builder.heapHistogramSize;
+    findDestroyedComponents = builder.findDestroyedComponents;
+    maxLeakTraces = builder.maxLeakTraces;
+  }
+
+  @Override public String toString() {
+    return "AnalysisConfig{computeRetainedHeapSize=" + computeRetainedHeapSize
+        + ", includeBitmapBuffers=" + includeBitmapBuffers
+        + ", retainedHistogramSize=" + retainedHistogramSize
+        + ", heapHistogramSize=" + heapHistogramSize
+        + ", findDestroyedComponents=" + findDestroyedComponents
+        + ", maxLeakTraces=" + maxLeakTraces + '}';
+  }
+
+  public static final class Builder {
+    private boolean computeRetainedHeapSize = true;
+    private boolean includeBitmapBuffers = true;
+    private int retainedHistogramSize = 20;
+    private int heapHistogramSize = 50;
+    private boolean findDestroyedComponents;
+    private int maxLeakTraces = 1;
+
+    Builder() {
+    }
+
+    /** @see AnalysisConfig#computeRetainedHeapSize */
+    public Builder computeRetainedHeapSize(boolean computeRetainedHeapSize) {
+      this.computeRetainedHeapSize = computeRetainedHeapSize;
+      return this;
+    }
+
+    /** @see AnalysisConfig#includeBitmapBuffers */
+    public Builder includeBitmapBuffers(boolean includeBitmapBuffers) {
+      this.includeBitmapBuffers = includeBitmapBuffers;
+      return this;
+    }
+
+    /** @see AnalysisConfig#retainedHistogramSize */
+    public Builder retainedHistogramSize(int retainedHistogramSize) {
+      if (retainedHistogramSize < 0) {
+        throw new IllegalArgumentException(
+            "retainedHistogramSize must be positive or 0, not " + retainedHistogramSize);
+      }
+      this.retainedHistogramSize = retainedHistogramSize;
+      return this;
+    }
+
+    /** @see AnalysisConfig#heapHistogramSize */
+    public Builder heapHistogramSize(int heapHistogramSize) {
+      if (heapHistogramSize < 0) {
+        throw new IllegalArgumentException(
+            "heapHistogramSize must be positive or 0, not " + heapHistogramSize);
+      }
+      this.heapHistogramSize = heapHistogramSize;
+      return this;
+    }
+
+    /** @see AnalysisConfig#findDestroyedComponents */
+    public Builder findDestroyedComponents(boolean findDestroyedComponents) {
+      this.findDestroyedComponents = findDestroyedComponents;
+      return this;
+    }
+
+    /** @see AnalysisConfig#maxLeakTraces */
+    public Builder maxLeakTraces(int maxLeakTraces) {
+      if (maxLeakTraces < 1) {
+        throw new IllegalArgumentException("maxLeakTraces must be positive, not " + maxLeakTraces);
+      }
+      this.maxLeakTraces = maxLeakTraces;
+      return this;
+    }
+
+    public AnalysisConfig build() {
+      return new AnalysisConfig(this);
+    }
+  }
+}
@@ -16,6 +16,9 @@
 package com.squareup.leakcanary;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public final class AnalysisResult implements Serializable {
 
@@ -29,6 +32,25 @@ public final class AnalysisResult implements Serializable {
         analysisDurationMs);
   }
 
+  /** Same as {@link #leakDetected(boolean, String, LeakTrace, long, long)}, with a histogram. */
+  public static AnalysisResult leakDetected(boolean excludedLeak, String className,
+      LeakTrace leakTrace, long retainedHeapSize, ClassHistogram retainedHistogram,
+      long analysisDurationMs) {
+    return new AnalysisResult(leakDetected(excludedLeak, className, leakTrace, retainedHeapSize,
+        analysisDurationMs), false, retainedHistogram, null,
+        Collections.<LeakTrace>emptyList());
+  }
+
+  /**
+   * A leak with a {@link LeakTrace#signature()} that was already known, for which the retained
+   * size wasn't computed.
+   */
+  public static AnalysisResult duplicateLeak(boolean excludedLeak, String className,
+      LeakTrace leakTrace, long analysisDurationMs) {
+    return new AnalysisResult(leakDetected(excludedLeak, className, leakTrace, 0,
+        analysisDurationMs), true, null, null, Collections.<LeakTrace>emptyList());
+  }
+
   public static AnalysisResult failure(Throwable failure, long analysisDurationMs) {
     return new AnalysisResult(false, false, null, null, failure, 0, analysisDurationMs);
   }
@@ -54,15 +76,44 @@ public final class AnalysisResult implements Serializable {
    */
   public final LeakTrace leakTrace;
 
+  /**
+   * Other paths to GC roots for the leaking object, shortest first, each ending with a reference
+   * from a different holder than {@link #leakTrace}: fixing {@link #leakTrace} alone may not be
+   * enough. Empty unless {@link AnalysisConfig#maxLeakTraces} is more than 1. For a group watched
+   * with {@link RefWatcher#watchAll}, also has the paths to the other leaking members of the group.
+   */
+  public final List<LeakTrace> otherLeakTraces;
+
+  /**
+   * True if {@link #leakFound} is true and the leak trace signature was already known. The
+   * {@link #retainedHeapSize} is then 0, as it wasn't computed.
+   */
+  public final boolean duplicateLeak;
+
   /** Null unless the analysis failed. */
   public final Throwable failure;
 
   /**
    * The number of bytes which would be freed if all references to the leaking object were
-   * released. 0 if {@link #leakFound} is false.
+   * released. 0 if {@link #leakFound} is false, or if {@link
+   * AnalysisConfig#computeRetainedHeapSize} is false.
    */
   public final long retainedHeapSize;
 
+  /**
+   * What the leaking instance retains, by class. Null unless {@link #leakFound} is true and the
+   * retained size was computed. Bitmaps that are only retained through native roots are part of
+   * {@link #retainedHeapSize} but not of this histogram.
+   */
+  public final ClassHistogram retainedHistogram;
+
+  /**
+   * Instance count and shallow size of the largest classes in the whole heap dump, whatever the
+   * outcome of the analysis. Null if {@link AnalysisConfig#heapHistogramSize} is 0 or if the
+   * heap dump couldn't be read.
+   */
+  public final ClassHistogram heapHistogram;
+
   /** Total time spent analyzing the heap. */
   public final long analysisDurationMs;
 
@@ -75,5 +126,43 @@ public final class AnalysisResult implements Serializable {
     this.failure = failure;
     this.retainedHeapSize = retainedHeapSize;
     this.analysisDurationMs = analysisDurationMs;
+    this.duplicateLeak = false;
+    this.retainedHistogram = null;
+    this.heapHistogram = null;
+    this.otherLeakTraces = Collections.emptyList();
+  }
+
+  private AnalysisResult(AnalysisResult result, boolean duplicateLeak,
+      ClassHistogram retainedHistogram, ClassHistogram heapHistogram,
+      List<LeakTrace> otherLeakTraces) {
+    this.leakFound = result.leakFound;
+    this.excludedLeak = result.excludedLeak;
+    this.className = result.className;
+    this.leakTrace = result.leakTrace;
+    this.failure = result.failure;
+    this.retainedHeapSize = result.retainedHeapSize;
+    this.analysisDurationMs = result.analysisDurationMs;
+    this.duplicateLeak = duplicateLeak;
+    this.retainedHistogram = retainedHistogram;
+    this.heapHistogram = heapHistogram;
+    this.otherLeakTraces = otherLeakTraces;
+  }
+
+  /** Returns a copy of this result with {@code heapHistogram}, or this result if it's null. */
+  AnalysisResult withHeapHistogram(ClassHistogram heapHistogram) {
+    if (heapHistogram == null) {
+      return this;
+    }
+    return new AnalysisResult(this, duplicateLeak, retainedHistogram, heapHistogram,
+        otherLeakTraces);
+  }
+
+  /** Returns a copy of this result with {@code otherLeakTraces}, or this result if it's empty. */
+  AnalysisResult withOtherLeakTraces(List<LeakTrace> otherLeakTraces) {
+    if (otherLeakTraces.isEmpty()) {
+      return this;
+    }
+    return new AnalysisResult(this, duplicateLeak, retainedHistogram, heapHistogram,
+        Collections.unmodifiableList(new ArrayList<>(otherLeakTraces)));
   }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Receives the progress of a {@link HeapAnalyzer} analysis. Calls are made from the analyzing
+ * thread, and should return quickly.
+ */
+public interface AnalyzerProgressListener {
+  AnalyzerProgressListener NONE = new AnalyzerProgressListener() {
+    @Override public void onProgressUpdate(Step step, double fraction) {
+    }
+  };
+
+  /** Steps of an analysis, in order. Some steps are skipped depending on the outcome. */
+  enum Step {
+    /** Reports the fraction of the heap dump bytes read. */
+    COMPUTING_HEAP_HISTOGRAM,
+    /**
+     * Only for {@link HeapAnalyzer#findDuplicates(java.io.File)}. Reports the fraction of the
+     * heap dump bytes read.
+     */
+    HASHING_PRIMITIVE_ARRAYS,
+    /** Reports the fraction of the heap dump bytes parsed. */
+    PARSING_HEAP_DUMP,
+    DEDUPLICATING_GC_ROOTS,
+    FINDING_LEAKING_REF,
+    /**
+     * Reports the fraction of the heap instances visited, which is an upper bound: the search
+     * stops as soon as it reaches the leaking instance.
+     */
+    FINDING_SHORTEST_PATH,
+    BUILDING_LEAK_TRACE,
+    /** Usually the longest step. Perflib doesn't report progress for it. */
+    COMPUTING_DOMINATORS,
+    COMPUTING_RETAINED_HISTOGRAM,
+    COMPUTING_BITMAP_SIZE,
+    /** Reported once with a fraction of 1, whatever the outcome. */
+    DONE
+  }
+
+  /**
+   * Called with a fraction of 0 when {@code step} starts, then with increasing fractions up to 1
+   * for the steps that report progress, at most once per percent.
+   */
+  void onProgressUpdate(Step step, double fraction);
+}
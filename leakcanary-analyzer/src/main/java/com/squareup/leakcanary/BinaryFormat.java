@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Low level primitives of the {@link ResultCodec} format: zig-zag varints and strings that are
+ * written once then referenced by index.
+ */
+final class BinaryFormat {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int NULL_STRING = 0;
+  private static final int NEW_STRING = 1;
+  private static final int STRING_INDEX_OFFSET = 2;
+
+  /** Buffers a section in memory, so that it can be written with its length. */
+  static final class Writer {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+
+    void writeLong(long value) {
+      writeUnsignedVarint((value << 1) ^ (value >> 63));
+    }
+
+    void writeInt(int value) {
+      writeLong(value);
+    }
+
+    void writeByte(int value) {
+      bytes.write(value);
+    }
+
+    void writeUnsigned(long value) {
+      writeUnsignedVarint(value);
+    }
+
+    void writeBoolean(boolean value) {
+      bytes.write(value ? 1 : 0);
+    }
+
+    /** Null safe. Each distinct string is only written once per section. */
+    void writeString(String value) {
+      if (value == null) {
+        writeUnsignedVarint(NULL_STRING);
+        return;
+      }
+      Integer index = stringIndexes.get(value);
+      if (index != null) {
+        writeUnsignedVarint(index + STRING_INDEX_OFFSET);
+        return;
+      }
+      stringIndexes.put(value, stringIndexes.size());
+      writeUnsignedVarint(NEW_STRING);
+      byte[] utf8 = value.getBytes(UTF_8);
+      writeUnsignedVarint(utf8.length);
+      bytes.write(utf8, 0, utf8.length);
+    }
+
+    void writeSection(int tag, Writer section) {
+      writeUnsignedVarint(tag);
+      writeUnsignedVarint(section.bytes.size());
+      byte[] content = section.bytes.toByteArray();
+      bytes.write(content, 0, content.length);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      bytes.writeTo(out);
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+
+    private void writeUnsignedVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        bytes.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      bytes.write((int) value);
+    }
+  }
+
+  /** Reads a single section. */
+  static final class Reader {
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+    private final List<String> strings = new ArrayList<>();
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+      this.end = bytes.length;
+    }
+
+    /** True if there is nothing left, e.g. when reading a section written by an older version. */
+    boolean exhausted() {
+      return position >= end;
+    }
+
+    int remaining() {
+      return end - position;
+    }
+
+    long readLong() throws IOException {
+      long value = readUnsignedVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    int readInt() throws IOException {
+      return (int) readLong();
+    }
+
+    boolean readBoolean() throws IOException {
+      return readByte() != 0;
+    }
+
+    String readString() throws IOException {
+      long marker = readUnsignedVarint();
+      if (marker == NULL_STRING) {
+        return null;
+      }
+      if (marker == NEW_STRING) {
+        int length = checkLength(readUnsignedVarint());
+        String value = new String(bytes, position, length, UTF_8);
+        position += length;
+        strings.add(value);
+        return value;
+      }
+      long index = marker - STRING_INDEX_OFFSET;
+      if (index >= strings.size()) {
+        throw new IOException("Unknown string index " + index);
+      }
+      return strings.get((int) index);
+    }
+
+    private int checkLength(long length) throws IOException {
+      if (length < 0 || length > end - position) {
+        throw new EOFException("Length " + length + " exceeds remaining " + (end - position));
+      }
+      return (int) length;
+    }
+
+    private int readByte() throws IOException {
+      if (position >= end) {
+        throw new EOFException();
+      }
+      return bytes[position++] & 0xFF;
+    }
+
+    private long readUnsignedVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
+  }
+
+  /** Reads an unsigned varint directly from a stream, e.g. a section header. */
+  static long readUnsigned(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private BinaryFormat() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/** Instance count and sizes per class for a set of instances, largest classes first. */
+public final class ClassHistogram implements Serializable {
+
+  public static final class Entry implements Serializable {
+    /** Same format as {@link AnalysisResult#className}. */
+    public final String className;
+    public final int instanceCount;
+    /** Sum of the sizes of the instances themselves. */
+    public final long shallowSize;
+    /**
+     * Sum of the retained sizes of the instances that aren't retained by another instance of the
+     * same class, so that nested instances (e.g. views in a view hierarchy) are counted once.
+     * 0 if retained sizes weren't computed.
+     */
+    public final long retainedSize;
+
+    public Entry(String className, int instanceCount, long shallowSize, long retainedSize) {
+      this.className = className;
+      this.instanceCount = instanceCount;
+      this.shallowSize = shallowSize;
+      this.retainedSize = retainedSize;
+    }
+
+    @Override public String toString() {
+      String shallow = String.format(Locale.US, "%s: %d instances, %d bytes shallow", className,
+          instanceCount, shallowSize);
+      return retainedSize == 0 ? shallow : shallow + ", " + retainedSize + " bytes retained";
+    }
+  }
+
+  /** The largest classes, sorted by decreasing shallow size. */
+  public final List<Entry> entries;
+
+  /** Number of classes in the set of instances, which may be more than {@link #entries}. */
+  public final int classCount;
+
+  public ClassHistogram(List<Entry> entries, int classCount) {
+    this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    this.classCount = classCount;
+  }
+
+  @Override public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Entry entry : entries) {
+      sb.append("| ").append(entry).append('\n');
+    }
+    if (classCount > entries.size()) {
+      sb.append("| ... ").append(classCount - entries.size()).append(" more classes\n");
+    }
+    return sb.toString();
+  }
+}
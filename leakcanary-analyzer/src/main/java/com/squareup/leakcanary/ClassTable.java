@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Heap;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Instance count, shallow size and retained size per class for all the reachable instances of a
+ * heap dump. Requires {@link Snapshot#computeDominators()}.
+ *
+ * <p>The retained size of a class only includes the instances that aren't immediately dominated
+ * by an instance of the same class, so that e.g. the nodes of a linked list are counted once
+ * through the first node. It is an upper bound when instances of a class are nested through
+ * instances of other classes.
+ */
+final class ClassTable {
+
+  /** Key of class objects, which are instances of {@link Class}. */
+  private static final Object CLASS_OBJECT_KEY = new Object();
+
+  private static final class ClassStats {
+    int instanceCount;
+    long shallowSize;
+    long retainedSize;
+  }
+
+  static Map<String, ClassHistogram.Entry> build(Snapshot snapshot) {
+    // Keyed by class rather than class name, to compare the class of dominators cheaply.
+    Map<Object, ClassStats> statsByClass = new IdentityHashMap<>();
+    for (Heap heap : snapshot.getHeaps()) {
+      for (Instance instance : heap.getInstances()) {
+        add(statsByClass, instance);
+      }
+      for (ClassObj classObj : heap.getClasses()) {
+        add(statsByClass, classObj);
+      }
+    }
+    // Classes with the same name from different class loaders are merged.
+    Map<String, ClassHistogram.Entry> table = new HashMap<>();
+    for (Map.Entry<Object, ClassStats> entry : statsByClass.entrySet()) {
+      String className = className(entry.getKey());
+      ClassStats stats = entry.getValue();
+      ClassHistogram.Entry previous = table.get(className);
+      if (previous == null) {
+        table.put(className, new ClassHistogram.Entry(className, stats.instanceCount,
+            stats.shallowSize, stats.retainedSize));
+      } else {
+        table.put(className, new ClassHistogram.Entry(className,
+            previous.instanceCount + stats.instanceCount,
+            previous.shallowSize + stats.shallowSize,
+            previous.retainedSize + stats.retainedSize));
+      }
+    }
+    return table;
+  }
+
+  private static void add(Map<Object, ClassStats> statsByClass, Instance instance) {
+    Instance immediateDominator = instance.getImmediateDominator();
+    // Unreachable instances are garbage that happened not to be collected before the heap dump.
+    if (immediateDominator == null) {
+      return;
+    }
+    Object classKey = classKey(instance);
+    if (classKey == null) {
+      return;
+    }
+    ClassStats stats = statsByClass.get(classKey);
+    if (stats == null) {
+      stats = new ClassStats();
+      statsByClass.put(classKey, stats);
+    }
+    stats.instanceCount++;
+    stats.shallowSize += instance.getSize();
+    if (classKey(immediateDominator) != classKey) {
+      stats.retainedSize += instance.getTotalRetainedSize();
+    }
+  }
+
+  /** The instance that dominates the most instances of a class. */
+  static final class Holder {
+    final Instance instance;
+    final int heldInstanceCount;
+
+    Holder(Instance instance, int heldInstanceCount) {
+      this.instance = instance;
+      this.heldInstanceCount = heldInstanceCount;
+    }
+  }
+
+  /**
+   * Finds the {@link Holder} of the instances of each class of {@code growthByClassName}: the
+   * closest dominator of a different class that dominates at least half of the growth, or
+   * dominates the most instances when there is none. Dominators of the same class are skipped so
+   * that all the nodes of a linked list have the same holder. Classes that are only held by gc
+   * roots have no holder.
+   */
+  static Map<String, Holder> findHolders(Snapshot snapshot,
+      Map<String, Integer> growthByClassName) {
+    Set<String> classNames = growthByClassName.keySet();
+    Map<Object, Map<Instance, int[]>> heldCountsByClass = new IdentityHashMap<>();
+    Map<Instance, Instance> sameClassHolders = new IdentityHashMap<>();
+    for (Heap heap : snapshot.getHeaps()) {
+      for (Instance instance : heap.getInstances()) {
+        countHolder(heldCountsByClass, sameClassHolders, classNames, instance);
+      }
+      for (ClassObj classObj : heap.getClasses()) {
+        countHolder(heldCountsByClass, sameClassHolders, classNames, classObj);
+      }
+    }
+    // Classes with the same name from different class loaders are merged.
+    Map<String, Map<Instance, int[]>> heldCountsByClassName = new HashMap<>();
+    for (Map.Entry<Object, Map<Instance, int[]>> entry : heldCountsByClass.entrySet()) {
+      if (entry.getValue() == null) {
+        continue;
+      }
+      String className = className(entry.getKey());
+      Map<Instance, int[]> heldCounts = heldCountsByClassName.get(className);
+      if (heldCounts == null) {
+        heldCountsByClassName.put(className, entry.getValue());
+      } else {
+        addAll(heldCounts, entry.getValue());
+      }
+    }
+    Map<String, Holder> holders = new HashMap<>();
+    for (Map.Entry<String, Map<Instance, int[]>> entry : heldCountsByClassName.entrySet()) {
+      Holder holder = liftHolder(entry.getValue(), growthByClassName.get(entry.getKey()),
+          sameClassHolders);
+      if (holder != null) {
+        holders.put(entry.getKey(), holder);
+      }
+    }
+    return holders;
+  }
+
+  /**
+   * Replaces each holder with its own holder until one of them holds at least half of {@code
+   * growth} instances, e.g. from the listeners to the list that holds all of them.
+   */
+  private static Holder liftHolder(Map<Instance, int[]> heldCounts, int growth,
+      Map<Instance, Instance> sameClassHolders) {
+    while (true) {
+      Holder best = null;
+      for (Map.Entry<Instance, int[]> heldCount : heldCounts.entrySet()) {
+        if (best == null || heldCount.getValue()[0] > best.heldInstanceCount) {
+          best = new Holder(heldCount.getKey(), heldCount.getValue()[0]);
+        }
+      }
+      if (best == null || best.heldInstanceCount * 2 >= growth) {
+        return best;
+      }
+      Map<Instance, int[]> lifted = new IdentityHashMap<>();
+      boolean liftedAny = false;
+      for (Map.Entry<Instance, int[]> heldCount : heldCounts.entrySet()) {
+        Instance holder = heldCount.getKey();
+        Instance parent = holder(holder, classKey(holder), sameClassHolders);
+        if (parent == null) {
+          parent = holder;
+        } else {
+          liftedAny = true;
+        }
+        int[] count = lifted.get(parent);
+        if (count == null) {
+          lifted.put(parent, new int[] { heldCount.getValue()[0] });
+        } else {
+          count[0] += heldCount.getValue()[0];
+        }
+      }
+      if (!liftedAny) {
+        return best;
+      }
+      heldCounts = lifted;
+    }
+  }
+
+  private static void addAll(Map<Instance, int[]> heldCounts, Map<Instance, int[]> other) {
+    for (Map.Entry<Instance, int[]> heldCount : other.entrySet()) {
+      int[] count = heldCounts.get(heldCount.getKey());
+      if (count == null) {
+        heldCounts.put(heldCount.getKey(), heldCount.getValue());
+      } else {
+        count[0] += heldCount.getValue()[0];
+      }
+    }
+  }
+
+  private static void countHolder(Map<Object, Map<Instance, int[]>> heldCountsByClass,
+      Map<Instance, Instance> sameClassHolders, Set<String> classNames, Instance instance) {
+    if (instance.getImmediateDominator() == null) {
+      return;
+    }
+    Object classKey = classKey(instance);
+    if (classKey == null) {
+      return;
+    }
+    // Null for the classes that aren't in classNames.
+    Map<Instance, int[]> heldCounts;
+    if (heldCountsByClass.containsKey(classKey)) {
+      heldCounts = heldCountsByClass.get(classKey);
+    } else {
+      heldCounts = classNames.contains(className(classKey))
+          ? new IdentityHashMap<Instance, int[]>() : null;
+      heldCountsByClass.put(classKey, heldCounts);
+    }
+    if (heldCounts == null) {
+      return;
+    }
+    Instance holder = holder(instance, classKey, sameClassHolders);
+    if (holder == null) {
+      return;
+    }
+    int[] heldCount = heldCounts.get(holder);
+    if (heldCount == null) {
+      heldCount = new int[1];
+      heldCounts.put(holder, heldCount);
+    }
+    heldCount[0]++;
+  }
+
+  /**
+   * Returns the closest dominator of a different class, null if it is a gc root. Memoized in
+   * {@code sameClassHolders} for instances dominated by the same class, as those chains can be
+   * long.
+   */
+  private static Instance holder(Instance instance, Object classKey,
+      Map<Instance, Instance> sameClassHolders) {
+    List<Instance> chain = new ArrayList<>();
+    Instance current = instance;
+    Instance holder;
+    while (true) {
+      Instance dominator = current.getImmediateDominator();
+      if (dominator == null) {
+        holder = null;
+        break;
+      }
+      if (sameClassHolders.containsKey(dominator)) {
+        holder = sameClassHolders.get(dominator);
+        break;
+      }
+      Object dominatorKey = classKey(dominator);
+      if (dominatorKey != classKey) {
+        holder = dominatorKey == null ? null : dominator;
+        break;
+      }
+      chain.add(dominator);
+      current = dominator;
+    }
+    for (Instance sameClass : chain) {
+      sameClassHolders.put(sameClass, holder);
+    }
+    return holder;
+  }
+
+  /**
+   * Returns the {@link ClassObj} of the instance, or its array {@link Type} for primitive arrays
+   * in HotSpot heap dumps, which have no class object. Null for gc roots.
+   */
+  static Object classKey(Instance instance) {
+    if (instance == Snapshot.SENTINEL_ROOT || instance instanceof RootObj) {
+      return null;
+    }
+    if (instance instanceof ClassObj) {
+      return CLASS_OBJECT_KEY;
+    }
+    ClassObj classObj = instance.getClassObj();
+    if (classObj == null && instance instanceof ArrayInstance) {
+      return ((ArrayInstance) instance).getArrayType();
+    }
+    return classObj;
+  }
+
+  private static String className(Object classKey) {
+    if (classKey == CLASS_OBJECT_KEY) {
+      return Class.class.getName();
+    }
+    if (classKey instanceof Type) {
+      return Type.getClassNameOfPrimitiveArray((Type) classKey);
+    }
+    return HahaHelper.className((ClassObj) classKey);
+  }
+
+  private ClassTable() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a heap dump compressed by {@link HprofCompression}, by mapping the compressed file and
+ * inflating the chunks being read. Recently read chunks are cached, as the parser often goes
+ * back to previous positions.
+ */
+final class CompressedHprofBuffer implements HprofBuffer {
+
+  private static final int MAX_CACHED_CHUNKS = 32;
+
+  private final ByteBuffer compressed;
+  private final int chunkSize;
+  private final long length;
+  /** Offsets of each chunk, followed by the offset of the index which ends the last chunk. */
+  private final long[] chunkOffsets;
+  private final Map<Integer, byte[]> chunkCache;
+  private final Inflater inflater = new Inflater();
+  private byte[] compressedChunk = new byte[0];
+
+  private long position;
+  private byte[] chunk;
+  private long chunkStart;
+
+  CompressedHprofBuffer(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long fileLength = channel.size();
+      if (fileLength > Integer.MAX_VALUE) {
+        throw new IOException("Compressed heap dump too large: " + fileLength);
+      }
+      compressed = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+    } finally {
+      randomAccessFile.close();
+    }
+    if (compressed.capacity() < HprofCompression.HEADER_SIZE + HprofCompression.FOOTER_SIZE
+        || compressed.getInt(0) != HprofCompression.MAGIC) {
+      throw new IOException("Not a compressed heap dump: " + file);
+    }
+    int version = compressed.getInt(4);
+    if (version != HprofCompression.VERSION) {
+      throw new IOException("Unsupported compressed heap dump version " + version);
+    }
+    chunkSize = compressed.getInt(8);
+    length = compressed.getLong(12);
+    int footer = compressed.capacity() - HprofCompression.FOOTER_SIZE;
+    int chunkCount = compressed.getInt(footer);
+    long indexOffset = compressed.getLong(footer + 4);
+    if (chunkSize <= 0
+        || chunkCount != (length + chunkSize - 1) / chunkSize
+        || indexOffset + 8L * chunkCount != footer) {
+      throw new IOException("Corrupted compressed heap dump: " + file);
+    }
+    chunkOffsets = new long[chunkCount + 1];
+    for (int i = 0; i < chunkCount; i++) {
+      chunkOffsets[i] = compressed.getLong((int) indexOffset + 8 * i);
+    }
+    chunkOffsets[chunkCount] = indexOffset;
+    chunkCache = new LinkedHashMap<Integer, byte[]>(MAX_CACHED_CHUNKS, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+        return size() > MAX_CACHED_CHUNKS;
+      }
+    };
+  }
+
+  @Override public byte readByte() {
+    int offset = chunkOffset(1);
+    if (offset == -1) {
+      ensureChunk();
+      offset = (int) (position - chunkStart);
+    }
+    position++;
+    return chunk[offset];
+  }
+
+  @Override public void read(byte[] bytes) {
+    read(bytes, bytes.length);
+  }
+
+  @Override public void readSubSequence(byte[] bytes, int start, int length) {
+    position += start;
+    read(bytes, Math.min(bytes.length, length));
+  }
+
+  @Override public char readChar() {
+    return (char) readShort();
+  }
+
+  @Override public short readShort() {
+    int offset = chunkOffset(2);
+    if (offset == -1) {
+      return (short) ((readByte() & 0xFF) << 8 | (readByte() & 0xFF));
+    }
+    position += 2;
+    return (short) ((chunk[offset] & 0xFF) << 8 | (chunk[offset + 1] & 0xFF));
+  }
+
+  @Override public int readInt() {
+    int offset = chunkOffset(4);
+    if (offset == -1) {
+      return (readShort() & 0xFFFF) << 16 | (readShort() & 0xFFFF);
+    }
+    position += 4;
+    return (chunk[offset] & 0xFF) << 24
+        | (chunk[offset + 1] & 0xFF) << 16
+        | (chunk[offset + 2] & 0xFF) << 8
+        | (chunk[offset + 3] & 0xFF);
+  }
+
+  @Override public long readLong() {
+    return (readInt() & 0xFFFFFFFFL) << 32 | (readInt() & 0xFFFFFFFFL);
+  }
+
+  @Override public float readFloat() {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override public double readDouble() {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override public void setPosition(long position) {
+    this.position = position;
+  }
+
+  @Override public long position() {
+    return position;
+  }
+
+  @Override public boolean hasRemaining() {
+    return position < length;
+  }
+
+  @Override public long remaining() {
+    return length - position;
+  }
+
+  private void read(byte[] bytes, int count) {
+    int read = 0;
+    while (read < count) {
+      ensureChunk();
+      int offset = (int) (position - chunkStart);
+      int available = Math.min(count - read, chunk.length - offset);
+      System.arraycopy(chunk, offset, bytes, read, available);
+      read += available;
+      position += available;
+    }
+  }
+
+  /** Returns the offset of the position in the current chunk, or -1 if not entirely in it. */
+  private int chunkOffset(int byteCount) {
+    if (chunk == null || position < chunkStart || position + byteCount > chunkStart
+        + chunk.length) {
+      return -1;
+    }
+    return (int) (position - chunkStart);
+  }
+
+  private void ensureChunk() {
+    if (chunkOffset(1) != -1) {
+      return;
+    }
+    if (position < 0 || position >= length) {
+      throw new IndexOutOfBoundsException("Position " + position + " out of " + length);
+    }
+    int chunkIndex = (int) (position / chunkSize);
+    byte[] cached = chunkCache.get(chunkIndex);
+    if (cached == null) {
+      cached = inflateChunk(chunkIndex);
+      chunkCache.put(chunkIndex, cached);
+    }
+    chunk = cached;
+    chunkStart = (long) chunkIndex * chunkSize;
+  }
+
+  private byte[] inflateChunk(int chunkIndex) {
+    int compressedLength = (int) (chunkOffsets[chunkIndex + 1] - chunkOffsets[chunkIndex]);
+    if (compressedChunk.length < compressedLength) {
+      compressedChunk = new byte[compressedLength];
+    }
+    ByteBuffer source = compressed.duplicate();
+    source.position((int) chunkOffsets[chunkIndex]);
+    source.get(compressedChunk, 0, compressedLength);
+    byte[] inflated = new byte[(int) Math.min(chunkSize, length - (long) chunkIndex * chunkSize)];
+    inflater.reset();
+    inflater.setInput(compressedChunk, 0, compressedLength);
+    try {
+      int inflatedLength = 0;
+      while (inflatedLength < inflated.length && !inflater.finished()) {
+        int count = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflatedLength += count;
+      }
+      if (inflatedLength != inflated.length) {
+        throw new IllegalStateException(
+            "Chunk " + chunkIndex + " inflated to " + inflatedLength + " bytes");
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupted chunk " + chunkIndex, e);
+    }
+    return inflated;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
+import static com.squareup.leakcanary.HahaHelper.className;
+import static com.squareup.leakcanary.HahaHelper.fieldValue;
+import static com.squareup.leakcanary.HahaHelper.findClass;
+import static com.squareup.leakcanary.HahaHelper.hasField;
+
+/**
+ * Finds the activities and fragments of a heap dump that have been destroyed, whether or not they
+ * were watched. They should all be weakly reachable, so any of them that is still strongly
+ * reachable is a leak.
+ */
+final class DestroyedComponents {
+
+  private static final String ACTIVITY_CLASS = "android.app.Activity";
+
+  private static final String[] FRAGMENT_CLASSES = {
+      "android.app.Fragment", "android.support.v4.app.Fragment", "androidx.fragment.app.Fragment"
+  };
+
+  static List<Instance> find(Snapshot snapshot) {
+    List<Instance> destroyed = new ArrayList<>();
+    for (ClassObj activityClass : classAndDescendants(snapshot, ACTIVITY_CLASS)) {
+      for (Instance instance : activityClass.getInstancesList()) {
+        if (isDestroyedActivity(instance)) {
+          destroyed.add(instance);
+        }
+      }
+    }
+    for (String fragmentClassName : FRAGMENT_CLASSES) {
+      for (ClassObj fragmentClass : classAndDescendants(snapshot, fragmentClassName)) {
+        for (Instance instance : fragmentClass.getInstancesList()) {
+          if (isDestroyedFragment(instance)) {
+            destroyed.add(instance);
+          }
+        }
+      }
+    }
+    return destroyed;
+  }
+
+  /** Returns the key of the {@link AnalysisResult} for a destroyed component. */
+  static String key(Instance instance) {
+    return className(instance.getClassObj()) + "@" + Long.toHexString(instance.getId());
+  }
+
+  private static Set<ClassObj> classAndDescendants(Snapshot snapshot, String className) {
+    Set<ClassObj> classes = new LinkedHashSet<>();
+    ClassObj classObj = findClass(snapshot, className);
+    if (classObj != null) {
+      classes.add(classObj);
+      classes.addAll(classObj.getDescendantClasses());
+    }
+    return classes;
+  }
+
+  /**
+   * Activity.mDestroyed is set once onDestroy() has been called. It doesn't exist before API 17,
+   * where mFinished is the closest signal: finishing activities are destroyed shortly after.
+   */
+  private static boolean isDestroyedActivity(Instance instance) {
+    if (!(instance instanceof ClassInstance)) {
+      return false;
+    }
+    List<ClassInstance.FieldValue> values = classInstanceValues(instance);
+    if (hasField(values, "mDestroyed")) {
+      return Boolean.TRUE.equals(fieldValue(values, "mDestroyed"));
+    }
+    return hasField(values, "mFinished") && Boolean.TRUE.equals(fieldValue(values, "mFinished"));
+  }
+
+  /**
+   * A fragment loses its FragmentManager once it's removed and destroyed. Detached fragments are
+   * still held by their FragmentManager and may be attached again, so they aren't reported.
+   */
+  private static boolean isDestroyedFragment(Instance instance) {
+    if (!(instance instanceof ClassInstance)) {
+      return false;
+    }
+    List<ClassInstance.FieldValue> values = classInstanceValues(instance);
+    return hasField(values, "mFragmentManager") && fieldValue(values, "mFragmentManager") == null;
+  }
+
+  private DestroyedComponents() {
+    throw new AssertionError();
+  }
+}
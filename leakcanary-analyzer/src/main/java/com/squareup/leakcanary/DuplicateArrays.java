@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.trove.TLongHashSet;
+import com.squareup.haha.trove.TLongObjectHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds primitive arrays with identical contents in one sequential pass over a heap dump: each
+ * array is hashed as it is read, and only arrays that share a hash are read again to compare their
+ * contents, so that hash collisions are never reported as duplicates.
+ */
+final class DuplicateArrays extends HprofStreamReader.Callback {
+
+  /** Number of leading bytes kept in {@link Group#firstBytes}. */
+  static final int FIRST_BYTES = 32;
+
+  private static final int CHUNK_SIZE = 8192;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** Arrays with the same type and contents. */
+  static final class Group {
+    final Type type;
+    final int elementCount;
+    /** Size of each array. */
+    final long byteCount;
+    final long[] arrayIds;
+    final byte[] firstBytes;
+
+    Group(Type type, int elementCount, long byteCount, long[] arrayIds, byte[] firstBytes) {
+      this.type = type;
+      this.elementCount = elementCount;
+      this.byteCount = byteCount;
+      this.arrayIds = arrayIds;
+      this.firstBytes = firstBytes;
+    }
+
+    /** What keeping a single array would free. */
+    long wastedByteCount() {
+      return (arrayIds.length - 1) * byteCount;
+    }
+  }
+
+  /** Returns every group of duplicated arrays, the most wasteful first. */
+  static List<Group> find(HprofBuffer buffer) throws IOException {
+    HprofStreamReader reader = new HprofStreamReader(buffer);
+    DuplicateArrays duplicateArrays = new DuplicateArrays(reader);
+    reader.read(duplicateArrays);
+    return duplicateArrays.groups();
+  }
+
+  private final HprofStreamReader reader;
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  // One entry per non empty array, in columns to avoid an object per array.
+  private int size;
+  private long[] hashes = new long[1024];
+  private long[] ids = new long[1024];
+  private long[] positions = new long[1024];
+  private int[] elementCounts = new int[1024];
+  private byte[] typeIds = new byte[1024];
+
+  private DuplicateArrays(HprofStreamReader reader) {
+    this.reader = reader;
+  }
+
+  @Override void onPrimitiveArrayDump(long id, Type type, long elementCount, boolean hasData)
+      throws IOException {
+    if (!hasData || elementCount == 0) {
+      return;
+    }
+    if (size == hashes.length) {
+      int capacity = size * 2;
+      hashes = Arrays.copyOf(hashes, capacity);
+      ids = Arrays.copyOf(ids, capacity);
+      positions = Arrays.copyOf(positions, capacity);
+      elementCounts = Arrays.copyOf(elementCounts, capacity);
+      typeIds = Arrays.copyOf(typeIds, capacity);
+    }
+    HprofBuffer buffer = reader.buffer();
+    positions[size] = buffer.position();
+    ids[size] = id;
+    elementCounts[size] = (int) elementCount;
+    typeIds[size] = (byte) type.getTypeId();
+    hashes[size] = hash(type, elementCount * reader.typeSize(type.getTypeId()));
+    size++;
+  }
+
+  /** FNV-1a of the type and the contents, which start at the buffer position. */
+  private long hash(Type type, long byteCount) {
+    HprofBuffer buffer = reader.buffer();
+    long hash = (FNV_OFFSET_BASIS ^ type.getTypeId()) * FNV_PRIME;
+    long remaining = byteCount;
+    for (; remaining >= CHUNK_SIZE; remaining -= CHUNK_SIZE) {
+      buffer.read(chunk);
+      for (byte b : chunk) {
+        hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+      }
+    }
+    // Most arrays are small: reading them a long at a time avoids copying them.
+    for (; remaining >= 8; remaining -= 8) {
+      hash = (hash ^ buffer.readLong()) * FNV_PRIME;
+    }
+    for (; remaining > 0; remaining--) {
+      hash = (hash ^ (buffer.readByte() & 0xFF)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private List<Group> groups() throws IOException {
+    long[] sortedHashes = Arrays.copyOf(hashes, size);
+    Arrays.sort(sortedHashes);
+    TLongHashSet sharedHashes = new TLongHashSet();
+    for (int i = 1; i < sortedHashes.length; i++) {
+      if (sortedHashes[i] == sortedHashes[i - 1]) {
+        sharedHashes.add(sortedHashes[i]);
+      }
+    }
+    TLongObjectHashMap<List<Integer>> indexesByHash = new TLongObjectHashMap<>();
+    List<List<Integer>> candidates = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      if (!sharedHashes.contains(hashes[i])) {
+        continue;
+      }
+      List<Integer> indexes = indexesByHash.get(hashes[i]);
+      if (indexes == null) {
+        indexes = new ArrayList<>();
+        indexesByHash.put(hashes[i], indexes);
+        candidates.add(indexes);
+      }
+      indexes.add(i);
+    }
+    List<Group> groups = new ArrayList<>();
+    for (List<Integer> indexes : candidates) {
+      verify(indexes, groups);
+    }
+    Collections.sort(groups, new Comparator<Group>() {
+      @Override public int compare(Group lhs, Group rhs) {
+        return Long.compare(rhs.wastedByteCount(), lhs.wastedByteCount());
+      }
+    });
+    return groups;
+  }
+
+  /** Splits arrays that share a hash into groups of arrays that have the same contents. */
+  private void verify(List<Integer> indexes, List<Group> groups) throws IOException {
+    List<byte[]> contents = new ArrayList<>();
+    List<List<Integer>> sameContents = new ArrayList<>();
+    for (int index : indexes) {
+      byte[] content = readContent(index);
+      int match = -1;
+      for (int i = 0; i < contents.size() && match == -1; i++) {
+        int other = sameContents.get(i).get(0);
+        if (typeIds[other] == typeIds[index] && Arrays.equals(contents.get(i), content)) {
+          match = i;
+        }
+      }
+      if (match == -1) {
+        contents.add(content);
+        sameContents.add(new ArrayList<Integer>());
+        match = contents.size() - 1;
+      }
+      sameContents.get(match).add(index);
+    }
+    for (int i = 0; i < sameContents.size(); i++) {
+      List<Integer> same = sameContents.get(i);
+      if (same.size() < 2) {
+        continue;
+      }
+      long[] arrayIds = new long[same.size()];
+      for (int j = 0; j < arrayIds.length; j++) {
+        arrayIds[j] = ids[same.get(j)];
+      }
+      int first = same.get(0);
+      byte[] content = contents.get(i);
+      groups.add(new Group(Type.getType(typeIds[first]), elementCounts[first], content.length,
+          arrayIds, Arrays.copyOf(content, Math.min(FIRST_BYTES, content.length))));
+    }
+  }
+
+  private byte[] readContent(int index) throws IOException {
+    long byteCount = (long) elementCounts[index] * reader.typeSize(typeIds[index]);
+    if (byteCount > Integer.MAX_VALUE) {
+      throw new IOException("Array too large: " + byteCount + " bytes");
+    }
+    byte[] content = new byte[(int) byteCount];
+    HprofBuffer buffer = reader.buffer();
+    buffer.setPosition(positions[index]);
+    buffer.read(content);
+    return content;
+  }
+}
@@ -20,12 +20,15 @@ import com.squareup.haha.perflib.ClassInstance;
 import com.squareup.haha.perflib.ClassObj;
 import com.squareup.haha.perflib.Field;
 import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
 import com.squareup.haha.perflib.Type;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -48,7 +51,21 @@ public final class HahaHelper {
   }
 
   static String fieldToString(Field field, Object value) {
-    return field.getName() + " = " + value;
+    return field.getName() + " = " + valueToString(value);
+  }
+
+  /**
+   * Same as {@link String#valueOf(Object)}, except that it also supports primitive arrays from
+   * HotSpot heap dumps, which have no class object.
+   */
+  static String valueToString(Object value) {
+    if (value instanceof ArrayInstance && ((ArrayInstance) value).getClassObj() == null) {
+      ArrayInstance array = (ArrayInstance) value;
+      return String.format(Locale.US, "%s[%d]@%d (0x%x)", array.getArrayType().name()
+              .toLowerCase(Locale.US), primitiveArrayLength(array), array.getUniqueId(),
+          array.getUniqueId());
+    }
+    return String.valueOf(value);
   }
 
   static String threadName(Instance holder) {
@@ -66,7 +83,7 @@ public final class HahaHelper {
     boolean extendsThread = false;
     ClassObj parentClass = clazz;
     while (parentClass.getSuperClassObj() != null) {
-      if (clazz.getClassName().equals(Thread.class.getName())) {
+      if (className(clazz).equals(Thread.class.getName())) {
         extendsThread = true;
         break;
       }
@@ -79,15 +96,23 @@ public final class HahaHelper {
     Instance instance = (Instance) stringObject;
     List<ClassInstance.FieldValue> values = classInstanceValues(instance);
 
-    Integer count = fieldValue(values, "count");
-    checkNotNull(count, "count");
+    Object value = fieldValue(values, "value");
+    checkNotNull(value, "value");
+
+    Integer count;
+    // JDK 7u6+ strings have no count field and always use their entire backing array.
+    if (hasField(values, "count")) {
+      count = fieldValue(values, "count");
+      checkNotNull(count, "count");
+    } else if (isCharArray(value) || isByteArray(value)) {
+      count = primitiveArrayLength((ArrayInstance) value);
+    } else {
+      throw new UnsupportedOperationException("Could not find char array in " + instance);
+    }
     if (count == 0) {
       return "";
     }
 
-    Object value = fieldValue(values, "value");
-    checkNotNull(value, "value");
-
     Integer offset;
     ArrayInstance array;
     if (isCharArray(value)) {
@@ -115,6 +140,16 @@ public final class HahaHelper {
             ArrayInstance.class.getDeclaredMethod("asRawByteArray", int.class, int.class);
         asRawByteArray.setAccessible(true);
         byte[] rawByteArray = (byte[]) asRawByteArray.invoke(array, 0, count);
+        // JDK 9+ compact strings: coder is 0 for LATIN1 and 1 for UTF16, stored in the byte
+        // order of the dumping VM, assumed to be the same as the analyzing VM.
+        if (hasField(values, "coder")) {
+          Byte coder = fieldValue(values, "coder");
+          if (coder != null && coder == 1) {
+            boolean bigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+            return new String(rawByteArray, Charset.forName(bigEndian ? "UTF-16BE" : "UTF-16LE"));
+          }
+          return new String(rawByteArray, Charset.forName("ISO-8859-1"));
+        }
         return new String(rawByteArray, Charset.forName("UTF-8"));
       } catch (NoSuchMethodException e) {
         throw new RuntimeException(e);
@@ -132,7 +167,7 @@ public final class HahaHelper {
     if (!(value instanceof ClassInstance)) {
       return false;
     }
-    return WRAPPER_TYPES.contains(((ClassInstance) value).getClassObj().getClassName());
+    return WRAPPER_TYPES.contains(className(((ClassInstance) value).getClassObj()));
   }
 
   public static boolean isPrimitiveOrWrapperArray(Object value) {
@@ -143,7 +178,99 @@ public final class HahaHelper {
     if (arrayInstance.getArrayType() != Type.OBJECT) {
       return true;
     }
-    return WRAPPER_TYPES.contains(arrayInstance.getClassObj().getClassName());
+    return WRAPPER_TYPES.contains(className(arrayInstance.getClassObj()));
+  }
+
+  /**
+   * Returns the name of the class in the format found in Android heap dumps, which is the format
+   * of {@link Class#getName()} for classes and "type[]" for arrays. HotSpot heap dumps use the
+   * internal JVM format instead, e.g. java/lang/String and [Ljava/lang/String;.
+   */
+  static String className(ClassObj classObj) {
+    return className(classObj.getClassName());
+  }
+
+  /** Same as {@link #className(ClassObj)}, for a class name read from the heap dump. */
+  static String className(String className) {
+    if (className.indexOf('/') == -1 && !className.startsWith("[")) {
+      return className;
+    }
+    int dimensions = 0;
+    while (className.charAt(dimensions) == '[') {
+      dimensions++;
+    }
+    String componentName;
+    if (dimensions == 0) {
+      componentName = className;
+    } else if (className.charAt(dimensions) == 'L') {
+      componentName = className.substring(dimensions + 1, className.length() - 1);
+    } else {
+      componentName = primitiveName(className.charAt(dimensions));
+    }
+    StringBuilder sb = new StringBuilder(componentName.replace('/', '.'));
+    for (int i = 0; i < dimensions; i++) {
+      sb.append("[]");
+    }
+    return sb.toString();
+  }
+
+  /** Returns the name of the array class, which HotSpot heap dumps omit for primitive arrays. */
+  static String arrayClassName(ArrayInstance arrayInstance) {
+    ClassObj classObj = arrayInstance.getClassObj();
+    if (classObj == null) {
+      return Type.getClassNameOfPrimitiveArray(arrayInstance.getArrayType());
+    }
+    return className(classObj);
+  }
+
+  /**
+   * Returns the name of the class of {@code instance}, in the same format as {@link
+   * #className(ClassObj)}. Class objects are instances of {@link Class}.
+   */
+  static String instanceClassName(Instance instance) {
+    if (instance instanceof ClassObj) {
+      return Class.class.getName();
+    }
+    if (instance instanceof ArrayInstance) {
+      return arrayClassName((ArrayInstance) instance);
+    }
+    return className(instance.getClassObj());
+  }
+
+  /** Finds a class by its {@link Class#getName()} in Android or HotSpot heap dumps. */
+  static ClassObj findClass(Snapshot snapshot, String className) {
+    ClassObj classObj = snapshot.findClass(className);
+    if (classObj == null) {
+      classObj = snapshot.findClass(className.replace('.', '/'));
+    }
+    return classObj;
+  }
+
+  private static String primitiveName(char descriptor) {
+    switch (descriptor) {
+      case 'Z':
+        return "boolean";
+      case 'C':
+        return "char";
+      case 'F':
+        return "float";
+      case 'D':
+        return "double";
+      case 'B':
+        return "byte";
+      case 'S':
+        return "short";
+      case 'I':
+        return "int";
+      case 'J':
+        return "long";
+      default:
+        throw new IllegalArgumentException("Unknown primitive type descriptor " + descriptor);
+    }
+  }
+
+  private static int primitiveArrayLength(ArrayInstance array) {
+    return array.getSize() / array.getArrayType().getSize();
   }
 
   private static boolean isCharArray(Object value) {
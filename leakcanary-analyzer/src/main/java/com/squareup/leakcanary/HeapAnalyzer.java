@@ -22,31 +22,48 @@ import com.squareup.haha.perflib.Field;
 import com.squareup.haha.perflib.HprofParser;
 import com.squareup.haha.perflib.Instance;
 import com.squareup.haha.perflib.RootObj;
-import com.squareup.haha.perflib.RootType;
 import com.squareup.haha.perflib.Snapshot;
 import com.squareup.haha.perflib.Type;
 import com.squareup.haha.perflib.io.HprofBuffer;
-import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
 import com.squareup.haha.trove.THashMap;
 import com.squareup.haha.trove.TObjectProcedure;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import static android.os.Build.VERSION.SDK_INT;
-import static android.os.Build.VERSION_CODES.N_MR1;
+import static com.squareup.leakcanary.AnalysisResult.duplicateLeak;
 import static com.squareup.leakcanary.AnalysisResult.failure;
 import static com.squareup.leakcanary.AnalysisResult.leakDetected;
 import static com.squareup.leakcanary.AnalysisResult.noLeak;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.BUILDING_LEAK_TRACE;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_BITMAP_SIZE;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_DOMINATORS;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_HEAP_HISTOGRAM;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_RETAINED_HISTOGRAM;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.DEDUPLICATING_GC_ROOTS;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.FINDING_LEAKING_REF;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.FINDING_SHORTEST_PATH;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.HASHING_PRIMITIVE_ARRAYS;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.PARSING_HEAP_DUMP;
+import static com.squareup.leakcanary.HahaHelper.arrayClassName;
 import static com.squareup.leakcanary.HahaHelper.asString;
 import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
+import static com.squareup.leakcanary.HahaHelper.className;
 import static com.squareup.leakcanary.HahaHelper.extendsThread;
 import static com.squareup.leakcanary.HahaHelper.fieldToString;
 import static com.squareup.leakcanary.HahaHelper.fieldValue;
+import static com.squareup.leakcanary.HahaHelper.findClass;
 import static com.squareup.leakcanary.HahaHelper.hasField;
 import static com.squareup.leakcanary.HahaHelper.threadName;
+import static com.squareup.leakcanary.HahaHelper.valueToString;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
@@ -61,9 +78,25 @@ public final class HeapAnalyzer {
   private static final String ANONYMOUS_CLASS_NAME_PATTERN = "^.+\\$\\d+$";
 
   private final ExcludedRefs excludedRefs;
+  private final ProgressReporter progress;
+  private final AnalysisConfig config;
+  /** Computed once per snapshot, shared by the leaks found in it. */
+  private Snapshot ignoredBitmapSizesSnapshot;
+  private IgnoredBitmapSizes ignoredBitmapSizes;
 
   public HeapAnalyzer(ExcludedRefs excludedRefs) {
+    this(excludedRefs, AnalyzerProgressListener.NONE);
+  }
+
+  public HeapAnalyzer(ExcludedRefs excludedRefs, AnalyzerProgressListener progressListener) {
+    this(excludedRefs, progressListener, AnalysisConfig.DEFAULT);
+  }
+
+  public HeapAnalyzer(ExcludedRefs excludedRefs, AnalyzerProgressListener progressListener,
+      AnalysisConfig config) {
     this.excludedRefs = excludedRefs;
+    progress = new ProgressReporter(progressListener);
+    this.config = config;
   }
 
   public List<TrackedReference> findTrackedReferences(File heapDumpFile) {
@@ -71,12 +104,9 @@ public final class HeapAnalyzer {
       throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
     }
     try {
-      HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-      HprofParser parser = new HprofParser(buffer);
-      Snapshot snapshot = parser.parse();
-      deduplicateGcRoots(snapshot);
+      Snapshot snapshot = parse(heapDumpFile);
 
-      ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
+      ClassObj refClass = findClass(snapshot, KeyedWeakReference.class.getName());
       List<TrackedReference> references = new ArrayList<>();
       for (Instance weakRef : refClass.getInstancesList()) {
         List<ClassInstance.FieldValue> values = classInstanceValues(weakRef);
@@ -93,6 +123,8 @@ public final class HeapAnalyzer {
       return references;
     } catch (Throwable e) {
       throw new RuntimeException(e);
+    } finally {
+      progress.finish();
     }
   }
 
@@ -101,19 +133,37 @@ public final class HeapAnalyzer {
    * and then computes the shortest strong reference path from that instance to the GC roots.
    */
   public AnalysisResult checkForLeak(File heapDumpFile, String referenceKey) {
-    long analysisStartNanoTime = System.nanoTime();
+    return checkForLeak(heapDumpFile, referenceKey, Collections.<String>emptySet());
+  }
 
-    if (!heapDumpFile.exists()) {
-      Exception exception = new IllegalArgumentException("File does not exist: " + heapDumpFile);
-      return failure(exception, since(analysisStartNanoTime));
-    }
+  /**
+   * Same as {@link #checkForLeak(File, String)}, but returns {@link
+   * AnalysisResult#duplicateLeak(boolean, String, LeakTrace, long)} without computing the
+   * retained size when the {@link LeakTrace#signature()} is in {@code knownLeakSignatures}.
+   */
+  public AnalysisResult checkForLeak(File heapDumpFile, String referenceKey,
+      Set<String> knownLeakSignatures) {
+    long analysisStartNanoTime = System.nanoTime();
+    ClassHistogram heapHistogram = computeHeapHistogram(heapDumpFile);
+    return checkForLeak(analysisStartNanoTime, heapDumpFile, referenceKey, knownLeakSignatures)
+        .withHeapHistogram(heapHistogram);
+  }
 
+  private AnalysisResult checkForLeak(long analysisStartNanoTime, File heapDumpFile,
+      String referenceKey, Set<String> knownLeakSignatures) {
     try {
-      HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-      HprofParser parser = new HprofParser(buffer);
-      Snapshot snapshot = parser.parse();
-      deduplicateGcRoots(snapshot);
+      if (!heapDumpFile.exists()) {
+        throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
+      }
+
+      Snapshot snapshot = parse(heapDumpFile);
 
+      progress.start(FINDING_LEAKING_REF);
+      List<Instance> groupMembers = findGroupReferents(snapshot).get(referenceKey);
+      if (groupMembers != null) {
+        return findGroupLeakTrace(analysisStartNanoTime, snapshot, groupMembers,
+            knownLeakSignatures);
+      }
       Instance leakingRef = findLeakingReference(referenceKey, snapshot);
 
       // False alarm, weak reference was cleared in between key check and heap dump.
@@ -121,10 +171,398 @@ public final class HeapAnalyzer {
         return noLeak(since(analysisStartNanoTime));
       }
 
-      return findLeakTrace(analysisStartNanoTime, snapshot, leakingRef);
+      return findLeakTrace(analysisStartNanoTime, snapshot, leakingRef, knownLeakSignatures);
     } catch (Throwable e) {
       return failure(e, since(analysisStartNanoTime));
+    } finally {
+      releaseSnapshot();
+      progress.finish();
+    }
+  }
+
+  /**
+   * Same as {@link #checkForLeak(File, String, Set)} for several keys, parsing the heap dump only
+   * once. Keys that have no {@link KeyedWeakReference} in the heap dump are missing from the
+   * returned map. A leak found for a key is a known leak for the following keys.
+   */
+  public Map<String, AnalysisResult> checkForLeaks(File heapDumpFile, List<String> referenceKeys,
+      Set<String> knownLeakSignatures) {
+    long analysisStartNanoTime = System.nanoTime();
+
+    ClassHistogram heapHistogram = computeHeapHistogram(heapDumpFile);
+    Map<String, Instance> referents;
+    Map<String, List<Instance>> groupReferents;
+    Snapshot snapshot;
+    try {
+      snapshot = parseExisting(heapDumpFile);
+      progress.start(FINDING_LEAKING_REF);
+      referents = findReferents(snapshot);
+      groupReferents = findGroupReferents(snapshot);
+    } catch (Throwable e) {
+      Map<String, AnalysisResult> results = new LinkedHashMap<>();
+      for (String referenceKey : referenceKeys) {
+        results.put(referenceKey,
+            failure(e, since(analysisStartNanoTime)).withHeapHistogram(heapHistogram));
+      }
+      progress.finish();
+      return results;
+    }
+    return checkForLeaks(analysisStartNanoTime, heapHistogram, snapshot, referents, groupReferents,
+        referenceKeys, knownLeakSignatures);
+  }
+
+  /**
+   * Same as {@link #checkForLeaks(File, List, Set)} for the keys of every {@link
+   * KeyedWeakReference} in the heap dump, e.g. when analyzing heap dumps collected without their
+   * keys.
+   *
+   * @throws RuntimeException if the heap dump can't be parsed.
+   */
+  public Map<String, AnalysisResult> checkForLeaks(File heapDumpFile,
+      Set<String> knownLeakSignatures) {
+    long analysisStartNanoTime = System.nanoTime();
+
+    ClassHistogram heapHistogram = computeHeapHistogram(heapDumpFile);
+    Map<String, Instance> referents;
+    Map<String, List<Instance>> groupReferents;
+    Snapshot snapshot;
+    try {
+      snapshot = parseExisting(heapDumpFile);
+      progress.start(FINDING_LEAKING_REF);
+      referents = findReferents(snapshot);
+      groupReferents = findGroupReferents(snapshot);
+    } catch (Throwable e) {
+      progress.finish();
+      throw new RuntimeException(e);
+    }
+    List<String> referenceKeys = new ArrayList<>(referents.keySet());
+    referenceKeys.addAll(groupReferents.keySet());
+    return checkForLeaks(analysisStartNanoTime, heapHistogram, snapshot, referents, groupReferents,
+        referenceKeys, knownLeakSignatures);
+  }
+
+  private Map<String, AnalysisResult> checkForLeaks(long analysisStartNanoTime,
+      ClassHistogram heapHistogram, Snapshot snapshot, Map<String, Instance> referents,
+      Map<String, List<Instance>> groupReferents, List<String> referenceKeys,
+      Set<String> knownLeakSignatures) {
+    Map<String, AnalysisResult> results = new LinkedHashMap<>();
+    // Each result accounts for parsing, as if its heap dump was analyzed on its own.
+    long parseDurationNanos = System.nanoTime() - analysisStartNanoTime;
+    Set<String> leakSignatures = new HashSet<>(knownLeakSignatures);
+    try {
+      for (String referenceKey : referenceKeys) {
+        List<Instance> groupMembers = groupReferents.get(referenceKey);
+        if (!referents.containsKey(referenceKey) && groupMembers == null) {
+          continue;
+        }
+        long keyStartNanoTime = System.nanoTime() - parseDurationNanos;
+        Instance leakingRef = referents.get(referenceKey);
+        AnalysisResult result;
+        if (leakingRef == null && groupMembers == null) {
+          result = noLeak(since(keyStartNanoTime));
+        } else {
+          try {
+            if (groupMembers != null) {
+              result = findGroupLeakTrace(keyStartNanoTime, snapshot, groupMembers,
+                  leakSignatures);
+            } else {
+              result = findLeakTrace(keyStartNanoTime, snapshot, leakingRef, leakSignatures);
+            }
+          } catch (Throwable e) {
+            result = failure(e, since(keyStartNanoTime));
+          }
+        }
+        if (result.leakFound) {
+          leakSignatures.add(result.leakTrace.signature());
+        }
+        results.put(referenceKey, result.withHeapHistogram(heapHistogram));
+      }
+      if (config.findDestroyedComponents) {
+        long scanStartNanoTime = System.nanoTime() - parseDurationNanos;
+        Set<Instance> watchedInstances = new HashSet<>(referents.values());
+        for (List<Instance> groupMembers : groupReferents.values()) {
+          watchedInstances.addAll(groupMembers);
+        }
+        Map<String, AnalysisResult> destroyedResults = findDestroyedComponents(scanStartNanoTime,
+            snapshot, watchedInstances, leakSignatures);
+        for (Map.Entry<String, AnalysisResult> entry : destroyedResults.entrySet()) {
+          results.put(entry.getKey(), entry.getValue().withHeapHistogram(heapHistogram));
+        }
+      }
+    } finally {
+      releaseSnapshot();
+      progress.finish();
+    }
+    return results;
+  }
+
+  /**
+   * Returns null if disabled or if the heap dump can't be read, in which case parsing it will
+   * fail and be reported.
+   */
+  private ClassHistogram computeHeapHistogram(File heapDumpFile) {
+    if (config.heapHistogramSize == 0 || !heapDumpFile.exists()) {
+      return null;
+    }
+    progress.start(COMPUTING_HEAP_HISTOGRAM);
+    try {
+      HprofBuffer buffer = HprofCompression.openHeapDump(heapDumpFile);
+      if (progress.isEnabled()) {
+        buffer = new ProgressHprofBuffer(buffer, progress);
+      }
+      return HprofHistogram.compute(buffer, config.heapHistogramSize);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reports the destroyed components that are still reachable, keyed by class name and instance
+   * id, with a single traversal of the heap for all of them. Components that are {@code
+   * watchedInstances} already have their own result.
+   */
+  private Map<String, AnalysisResult> findDestroyedComponents(long analysisStartNanoTime,
+      Snapshot snapshot, Set<Instance> watchedInstances, Set<String> leakSignatures) {
+    progress.start(FINDING_LEAKING_REF);
+    Set<Instance> destroyed = new LinkedHashSet<>(DestroyedComponents.find(snapshot));
+    destroyed.removeAll(watchedInstances);
+    Map<String, AnalysisResult> results = new LinkedHashMap<>();
+    if (destroyed.isEmpty()) {
+      return results;
+    }
+    progress.start(FINDING_SHORTEST_PATH);
+    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs, progress);
+    Map<Instance, ShortestPathFinder.Result> paths =
+        pathFinder.findPaths(snapshot, destroyed, config.maxLeakTraces);
+    for (Instance instance : destroyed) {
+      ShortestPathFinder.Result path = paths.get(instance);
+      if (path == null) {
+        // Unreachable, waiting to be garbage collected.
+        continue;
+      }
+      AnalysisResult result;
+      try {
+        result = analyzeLeak(analysisStartNanoTime, snapshot, path, leakSignatures);
+      } catch (Throwable e) {
+        result = failure(e, since(analysisStartNanoTime));
+      }
+      if (result.leakFound) {
+        leakSignatures.add(result.leakTrace.signature());
+      }
+      results.put(DestroyedComponents.key(instance), result);
     }
+    return results;
+  }
+
+  /** Lets the snapshot be garbage collected while this analyzer is kept around. */
+  private void releaseSnapshot() {
+    ignoredBitmapSizesSnapshot = null;
+    ignoredBitmapSizes = null;
+  }
+
+  /**
+   * Compares two heap dumps of the same process, e.g. taken before and after repeating a scenario
+   * several times, and returns the classes that grew the most with the instances that hold them.
+   * The heap dumps are parsed one after the other, so that this needs no more memory than
+   * analyzing a single heap dump.
+   *
+   * @throws RuntimeException if a heap dump can't be parsed.
+   */
+  public HeapDiff diff(File beforeHeapDumpFile, File afterHeapDumpFile) {
+    long analysisStartNanoTime = System.nanoTime();
+    try {
+      Map<String, ClassHistogram.Entry> before = buildClassTable(beforeHeapDumpFile);
+      Snapshot snapshot = parseExisting(afterHeapDumpFile);
+      progress.start(COMPUTING_DOMINATORS);
+      snapshot.computeDominators();
+      List<HeapDiff.ClassGrowth> grownClasses =
+          HeapDiff.grownClasses(before, ClassTable.build(snapshot), HeapDiff.MAX_GROWN_CLASSES);
+      return new HeapDiff(grownClasses, findGrowthRoots(snapshot, grownClasses),
+          since(analysisStartNanoTime));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      progress.finish();
+    }
+  }
+
+  /**
+   * Finds the strings and primitive arrays that are stored several times with the same contents,
+   * e.g. strings that could be interned or buffers that could be shared. Arrays are hashed while
+   * streaming the heap dump, before parsing it to find a path to the most wasteful duplicates.
+   * Copies that aren't reachable anymore, but weren't garbage collected yet, are counted too.
+   *
+   * @throws RuntimeException if the heap dump can't be parsed.
+   */
+  public HeapDuplicates findDuplicates(File heapDumpFile) {
+    long analysisStartNanoTime = System.nanoTime();
+    try {
+      if (!heapDumpFile.exists()) {
+        throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
+      }
+      progress.start(HASHING_PRIMITIVE_ARRAYS);
+      HprofBuffer buffer = HprofCompression.openHeapDump(heapDumpFile);
+      if (progress.isEnabled()) {
+        buffer = new ProgressHprofBuffer(buffer, progress);
+      }
+      List<DuplicateArrays.Group> groups = DuplicateArrays.find(buffer);
+      long totalWastedSize = 0;
+      for (DuplicateArrays.Group group : groups) {
+        totalWastedSize += group.wastedByteCount();
+      }
+      groups = groups.subList(0, Math.min(HeapDuplicates.MAX_DUPLICATES, groups.size()));
+
+      Snapshot snapshot = parse(heapDumpFile);
+      Map<Long, Instance> stringsByValueId = findStringsByValueId(snapshot, groups);
+      List<HeapDuplicates.Duplicate> duplicates = new ArrayList<>();
+      for (DuplicateArrays.Group group : groups) {
+        duplicates.add(buildDuplicate(snapshot, group, stringsByValueId));
+      }
+      return new HeapDuplicates(duplicates, totalWastedSize, since(analysisStartNanoTime));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      progress.finish();
+    }
+  }
+
+  /** Strings that hold the arrays of {@code groups}, by array id. */
+  private Map<Long, Instance> findStringsByValueId(Snapshot snapshot,
+      List<DuplicateArrays.Group> groups) {
+    Set<Long> arrayIds = new HashSet<>();
+    for (DuplicateArrays.Group group : groups) {
+      for (long arrayId : group.arrayIds) {
+        arrayIds.add(arrayId);
+      }
+    }
+    Map<Long, Instance> stringsByValueId = new LinkedHashMap<>();
+    ClassObj stringClass = findClass(snapshot, String.class.getName());
+    if (stringClass == null) {
+      return stringsByValueId;
+    }
+    for (Instance string : stringClass.getInstancesList()) {
+      List<ClassInstance.FieldValue> values = classInstanceValues(string);
+      // Android O strings hold their characters rather than an array.
+      Object value = hasField(values, "value") ? fieldValue(values, "value") : null;
+      if (value instanceof ArrayInstance && arrayIds.contains(((Instance) value).getId())) {
+        stringsByValueId.put(((Instance) value).getId(), string);
+      }
+    }
+    return stringsByValueId;
+  }
+
+  private HeapDuplicates.Duplicate buildDuplicate(Snapshot snapshot,
+      DuplicateArrays.Group group, Map<Long, Instance> stringsByValueId) {
+    Instance string = null;
+    for (long arrayId : group.arrayIds) {
+      string = stringsByValueId.get(arrayId);
+      if (string != null) {
+        break;
+      }
+    }
+    String className;
+    String value;
+    if (string != null) {
+      className = String.class.getName();
+      value = asString(string);
+      if (value.length() > HeapDuplicates.MAX_VALUE_LENGTH) {
+        value = value.substring(0, HeapDuplicates.MAX_VALUE_LENGTH) + "...";
+      }
+    } else {
+      className = Type.getClassNameOfPrimitiveArray(group.type);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : group.firstBytes) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      value = group.byteCount > group.firstBytes.length ? hex + "..." : hex.toString();
+    }
+    // A path to the string says more than a path that ends with String.value.
+    LeakTrace leakTrace = null;
+    int attempts = Math.min(group.arrayIds.length, HeapDuplicates.MAX_PATH_ATTEMPTS);
+    for (int i = 0; i < attempts && leakTrace == null; i++) {
+      Instance copy = string != null ? stringsByValueId.get(group.arrayIds[i])
+          : snapshot.findInstance(group.arrayIds[i]);
+      if (copy == null) {
+        continue;
+      }
+      progress.start(FINDING_SHORTEST_PATH);
+      ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs, progress);
+      ShortestPathFinder.Result result = pathFinder.findPath(snapshot, copy);
+      if (result.leakingNode != null) {
+        progress.start(BUILDING_LEAK_TRACE);
+        leakTrace = buildLeakTrace(result.leakingNode);
+      }
+    }
+    return new HeapDuplicates.Duplicate(className, value, group.arrayIds.length, group.byteCount,
+        leakTrace);
+  }
+
+  /** The snapshot can be garbage collected as soon as this returns. */
+  private Map<String, ClassHistogram.Entry> buildClassTable(File heapDumpFile)
+      throws IOException {
+    Snapshot snapshot = parseExisting(heapDumpFile);
+    progress.start(COMPUTING_DOMINATORS);
+    snapshot.computeDominators();
+    return ClassTable.build(snapshot);
+  }
+
+  private List<HeapDiff.GrowthRoot> findGrowthRoots(Snapshot snapshot,
+      List<HeapDiff.ClassGrowth> grownClasses) {
+    // Classes that only retain more, e.g. the holders of the classes that grew, are skipped.
+    Map<String, Integer> growthByClassName = new LinkedHashMap<>();
+    for (HeapDiff.ClassGrowth growth : grownClasses) {
+      if (growthByClassName.size() == HeapDiff.MAX_GROWTH_ROOTS) {
+        break;
+      }
+      if (growth.instanceCountGrowth() > 0) {
+        growthByClassName.put(growth.className, growth.instanceCountGrowth());
+      }
+    }
+    Map<String, ClassTable.Holder> holders = ClassTable.findHolders(snapshot, growthByClassName);
+    List<HeapDiff.GrowthRoot> growthRoots = new ArrayList<>();
+    for (String className : growthByClassName.keySet()) {
+      ClassTable.Holder holder = holders.get(className);
+      if (holder == null) {
+        continue;
+      }
+      progress.start(FINDING_SHORTEST_PATH);
+      ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs, progress);
+      ShortestPathFinder.Result result = pathFinder.findPath(snapshot, holder.instance);
+      if (result.leakingNode == null) {
+        continue;
+      }
+      progress.start(BUILDING_LEAK_TRACE);
+      LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
+      growthRoots.add(new HeapDiff.GrowthRoot(className, getClassName(holder.instance),
+          holder.heldInstanceCount, holder.instance.getTotalRetainedSize(), leakTrace));
+    }
+    return growthRoots;
+  }
+
+  private Snapshot parseExisting(File heapDumpFile) throws IOException {
+    if (!heapDumpFile.exists()) {
+      throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
+    }
+    return parse(heapDumpFile);
+  }
+
+  private Snapshot parse(File heapDumpFile) throws IOException {
+    progress.start(PARSING_HEAP_DUMP);
+    // Heap dumps may have been compressed with HprofCompression after a first analysis.
+    HprofBuffer buffer = HprofCompression.openHeapDump(heapDumpFile);
+    ProgressHprofBuffer progressBuffer = null;
+    if (progress.isEnabled()) {
+      progressBuffer = new ProgressHprofBuffer(buffer, progress);
+      buffer = progressBuffer;
+    }
+    HprofParser parser = new HprofParser(buffer);
+    Snapshot snapshot = parser.parse();
+    if (progressBuffer != null) {
+      progressBuffer.stopReporting();
+    }
+    progress.start(DEDUPLICATING_GC_ROOTS);
+    deduplicateGcRoots(snapshot);
+    return snapshot;
   }
 
   /**
@@ -156,103 +594,156 @@ public final class HeapAnalyzer {
   }
 
   private Instance findLeakingReference(String key, Snapshot snapshot) {
-    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
-    List<String> keysFound = new ArrayList<>();
+    Map<String, Instance> referents = findReferents(snapshot);
+    if (!referents.containsKey(key)) {
+      throw new IllegalStateException(
+          "Could not find weak reference with key " + key + " in " + referents.keySet());
+    }
+    return referents.get(key);
+  }
+
+  /** Maps the key of each {@link KeyedWeakReference} to its referent, null if cleared. */
+  private Map<String, Instance> findReferents(Snapshot snapshot) {
+    ClassObj refClass = findClass(snapshot, KeyedWeakReference.class.getName());
+    Map<String, Instance> referents = new LinkedHashMap<>();
+    // Heap dumps may come from processes that don't watch anything.
+    if (refClass == null) {
+      return referents;
+    }
     for (Instance instance : refClass.getInstancesList()) {
       List<ClassInstance.FieldValue> values = classInstanceValues(instance);
-      String keyCandidate = asString(fieldValue(values, "key"));
-      if (keyCandidate.equals(key)) {
-        return fieldValue(values, "referent");
+      String key = asString(fieldValue(values, "key"));
+      Instance referent = fieldValue(values, "referent");
+      referents.put(key, referent);
+    }
+    return referents;
+  }
+
+  /**
+   * Maps the key of each group watched with {@link RefWatcher#watchAll} to the referents of its
+   * members that haven't been cleared.
+   */
+  private Map<String, List<Instance>> findGroupReferents(Snapshot snapshot) {
+    ClassObj groupClass = findClass(snapshot, WatchedGroup.class.getName());
+    Map<String, List<Instance>> groupReferents = new LinkedHashMap<>();
+    if (groupClass == null) {
+      return groupReferents;
+    }
+    for (Instance group : groupClass.getInstancesList()) {
+      List<ClassInstance.FieldValue> values = classInstanceValues(group);
+      String key = asString(fieldValue(values, "key"));
+      ArrayInstance members = fieldValue(values, "members");
+      List<Instance> referents = new ArrayList<>();
+      for (Object member : members.getValues()) {
+        Instance referent = fieldValue(classInstanceValues((Instance) member), "referent");
+        if (referent != null) {
+          referents.add(referent);
+        }
       }
-      keysFound.add(keyCandidate);
+      groupReferents.put(key, referents);
     }
-    throw new IllegalStateException(
-        "Could not find weak reference with key " + key + " in " + keysFound);
+    return groupReferents;
+  }
+
+  /**
+   * Finds the paths to all the retained members of a group in a single traversal. The result is
+   * the leak of the first member that can be reached, and the paths to the other reachable members
+   * are added to its {@link AnalysisResult#otherLeakTraces}, one per leak trace signature.
+   */
+  private AnalysisResult findGroupLeakTrace(long analysisStartNanoTime, Snapshot snapshot,
+      List<Instance> members, Set<String> knownLeakSignatures) {
+    progress.start(FINDING_SHORTEST_PATH);
+    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs, progress);
+    Map<Instance, ShortestPathFinder.Result> paths =
+        pathFinder.findPaths(snapshot, new LinkedHashSet<>(members), config.maxLeakTraces);
+
+    AnalysisResult result = null;
+    List<LeakTrace> otherLeakTraces = new ArrayList<>();
+    Set<String> signatures = new HashSet<>();
+    for (Instance member : members) {
+      ShortestPathFinder.Result path = paths.get(member);
+      if (path == null) {
+        // Unreachable, waiting to be garbage collected.
+        continue;
+      }
+      if (result == null) {
+        result = analyzeLeak(analysisStartNanoTime, snapshot, path, knownLeakSignatures);
+        otherLeakTraces.addAll(result.otherLeakTraces);
+        signatures.add(result.leakTrace.signature());
+      } else {
+        LeakTrace leakTrace = buildLeakTrace(path.leakingNode);
+        if (signatures.add(leakTrace.signature())) {
+          otherLeakTraces.add(leakTrace);
+        }
+      }
+    }
+    if (result == null) {
+      return noLeak(since(analysisStartNanoTime));
+    }
+    return result.withOtherLeakTraces(otherLeakTraces);
   }
 
   private AnalysisResult findLeakTrace(long analysisStartNanoTime, Snapshot snapshot,
-      Instance leakingRef) {
+      Instance leakingRef, Set<String> knownLeakSignatures) {
 
-    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs);
-    ShortestPathFinder.Result result = pathFinder.findPath(snapshot, leakingRef);
+    progress.start(FINDING_SHORTEST_PATH);
+    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs, progress);
+    ShortestPathFinder.Result result =
+        pathFinder.findPath(snapshot, leakingRef, config.maxLeakTraces);
 
     // False alarm, no strong reference path to GC Roots.
     if (result.leakingNode == null) {
       return noLeak(since(analysisStartNanoTime));
     }
+    return analyzeLeak(analysisStartNanoTime, snapshot, result, knownLeakSignatures);
+  }
 
+  private AnalysisResult analyzeLeak(long analysisStartNanoTime, Snapshot snapshot,
+      ShortestPathFinder.Result result, Set<String> knownLeakSignatures) {
+    progress.start(BUILDING_LEAK_TRACE);
     LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
+    List<LeakTrace> otherLeakTraces = new ArrayList<>();
+    for (LeakNode otherLeakingNode : result.otherLeakingNodes) {
+      otherLeakTraces.add(buildLeakTrace(otherLeakingNode));
+    }
 
-    String className = leakingRef.getClassObj().getClassName();
+    Instance leakingInstance = result.leakingNode.instance;
+    String className = className(leakingInstance.getClassObj());
+
+    // Computing dominators is the most expensive part of the analysis.
+    if (knownLeakSignatures.contains(leakTrace.signature())) {
+      return duplicateLeak(result.excludingKnownLeaks, className, leakTrace,
+          since(analysisStartNanoTime)).withOtherLeakTraces(otherLeakTraces);
+    }
+
+    if (!config.computeRetainedHeapSize) {
+      return leakDetected(result.excludingKnownLeaks, className, leakTrace, 0,
+          since(analysisStartNanoTime)).withOtherLeakTraces(otherLeakTraces);
+    }
 
     // Side effect: computes retained size.
+    progress.start(COMPUTING_DOMINATORS);
     snapshot.computeDominators();
 
-    Instance leakingInstance = result.leakingNode.instance;
-
     long retainedSize = leakingInstance.getTotalRetainedSize();
 
-    // TODO: check O sources and see what happened to android.graphics.Bitmap.mBuffer
-    if (SDK_INT <= N_MR1) {
-      retainedSize += computeIgnoredBitmapRetainedSize(snapshot, leakingInstance);
+    ClassHistogram retainedHistogram = null;
+    if (config.retainedHistogramSize > 0) {
+      progress.start(COMPUTING_RETAINED_HISTOGRAM);
+      retainedHistogram = RetainedHistogram.compute(leakingInstance, config.retainedHistogramSize);
     }
 
-    return leakDetected(result.excludingKnownLeaks, className, leakTrace, retainedSize,
-        since(analysisStartNanoTime));
-  }
-
-  /**
-   * Bitmaps and bitmap byte arrays are sometimes held by native gc roots, so they aren't included
-   * in the retained size because their root dominator is a native gc root.
-   * To fix this, we check if the leaking instance is a dominator for each bitmap instance and then
-   * add the bitmap size.
-   *
-   * From experience, we've found that bitmap created in code (Bitmap.createBitmap()) are correctly
-   * accounted for, however bitmaps set in layouts are not.
-   */
-  private int computeIgnoredBitmapRetainedSize(Snapshot snapshot, Instance leakingInstance) {
-    int bitmapRetainedSize = 0;
-    ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
-
-    for (Instance bitmapInstance : bitmapClass.getInstancesList()) {
-      if (isIgnoredDominator(leakingInstance, bitmapInstance)) {
-        ArrayInstance mBufferInstance = fieldValue(classInstanceValues(bitmapInstance), "mBuffer");
-        // Native bitmaps have mBuffer set to null. We sadly can't account for them.
-        if (mBufferInstance == null) {
-          continue;
-        }
-        long bufferSize = mBufferInstance.getTotalRetainedSize();
-        long bitmapSize = bitmapInstance.getTotalRetainedSize();
-        // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
-        // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
-        if (bitmapSize < bufferSize) {
-          bitmapSize += bufferSize;
-        }
-        bitmapRetainedSize += bitmapSize;
+    if (config.includeBitmapBuffers) {
+      progress.start(COMPUTING_BITMAP_SIZE);
+      if (ignoredBitmapSizesSnapshot != snapshot) {
+        ignoredBitmapSizes = IgnoredBitmapSizes.compute(snapshot);
+        ignoredBitmapSizesSnapshot = snapshot;
       }
+      retainedSize += ignoredBitmapSizes.retainedBy(leakingInstance);
     }
-    return bitmapRetainedSize;
-  }
 
-  private boolean isIgnoredDominator(Instance dominator, Instance instance) {
-    boolean foundNativeRoot = false;
-    while (true) {
-      Instance immediateDominator = instance.getImmediateDominator();
-      if (immediateDominator instanceof RootObj
-          && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
-        // Ignore native roots
-        instance = instance.getNextInstanceToGcRoot();
-        foundNativeRoot = true;
-      } else {
-        instance = immediateDominator;
-      }
-      if (instance == null) {
-        return false;
-      }
-      if (instance == dominator) {
-        return foundNativeRoot;
-      }
-    }
+    return leakDetected(result.excludingKnownLeaks, className, leakTrace, retainedSize,
+        retainedHistogram, since(analysisStartNanoTime)).withOtherLeakTraces(otherLeakTraces);
   }
 
   private LeakTrace buildLeakTrace(LeakNode leakingNode) {
@@ -300,14 +791,14 @@ public final class HeapAnalyzer {
         String threadName = threadName(holder);
         extra = "(named '" + threadName + "')";
       } else if (className.matches(ANONYMOUS_CLASS_NAME_PATTERN)) {
-        String parentClassName = classObj.getSuperClassObj().getClassName();
+        String parentClassName = className(classObj.getSuperClassObj());
         if (Object.class.getName().equals(parentClassName)) {
           holderType = OBJECT;
           try {
             // This is an anonymous class implementing an interface. The API does not give access
             // to the interfaces implemented by the class. We check if it's in the class path and
             // use that instead.
-            Class<?> actualClass = Class.forName(classObj.getClassName());
+            Class<?> actualClass = Class.forName(className);
             Class<?>[] interfaces = actualClass.getInterfaces();
             if (interfaces.length > 0) {
               Class<?> implementedInterface = interfaces[0];
@@ -338,14 +829,14 @@ public final class HeapAnalyzer {
       for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
         Field field = entry.getKey();
         Object value = entry.getValue();
-        fields.add("static " + field.getName() + " = " + value);
+        fields.add("static " + field.getName() + " = " + valueToString(value));
       }
     } else if (instance instanceof ArrayInstance) {
       ArrayInstance arrayInstance = (ArrayInstance) instance;
       if (arrayInstance.getArrayType() == Type.OBJECT) {
         Object[] values = arrayInstance.getValues();
         for (int i = 0; i < values.length; i++) {
-          fields.add("[" + i + "] = " + values[i]);
+          fields.add("[" + i + "] = " + valueToString(values[i]));
         }
       }
     } else {
@@ -365,13 +856,13 @@ public final class HeapAnalyzer {
     String className;
     if (instance instanceof ClassObj) {
       ClassObj classObj = (ClassObj) instance;
-      className = classObj.getClassName();
+      className = className(classObj);
     } else if (instance instanceof ArrayInstance) {
       ArrayInstance arrayInstance = (ArrayInstance) instance;
-      className = arrayInstance.getClassObj().getClassName();
+      className = arrayClassName(arrayInstance);
     } else {
       ClassObj classObj = instance.getClassObj();
-      className = classObj.getClassName();
+      className = className(classObj);
     }
     return className;
   }
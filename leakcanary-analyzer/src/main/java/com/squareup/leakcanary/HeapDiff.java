@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Growth between two heap dumps of the same process, see {@link HeapAnalyzer#diff(java.io.File,
+ * java.io.File)}. Finds gradual growth, e.g. caches or listener lists, which doesn't involve any
+ * watched reference.
+ */
+public final class HeapDiff implements Serializable {
+
+  /** Number of classes reported in {@link #grownClasses}. */
+  static final int MAX_GROWN_CLASSES = 20;
+  /** Number of classes of {@link #grownClasses} that get a {@link GrowthRoot}. */
+  static final int MAX_GROWTH_ROOTS = 5;
+
+  /** A class which has more reachable instances or retains more memory than before. */
+  public static final class ClassGrowth implements Serializable {
+    /** Same format as {@link AnalysisResult#className}. */
+    public final String className;
+    public final int instanceCountBefore;
+    public final int instanceCountAfter;
+    public final long shallowSizeBefore;
+    public final long shallowSizeAfter;
+    /** See {@link ClassHistogram.Entry#retainedSize}. */
+    public final long retainedSizeBefore;
+    public final long retainedSizeAfter;
+
+    ClassGrowth(String className, ClassHistogram.Entry before, ClassHistogram.Entry after) {
+      this.className = className;
+      instanceCountBefore = before != null ? before.instanceCount : 0;
+      instanceCountAfter = after != null ? after.instanceCount : 0;
+      shallowSizeBefore = before != null ? before.shallowSize : 0;
+      shallowSizeAfter = after != null ? after.shallowSize : 0;
+      retainedSizeBefore = before != null ? before.retainedSize : 0;
+      retainedSizeAfter = after != null ? after.retainedSize : 0;
+    }
+
+    public long retainedSizeGrowth() {
+      return retainedSizeAfter - retainedSizeBefore;
+    }
+
+    public int instanceCountGrowth() {
+      return instanceCountAfter - instanceCountBefore;
+    }
+
+    @Override public String toString() {
+      return String.format(Locale.US, "%s: %+d instances (%d), %+d bytes retained (%d)", className,
+          instanceCountGrowth(), instanceCountAfter, retainedSizeGrowth(), retainedSizeAfter);
+    }
+  }
+
+  /**
+   * The instance that holds the most instances of a grown class in the second heap dump, i.e.
+   * the root of the dominator subtree that grew, and how it is reachable.
+   */
+  public static final class GrowthRoot implements Serializable {
+    /** The grown class, see {@link ClassGrowth#className}. */
+    public final String className;
+    /** Class of the instance that holds the instances of {@link #className}. */
+    public final String holderClassName;
+    /** Number of instances of {@link #className} that the holder dominates. */
+    public final int heldInstanceCount;
+    public final long holderRetainedSize;
+    /** Shortest path from the gc roots to the holder. */
+    public final LeakTrace leakTrace;
+
+    GrowthRoot(String className, String holderClassName, int heldInstanceCount,
+        long holderRetainedSize, LeakTrace leakTrace) {
+      this.className = className;
+      this.holderClassName = holderClassName;
+      this.heldInstanceCount = heldInstanceCount;
+      this.holderRetainedSize = holderRetainedSize;
+      this.leakTrace = leakTrace;
+    }
+
+    @Override public String toString() {
+      return String.format(Locale.US, "%d instances of %s held by %s retaining %d bytes:%n%s",
+          heldInstanceCount, className, holderClassName, holderRetainedSize, leakTrace);
+    }
+  }
+
+  /** Sorted by decreasing retained size growth, then instance count growth. */
+  public final List<ClassGrowth> grownClasses;
+  /** For the classes that grew the most, in the same order as {@link #grownClasses}. */
+  public final List<GrowthRoot> growthRoots;
+  public final long analysisDurationMs;
+
+  HeapDiff(List<ClassGrowth> grownClasses, List<GrowthRoot> growthRoots,
+      long analysisDurationMs) {
+    this.grownClasses = Collections.unmodifiableList(new ArrayList<>(grownClasses));
+    this.growthRoots = Collections.unmodifiableList(new ArrayList<>(growthRoots));
+    this.analysisDurationMs = analysisDurationMs;
+  }
+
+  /** Returns the classes that grew between the two class tables, the largest growth first. */
+  static List<ClassGrowth> grownClasses(Map<String, ClassHistogram.Entry> before,
+      Map<String, ClassHistogram.Entry> after, int maxClasses) {
+    Set<String> classNames = new HashSet<>(before.keySet());
+    classNames.addAll(after.keySet());
+    List<ClassGrowth> grown = new ArrayList<>();
+    for (String className : classNames) {
+      ClassGrowth growth = new ClassGrowth(className, before.get(className), after.get(className));
+      if (growth.retainedSizeGrowth() > 0 || growth.instanceCountGrowth() > 0) {
+        grown.add(growth);
+      }
+    }
+    Collections.sort(grown, new Comparator<ClassGrowth>() {
+      @Override public int compare(ClassGrowth lhs, ClassGrowth rhs) {
+        int bySize = Long.compare(rhs.retainedSizeGrowth(), lhs.retainedSizeGrowth());
+        if (bySize != 0) {
+          return bySize;
+        }
+        return Integer.compare(rhs.instanceCountGrowth(), lhs.instanceCountGrowth());
+      }
+    });
+    return grown.subList(0, Math.min(maxClasses, grown.size()));
+  }
+
+  @Override public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (ClassGrowth growth : grownClasses) {
+      sb.append("* ").append(growth).append('\n');
+    }
+    for (GrowthRoot growthRoot : growthRoots) {
+      sb.append('\n').append(growthRoot);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Strings and primitive arrays that are stored several times with the same contents, see {@link
+ * HeapAnalyzer#findDuplicates(java.io.File)}. Every copy but one is wasted memory that interning,
+ * caching or sharing the value would free.
+ */
+public final class HeapDuplicates implements Serializable {
+
+  /** Number of duplicated values reported in {@link #duplicates}. */
+  static final int MAX_DUPLICATES = 10;
+  /** Number of characters of a string, or bytes of an array, reported as a value. */
+  static final int MAX_VALUE_LENGTH = 100;
+  /** Number of copies tried when looking for a reachable one, each is a search of the heap. */
+  static final int MAX_PATH_ATTEMPTS = 3;
+
+  /** Arrays with the same type and contents. */
+  public static final class Duplicate implements Serializable {
+    /**
+     * {@code java.lang.String} when the arrays hold the contents of strings, otherwise the array
+     * class, e.g. {@code byte[]}.
+     */
+    public final String className;
+    /** The string, or the first bytes of the array in hexadecimal, possibly truncated. */
+    public final String value;
+    public final int copyCount;
+    /** Size of each copy of the array. */
+    public final long copySize;
+    /** Shortest path from the gc roots to one of the copies, null if none was reachable. */
+    public final LeakTrace leakTrace;
+
+    Duplicate(String className, String value, int copyCount, long copySize,
+        LeakTrace leakTrace) {
+      this.className = className;
+      this.value = value;
+      this.copyCount = copyCount;
+      this.copySize = copySize;
+      this.leakTrace = leakTrace;
+    }
+
+    /** What keeping a single copy would free. */
+    public long wastedSize() {
+      return (copyCount - 1) * copySize;
+    }
+
+    @Override public String toString() {
+      String duplicate = String.format(Locale.US, "%d copies of %s \"%s\" wasting %d bytes",
+          copyCount, className, value, wastedSize());
+      return leakTrace != null ? duplicate + ", for instance:\n" + leakTrace : duplicate + "\n";
+    }
+  }
+
+  /** The most wasteful duplicates, sorted by decreasing {@link Duplicate#wastedSize()}. */
+  public final List<Duplicate> duplicates;
+  /** Wasted size of all the duplicates of the heap dump, including those not reported. */
+  public final long totalWastedSize;
+  public final long analysisDurationMs;
+
+  HeapDuplicates(List<Duplicate> duplicates, long totalWastedSize, long analysisDurationMs) {
+    this.duplicates = Collections.unmodifiableList(new ArrayList<>(duplicates));
+    this.totalWastedSize = totalWastedSize;
+    this.analysisDurationMs = analysisDurationMs;
+  }
+
+  @Override public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("* ").append(totalWastedSize).append(" bytes wasted by duplicates\n");
+    for (Duplicate duplicate : duplicates) {
+      sb.append('\n').append(duplicate);
+    }
+    return sb.toString();
+  }
+}
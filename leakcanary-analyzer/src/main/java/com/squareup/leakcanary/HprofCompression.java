@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses heap dumps into independently deflated chunks followed by an index of chunk
+ * offsets, so that {@link HeapAnalyzer} can read any position of a compressed heap dump without
+ * inflating it entirely.
+ */
+public final class HprofCompression {
+
+  static final int MAGIC = 0x4C43485A;
+  static final int VERSION = 1;
+  /** magic, version, chunk size and uncompressed length. */
+  static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+  /** chunk count and index offset. */
+  static final int FOOTER_SIZE = 4 + 8;
+
+  private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+  /** Returns true if {@code file} was written by {@link #compress(File, File)}. */
+  public static boolean isCompressed(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      DataInputStream input = new DataInputStream(in);
+      return file.length() >= HEADER_SIZE + FOOTER_SIZE && input.readInt() == MAGIC;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  public static void compress(File source, File destination) throws IOException {
+    compress(source, destination, DEFAULT_CHUNK_SIZE);
+  }
+
+  static void compress(File source, File destination, int chunkSize) throws IOException {
+    long length = source.length();
+    int chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+    long[] chunkOffsets = new long[chunkCount];
+    InputStream in = null;
+    OutputStream out = null;
+    Deflater deflater = new Deflater();
+    try {
+      in = new FileInputStream(source);
+      out = new FileOutputStream(destination);
+      DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(chunkSize);
+      output.writeLong(length);
+      long offset = HEADER_SIZE;
+      byte[] chunk = new byte[chunkSize];
+      byte[] deflated = new byte[chunkSize];
+      for (int i = 0; i < chunkCount; i++) {
+        int chunkLength = (int) Math.min(chunkSize, length - (long) i * chunkSize);
+        input.readFully(chunk, 0, chunkLength);
+        chunkOffsets[i] = offset;
+        deflater.reset();
+        deflater.setInput(chunk, 0, chunkLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+          int deflatedLength = deflater.deflate(deflated);
+          output.write(deflated, 0, deflatedLength);
+          offset += deflatedLength;
+        }
+      }
+      for (long chunkOffset : chunkOffsets) {
+        output.writeLong(chunkOffset);
+      }
+      output.writeInt(chunkCount);
+      output.writeLong(offset);
+      output.flush();
+    } finally {
+      deflater.end();
+      closeQuietly(in);
+      closeQuietly(out);
+    }
+  }
+
+  /** Restores a heap dump written by {@link #compress(File, File)}. */
+  public static void decompress(File source, File destination) throws IOException {
+    CompressedHprofBuffer buffer = new CompressedHprofBuffer(source);
+    OutputStream out = new FileOutputStream(destination);
+    try {
+      byte[] bytes = new byte[DEFAULT_CHUNK_SIZE];
+      while (buffer.hasRemaining()) {
+        int length = (int) Math.min(bytes.length, buffer.remaining());
+        buffer.readSubSequence(bytes, 0, length);
+        out.write(bytes, 0, length);
+      }
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  /** Opens a heap dump for parsing, whether it was compressed or not. */
+  static HprofBuffer openHeapDump(File heapDumpFile) throws IOException {
+    if (isCompressed(heapDumpFile)) {
+      return new CompressedHprofBuffer(heapDumpFile);
+    }
+    return new MemoryMappedFileBuffer(heapDumpFile);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private HprofCompression() {
+    throw new AssertionError();
+  }
+}
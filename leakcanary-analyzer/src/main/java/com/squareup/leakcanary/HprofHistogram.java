@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.trove.TLongObjectHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.leakcanary.HahaHelper.className;
+
+/**
+ * Computes the instance count and shallow size of every class of a heap dump in one sequential
+ * pass over its records, without building a {@link com.squareup.haha.perflib.Snapshot}: instance
+ * fields and array elements are skipped, and class names are only read at the end. This is cheap
+ * enough to run before every analysis.
+ *
+ * <p>Sizes are the same as perflib's, but unlike {@link HeapAnalyzer} this counts every instance
+ * in the heap dump, including unreachable instances that weren't garbage collected yet.
+ */
+public final class HprofHistogram {
+
+  private static final String CLASS_CLASS_NAME = "java.lang.Class";
+
+  /**
+   * Returns the {@code maxClasses} classes of {@code heapDumpFile} with the largest shallow size.
+   * The heap dump may have been compressed with {@link HprofCompression}.
+   */
+  public static ClassHistogram compute(File heapDumpFile, int maxClasses) throws IOException {
+    return compute(HprofCompression.openHeapDump(heapDumpFile), maxClasses);
+  }
+
+  static ClassHistogram compute(HprofBuffer buffer, int maxClasses) throws IOException {
+    HprofStreamReader reader = new HprofStreamReader(buffer);
+    Counter counter = new Counter(reader);
+    reader.read(counter);
+    return counter.build(maxClasses);
+  }
+
+  /** Counts for the instances of a class, or for the arrays of an array class. */
+  private static final class ClassStats {
+    long nameId;
+    int instanceSize;
+    int instanceCount;
+    long arrayBytes;
+  }
+
+  private static final class Counter extends HprofStreamReader.Callback {
+    private final HprofStreamReader reader;
+    /** Record positions rather than strings: few strings are class names. */
+    private final TLongObjectHashMap<Long> stringPositions = new TLongObjectHashMap<>();
+    private final TLongObjectHashMap<ClassStats> statsByClassId = new TLongObjectHashMap<>();
+    private final int[] primitiveArrayCounts = new int[Type.LONG.getTypeId() + 1];
+    private final long[] primitiveArrayBytes = new long[Type.LONG.getTypeId() + 1];
+    private int classObjectCount;
+    private long classObjectBytes;
+
+    Counter(HprofStreamReader reader) {
+      this.reader = reader;
+    }
+
+    @Override void onString(long id, long recordPosition) {
+      stringPositions.put(id, recordPosition);
+    }
+
+    @Override void onLoadClass(long classId, long nameId) {
+      stats(classId).nameId = nameId;
+    }
+
+    @Override void onClassDump(long classId, int instanceSize, long staticFieldsSize) {
+      stats(classId).instanceSize = instanceSize;
+      classObjectCount++;
+      classObjectBytes += staticFieldsSize;
+    }
+
+    @Override void onInstanceDump(long id, long classId) {
+      stats(classId).instanceCount++;
+    }
+
+    @Override void onObjectArrayDump(long id, long classId, long elementCount) {
+      ClassStats stats = stats(classId);
+      stats.instanceCount++;
+      stats.arrayBytes += elementCount * reader.idSize();
+    }
+
+    @Override void onPrimitiveArrayDump(long id, Type type, long elementCount, boolean hasData)
+        throws IOException {
+      int typeId = type.getTypeId();
+      primitiveArrayCounts[typeId]++;
+      primitiveArrayBytes[typeId] += elementCount * reader.typeSize(typeId);
+    }
+
+    ClassHistogram build(int maxClasses) {
+      Map<String, ClassHistogram.Entry> entriesByName = new LinkedHashMap<>();
+      for (Object value : statsByClassId.getValues()) {
+        ClassStats stats = (ClassStats) value;
+        if (stats.instanceCount > 0) {
+          add(entriesByName, readClassName(stats.nameId), stats.instanceCount,
+              (long) stats.instanceCount * stats.instanceSize + stats.arrayBytes);
+        }
+      }
+      for (int typeId = 0; typeId < primitiveArrayCounts.length; typeId++) {
+        if (primitiveArrayCounts[typeId] > 0) {
+          add(entriesByName, Type.getClassNameOfPrimitiveArray(Type.getType(typeId)),
+              primitiveArrayCounts[typeId], primitiveArrayBytes[typeId]);
+        }
+      }
+      if (classObjectCount > 0) {
+        add(entriesByName, CLASS_CLASS_NAME, classObjectCount, classObjectBytes);
+      }
+      List<ClassHistogram.Entry> entries = new ArrayList<>(entriesByName.values());
+      Collections.sort(entries, new Comparator<ClassHistogram.Entry>() {
+        @Override public int compare(ClassHistogram.Entry lhs, ClassHistogram.Entry rhs) {
+          int compare = Long.compare(rhs.shallowSize, lhs.shallowSize);
+          return compare != 0 ? compare : lhs.className.compareTo(rhs.className);
+        }
+      });
+      return new ClassHistogram(entries.subList(0, Math.min(maxClasses, entries.size())),
+          entries.size());
+    }
+
+    /** Classes with the same name in several class loaders are merged. */
+    private static void add(Map<String, ClassHistogram.Entry> entriesByName, String className,
+        int instanceCount, long shallowSize) {
+      ClassHistogram.Entry entry = entriesByName.get(className);
+      if (entry != null) {
+        instanceCount += entry.instanceCount;
+        shallowSize += entry.shallowSize;
+      }
+      entriesByName.put(className,
+          new ClassHistogram.Entry(className, instanceCount, shallowSize, 0));
+    }
+
+    private String readClassName(long nameId) {
+      Long recordPosition = stringPositions.get(nameId);
+      if (recordPosition == null) {
+        return "(unknown class)";
+      }
+      return className(reader.readString(recordPosition));
+    }
+
+    private ClassStats stats(long classId) {
+      ClassStats stats = statsByClassId.get(classId);
+      if (stats == null) {
+        stats = new ClassStats();
+        statsByClassId.put(classId, stats);
+      }
+      return stats;
+    }
+  }
+
+  private HprofHistogram() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the records of a heap dump in one sequential pass, without building a {@link
+ * com.squareup.haha.perflib.Snapshot}. Whatever a {@link Callback} doesn't read, e.g. instance
+ * fields and array contents, is skipped.
+ */
+final class HprofStreamReader {
+
+  /** Called for each record, with the buffer positioned right after the arguments. */
+  abstract static class Callback {
+    /** The string can be read later with {@link #readString(long)}. */
+    void onString(long id, long recordPosition) {
+    }
+
+    void onLoadClass(long classId, long nameId) {
+    }
+
+    /** @param staticFieldsSize what perflib considers the size of the class object. */
+    void onClassDump(long classId, int instanceSize, long staticFieldsSize) {
+    }
+
+    void onInstanceDump(long id, long classId) {
+    }
+
+    void onObjectArrayDump(long id, long classId, long elementCount) {
+    }
+
+    /**
+     * The buffer is positioned on the first element, unless {@code hasData} is false (Android
+     * dumps arrays without their contents in some heaps).
+     */
+    void onPrimitiveArrayDump(long id, Type type, long elementCount, boolean hasData)
+        throws IOException {
+    }
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Record tags.
+  private static final int STRING_IN_UTF8 = 0x01;
+  private static final int LOAD_CLASS = 0x02;
+  private static final int HEAP_DUMP = 0x0C;
+  private static final int HEAP_DUMP_SEGMENT = 0x1C;
+
+  // Heap dump sub record tags.
+  private static final int ROOT_UNKNOWN = 0xFF;
+  private static final int ROOT_JNI_GLOBAL = 0x01;
+  private static final int ROOT_JNI_LOCAL = 0x02;
+  private static final int ROOT_JAVA_FRAME = 0x03;
+  private static final int ROOT_NATIVE_STACK = 0x04;
+  private static final int ROOT_STICKY_CLASS = 0x05;
+  private static final int ROOT_THREAD_BLOCK = 0x06;
+  private static final int ROOT_MONITOR_USED = 0x07;
+  private static final int ROOT_THREAD_OBJECT = 0x08;
+  private static final int CLASS_DUMP = 0x20;
+  private static final int INSTANCE_DUMP = 0x21;
+  private static final int OBJECT_ARRAY_DUMP = 0x22;
+  private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+  // Android sub record tags.
+  private static final int HEAP_DUMP_INFO = 0xFE;
+  private static final int ROOT_INTERNED_STRING = 0x89;
+  private static final int ROOT_FINALIZING = 0x8A;
+  private static final int ROOT_DEBUGGER = 0x8B;
+  private static final int ROOT_REFERENCE_CLEANUP = 0x8C;
+  private static final int ROOT_VM_INTERNAL = 0x8D;
+  private static final int ROOT_JNI_MONITOR = 0x8E;
+  private static final int ROOT_UNREACHABLE = 0x90;
+  private static final int PRIMITIVE_ARRAY_NODATA = 0xC3;
+
+  private final HprofBuffer buffer;
+  private int idSize;
+
+  HprofStreamReader(HprofBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  HprofBuffer buffer() {
+    return buffer;
+  }
+
+  /** Valid once {@link #read(Callback)} has started. */
+  int idSize() {
+    return idSize;
+  }
+
+  void read(Callback callback) throws IOException {
+    // Format name, e.g. "JAVA PROFILE 1.0.3", then the id size and a timestamp.
+    while (buffer.readByte() != 0) {
+    }
+    idSize = buffer.readInt();
+    if (idSize != 4 && idSize != 8) {
+      throw new IOException("Unsupported id size " + idSize);
+    }
+    buffer.readLong();
+    while (buffer.hasRemaining()) {
+      long recordPosition = buffer.position();
+      int tag = buffer.readByte() & 0xFF;
+      buffer.readInt();
+      long length = buffer.readInt() & 0xFFFFFFFFL;
+      long end = buffer.position() + length;
+      switch (tag) {
+        case STRING_IN_UTF8:
+          callback.onString(readId(), recordPosition);
+          break;
+        case LOAD_CLASS:
+          buffer.readInt();
+          long classId = readId();
+          buffer.readInt();
+          callback.onLoadClass(classId, readId());
+          break;
+        case HEAP_DUMP:
+        case HEAP_DUMP_SEGMENT:
+          readHeapDump(callback, end);
+          break;
+        default:
+          break;
+      }
+      buffer.setPosition(end);
+    }
+  }
+
+  private void readHeapDump(Callback callback, long end) throws IOException {
+    while (buffer.position() < end) {
+      int tag = buffer.readByte() & 0xFF;
+      switch (tag) {
+        case ROOT_UNKNOWN:
+        case ROOT_STICKY_CLASS:
+        case ROOT_MONITOR_USED:
+        case ROOT_INTERNED_STRING:
+        case ROOT_FINALIZING:
+        case ROOT_DEBUGGER:
+        case ROOT_REFERENCE_CLEANUP:
+        case ROOT_VM_INTERNAL:
+        case ROOT_UNREACHABLE:
+          skip(idSize);
+          break;
+        case ROOT_JNI_GLOBAL:
+          skip(idSize + idSize);
+          break;
+        case ROOT_JNI_LOCAL:
+        case ROOT_JAVA_FRAME:
+        case ROOT_THREAD_OBJECT:
+        case ROOT_JNI_MONITOR:
+          skip(idSize + 4 + 4);
+          break;
+        case ROOT_NATIVE_STACK:
+        case ROOT_THREAD_BLOCK:
+          skip(idSize + 4);
+          break;
+        case HEAP_DUMP_INFO:
+          skip(4 + idSize);
+          break;
+        case CLASS_DUMP:
+          readClassDump(callback);
+          break;
+        case INSTANCE_DUMP: {
+          long id = readId();
+          buffer.readInt();
+          long classId = readId();
+          long length = buffer.readInt() & 0xFFFFFFFFL;
+          long next = buffer.position() + length;
+          callback.onInstanceDump(id, classId);
+          buffer.setPosition(next);
+          break;
+        }
+        case OBJECT_ARRAY_DUMP: {
+          long id = readId();
+          buffer.readInt();
+          long elementCount = buffer.readInt() & 0xFFFFFFFFL;
+          long classId = readId();
+          long next = buffer.position() + elementCount * idSize;
+          callback.onObjectArrayDump(id, classId, elementCount);
+          buffer.setPosition(next);
+          break;
+        }
+        case PRIMITIVE_ARRAY_DUMP:
+        case PRIMITIVE_ARRAY_NODATA: {
+          long id = readId();
+          buffer.readInt();
+          long elementCount = buffer.readInt() & 0xFFFFFFFFL;
+          int typeId = buffer.readByte();
+          int elementSize = typeSize(typeId);
+          boolean hasData = tag == PRIMITIVE_ARRAY_DUMP;
+          long next = buffer.position() + (hasData ? elementCount * elementSize : 0);
+          callback.onPrimitiveArrayDump(id, Type.getType(typeId), elementCount, hasData);
+          buffer.setPosition(next);
+          break;
+        }
+        default:
+          throw new IOException(
+              "Unknown heap dump tag " + tag + " at position " + (buffer.position() - 1));
+      }
+    }
+  }
+
+  private void readClassDump(Callback callback) throws IOException {
+    long classId = readId();
+    // Stack serial, super class, class loader, signers, protection domain and 2 reserved ids.
+    skip(4 + 6 * idSize);
+    int instanceSize = buffer.readInt();
+    int constantPoolSize = buffer.readShort() & 0xFFFF;
+    for (int i = 0; i < constantPoolSize; i++) {
+      buffer.readShort();
+      skip(typeSize(buffer.readByte()));
+    }
+    int staticFieldCount = buffer.readShort() & 0xFFFF;
+    long staticFieldsSize = 0;
+    for (int i = 0; i < staticFieldCount; i++) {
+      skip(idSize);
+      int size = typeSize(buffer.readByte());
+      staticFieldsSize += size;
+      skip(size);
+    }
+    int instanceFieldCount = buffer.readShort() & 0xFFFF;
+    skip(instanceFieldCount * (idSize + 1L));
+    long next = buffer.position();
+    callback.onClassDump(classId, instanceSize, staticFieldsSize);
+    buffer.setPosition(next);
+  }
+
+  /** Reads a string reported by {@link Callback#onString(long, long)}, moving the buffer. */
+  String readString(long recordPosition) {
+    buffer.setPosition(recordPosition + 1 + 4);
+    long length = buffer.readInt() & 0xFFFFFFFFL;
+    skip(idSize);
+    byte[] bytes = new byte[(int) (length - idSize)];
+    buffer.read(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /** Primitive type sizes are fixed, object references are as large as ids. */
+  int typeSize(int typeId) throws IOException {
+    if (typeId == Type.OBJECT.getTypeId()) {
+      return idSize;
+    }
+    if (typeId < Type.BOOLEAN.getTypeId() || typeId > Type.LONG.getTypeId()) {
+      throw new IOException("Unknown type " + typeId);
+    }
+    return Type.getType(typeId).getSize();
+  }
+
+  private long readId() {
+    return idSize == 4 ? buffer.readInt() & 0xFFFFFFFFL : buffer.readLong();
+  }
+
+  private void skip(long byteCount) {
+    buffer.setPosition(buffer.position() + byteCount);
+  }
+}
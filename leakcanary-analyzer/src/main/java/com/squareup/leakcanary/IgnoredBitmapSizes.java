@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Snapshot;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
+import static com.squareup.leakcanary.HahaHelper.fieldValue;
+
+/**
+ * Bitmaps and bitmap byte arrays are sometimes held by native gc roots, so they aren't included
+ * in the retained size because their root dominator is a native gc root. To fix this, we add the
+ * size of each bitmap that the leaking instance dominates when skipping native roots.
+ *
+ * <p>From experience, we've found that bitmap created in code (Bitmap.createBitmap()) are
+ * correctly accounted for, however bitmaps set in layouts are not.
+ *
+ * <p>Walking the chain of dominators of every bitmap for every leak repeats the same walks, as
+ * bitmaps share most of their dominators. Instead, the chains of all bitmaps are merged once into
+ * a tree, numbered in depth first order, so that checking whether a leaking instance dominates a
+ * bitmap takes constant time. Requires {@link Snapshot#computeDominators()}.
+ */
+final class IgnoredBitmapSizes {
+
+  private static final IgnoredBitmapSizes NONE =
+      new IgnoredBitmapSizes(new ArrayList<Instance>(), new ArrayList<Long>());
+
+  private static final class Node {
+    final Instance instance;
+    Node parent;
+    /** True if {@link #parent} was reached by skipping a native root. */
+    boolean skipsNativeRoot;
+    final List<Node> children = new ArrayList<>(1);
+    /** Depth first numbering: descendants are numbered in (enter, exit]. */
+    int enter = -1;
+    int exit;
+    int depth;
+    /**
+     * Depth of the closest node on the path to the root, starting with this one, that skips a
+     * native root to reach its parent. -1 if there is none.
+     */
+    int nativeRootSkipDepth;
+
+    Node(Instance instance) {
+      this.instance = instance;
+    }
+  }
+
+  static IgnoredBitmapSizes compute(Snapshot snapshot) {
+    ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
+    // Bitmap.mBuffer was removed in O and does not exist in non Android heap dumps. The heap dump
+    // is the source of truth rather than the runtime, which may not be the one that dumped it.
+    if (bitmapClass == null || !declaresField(bitmapClass, "mBuffer")) {
+      return NONE;
+    }
+
+    List<Instance> bitmaps = new ArrayList<>();
+    List<Long> bitmapSizes = new ArrayList<>();
+    for (Instance bitmapInstance : bitmapClass.getInstancesList()) {
+      ArrayInstance mBufferInstance = fieldValue(classInstanceValues(bitmapInstance), "mBuffer");
+      // Native bitmaps have mBuffer set to null. We sadly can't account for them.
+      if (mBufferInstance == null) {
+        continue;
+      }
+      long bufferSize = mBufferInstance.getTotalRetainedSize();
+      long bitmapSize = bitmapInstance.getTotalRetainedSize();
+      // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
+      // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
+      if (bitmapSize < bufferSize) {
+        bitmapSize += bufferSize;
+      }
+      bitmaps.add(bitmapInstance);
+      bitmapSizes.add(bitmapSize);
+    }
+    return new IgnoredBitmapSizes(bitmaps, bitmapSizes);
+  }
+
+  /** Adds the nodes from {@code instance} up to the first node already added, or to the root. */
+  private static Node addChain(Map<Instance, Node> nodes, Instance instance) {
+    Node first = nodes.get(instance);
+    if (first != null) {
+      return first;
+    }
+    first = new Node(instance);
+    nodes.put(instance, first);
+    Node node = first;
+    while (true) {
+      Instance immediateDominator = node.instance.getImmediateDominator();
+      Instance parentInstance;
+      boolean skipsNativeRoot;
+      if (immediateDominator instanceof RootObj
+          && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
+        // Ignore native roots
+        parentInstance = node.instance.getNextInstanceToGcRoot();
+        skipsNativeRoot = true;
+      } else {
+        parentInstance = immediateDominator;
+        skipsNativeRoot = false;
+      }
+      if (parentInstance == null) {
+        return first;
+      }
+      Node parent = nodes.get(parentInstance);
+      boolean known = parent != null;
+      if (!known) {
+        parent = new Node(parentInstance);
+        nodes.put(parentInstance, parent);
+      }
+      node.parent = parent;
+      node.skipsNativeRoot = skipsNativeRoot;
+      parent.children.add(node);
+      if (known) {
+        return first;
+      }
+      node = parent;
+    }
+  }
+
+  /**
+   * Numbers the nodes in depth first order, iteratively as chains can be thousands of nodes
+   * deep. Nodes on a cycle, which a dominator tree should not have, are never reached from a root
+   * and stay unnumbered.
+   */
+  private static void number(Map<Instance, Node> nodes) {
+    int counter = 0;
+    Deque<Node> stack = new ArrayDeque<>();
+    for (Node root : nodes.values()) {
+      if (root.parent != null) {
+        continue;
+      }
+      root.depth = 0;
+      root.nativeRootSkipDepth = -1;
+      root.enter = counter++;
+      stack.push(root);
+      while (!stack.isEmpty()) {
+        Node node = stack.peek();
+        // Children are consumed as they are visited, the tree is only needed once.
+        if (node.children.isEmpty()) {
+          node.exit = counter - 1;
+          stack.pop();
+          continue;
+        }
+        Node child = node.children.remove(node.children.size() - 1);
+        child.depth = node.depth + 1;
+        child.nativeRootSkipDepth = child.skipsNativeRoot ? child.depth : node.nativeRootSkipDepth;
+        child.enter = counter++;
+        stack.push(child);
+      }
+    }
+  }
+
+  private static boolean declaresField(ClassObj classObj, String fieldName) {
+    for (Field field : classObj.getFields()) {
+      if (field.getName().equals(fieldName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final Map<Instance, Node> nodes;
+  private final List<Node> bitmapNodes;
+  private final List<Long> bitmapSizes;
+
+  IgnoredBitmapSizes(List<Instance> bitmaps, List<Long> bitmapSizes) {
+    nodes = new IdentityHashMap<>();
+    bitmapNodes = new ArrayList<>(bitmaps.size());
+    for (Instance bitmap : bitmaps) {
+      bitmapNodes.add(addChain(nodes, bitmap));
+    }
+    number(nodes);
+    this.bitmapSizes = bitmapSizes;
+  }
+
+  /**
+   * Returns the total size of the bitmaps that {@code leakingInstance} dominates through at least
+   * one native root.
+   */
+  long retainedBy(Instance leakingInstance) {
+    Node dominator = nodes.get(leakingInstance);
+    // Not on the dominator chain of any bitmap.
+    if (dominator == null || dominator.enter == -1) {
+      return 0;
+    }
+    long size = 0;
+    for (int i = 0; i < bitmapNodes.size(); i++) {
+      Node bitmap = bitmapNodes.get(i);
+      if (bitmap.enter > dominator.enter
+          && bitmap.enter <= dominator.exit
+          && bitmap.nativeRootSkipDepth > dominator.depth) {
+        size += bitmapSizes.get(i);
+      }
+    }
+    return size;
+  }
+}
@@ -16,9 +16,13 @@
 package com.squareup.leakcanary;
 
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
 import static java.util.Collections.unmodifiableList;
 
 /**
@@ -50,6 +54,36 @@ public final class LeakTrace implements Serializable {
     return sb.toString();
   }
 
+  /**
+   * Identifies this chain of references across heap dumps, e.g. to recognize a leak that was
+   * already reported. Only class names, reference names and reference types are taken into
+   * account: array indices, thread names and field values don't change the signature.
+   */
+  public String signature() {
+    StringBuilder sb = new StringBuilder();
+    for (LeakTraceElement element : elements) {
+      sb.append(element.holder).append(' ').append(element.className).append(' ');
+      if (element.type != null) {
+        sb.append(element.type).append(' ');
+        if (element.type != ARRAY_ENTRY) {
+          sb.append(element.referenceName);
+        }
+      }
+      sb.append('\n');
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(sb.toString().getBytes(Charset.forName("UTF-8")));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   public String toDetailedString() {
     String string = "";
     for (LeakTraceElement element : elements) {
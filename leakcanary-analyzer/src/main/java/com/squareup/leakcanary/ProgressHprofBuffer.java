@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+/**
+ * Reports the fraction of {@code delegate} read so far, until {@link #stopReporting()}: perflib
+ * keeps reading instance fields lazily from the buffer after parsing. The position is only
+ * checked every few thousand reads, which is negligible next to parsing.
+ */
+final class ProgressHprofBuffer implements HprofBuffer {
+
+  private static final int READS_PER_CHECK = 4096;
+
+  private final HprofBuffer delegate;
+  private final ProgressReporter progress;
+  private final long length;
+  private int readsUntilCheck = READS_PER_CHECK;
+  private boolean reporting = true;
+
+  ProgressHprofBuffer(HprofBuffer delegate, ProgressReporter progress) {
+    this.delegate = delegate;
+    this.progress = progress;
+    length = delegate.position() + delegate.remaining();
+  }
+
+  @Override public byte readByte() {
+    onRead();
+    return delegate.readByte();
+  }
+
+  @Override public void read(byte[] b) {
+    onRead();
+    delegate.read(b);
+  }
+
+  @Override public void readSubSequence(byte[] b, int sourceStart, int sourceLength) {
+    onRead();
+    delegate.readSubSequence(b, sourceStart, sourceLength);
+  }
+
+  @Override public char readChar() {
+    onRead();
+    return delegate.readChar();
+  }
+
+  @Override public short readShort() {
+    onRead();
+    return delegate.readShort();
+  }
+
+  @Override public int readInt() {
+    onRead();
+    return delegate.readInt();
+  }
+
+  @Override public long readLong() {
+    onRead();
+    return delegate.readLong();
+  }
+
+  @Override public float readFloat() {
+    onRead();
+    return delegate.readFloat();
+  }
+
+  @Override public double readDouble() {
+    onRead();
+    return delegate.readDouble();
+  }
+
+  @Override public void setPosition(long position) {
+    delegate.setPosition(position);
+  }
+
+  @Override public long position() {
+    return delegate.position();
+  }
+
+  @Override public boolean hasRemaining() {
+    return delegate.hasRemaining();
+  }
+
+  @Override public long remaining() {
+    return delegate.remaining();
+  }
+
+  void stopReporting() {
+    reporting = false;
+  }
+
+  private void onRead() {
+    if (--readsUntilCheck == 0) {
+      readsUntilCheck = READS_PER_CHECK;
+      if (reporting) {
+        progress.update(delegate.position(), length);
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.leakcanary.AnalyzerProgressListener.Step;
+
+/**
+ * Not thread safe.
+ *
+ * Throttles the updates sent to an {@link AnalyzerProgressListener} to one per percent.
+ */
+final class ProgressReporter {
+
+  private static final double MIN_INCREMENT = 0.01;
+
+  private final AnalyzerProgressListener listener;
+  private Step step;
+  private double nextFraction;
+
+  ProgressReporter(AnalyzerProgressListener listener) {
+    this.listener = listener;
+  }
+
+  /** Whether progress within a step is worth tracking at all. */
+  boolean isEnabled() {
+    return listener != AnalyzerProgressListener.NONE;
+  }
+
+  void start(Step step) {
+    this.step = step;
+    nextFraction = MIN_INCREMENT;
+    listener.onProgressUpdate(step, 0);
+  }
+
+  void update(long done, long total) {
+    if (total <= 0) {
+      return;
+    }
+    double fraction = Math.min((double) done / total, 1);
+    if (fraction >= nextFraction) {
+      nextFraction = fraction + MIN_INCREMENT;
+      listener.onProgressUpdate(step, fraction);
+    }
+  }
+
+  void finish() {
+    step = Step.DONE;
+    listener.onProgressUpdate(Step.DONE, 1);
+  }
+}
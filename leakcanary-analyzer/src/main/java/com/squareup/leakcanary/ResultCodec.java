@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * Compact binary encoding of a {@link HeapDump} and its {@link AnalysisResult}, much faster to
+ * read than Java serialization and independent from the classes' serialized form, so that stored
+ * results can be read across library upgrades.
+ *
+ * The format starts with a magic number and a version, followed by tagged sections prefixed with
+ * their length. Strings are written once per section then referenced by index, and numbers are
+ * written as varints. Readers skip sections they don't know about and ignore trailing bytes
+ * within a section, so new data can be added without bumping {@link #VERSION}.
+ */
+public final class ResultCodec {
+
+  /** A decoded heap dump and its analysis result, which is null if not written. */
+  public static final class Entry {
+    public final HeapDump heapDump;
+    public final AnalysisResult result;
+
+    Entry(HeapDump heapDump, AnalysisResult result) {
+      this.heapDump = heapDump;
+      this.result = result;
+    }
+  }
+
+  /** Incremented for changes that older readers cannot read. */
+  public static final int VERSION = 1;
+
+  private static final byte[] MAGIC = { 'L', 'C', 'R' };
+
+  private static final int TAG_END = 0;
+  private static final int TAG_HEAP_DUMP = 1;
+  private static final int TAG_RESULT = 2;
+  private static final int TAG_LEAK_TRACE = 3;
+  private static final int TAG_FAILURE = 4;
+  private static final int TAG_RETAINED_HISTOGRAM = 5;
+  private static final int TAG_HEAP_HISTOGRAM = 6;
+  /** One section per trace of {@link AnalysisResult#otherLeakTraces}, in order. */
+  private static final int TAG_OTHER_LEAK_TRACE = 7;
+
+  /** Guards against cyclic or very deep cause chains. */
+  private static final int MAX_CAUSES = 8;
+  private static final int SECTION_CHUNK = 8192;
+
+  /** @param result may be null, e.g. to send a heap dump that is yet to be analyzed. */
+  public static byte[] encode(HeapDump heapDump, AnalysisResult result) {
+    return writer(heapDump, result).toByteArray();
+  }
+
+  /** @param result may be null, e.g. to send a heap dump that is yet to be analyzed. */
+  public static void write(HeapDump heapDump, AnalysisResult result, OutputStream out)
+      throws IOException {
+    writer(heapDump, result).writeTo(out);
+  }
+
+  public static Entry decode(byte[] bytes) throws IOException {
+    return read(new ByteArrayInputStream(bytes));
+  }
+
+  /**
+   * Reads one section at a time from {@code in}, and stops reading after the end marker.
+   *
+   * @throws IOException if the data is truncated, isn't in this format or was written by a newer
+   * incompatible version.
+   */
+  public static Entry read(InputStream in) throws IOException {
+    DataInputStream input = new DataInputStream(in);
+    byte[] magic = new byte[MAGIC.length];
+    input.readFully(magic);
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (magic[i] != MAGIC[i]) {
+        throw new IOException("Not a LeakCanary result");
+      }
+    }
+    int version = (int) BinaryFormat.readUnsigned(input);
+    if (version > VERSION) {
+      throw new IOException("Unsupported result version " + version);
+    }
+    HeapDump heapDump = null;
+    AnalysisResult result = null;
+    boolean leakFound = false;
+    boolean excludedLeak = false;
+    String className = null;
+    long retainedHeapSize = 0;
+    long analysisDurationMs = 0;
+    LeakTrace leakTrace = null;
+    List<LeakTrace> otherLeakTraces = new ArrayList<>();
+    Throwable failure = null;
+    boolean duplicateLeak = false;
+    ClassHistogram retainedHistogram = null;
+    ClassHistogram heapHistogram = null;
+    boolean hasResult = false;
+    while (true) {
+      int tag = (int) BinaryFormat.readUnsigned(input);
+      if (tag == TAG_END) {
+        break;
+      }
+      long length = BinaryFormat.readUnsigned(input);
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Section too large: " + length);
+      }
+      BinaryFormat.Reader section = new BinaryFormat.Reader(readSection(input, (int) length));
+      switch (tag) {
+        case TAG_HEAP_DUMP:
+          heapDump = readHeapDump(section);
+          break;
+        case TAG_RESULT:
+          hasResult = true;
+          leakFound = section.readBoolean();
+          excludedLeak = section.readBoolean();
+          className = section.readString();
+          retainedHeapSize = section.readLong();
+          analysisDurationMs = section.readLong();
+          duplicateLeak = !section.exhausted() && section.readBoolean();
+          break;
+        case TAG_LEAK_TRACE:
+          leakTrace = readLeakTrace(section);
+          break;
+        case TAG_FAILURE:
+          failure = readFailure(section, 0);
+          break;
+        case TAG_RETAINED_HISTOGRAM:
+          retainedHistogram = readHistogram(section);
+          break;
+        case TAG_HEAP_HISTOGRAM:
+          heapHistogram = readHistogram(section);
+          break;
+        case TAG_OTHER_LEAK_TRACE:
+          otherLeakTraces.add(readLeakTrace(section));
+          break;
+        default:
+          // Written by a newer version.
+          break;
+      }
+    }
+    if (heapDump == null) {
+      throw new IOException("Missing heap dump");
+    }
+    if (hasResult) {
+      if (failure != null) {
+        result = AnalysisResult.failure(failure, analysisDurationMs);
+      } else if (leakFound) {
+        if (leakTrace == null) {
+          throw new IOException("Missing leak trace");
+        }
+        if (duplicateLeak) {
+          result = AnalysisResult.duplicateLeak(excludedLeak, className, leakTrace,
+              analysisDurationMs);
+        } else {
+          result = AnalysisResult.leakDetected(excludedLeak, className, leakTrace,
+              retainedHeapSize, retainedHistogram, analysisDurationMs);
+        }
+        result = result.withOtherLeakTraces(otherLeakTraces);
+      } else {
+        result = AnalysisResult.noLeak(analysisDurationMs);
+      }
+      result = result.withHeapHistogram(heapHistogram);
+    }
+    return new Entry(heapDump, result);
+  }
+
+  private static BinaryFormat.Writer writer(HeapDump heapDump, AnalysisResult result) {
+    checkNotNull(heapDump, "heapDump");
+    BinaryFormat.Writer out = new BinaryFormat.Writer();
+    for (byte b : MAGIC) {
+      out.writeByte(b);
+    }
+    out.writeUnsigned(VERSION);
+    out.writeSection(TAG_HEAP_DUMP, writeHeapDump(heapDump));
+    if (result != null) {
+      BinaryFormat.Writer section = new BinaryFormat.Writer();
+      section.writeBoolean(result.leakFound);
+      section.writeBoolean(result.excludedLeak);
+      section.writeString(result.className);
+      section.writeLong(result.retainedHeapSize);
+      section.writeLong(result.analysisDurationMs);
+      section.writeBoolean(result.duplicateLeak);
+      out.writeSection(TAG_RESULT, section);
+      if (result.leakTrace != null) {
+        out.writeSection(TAG_LEAK_TRACE, writeLeakTrace(result.leakTrace));
+      }
+      for (LeakTrace otherLeakTrace : result.otherLeakTraces) {
+        out.writeSection(TAG_OTHER_LEAK_TRACE, writeLeakTrace(otherLeakTrace));
+      }
+      if (result.retainedHistogram != null) {
+        out.writeSection(TAG_RETAINED_HISTOGRAM, writeHistogram(result.retainedHistogram));
+      }
+      if (result.heapHistogram != null) {
+        out.writeSection(TAG_HEAP_HISTOGRAM, writeHistogram(result.heapHistogram));
+      }
+      if (result.failure != null) {
+        BinaryFormat.Writer failure = new BinaryFormat.Writer();
+        writeFailure(failure, result.failure, 0);
+        out.writeSection(TAG_FAILURE, failure);
+      }
+    }
+    out.writeUnsigned(TAG_END);
+    return out;
+  }
+
+  private static BinaryFormat.Writer writeHeapDump(HeapDump heapDump) {
+    BinaryFormat.Writer out = new BinaryFormat.Writer();
+    out.writeString(heapDump.heapDumpFile.getPath());
+    out.writeString(heapDump.referenceKey);
+    out.writeString(heapDump.referenceName);
+    out.writeLong(heapDump.watchDurationMs);
+    out.writeLong(heapDump.gcDurationMs);
+    out.writeLong(heapDump.heapDumpDurationMs);
+    ExcludedRefs excludedRefs = heapDump.excludedRefs;
+    writeFieldExclusions(out, excludedRefs.fieldNameByClassName);
+    writeFieldExclusions(out, excludedRefs.staticFieldNameByClassName);
+    writeExclusions(out, excludedRefs.threadNames);
+    writeExclusions(out, excludedRefs.classNames);
+    return out;
+  }
+
+  private static HeapDump readHeapDump(BinaryFormat.Reader in) throws IOException {
+    File heapDumpFile = new File(in.readString());
+    String referenceKey = in.readString();
+    String referenceName = in.readString();
+    long watchDurationMs = in.readLong();
+    long gcDurationMs = in.readLong();
+    long heapDumpDurationMs = in.readLong();
+    ExcludedRefs.BuilderWithParams excludedRefs = (ExcludedRefs.BuilderWithParams) ExcludedRefs
+        .builder();
+    int classCount = readCount(in);
+    for (int i = 0; i < classCount; i++) {
+      String className = in.readString();
+      int fieldCount = readCount(in);
+      for (int j = 0; j < fieldCount; j++) {
+        readParams(in, excludedRefs.instanceField(className, in.readString()));
+      }
+    }
+    classCount = readCount(in);
+    for (int i = 0; i < classCount; i++) {
+      String className = in.readString();
+      int fieldCount = readCount(in);
+      for (int j = 0; j < fieldCount; j++) {
+        readParams(in, excludedRefs.staticField(className, in.readString()));
+      }
+    }
+    int threadCount = readCount(in);
+    for (int i = 0; i < threadCount; i++) {
+      readParams(in, excludedRefs.thread(in.readString()));
+    }
+    classCount = readCount(in);
+    for (int i = 0; i < classCount; i++) {
+      readParams(in, excludedRefs.clazz(in.readString()));
+    }
+    return new HeapDump(heapDumpFile, referenceKey, referenceName, excludedRefs.build(),
+        watchDurationMs, gcDurationMs, heapDumpDurationMs);
+  }
+
+  private static void writeFieldExclusions(BinaryFormat.Writer out,
+      Map<String, Map<String, Exclusion>> exclusionsByClassName) {
+    out.writeInt(exclusionsByClassName.size());
+    for (Map.Entry<String, Map<String, Exclusion>> entry : exclusionsByClassName.entrySet()) {
+      out.writeString(entry.getKey());
+      writeExclusions(out, entry.getValue());
+    }
+  }
+
+  private static void writeExclusions(BinaryFormat.Writer out, Map<String, Exclusion> exclusions) {
+    out.writeInt(exclusions.size());
+    for (Map.Entry<String, Exclusion> entry : exclusions.entrySet()) {
+      out.writeString(entry.getKey());
+      Exclusion exclusion = entry.getValue();
+      out.writeString(exclusion.name);
+      out.writeString(exclusion.reason);
+      out.writeBoolean(exclusion.alwaysExclude);
+    }
+  }
+
+  private static void readParams(BinaryFormat.Reader in, ExcludedRefs.BuilderWithParams builder)
+      throws IOException {
+    builder.named(in.readString()).reason(in.readString());
+    if (in.readBoolean()) {
+      builder.alwaysExclude();
+    }
+  }
+
+  private static BinaryFormat.Writer writeLeakTrace(LeakTrace leakTrace) {
+    BinaryFormat.Writer out = new BinaryFormat.Writer();
+    out.writeInt(leakTrace.elements.size());
+    for (LeakTraceElement element : leakTrace.elements) {
+      out.writeString(element.referenceName);
+      out.writeInt(element.type == null ? -1 : element.type.ordinal());
+      out.writeInt(element.holder.ordinal());
+      out.writeString(element.className);
+      out.writeString(element.extra);
+      Exclusion exclusion = element.exclusion;
+      out.writeBoolean(exclusion != null);
+      if (exclusion != null) {
+        out.writeString(exclusion.matching);
+        out.writeString(exclusion.name);
+        out.writeString(exclusion.reason);
+        out.writeBoolean(exclusion.alwaysExclude);
+      }
+      out.writeInt(element.fields.size());
+      for (String field : element.fields) {
+        out.writeString(field);
+      }
+    }
+    return out;
+  }
+
+  private static LeakTrace readLeakTrace(BinaryFormat.Reader in) throws IOException {
+    int elementCount = readCount(in);
+    List<LeakTraceElement> elements = new ArrayList<>(elementCount);
+    LeakTraceElement.Type[] types = LeakTraceElement.Type.values();
+    LeakTraceElement.Holder[] holders = LeakTraceElement.Holder.values();
+    for (int i = 0; i < elementCount; i++) {
+      String referenceName = in.readString();
+      int typeOrdinal = in.readInt();
+      LeakTraceElement.Type type = typeOrdinal == -1 ? null : types[checkIndex(typeOrdinal, types)];
+      LeakTraceElement.Holder holder = holders[checkIndex(in.readInt(), holders)];
+      String className = in.readString();
+      String extra = in.readString();
+      Exclusion exclusion = null;
+      if (in.readBoolean()) {
+        ExcludedRefs.ParamsBuilder params = new ExcludedRefs.ParamsBuilder(in.readString());
+        params.name = in.readString();
+        params.reason = in.readString();
+        params.alwaysExclude = in.readBoolean();
+        exclusion = new Exclusion(params);
+      }
+      int fieldCount = readCount(in);
+      List<String> fields = new ArrayList<>(fieldCount);
+      for (int j = 0; j < fieldCount; j++) {
+        fields.add(in.readString());
+      }
+      elements.add(
+          new LeakTraceElement(referenceName, type, holder, className, extra, exclusion, fields));
+    }
+    return new LeakTrace(elements);
+  }
+
+  private static BinaryFormat.Writer writeHistogram(ClassHistogram histogram) {
+    BinaryFormat.Writer out = new BinaryFormat.Writer();
+    out.writeInt(histogram.classCount);
+    out.writeInt(histogram.entries.size());
+    for (ClassHistogram.Entry entry : histogram.entries) {
+      out.writeString(entry.className);
+      out.writeInt(entry.instanceCount);
+      out.writeLong(entry.shallowSize);
+      out.writeLong(entry.retainedSize);
+    }
+    return out;
+  }
+
+  private static ClassHistogram readHistogram(BinaryFormat.Reader in) throws IOException {
+    int classCount = readCount(in);
+    int entryCount = readCount(in);
+    List<ClassHistogram.Entry> entries = new ArrayList<>(entryCount);
+    for (int i = 0; i < entryCount; i++) {
+      String className = in.readString();
+      int instanceCount = readCount(in);
+      long shallowSize = in.readLong();
+      long retainedSize = in.readLong();
+      entries.add(new ClassHistogram.Entry(className, instanceCount, shallowSize, retainedSize));
+    }
+    return new ClassHistogram(entries, classCount);
+  }
+
+  private static void writeFailure(BinaryFormat.Writer out, Throwable failure, int depth) {
+    out.writeString(failure instanceof DecodedThrowable ? ((DecodedThrowable) failure).className
+        : failure.getClass().getName());
+    out.writeString(failure.getMessage());
+    StackTraceElement[] stackTrace = failure.getStackTrace();
+    out.writeInt(stackTrace.length);
+    for (StackTraceElement element : stackTrace) {
+      out.writeString(element.getClassName());
+      out.writeString(element.getMethodName());
+      out.writeString(element.getFileName());
+      out.writeInt(element.getLineNumber());
+    }
+    Throwable cause = failure.getCause();
+    boolean writeCause = cause != null && cause != failure && depth < MAX_CAUSES;
+    out.writeBoolean(writeCause);
+    if (writeCause) {
+      writeFailure(out, cause, depth + 1);
+    }
+  }
+
+  private static Throwable readFailure(BinaryFormat.Reader in, int depth) throws IOException {
+    if (depth > MAX_CAUSES) {
+      throw new IOException("Too many causes");
+    }
+    String className = in.readString();
+    String message = in.readString();
+    int frameCount = readCount(in);
+    StackTraceElement[] stackTrace = new StackTraceElement[frameCount];
+    for (int i = 0; i < frameCount; i++) {
+      String declaringClass = in.readString();
+      String methodName = in.readString();
+      String fileName = in.readString();
+      int lineNumber = in.readInt();
+      if (declaringClass == null || methodName == null) {
+        throw new IOException("Incomplete stack trace element");
+      }
+      stackTrace[i] = new StackTraceElement(declaringClass, methodName, fileName, lineNumber);
+    }
+    Throwable cause = in.readBoolean() ? readFailure(in, depth + 1) : null;
+    DecodedThrowable failure = new DecodedThrowable(className, message, cause);
+    failure.setStackTrace(stackTrace);
+    return failure;
+  }
+
+  /**
+   * Reads {@code length} bytes without allocating them upfront, so that a corrupted length fails
+   * with an {@link EOFException} rather than an {@link OutOfMemoryError}.
+   */
+  private static byte[] readSection(InputStream in, int length) throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream(Math.min(length, SECTION_CHUNK));
+    byte[] buffer = new byte[Math.min(length, SECTION_CHUNK)];
+    int remaining = length;
+    while (remaining > 0) {
+      int read = in.read(buffer, 0, Math.min(remaining, buffer.length));
+      if (read == -1) {
+        throw new EOFException("Section truncated, " + remaining + " bytes missing");
+      }
+      content.write(buffer, 0, read);
+      remaining -= read;
+    }
+    return content.toByteArray();
+  }
+
+  /** Every counted item takes at least one byte, so a count can't exceed the remaining bytes. */
+  private static int readCount(BinaryFormat.Reader in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Negative count " + count);
+    }
+    if (count > in.remaining()) {
+      throw new EOFException("Count " + count + " exceeds remaining " + in.remaining());
+    }
+    return count;
+  }
+
+  private static int checkIndex(int ordinal, Object[] values) throws IOException {
+    if (ordinal < 0 || ordinal >= values.length) {
+      throw new IOException("Unknown ordinal " + ordinal);
+    }
+    return ordinal;
+  }
+
+  /**
+   * A failure read back by {@link ResultCodec}. The original exception class may not be available
+   * to the reader, so this keeps its name, message, stack trace and causes.
+   */
+  static final class DecodedThrowable extends Exception {
+    final String className;
+
+    DecodedThrowable(String className, String message, Throwable cause) {
+      super(message, cause);
+      this.className = className;
+    }
+
+    @Override public String toString() {
+      String message = getLocalizedMessage();
+      return message != null ? className + ": " + message : className;
+    }
+  }
+
+  private ResultCodec() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.Visitor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.leakcanary.HahaHelper.instanceClassName;
+
+/**
+ * Builds the {@link ClassHistogram} of the instances retained by a leaking instance, i.e. the
+ * instances it dominates. Requires {@link com.squareup.haha.perflib.Snapshot#computeDominators()}.
+ *
+ * <p>The retained set is found by following references from the leaking instance and only
+ * keeping instances whose immediate dominator was already kept: the immediate dominator of an
+ * instance is on every path to it, so it's always reached first. This visits the retained set
+ * and its outgoing references once, rather than the whole heap.
+ */
+final class RetainedHistogram implements Visitor {
+
+  private static final class ClassStats {
+    final String className;
+    int instanceCount;
+    long shallowSize;
+    long retainedSize;
+    /** Number of instances of this class on the current path from the leaking instance. */
+    int onPath;
+
+    ClassStats(String className) {
+      this.className = className;
+    }
+  }
+
+  static ClassHistogram compute(Instance leakingInstance, int maxEntries) {
+    RetainedHistogram histogram = new RetainedHistogram(leakingInstance);
+    histogram.findRetainedSet();
+    return histogram.buildHistogram(maxEntries);
+  }
+
+  /** Instances of the retained set by immediate dominator. */
+  private final Map<Instance, List<Instance>> dominated = new IdentityHashMap<>();
+  private final Deque<Instance> toVisit = new ArrayDeque<>();
+  private final Instance leakingInstance;
+
+  private RetainedHistogram(Instance leakingInstance) {
+    this.leakingInstance = leakingInstance;
+  }
+
+  private void findRetainedSet() {
+    dominated.put(leakingInstance, new ArrayList<Instance>());
+    toVisit.push(leakingInstance);
+    while (!toVisit.isEmpty()) {
+      toVisit.pop().accept(this);
+    }
+  }
+
+  @Override public void visitLater(Instance parent, Instance child) {
+    if (child == null || dominated.containsKey(child)) {
+      return;
+    }
+    List<Instance> siblings = dominated.get(child.getImmediateDominator());
+    if (siblings == null) {
+      // Not retained by the leaking instance.
+      return;
+    }
+    siblings.add(child);
+    dominated.put(child, new ArrayList<Instance>());
+    toVisit.push(child);
+  }
+
+  @Override public void visitRootObj(RootObj root) {
+  }
+
+  @Override public void visitArrayInstance(ArrayInstance instance) {
+  }
+
+  @Override public void visitClassInstance(ClassInstance instance) {
+  }
+
+  @Override public void visitClassObj(ClassObj instance) {
+  }
+
+  /**
+   * Walks the dominator tree of the retained set depth first, so that an instance only adds its
+   * retained size when no instance of the same class retains it.
+   */
+  private ClassHistogram buildHistogram(int maxEntries) {
+    Map<String, ClassStats> statsByClassName = new HashMap<>();
+    Deque<Instance> path = new ArrayDeque<>();
+    Deque<ClassStats> pathStats = new ArrayDeque<>();
+    // Children still to walk, in the same order as path.
+    Deque<List<Instance>> pathChildren = new ArrayDeque<>();
+    Instance instance = leakingInstance;
+    while (true) {
+      if (instance != null) {
+        String className = instanceClassName(instance);
+        ClassStats stats = statsByClassName.get(className);
+        if (stats == null) {
+          stats = new ClassStats(className);
+          statsByClassName.put(className, stats);
+        }
+        stats.instanceCount++;
+        stats.shallowSize += instance.getSize();
+        if (stats.onPath == 0) {
+          stats.retainedSize += instance.getTotalRetainedSize();
+        }
+        stats.onPath++;
+        path.push(instance);
+        pathStats.push(stats);
+        pathChildren.push(dominated.get(instance));
+      }
+      List<Instance> children = pathChildren.peek();
+      if (children.isEmpty()) {
+        path.pop();
+        pathStats.pop().onPath--;
+        pathChildren.pop();
+        if (path.isEmpty()) {
+          break;
+        }
+        instance = null;
+      } else {
+        instance = children.remove(children.size() - 1);
+      }
+    }
+
+    List<ClassStats> sorted = new ArrayList<>(statsByClassName.values());
+    Collections.sort(sorted, new Comparator<ClassStats>() {
+      @Override public int compare(ClassStats lhs, ClassStats rhs) {
+        return Long.compare(rhs.shallowSize, lhs.shallowSize);
+      }
+    });
+    List<ClassHistogram.Entry> entries = new ArrayList<>();
+    for (ClassStats stats : sorted.subList(0, Math.min(maxEntries, sorted.size()))) {
+      entries.add(new ClassHistogram.Entry(stats.className, stats.instanceCount, stats.shallowSize,
+          stats.retainedSize));
+    }
+    return new ClassHistogram(entries, sorted.size());
+  }
+}
@@ -20,17 +20,23 @@ import com.squareup.haha.perflib.ClassInstance;
 import com.squareup.haha.perflib.ClassObj;
 import com.squareup.haha.perflib.Field;
 import com.squareup.haha.perflib.HahaSpy;
+import com.squareup.haha.perflib.Heap;
 import com.squareup.haha.perflib.Instance;
 import com.squareup.haha.perflib.RootObj;
 import com.squareup.haha.perflib.RootType;
 import com.squareup.haha.perflib.Snapshot;
 import com.squareup.haha.perflib.Type;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 
+import static com.squareup.leakcanary.HahaHelper.className;
 import static com.squareup.leakcanary.HahaHelper.isPrimitiveOrWrapperArray;
 import static com.squareup.leakcanary.HahaHelper.isPrimitiveWrapper;
 import static com.squareup.leakcanary.HahaHelper.threadName;
@@ -48,16 +54,23 @@ import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
  */
 final class ShortestPathFinder {
 
+  /** Checking progress on every visit would be a waste, visiting is fast. */
+  private static final int VISITS_PER_PROGRESS_CHECK = 1024;
+
   private final ExcludedRefs excludedRefs;
+  private final ProgressReporter progress;
   private final Queue<LeakNode> toVisitQueue;
   private final Queue<LeakNode> toVisitIfNoPathQueue;
   private final LinkedHashSet<Instance> toVisitSet;
   private final LinkedHashSet<Instance> toVisitIfNoPathSet;
   private final LinkedHashSet<Instance> visitedSet;
   private boolean canIgnoreStrings;
+  private Set<Instance> leakingRefs;
+  private int maxPaths;
 
-  ShortestPathFinder(ExcludedRefs excludedRefs) {
+  ShortestPathFinder(ExcludedRefs excludedRefs, ProgressReporter progress) {
     this.excludedRefs = excludedRefs;
+    this.progress = progress;
     toVisitQueue = new LinkedList<>();
     toVisitIfNoPathQueue = new LinkedList<>();
     toVisitSet = new LinkedHashSet<>();
@@ -68,6 +81,11 @@ final class ShortestPathFinder {
   static final class Result {
     final LeakNode leakingNode;
     final boolean excludingKnownLeaks;
+    /**
+     * Other paths that end with a reference from another holder, shortest first. Empty unless
+     * more than one path was requested.
+     */
+    final List<LeakNode> otherLeakingNodes = new ArrayList<>();
 
     Result(LeakNode leakingNode, boolean excludingKnownLeaks) {
       this.leakingNode = leakingNode;
@@ -76,14 +94,51 @@ final class ShortestPathFinder {
   }
 
   Result findPath(Snapshot snapshot, Instance leakingRef) {
+    return findPath(snapshot, leakingRef, 1);
+  }
+
+  /**
+   * Same as {@link #findPath(Snapshot, Instance)}, with up to {@code maxPaths - 1} {@link
+   * Result#otherLeakingNodes}.
+   */
+  Result findPath(Snapshot snapshot, Instance leakingRef, int maxPaths) {
+    Result result =
+        findPaths(snapshot, Collections.singleton(leakingRef), maxPaths).get(leakingRef);
+    return result != null ? result : new Result(null, false);
+  }
+
+  /**
+   * Same as {@link #findPath(Snapshot, Instance, int)} for several instances, in a single
+   * traversal of the heap. Instances that can't be reached are missing from the returned map.
+   *
+   * <p>Other paths come from the same traversal: it keeps going after the shortest path is found,
+   * and every reference to a leaking instance from a holder that isn't on a previous path starts
+   * another path. Only paths without excluded references are considered. Unless {@code maxPaths}
+   * are found for every instance, this visits every instance that isn't behind an excluded
+   * reference.
+   */
+  Map<Instance, Result> findPaths(Snapshot snapshot, Set<Instance> leakingRefs, int maxPaths) {
+    if (maxPaths < 1) {
+      throw new IllegalArgumentException("maxPaths must be positive, not " + maxPaths);
+    }
     clearState();
-    canIgnoreStrings = !isString(leakingRef);
+    canIgnoreStrings = true;
+    for (Instance leakingRef : leakingRefs) {
+      if (isString(leakingRef)) {
+        canIgnoreStrings = false;
+      }
+    }
+    this.leakingRefs = leakingRefs;
+    this.maxPaths = maxPaths;
 
     enqueueGcRoots(snapshot);
 
+    long instanceCount = progress.isEnabled() ? countInstances(snapshot) : 0;
     boolean excludingKnownLeaks = false;
-    LeakNode leakingNode = null;
-    while (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty()) {
+    Map<Instance, Result> results = new LinkedHashMap<>();
+    int pathCount = 0;
+    while (!toVisitQueue.isEmpty()
+        || (!toVisitIfNoPathQueue.isEmpty() && results.size() < leakingRefs.size())) {
       LeakNode node;
       if (!toVisitQueue.isEmpty()) {
         node = toVisitQueue.poll();
@@ -96,15 +151,29 @@ final class ShortestPathFinder {
       }
 
       // Termination
-      if (node.instance == leakingRef) {
-        leakingNode = node;
-        break;
+      if (leakingRefs.contains(node.instance)) {
+        Result result = results.get(node.instance);
+        if (result == null) {
+          results.put(node.instance, new Result(node, excludingKnownLeaks));
+          pathCount++;
+        } else if (!excludingKnownLeaks && result.otherLeakingNodes.size() < maxPaths - 1
+            && isOtherPath(result, node)) {
+          result.otherLeakingNodes.add(node);
+          pathCount++;
+        }
+        if (pathCount == leakingRefs.size() * maxPaths) {
+          break;
+        }
       }
 
       if (checkSeen(node)) {
         continue;
       }
 
+      if (visitedSet.size() % VISITS_PER_PROGRESS_CHECK == 0) {
+        progress.update(visitedSet.size(), instanceCount);
+      }
+
       if (node.instance instanceof RootObj) {
         visitRootObj(node);
       } else if (node.instance instanceof ClassObj) {
@@ -117,7 +186,37 @@ final class ShortestPathFinder {
         throw new IllegalStateException("Unexpected type for " + node.instance);
       }
     }
-    return new Result(leakingNode, excludingKnownLeaks);
+    return results;
+  }
+
+  /**
+   * Whether {@code node} is held by another instance than the paths of {@code result}, and doesn't
+   * go through the leaking instance itself.
+   */
+  private static boolean isOtherPath(Result result, LeakNode node) {
+    Instance holder = node.parent.instance;
+    if (result.leakingNode.parent.instance == holder) {
+      return false;
+    }
+    for (LeakNode otherNode : result.otherLeakingNodes) {
+      if (otherNode.parent.instance == holder) {
+        return false;
+      }
+    }
+    for (LeakNode parent = node.parent; parent != null; parent = parent.parent) {
+      if (parent.instance == node.instance) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long countInstances(Snapshot snapshot) {
+    long count = 0;
+    for (Heap heap : snapshot.getHeaps()) {
+      count += heap.getInstancesCount() + heap.getClasses().size();
+    }
+    return count;
   }
 
   private void clearState() {
@@ -197,7 +296,7 @@ final class ShortestPathFinder {
   private void visitClassObj(LeakNode node) {
     ClassObj classObj = (ClassObj) node.instance;
     Map<String, Exclusion> ignoredStaticFields =
-        excludedRefs.staticFieldNameByClassName.get(classObj.getClassName());
+        excludedRefs.staticFieldNameByClassName.get(className(classObj));
     for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
       Field field = entry.getKey();
       if (field.getType() != Type.OBJECT) {
@@ -230,7 +329,7 @@ final class ShortestPathFinder {
     ClassObj superClassObj = classInstance.getClassObj();
     Exclusion classExclusion = null;
     while (superClassObj != null) {
-      Exclusion params = excludedRefs.classNames.get(superClassObj.getClassName());
+      Exclusion params = excludedRefs.classNames.get(className(superClassObj));
       if (params != null) {
         // true overrides null or false.
         if (classExclusion == null || !classExclusion.alwaysExclude) {
@@ -238,7 +337,7 @@ final class ShortestPathFinder {
         }
       }
       Map<String, Exclusion> classIgnoredFields =
-          excludedRefs.fieldNameByClassName.get(superClassObj.getClassName());
+          excludedRefs.fieldNameByClassName.get(className(superClassObj));
       if (classIgnoredFields != null) {
         ignoredFields.putAll(classIgnoredFields);
       }
@@ -284,22 +383,28 @@ final class ShortestPathFinder {
     if (child == null) {
       return;
     }
-    if (isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child)) {
-      return;
-    }
-    // Whether we want to visit now or later, we should skip if this is already to visit.
-    if (toVisitSet.contains(child)) {
+    // Primitives don't hold references, but can be what we're looking for.
+    if ((isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child))
+        && !leakingRefs.contains(child)) {
       return;
     }
     boolean visitNow = exclusion == null;
-    if (!visitNow && toVisitIfNoPathSet.contains(child)) {
-      return;
-    }
-    if (canIgnoreStrings && isString(child)) {
-      return;
-    }
-    if (visitedSet.contains(child)) {
-      return;
+    // Every reference to a leaking instance may start another path.
+    boolean otherPath = visitNow && maxPaths > 1 && leakingRefs.contains(child);
+    if (!otherPath) {
+      // Whether we want to visit now or later, we should skip if this is already to visit.
+      if (toVisitSet.contains(child)) {
+        return;
+      }
+      if (!visitNow && toVisitIfNoPathSet.contains(child)) {
+        return;
+      }
+      if (canIgnoreStrings && isString(child)) {
+        return;
+      }
+      if (visitedSet.contains(child)) {
+        return;
+      }
     }
     LeakNode childNode = new LeakNode(exclusion, child, parent, referenceName, referenceType);
     if (visitNow) {
@@ -312,8 +417,7 @@ final class ShortestPathFinder {
   }
 
   private boolean isString(Instance instance) {
-    return instance.getClassObj() != null && instance.getClassObj()
-        .getClassName()
-        .equals(String.class.getName());
+    return instance.getClassObj() != null && className(instance.getClassObj()).equals(
+        String.class.getName());
   }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HahaHelper.instanceClassName;
+import static com.squareup.leakcanary.HprofWriter.OBJECT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class ClassTableTest {
+
+  private static final int HOLDER = 100;
+  private static final int REGISTRY = 101;
+  private static final int NODE = 102;
+  private static final int SUBSCRIPTION = 103;
+  private static final int LISTENER = 104;
+  private static final int CALLBACK = 105;
+
+  private static final int LISTENER_COUNT = 4;
+  private static final int REGISTRY_INSTANCE = 1000;
+  private static final int FIRST_NODE = 1100;
+  private static final int FIRST_SUBSCRIPTION = 1200;
+  private static final int FIRST_LISTENER = 1300;
+  private static final int FIRST_CALLBACK = 1400;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Snapshot snapshot;
+
+  @Before public void setUp() throws IOException {
+    File heapDumpFile = folder.newFile("holders.hprof");
+    writeHeapDump(heapDumpFile);
+    snapshot = new HprofParser(HprofCompression.openHeapDump(heapDumpFile)).parse();
+    snapshot.computeDominators();
+  }
+
+  @Test public void liftsHoldersThroughSeveralLevels() {
+    Map<String, ClassTable.Holder> holders =
+        ClassTable.findHolders(snapshot, growth("com.example.Listener", LISTENER_COUNT));
+
+    // Listener -> subscription -> list of nodes -> registry.
+    ClassTable.Holder holder = holders.get("com.example.Listener");
+    assertEquals(REGISTRY_INSTANCE, holder.instance.getId());
+    assertEquals(LISTENER_COUNT, holder.heldInstanceCount);
+  }
+
+  @Test public void keepsClosestHolderOfHalfTheGrowth() {
+    Map<String, ClassTable.Holder> holders =
+        ClassTable.findHolders(snapshot, growth("com.example.Listener", 2));
+
+    ClassTable.Holder holder = holders.get("com.example.Listener");
+    assertEquals("com.example.Subscription", instanceClassName(holder.instance));
+    assertEquals(1, holder.heldInstanceCount);
+  }
+
+  @Test public void sameClassInstancesShareTheirHolder() {
+    Map<String, ClassTable.Holder> holders =
+        ClassTable.findHolders(snapshot, growth("com.example.Node", LISTENER_COUNT));
+
+    ClassTable.Holder holder = holders.get("com.example.Node");
+    assertEquals(REGISTRY_INSTANCE, holder.instance.getId());
+    assertEquals(LISTENER_COUNT, holder.heldInstanceCount);
+  }
+
+  @Test public void classesWithSharedHolders() {
+    Map<String, Integer> growth = growth("com.example.Listener", LISTENER_COUNT);
+    growth.put("com.example.Callback", LISTENER_COUNT);
+
+    Map<String, ClassTable.Holder> holders = ClassTable.findHolders(snapshot, growth);
+
+    assertEquals(2, holders.size());
+    assertEquals(REGISTRY_INSTANCE, holders.get("com.example.Listener").instance.getId());
+    assertEquals(REGISTRY_INSTANCE, holders.get("com.example.Callback").instance.getId());
+    assertEquals(LISTENER_COUNT, holders.get("com.example.Callback").heldInstanceCount);
+  }
+
+  @Test public void noHolderForMissingClasses() {
+    Map<String, ClassTable.Holder> holders =
+        ClassTable.findHolders(snapshot, growth("com.example.Missing", 1));
+
+    assertNull(holders.get("com.example.Missing"));
+  }
+
+  private static Map<String, Integer> growth(String className, int instanceCountGrowth) {
+    Map<String, Integer> growth = new HashMap<>();
+    growth.put(className, instanceCountGrowth);
+    return growth;
+  }
+
+  /**
+   * A static field holds a registry, which holds a linked list of nodes. Each node holds a
+   * subscription, which holds a listener and a callback.
+   */
+  private static void writeHeapDump(File heapDumpFile) throws IOException {
+    HprofWriter writer = new HprofWriter(heapDumpFile);
+    writer.writeString(1, "com.example.Holder");
+    writer.writeString(2, "com.example.Registry");
+    writer.writeString(3, "com.example.Node");
+    writer.writeString(4, "com.example.Subscription");
+    writer.writeString(5, "com.example.Listener");
+    writer.writeString(6, "com.example.Callback");
+    writer.writeString(7, "sRegistry");
+    writer.writeString(8, "head");
+    writer.writeString(9, "next");
+    writer.writeString(10, "subscription");
+    writer.writeString(11, "listener");
+    writer.writeString(12, "callback");
+    writer.writeLoadClass(HOLDER, 1);
+    writer.writeLoadClass(REGISTRY, 2);
+    writer.writeLoadClass(NODE, 3);
+    writer.writeLoadClass(SUBSCRIPTION, 4);
+    writer.writeLoadClass(LISTENER, 5);
+    writer.writeLoadClass(CALLBACK, 6);
+
+    int[] none = new int[0];
+    writer.writeClassDump(HOLDER, 0, new int[] { 7 }, new int[] { REGISTRY_INSTANCE }, none,
+        none);
+    writer.writeClassDump(REGISTRY, 0, none, none, new int[] { 8 }, new int[] { OBJECT });
+    writer.writeClassDump(NODE, 0, none, none, new int[] { 9, 10 },
+        new int[] { OBJECT, OBJECT });
+    writer.writeClassDump(SUBSCRIPTION, 0, none, none, new int[] { 11, 12 },
+        new int[] { OBJECT, OBJECT });
+    writer.writeClassDump(LISTENER, 0, none, none, none, none);
+    writer.writeClassDump(CALLBACK, 0, none, none, none, none);
+    writer.writeStickyClassRoot(HOLDER);
+
+    writer.writeInstance(REGISTRY_INSTANCE, REGISTRY, references(FIRST_NODE));
+    for (int i = 0; i < LISTENER_COUNT; i++) {
+      int next = i == LISTENER_COUNT - 1 ? 0 : FIRST_NODE + i + 1;
+      writer.writeInstance(FIRST_NODE + i, NODE, references(next, FIRST_SUBSCRIPTION + i));
+      writer.writeInstance(FIRST_SUBSCRIPTION + i, SUBSCRIPTION,
+          references(FIRST_LISTENER + i, FIRST_CALLBACK + i));
+      writer.writeInstance(FIRST_LISTENER + i, LISTENER, new byte[0]);
+      writer.writeInstance(FIRST_CALLBACK + i, CALLBACK, new byte[0]);
+    }
+    writer.close();
+  }
+
+  private static byte[] references(int... ids) {
+    ByteBuffer buffer = ByteBuffer.allocate(ids.length * 4);
+    for (int id : ids) {
+      buffer.putInt(id);
+    }
+    return buffer.array();
+  }
+}
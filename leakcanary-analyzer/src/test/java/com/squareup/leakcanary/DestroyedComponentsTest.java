@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HprofWriter.BOOLEAN;
+import static com.squareup.leakcanary.HprofWriter.OBJECT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class DestroyedComponentsTest {
+
+  private static final int ACTIVITY = 100;
+  private static final int MAIN_ACTIVITY = 101;
+  private static final int FRAGMENT = 102;
+  private static final int HOLDER = 103;
+
+  private static final int DESTROYED_ACTIVITY = 1000;
+  private static final int LIVE_ACTIVITY = 1001;
+  private static final int REMOVED_FRAGMENT = 1002;
+  private static final int ADDED_FRAGMENT = 1003;
+  private static final int GARBAGE_ACTIVITY = 1004;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File heapDumpFile;
+
+  @Before public void setUp() throws IOException {
+    heapDumpFile = folder.newFile("destroyed.hprof");
+    writeHeapDump();
+  }
+
+  @Test public void reportsReachableDestroyedComponents() {
+    Map<String, AnalysisResult> results = analyze(true);
+
+    assertEquals(2, results.size());
+    AnalysisResult activityResult = results.get("com.example.MainActivity@3e8");
+    assertTrue(activityResult.leakFound);
+    assertEquals("com.example.MainActivity", activityResult.className);
+    assertEquals("sDestroyed", activityResult.leakTrace.elements.get(0).referenceName);
+    AnalysisResult fragmentResult = results.get("android.app.Fragment@3ea");
+    assertTrue(fragmentResult.leakFound);
+    assertEquals("sRemoved", fragmentResult.leakTrace.elements.get(0).referenceName);
+  }
+
+  @Test public void disabledByDefault() {
+    assertEquals(0, analyze(false).size());
+  }
+
+  private Map<String, AnalysisResult> analyze(boolean findDestroyedComponents) {
+    AnalysisConfig config = AnalysisConfig.builder()
+        .findDestroyedComponents(findDestroyedComponents)
+        .computeRetainedHeapSize(false)
+        .heapHistogramSize(0)
+        .build();
+    HeapAnalyzer heapAnalyzer =
+        new HeapAnalyzer(ExcludedRefs.builder().build(), AnalyzerProgressListener.NONE, config);
+    return heapAnalyzer.checkForLeaks(heapDumpFile, Collections.<String>emptySet());
+  }
+
+  private void writeHeapDump() throws IOException {
+    HprofWriter writer = new HprofWriter(heapDumpFile);
+    writer.writeString(1, "android.app.Activity");
+    writer.writeString(2, "com.example.MainActivity");
+    writer.writeString(3, "android.app.Fragment");
+    writer.writeString(4, "com.example.Holder");
+    writer.writeString(5, "mDestroyed");
+    writer.writeString(6, "mFragmentManager");
+    writer.writeString(7, "sDestroyed");
+    writer.writeString(8, "sLive");
+    writer.writeString(9, "sRemoved");
+    writer.writeString(10, "sAdded");
+    writer.writeLoadClass(ACTIVITY, 1);
+    writer.writeLoadClass(MAIN_ACTIVITY, 2);
+    writer.writeLoadClass(FRAGMENT, 3);
+    writer.writeLoadClass(HOLDER, 4);
+
+    int[] none = new int[0];
+    writer.writeClassDump(ACTIVITY, 0, none, none, new int[] { 5 }, new int[] { BOOLEAN });
+    writer.writeClassDump(MAIN_ACTIVITY, ACTIVITY, none, none, none, none);
+    writer.writeClassDump(FRAGMENT, 0, none, none, new int[] { 6 }, new int[] { OBJECT });
+    writer.writeClassDump(HOLDER, 0, new int[] { 7, 8, 9, 10 },
+        new int[] { DESTROYED_ACTIVITY, LIVE_ACTIVITY, REMOVED_FRAGMENT, ADDED_FRAGMENT }, none,
+        none);
+    writer.writeStickyClassRoot(HOLDER);
+
+    writer.writeInstance(DESTROYED_ACTIVITY, MAIN_ACTIVITY, new byte[] { 1 });
+    writer.writeInstance(LIVE_ACTIVITY, MAIN_ACTIVITY, new byte[] { 0 });
+    writer.writeInstance(GARBAGE_ACTIVITY, MAIN_ACTIVITY, new byte[] { 1 });
+    writer.writeInstance(REMOVED_FRAGMENT, FRAGMENT, ByteBuffer.allocate(4).putInt(0).array());
+    writer.writeInstance(ADDED_FRAGMENT, FRAGMENT,
+        ByteBuffer.allocate(4).putInt(HOLDER).array());
+    writer.close();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HprofWriter.BYTE;
+import static com.squareup.leakcanary.HprofWriter.INT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class DuplicateArraysTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void groupsArraysWithSameTypeAndContents() throws IOException {
+    byte[] large = new byte[10000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) (i * 7);
+    }
+    byte[] four = { 1, 2, 3, 4 };
+    File heapDumpFile = folder.newFile("duplicates.hprof");
+    HprofWriter writer = new HprofWriter(heapDumpFile);
+    writer.writePrimitiveArray(1, BYTE, 4, four);
+    writer.writePrimitiveArray(2, BYTE, 4, four);
+    writer.writePrimitiveArray(3, BYTE, 4, four);
+    // Same bytes, different type.
+    writer.writePrimitiveArray(4, INT, 1, four);
+    // Same length, different contents.
+    writer.writePrimitiveArray(5, BYTE, 4, new byte[] { 1, 2, 3, 5 });
+    writer.writePrimitiveArray(6, BYTE, large.length, large);
+    writer.writePrimitiveArray(7, BYTE, large.length, large);
+    // Empty arrays are not worth reporting.
+    writer.writePrimitiveArray(8, BYTE, 0, new byte[0]);
+    writer.writePrimitiveArray(9, BYTE, 0, new byte[0]);
+    writer.close();
+
+    List<DuplicateArrays.Group> groups =
+        DuplicateArrays.find(HprofCompression.openHeapDump(heapDumpFile));
+
+    assertEquals(2, groups.size());
+    DuplicateArrays.Group largeGroup = groups.get(0);
+    assertEquals(Type.BYTE, largeGroup.type);
+    assertEquals(large.length, largeGroup.byteCount);
+    assertEquals(large.length, largeGroup.wastedByteCount());
+    assertArrayEquals(new long[] { 6, 7 }, largeGroup.arrayIds);
+    assertEquals(DuplicateArrays.FIRST_BYTES, largeGroup.firstBytes.length);
+    DuplicateArrays.Group smallGroup = groups.get(1);
+    assertArrayEquals(new long[] { 1, 2, 3 }, smallGroup.arrayIds);
+    assertEquals(8, smallGroup.wastedByteCount());
+    assertArrayEquals(four, smallGroup.firstBytes);
+  }
+}
@@ -12,6 +12,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -119,6 +120,36 @@ public class HahaHelperTest {
     }
   }
 
+  @Test public void readStringWithoutCountFromHeapDumpInstance_jdk9() {
+    buffer = new FakeHprofBuffer("UTF-8");
+    initSnapshot(buffer);
+
+    buffer.setIntsToRead(VALUE_ARRAY_INSTANCE_ID);
+    buffer.setStringsToRead("abcdef");
+
+    addStringClassToSnapshotWithFields_O(snapshot, new Field[]{
+        new Field(Type.OBJECT, "value")
+    });
+
+    ClassInstance stringInstance = createStringInstance();
+    createByteArrayValueInstance();
+
+    String actual = HahaHelper.asString(stringInstance);
+    assertTrue(actual.equals("abcdef"));
+  }
+
+  @Test public void hotSpotClassNamesAreNormalized() {
+    assertEquals("java.lang.String", className("java/lang/String"));
+    assertEquals("java.lang.String[]", className("[Ljava/lang/String;"));
+    assertEquals("byte[][]", className("[[B"));
+    assertEquals("com.example.Foo$1", className("com.example.Foo$1"));
+    assertEquals("char[]", className("char[]"));
+  }
+
+  private static String className(String rawClassName) {
+    return HahaHelper.className(new ClassObj(0, null, rawClassName, 0));
+  }
+
   private void addStringClassToSnapshotWithFields(Snapshot snapshot, Field[] fields) {
     ClassObj charArrayClass = new ClassObj(0, null, "char[]", 0);
     snapshot.addClass(CHAR_ARRAY_CLASS_ID, charArrayClass);
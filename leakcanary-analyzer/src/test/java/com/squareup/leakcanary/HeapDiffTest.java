@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class HeapDiffTest {
+
+  @Test public void sortsGrownClassesByRetainedSizeGrowth() {
+    Map<String, ClassHistogram.Entry> before = new HashMap<>();
+    add(before, "com.example.Listener", 10, 160, 640);
+    add(before, "com.example.Shrinking", 100, 1600, 1600);
+    add(before, "com.example.Stable", 5, 80, 80);
+    Map<String, ClassHistogram.Entry> after = new HashMap<>();
+    add(after, "com.example.Listener", 1010, 16160, 64640);
+    add(after, "com.example.Shrinking", 50, 800, 800);
+    add(after, "com.example.Stable", 5, 80, 80);
+    add(after, "com.example.New", 1, 16, 2048);
+
+    List<HeapDiff.ClassGrowth> grown = HeapDiff.grownClasses(before, after, 10);
+
+    assertEquals(2, grown.size());
+    HeapDiff.ClassGrowth listener = grown.get(0);
+    assertEquals("com.example.Listener", listener.className);
+    assertEquals(1000, listener.instanceCountGrowth());
+    assertEquals(64000, listener.retainedSizeGrowth());
+    HeapDiff.ClassGrowth newClass = grown.get(1);
+    assertEquals("com.example.New", newClass.className);
+    assertEquals(0, newClass.instanceCountBefore);
+    assertEquals(1, newClass.instanceCountAfter);
+  }
+
+  @Test public void limitsGrownClasses() {
+    Map<String, ClassHistogram.Entry> after = new HashMap<>();
+    for (int i = 0; i < 5; i++) {
+      add(after, "com.example.Class" + i, 1, 16, 16 * (i + 1));
+    }
+
+    List<HeapDiff.ClassGrowth> grown =
+        HeapDiff.grownClasses(new HashMap<String, ClassHistogram.Entry>(), after, 2);
+
+    assertEquals(2, grown.size());
+    assertEquals("com.example.Class4", grown.get(0).className);
+    assertEquals("com.example.Class3", grown.get(1).className);
+  }
+
+  private static void add(Map<String, ClassHistogram.Entry> table, String className,
+      int instanceCount, long shallowSize, long retainedSize) {
+    table.put(className,
+        new ClassHistogram.Entry(className, instanceCount, shallowSize, retainedSize));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class HprofCompressionTest {
+
+  private static final int CHUNK_SIZE = 64;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private byte[] bytes;
+  private File source;
+  private File compressed;
+
+  @Before public void setUp() throws IOException {
+    // Compressible, with some noise.
+    Random random = new Random(42);
+    bytes = new byte[CHUNK_SIZE * 10 + 13];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i % 7 == 0 ? random.nextInt() : i % 3);
+    }
+    source = folder.newFile("source.hprof");
+    write(source, bytes);
+    compressed = folder.newFile("compressed.hprof");
+    HprofCompression.compress(source, compressed, CHUNK_SIZE);
+  }
+
+  @Test public void detectsCompressedFiles() throws IOException {
+    assertTrue(HprofCompression.isCompressed(compressed));
+    assertFalse(HprofCompression.isCompressed(source));
+  }
+
+  @Test public void readsAcrossChunks() throws IOException {
+    CompressedHprofBuffer buffer = new CompressedHprofBuffer(compressed);
+    ByteBuffer expected = ByteBuffer.wrap(bytes);
+
+    // Positions straddling chunk boundaries.
+    for (int position : new int[] { 0, CHUNK_SIZE - 1, CHUNK_SIZE * 3 - 3, bytes.length - 8 }) {
+      buffer.setPosition(position);
+      assertEquals(expected.getLong(position), buffer.readLong());
+      buffer.setPosition(position);
+      assertEquals(expected.getInt(position), buffer.readInt());
+      buffer.setPosition(position);
+      assertEquals(expected.getShort(position), buffer.readShort());
+      buffer.setPosition(position);
+      assertEquals(expected.get(position), buffer.readByte());
+      assertEquals(position + 1, buffer.position());
+    }
+
+    byte[] read = new byte[CHUNK_SIZE * 2 + 5];
+    buffer.setPosition(CHUNK_SIZE - 2);
+    buffer.read(read);
+    assertArrayEquals(Arrays.copyOfRange(bytes, CHUNK_SIZE - 2, CHUNK_SIZE * 3 + 3), read);
+
+    byte[] subSequence = new byte[4];
+    buffer.setPosition(10);
+    buffer.readSubSequence(subSequence, 2, 4);
+    assertArrayEquals(Arrays.copyOfRange(bytes, 12, 16), subSequence);
+    assertEquals(16, buffer.position());
+
+    buffer.setPosition(bytes.length - 1);
+    assertTrue(buffer.hasRemaining());
+    assertEquals(1, buffer.remaining());
+    buffer.readByte();
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test public void decompress() throws IOException {
+    File decompressed = folder.newFile("decompressed.hprof");
+
+    HprofCompression.decompress(compressed, decompressed);
+
+    assertArrayEquals(bytes, read(decompressed));
+  }
+
+  @Test public void rejectsTruncatedFiles() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(compressed, "rw");
+    try {
+      file.setLength(file.length() - 1);
+    } finally {
+      file.close();
+    }
+    try {
+      new CompressedHprofBuffer(compressed);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] read(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readFully(bytes);
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+}
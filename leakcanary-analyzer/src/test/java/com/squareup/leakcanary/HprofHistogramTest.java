@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HprofWriter.BYTE;
+import static com.squareup.leakcanary.HprofWriter.HEAP_DUMP_INFO;
+import static com.squareup.leakcanary.HprofWriter.INT;
+import static com.squareup.leakcanary.HprofWriter.ROOT_STICKY_CLASS;
+import static com.squareup.leakcanary.HprofWriter.STACK_TRACE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class HprofHistogramTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File heapDumpFile;
+
+  @Before public void setUp() throws IOException {
+    heapDumpFile = folder.newFile("histogram.hprof");
+  }
+
+  @Test public void countsInstancesAndShallowSizes() throws IOException {
+    writeHeapDump();
+
+    ClassHistogram histogram = HprofHistogram.compute(heapDumpFile, 10);
+
+    assertEquals(5, histogram.classCount);
+    assertEntry(histogram.entries.get(0), "com.example.Leaky", 3, 48);
+    assertEntry(histogram.entries.get(1), "int[]", 1, 20);
+    assertEntry(histogram.entries.get(2), "byte[]", 2, 16);
+    assertEntry(histogram.entries.get(3), "java.lang.Object[]", 1, 12);
+    // Class objects are as large as their static fields.
+    assertEntry(histogram.entries.get(4), "java.lang.Class", 4, 8);
+  }
+
+  @Test public void keepsLargestClasses() throws IOException {
+    writeHeapDump();
+
+    ClassHistogram histogram = HprofHistogram.compute(heapDumpFile, 2);
+
+    assertEquals(5, histogram.classCount);
+    assertEquals(2, histogram.entries.size());
+    assertEquals("int[]", histogram.entries.get(1).className);
+  }
+
+  @Test public void readsCompressedHeapDumps() throws IOException {
+    writeHeapDump();
+    File compressed = folder.newFile("compressed.hprof");
+    HprofCompression.compress(heapDumpFile, compressed);
+
+    ClassHistogram histogram = HprofHistogram.compute(compressed, 10);
+
+    assertEntry(histogram.entries.get(0), "com.example.Leaky", 3, 48);
+  }
+
+  @Test public void rejectsUnknownSubRecord() throws IOException {
+    HprofWriter writer = new HprofWriter(heapDumpFile);
+    writer.segment.writeByte(0x42);
+    writer.close();
+    try {
+      HprofHistogram.compute(heapDumpFile, 10);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  private void writeHeapDump() throws IOException {
+    HprofWriter writer = new HprofWriter(heapDumpFile);
+    writer.writeString(1, "com/example/Leaky");
+    writer.writeString(2, "[Ljava/lang/Object;");
+    writer.writeString(3, "com/example/Holder");
+    // Same class name in two class loaders.
+    writer.writeLoadClass(100, 1);
+    writer.writeLoadClass(101, 1);
+    writer.writeLoadClass(102, 2);
+    writer.writeLoadClass(103, 3);
+    writer.writeRecord(STACK_TRACE, new byte[12]);
+
+    writer.segment.writeByte(HEAP_DUMP_INFO);
+    writer.segment.writeInt(0);
+    writer.segment.writeInt(0);
+    writer.segment.writeByte(ROOT_STICKY_CLASS);
+    writer.segment.writeInt(103);
+    writer.writeClassDump(100, 16, 0);
+    writer.writeClassDump(101, 16, 0);
+    writer.writeClassDump(102, 0, 0);
+    writer.writeClassDump(103, 8, 2);
+    writer.writeInstance(200, 100);
+    writer.writeInstance(201, 100);
+    writer.writeInstance(202, 101);
+    writer.writeObjectArray(203, 102, 3);
+    writer.writePrimitiveArray(204, BYTE, 10, new byte[10]);
+    writer.writePrimitiveArray(205, BYTE, 6, new byte[6]);
+    writer.writePrimitiveArray(206, INT, 5, new byte[5 * 4]);
+    writer.close();
+  }
+
+  private static void assertEntry(ClassHistogram.Entry entry, String className,
+      int instanceCount, long shallowSize) {
+    assertEquals(className, entry.className);
+    assertEquals(instanceCount, entry.instanceCount);
+    assertEquals(shallowSize, entry.shallowSize);
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/** Writes minimal heap dumps with 4 byte ids, all in a single heap dump segment. */
+final class HprofWriter implements Closeable {
+
+  static final int STRING_IN_UTF8 = 0x01;
+  static final int LOAD_CLASS = 0x02;
+  static final int STACK_TRACE = 0x05;
+  static final int HEAP_DUMP_SEGMENT = 0x1C;
+
+  static final int ROOT_STICKY_CLASS = 0x05;
+  static final int HEAP_DUMP_INFO = 0xFE;
+  static final int CLASS_DUMP = 0x20;
+  static final int INSTANCE_DUMP = 0x21;
+  static final int OBJECT_ARRAY_DUMP = 0x22;
+  static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+  static final int OBJECT = 2;
+  static final int BOOLEAN = 4;
+  static final int BYTE = 8;
+  static final int INT = 10;
+
+  private final DataOutputStream out;
+  private final ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+  /** Sub records, written on {@link #close()}. */
+  final DataOutputStream segment = new DataOutputStream(segmentBytes);
+
+  HprofWriter(File file) throws IOException {
+    out = new DataOutputStream(new FileOutputStream(file));
+    out.writeBytes("JAVA PROFILE 1.0.2");
+    out.writeByte(0);
+    out.writeInt(4);
+    out.writeLong(0);
+  }
+
+  void writeString(int id, String value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeInt(id);
+    record.write(value.getBytes("UTF-8"));
+    writeRecord(STRING_IN_UTF8, bytes.toByteArray());
+  }
+
+  void writeLoadClass(int classId, int nameId) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeInt(classId);
+    record.writeInt(classId);
+    record.writeInt(0);
+    record.writeInt(nameId);
+    writeRecord(LOAD_CLASS, bytes.toByteArray());
+  }
+
+  void writeRecord(int tag, byte[] body) throws IOException {
+    out.writeByte(tag);
+    out.writeInt(0);
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  /** Static fields alternate between objects and ints, and there is one instance field. */
+  void writeClassDump(int classId, int instanceSize, int staticFieldCount) throws IOException {
+    segment.writeByte(CLASS_DUMP);
+    segment.writeInt(classId);
+    segment.writeInt(0);
+    segment.write(new byte[6 * 4]);
+    segment.writeInt(instanceSize);
+    segment.writeShort(1);
+    segment.writeShort(0);
+    segment.writeByte(INT);
+    segment.writeInt(42);
+    segment.writeShort(staticFieldCount);
+    for (int i = 0; i < staticFieldCount; i++) {
+      segment.writeInt(3);
+      segment.writeByte(i % 2 == 0 ? OBJECT : INT);
+      segment.writeInt(0);
+    }
+    segment.writeShort(1);
+    segment.writeInt(3);
+    segment.writeByte(OBJECT);
+  }
+
+  /** Writes a class with object static fields, and instance fields of the given types. */
+  void writeClassDump(int classId, int superClassId, int[] staticFieldNameIds, int[] staticValues,
+      int[] fieldNameIds, int[] fieldTypes) throws IOException {
+    int instanceSize = 0;
+    for (int fieldType : fieldTypes) {
+      instanceSize += fieldType == BOOLEAN ? 1 : 4;
+    }
+    segment.writeByte(CLASS_DUMP);
+    segment.writeInt(classId);
+    segment.writeInt(0);
+    segment.writeInt(superClassId);
+    segment.write(new byte[5 * 4]);
+    segment.writeInt(instanceSize);
+    segment.writeShort(0);
+    segment.writeShort(staticFieldNameIds.length);
+    for (int i = 0; i < staticFieldNameIds.length; i++) {
+      segment.writeInt(staticFieldNameIds[i]);
+      segment.writeByte(OBJECT);
+      segment.writeInt(staticValues[i]);
+    }
+    segment.writeShort(fieldNameIds.length);
+    for (int i = 0; i < fieldNameIds.length; i++) {
+      segment.writeInt(fieldNameIds[i]);
+      segment.writeByte(fieldTypes[i]);
+    }
+  }
+
+  void writeStickyClassRoot(int classId) throws IOException {
+    segment.writeByte(ROOT_STICKY_CLASS);
+    segment.writeInt(classId);
+  }
+
+  /** {@code fieldValues} holds the fields of the class, then of its super classes. */
+  void writeInstance(int id, int classId, byte[] fieldValues) throws IOException {
+    segment.writeByte(INSTANCE_DUMP);
+    segment.writeInt(id);
+    segment.writeInt(0);
+    segment.writeInt(classId);
+    segment.writeInt(fieldValues.length);
+    segment.write(fieldValues);
+  }
+
+  void writeInstance(int id, int classId) throws IOException {
+    segment.writeByte(INSTANCE_DUMP);
+    segment.writeInt(id);
+    segment.writeInt(0);
+    segment.writeInt(classId);
+    segment.writeInt(4);
+    segment.writeInt(0);
+  }
+
+  void writeObjectArray(int id, int classId, int length) throws IOException {
+    segment.writeByte(OBJECT_ARRAY_DUMP);
+    segment.writeInt(id);
+    segment.writeInt(0);
+    segment.writeInt(length);
+    segment.writeInt(classId);
+    segment.write(new byte[length * 4]);
+  }
+
+  void writePrimitiveArray(int id, int type, int length, byte[] contents) throws IOException {
+    segment.writeByte(PRIMITIVE_ARRAY_DUMP);
+    segment.writeInt(id);
+    segment.writeInt(0);
+    segment.writeInt(length);
+    segment.writeByte(type);
+    segment.write(contents);
+  }
+
+  @Override public void close() throws IOException {
+    if (segmentBytes.size() > 0) {
+      writeRecord(HEAP_DUMP_SEGMENT, segmentBytes.toByteArray());
+    }
+    out.close();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.RootType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class IgnoredBitmapSizesTest {
+
+  @Test public void onlyCountsBitmapsDominatedThroughNativeRoot() {
+    Instance activity = instance(1);
+    Instance view = instance(2);
+    Instance nativeBitmap = instance(3);
+    Instance javaBitmap = instance(4);
+    activity.setImmediateDominator(new RootObj(RootType.JAVA_LOCAL, 10));
+    view.setImmediateDominator(activity);
+    nativeBitmap.setImmediateDominator(new RootObj(RootType.UNKNOWN, 11));
+    nativeBitmap.setNextInstanceToGcRoot(view);
+    javaBitmap.setImmediateDominator(view);
+
+    IgnoredBitmapSizes sizes =
+        new IgnoredBitmapSizes(asList(nativeBitmap, javaBitmap), asList(100L, 1000L));
+
+    assertEquals(100, sizes.retainedBy(activity));
+    assertEquals(100, sizes.retainedBy(view));
+    assertEquals(0, sizes.retainedBy(nativeBitmap));
+    assertEquals(0, sizes.retainedBy(instance(5)));
+  }
+
+  @Test public void sameAsWalkingEachDominatorChain() {
+    Random random = new Random(42);
+    for (int round = 0; round < 20; round++) {
+      List<Instance> instances = randomDominatorTree(random, 500);
+      List<Instance> bitmaps = new ArrayList<>();
+      List<Long> bitmapSizes = new ArrayList<>();
+      for (Instance instance : instances) {
+        if (random.nextInt(4) == 0) {
+          bitmaps.add(instance);
+          bitmapSizes.add((long) random.nextInt(1000));
+        }
+      }
+      IgnoredBitmapSizes sizes = new IgnoredBitmapSizes(bitmaps, bitmapSizes);
+      for (Instance leakingInstance : instances) {
+        long expected = 0;
+        for (int i = 0; i < bitmaps.size(); i++) {
+          if (isIgnoredDominator(leakingInstance, bitmaps.get(i))) {
+            expected += bitmapSizes.get(i);
+          }
+        }
+        assertEquals(expected, sizes.retainedBy(leakingInstance));
+      }
+    }
+  }
+
+  private static List<Instance> randomDominatorTree(Random random, int count) {
+    List<Instance> instances = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Instance instance = instance(i);
+      int kind = i == 0 ? 0 : random.nextInt(3);
+      if (kind == 0) {
+        instance.setImmediateDominator(new RootObj(RootType.JAVA_LOCAL, count + i));
+      } else if (kind == 1) {
+        instance.setImmediateDominator(new RootObj(RootType.UNKNOWN, count + i));
+        instance.setNextInstanceToGcRoot(instances.get(random.nextInt(i)));
+      } else {
+        instance.setImmediateDominator(instances.get(random.nextInt(i)));
+      }
+      instances.add(instance);
+    }
+    return instances;
+  }
+
+  /** The walk that {@link IgnoredBitmapSizes} replaces. */
+  private static boolean isIgnoredDominator(Instance dominator, Instance instance) {
+    boolean foundNativeRoot = false;
+    while (true) {
+      Instance immediateDominator = instance.getImmediateDominator();
+      if (immediateDominator instanceof RootObj
+          && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
+        instance = instance.getNextInstanceToGcRoot();
+        foundNativeRoot = true;
+      } else {
+        instance = immediateDominator;
+      }
+      if (instance == null) {
+        return false;
+      }
+      if (instance == dominator) {
+        return foundNativeRoot;
+      }
+    }
+  }
+
+  private static Instance instance(long id) {
+    return new ClassInstance(id, null, 0);
+  }
+}
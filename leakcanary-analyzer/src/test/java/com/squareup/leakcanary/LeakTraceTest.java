@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.THREAD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
+import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+@RunWith(JUnit4.class)
+public class LeakTraceTest {
+
+  @Test public void signatureIgnoresInstanceSpecificData() {
+    LeakTrace leakTrace = leakTrace("[3]", "(named 'AsyncTask #1')", "mListeners = Object[]@1");
+    LeakTrace sameLeak = leakTrace("[5]", "(named 'AsyncTask #4')", "mListeners = Object[]@2");
+
+    assertEquals(leakTrace.signature(), sameLeak.signature());
+    assertEquals(40, leakTrace.signature().length());
+  }
+
+  @Test public void signatureDependsOnReferences() {
+    LeakTrace leakTrace = leakTrace("[3]", null, "");
+    LeakTrace otherLeak = new LeakTrace(Arrays.asList(
+        element("sInstance", STATIC_FIELD, CLASS, "com.example.Registry", null, ""),
+        element("mOtherListeners", INSTANCE_FIELD, OBJECT, "com.example.Registry", null, ""),
+        element("[3]", ARRAY_ENTRY, ARRAY, "java.lang.Object[]", null, ""),
+        element(null, null, OBJECT, "com.example.MainActivity", null, "")));
+
+    assertNotEquals(leakTrace.signature(), otherLeak.signature());
+  }
+
+  private static LeakTrace leakTrace(String arrayIndex, String threadExtra, String field) {
+    return new LeakTrace(Arrays.asList(
+        element("registry", INSTANCE_FIELD, THREAD, "java.lang.Thread", threadExtra, field),
+        element("mListeners", INSTANCE_FIELD, OBJECT, "com.example.Registry", null, field),
+        element(arrayIndex, ARRAY_ENTRY, ARRAY, "java.lang.Object[]", null, field),
+        element(null, null, OBJECT, "com.example.MainActivity", null, field)));
+  }
+
+  private static LeakTraceElement element(String referenceName, LeakTraceElement.Type type,
+      LeakTraceElement.Holder holder, String className, String extra, String field) {
+    return new LeakTraceElement(referenceName, type, holder, className, extra, null,
+        Collections.singletonList(field));
+  }
+}
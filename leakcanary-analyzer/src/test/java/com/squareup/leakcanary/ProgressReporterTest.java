@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.DONE;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.PARSING_HEAP_DUMP;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ProgressReporterTest {
+
+  private final List<String> updates = new ArrayList<>();
+  private final ProgressReporter progress = new ProgressReporter(new AnalyzerProgressListener() {
+    @Override public void onProgressUpdate(Step step, double fraction) {
+      updates.add(step + " " + Math.round(fraction * 100));
+    }
+  });
+
+  @Test public void throttlesUpdatesToOnePerPercent() {
+    progress.start(PARSING_HEAP_DUMP);
+    for (int done = 0; done <= 1000; done++) {
+      progress.update(done, 200);
+    }
+    progress.finish();
+    // Start, at most one update per percent, done.
+    assertTrue(updates.size() <= 102);
+    assertEquals("PARSING_HEAP_DUMP 0", updates.get(0));
+    assertEquals("PARSING_HEAP_DUMP 1", updates.get(1));
+    int size = updates.size();
+    assertEquals(asList("PARSING_HEAP_DUMP 100", "DONE 100"), updates.subList(size - 2, size));
+  }
+
+  @Test public void ignoresUnknownTotal() {
+    progress.start(PARSING_HEAP_DUMP);
+    progress.update(10, 0);
+    assertEquals(asList("PARSING_HEAP_DUMP 0"), updates);
+  }
+
+  @Test public void startResetsProgress() {
+    progress.start(PARSING_HEAP_DUMP);
+    progress.update(1, 1);
+    progress.start(DONE);
+    progress.update(1, 2);
+    assertEquals(asList("PARSING_HEAP_DUMP 0", "PARSING_HEAP_DUMP 100", "DONE 0", "DONE 50"),
+        updates);
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
+import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class ResultCodecTest {
+
+  private final HeapDump heapDump = new HeapDump(new File("/data/leaks/1.hprof"), "key", "name",
+      ExcludedRefs.builder()
+          .instanceField("android.app.Activity", "mWindow").reason("Window leak")
+          .staticField("android.os.Handler", "sInstance").named("Handler").alwaysExclude()
+          .thread("FinalizerWatchdogDaemon")
+          .clazz("java.lang.ref.Finalizer")
+          .build(), 10, 20, 30);
+
+  @Test public void heapDumpRoundTrip() throws IOException {
+    ResultCodec.Entry entry = ResultCodec.decode(ResultCodec.encode(heapDump, null));
+
+    assertNull(entry.result);
+    assertEquals(heapDump.heapDumpFile, entry.heapDump.heapDumpFile);
+    assertEquals("key", entry.heapDump.referenceKey);
+    assertEquals("name", entry.heapDump.referenceName);
+    assertEquals(10, entry.heapDump.watchDurationMs);
+    assertEquals(20, entry.heapDump.gcDurationMs);
+    assertEquals(30, entry.heapDump.heapDumpDurationMs);
+    assertEquals(heapDump.excludedRefs.toString(), entry.heapDump.excludedRefs.toString());
+    Exclusion exclusion =
+        entry.heapDump.excludedRefs.staticFieldNameByClassName.get("android.os.Handler")
+            .get("sInstance");
+    assertEquals("Handler", exclusion.name);
+    assertTrue(exclusion.alwaysExclude);
+    assertEquals("Window leak",
+        entry.heapDump.excludedRefs.fieldNameByClassName.get("android.app.Activity")
+            .get("mWindow").reason);
+  }
+
+  @Test public void leakRoundTrip() throws IOException {
+    ExcludedRefs.ParamsBuilder params = new ExcludedRefs.ParamsBuilder("static field Foo#bar");
+    params.reason = "reason";
+    LeakTrace leakTrace = new LeakTrace(Arrays.asList(
+        new LeakTraceElement("sLeak", STATIC_FIELD, CLASS, "com.example.Holder", null,
+            new Exclusion(params), Collections.singletonList("static sLeak = Leaky@1")),
+        new LeakTraceElement(null, null, OBJECT, "com.example.Leaky", "(extra)", null,
+            Collections.<String>emptyList())));
+    AnalysisResult result =
+        AnalysisResult.leakDetected(true, "com.example.Leaky", leakTrace, 1024, 42);
+
+    AnalysisResult decoded = ResultCodec.decode(ResultCodec.encode(heapDump, result)).result;
+
+    assertTrue(decoded.leakFound);
+    assertTrue(decoded.excludedLeak);
+    assertEquals("com.example.Leaky", decoded.className);
+    assertEquals(1024, decoded.retainedHeapSize);
+    assertEquals(42, decoded.analysisDurationMs);
+    assertNull(decoded.failure);
+    assertEquals(leakTrace.toString(), decoded.leakTrace.toString());
+    assertEquals(leakTrace.toDetailedString(), decoded.leakTrace.toDetailedString());
+    assertEquals("reason", decoded.leakTrace.elements.get(0).exclusion.reason);
+  }
+
+  @Test public void duplicateLeakRoundTrip() throws IOException {
+    LeakTrace leakTrace = new LeakTrace(Collections.singletonList(
+        new LeakTraceElement(null, null, OBJECT, "com.example.Leaky", null, null,
+            Collections.<String>emptyList())));
+    AnalysisResult result = AnalysisResult.duplicateLeak(false, "com.example.Leaky", leakTrace, 7);
+
+    AnalysisResult decoded = ResultCodec.decode(ResultCodec.encode(heapDump, result)).result;
+
+    assertTrue(decoded.leakFound);
+    assertTrue(decoded.duplicateLeak);
+    assertEquals(0, decoded.retainedHeapSize);
+    assertEquals(leakTrace.signature(), decoded.leakTrace.signature());
+  }
+
+  @Test public void retainedHistogramRoundTrip() throws IOException {
+    LeakTrace leakTrace = new LeakTrace(Collections.singletonList(
+        new LeakTraceElement(null, null, OBJECT, "com.example.Leaky", null, null,
+            Collections.<String>emptyList())));
+    ClassHistogram histogram = new ClassHistogram(Arrays.asList(
+        new ClassHistogram.Entry("byte[]", 3, 4096, 4096),
+        new ClassHistogram.Entry("com.example.Leaky", 1, 16, 4200)), 5);
+    AnalysisResult result =
+        AnalysisResult.leakDetected(false, "com.example.Leaky", leakTrace, 4200, histogram, 7);
+
+    AnalysisResult decoded = ResultCodec.decode(ResultCodec.encode(heapDump, result)).result;
+
+    assertEquals(5, decoded.retainedHistogram.classCount);
+    assertEquals(2, decoded.retainedHistogram.entries.size());
+    ClassHistogram.Entry entry = decoded.retainedHistogram.entries.get(0);
+    assertEquals("byte[]", entry.className);
+    assertEquals(3, entry.instanceCount);
+    assertEquals(4096, entry.shallowSize);
+    assertEquals(4096, entry.retainedSize);
+  }
+
+  @Test public void otherLeakTracesRoundTrip() throws IOException {
+    LeakTrace leakTrace = new LeakTrace(Collections.singletonList(
+        new LeakTraceElement("sLeak", STATIC_FIELD, CLASS, "com.example.Holder", null, null,
+            Collections.<String>emptyList())));
+    LeakTrace otherLeakTrace = new LeakTrace(Collections.singletonList(
+        new LeakTraceElement("sOther", STATIC_FIELD, CLASS, "com.example.OtherHolder", null, null,
+            Collections.<String>emptyList())));
+    AnalysisResult result = AnalysisResult.leakDetected(false, "com.example.Leaky", leakTrace, 16,
+        7).withOtherLeakTraces(Collections.singletonList(otherLeakTrace));
+
+    AnalysisResult decoded = ResultCodec.decode(ResultCodec.encode(heapDump, result)).result;
+
+    assertEquals(leakTrace.toString(), decoded.leakTrace.toString());
+    assertEquals(1, decoded.otherLeakTraces.size());
+    assertEquals(otherLeakTrace.toString(), decoded.otherLeakTraces.get(0).toString());
+  }
+
+  @Test public void heapHistogramRoundTrip() throws IOException {
+    ClassHistogram histogram = new ClassHistogram(Collections.singletonList(
+        new ClassHistogram.Entry("byte[]", 3, 4096, 0)), 1);
+    AnalysisResult result = AnalysisResult.noLeak(5).withHeapHistogram(histogram);
+
+    AnalysisResult decoded = ResultCodec.decode(ResultCodec.encode(heapDump, result)).result;
+
+    assertFalse(decoded.leakFound);
+    assertEquals(histogram.toString(), decoded.heapHistogram.toString());
+  }
+
+  @Test public void failureRoundTrip() throws IOException {
+    IllegalStateException failure =
+        new IllegalStateException("outer", new OutOfMemoryError("inner"));
+    AnalysisResult result = AnalysisResult.failure(failure, 5);
+
+    AnalysisResult decoded = ResultCodec.decode(ResultCodec.encode(heapDump, result)).result;
+
+    assertFalse(decoded.leakFound);
+    assertEquals(5, decoded.analysisDurationMs);
+    assertEquals(failure.toString(), decoded.failure.toString());
+    StackTraceElement[] stackTrace = decoded.failure.getStackTrace();
+    assertEquals(failure.getStackTrace().length, stackTrace.length);
+    assertEquals(ResultCodecTest.class.getName(), stackTrace[0].getClassName());
+    assertEquals("failureRoundTrip", stackTrace[0].getMethodName());
+    assertEquals(failure.getStackTrace()[0].getLineNumber(), stackTrace[0].getLineNumber());
+    assertEquals(failure.getCause().toString(), decoded.failure.getCause().toString());
+  }
+
+  @Test public void smallerThanJavaSerialization() throws IOException {
+    AnalysisResult result = AnalysisResult.noLeak(5);
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(serialized);
+    oos.writeObject(heapDump);
+    oos.writeObject(result);
+    oos.close();
+
+    byte[] encoded = ResultCodec.encode(heapDump, result);
+
+    assertTrue(encoded.length * 4 < serialized.size());
+  }
+
+  @Test public void skipsUnknownSections() throws IOException {
+    byte[] encoded = ResultCodec.encode(heapDump, AnalysisResult.noLeak(5));
+    // Inserts a section with tag 100 right before the end marker.
+    byte[] withUnknown = Arrays.copyOf(encoded, encoded.length + 4);
+    withUnknown[encoded.length - 1] = 100;
+    withUnknown[encoded.length] = 2;
+    withUnknown[encoded.length + 1] = 7;
+    withUnknown[encoded.length + 2] = 7;
+    withUnknown[encoded.length + 3] = 0;
+
+    ResultCodec.Entry entry = ResultCodec.decode(withUnknown);
+
+    assertEquals("key", entry.heapDump.referenceKey);
+    assertEquals(5, entry.result.analysisDurationMs);
+  }
+
+  @Test public void rejectsHugeSectionLength() {
+    byte[] encoded = ResultCodec.encode(heapDump, AnalysisResult.noLeak(5));
+    // Keeps magic and version, then a heap dump section that claims Integer.MAX_VALUE bytes.
+    byte[] corrupted = Arrays.copyOf(encoded, 12);
+    corrupted[4] = 1;
+    corrupted[5] = (byte) 0xFF;
+    corrupted[6] = (byte) 0xFF;
+    corrupted[7] = (byte) 0xFF;
+    corrupted[8] = (byte) 0xFF;
+    corrupted[9] = 0x07;
+    try {
+      ResultCodec.decode(corrupted);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsHugeCount() throws IOException {
+    byte[] encoded = ResultCodec.encode(heapDump, null);
+    // Replaces the end marker with a leak trace section that claims Integer.MAX_VALUE elements.
+    BinaryFormat.Writer section = new BinaryFormat.Writer();
+    section.writeInt(Integer.MAX_VALUE);
+    BinaryFormat.Writer corrupted = new BinaryFormat.Writer();
+    for (int i = 0; i < encoded.length - 1; i++) {
+      corrupted.writeByte(encoded[i]);
+    }
+    corrupted.writeSection(3, section);
+    corrupted.writeUnsigned(0);
+    try {
+      ResultCodec.decode(corrupted.toByteArray());
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsJavaSerialization() throws IOException {
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(serialized);
+    oos.writeObject(heapDump);
+    oos.close();
+    try {
+      ResultCodec.decode(serialized.toByteArray());
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsTruncated() {
+    byte[] encoded = ResultCodec.encode(heapDump, AnalysisResult.noLeak(5));
+    try {
+      ResultCodec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HprofWriter.BOOLEAN;
+import static com.squareup.leakcanary.HprofWriter.BYTE;
+import static com.squareup.leakcanary.HprofWriter.INT;
+import static com.squareup.leakcanary.HprofWriter.OBJECT;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class RetainedHistogramTest {
+
+  private static final int HOLDER = 100;
+  private static final int LEAKY = 101;
+  private static final int NODE = 102;
+  private static final int PAYLOAD = 103;
+
+  private static final int LEAKING_INSTANCE = 1000;
+  private static final int FIRST_NODE = 1001;
+  private static final int SECOND_NODE = 1002;
+  private static final int THIRD_NODE = 1003;
+  private static final int FIRST_PAYLOAD = 1004;
+  private static final int SECOND_PAYLOAD = 1005;
+  private static final int SHARED_PAYLOAD = 1006;
+  private static final int BYTES = 1007;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Instance leakingInstance;
+
+  @Before public void setUp() throws IOException {
+    File heapDumpFile = folder.newFile("retained.hprof");
+    writeHeapDump(heapDumpFile);
+    Snapshot snapshot = new HprofParser(HprofCompression.openHeapDump(heapDumpFile)).parse();
+    snapshot.computeDominators();
+    leakingInstance = snapshot.findInstance(LEAKING_INSTANCE);
+  }
+
+  @Test public void countsRetainedInstancesPerClass() {
+    ClassHistogram histogram = RetainedHistogram.compute(leakingInstance, 10);
+
+    assertEquals(4, histogram.classCount);
+    assertEquals(4, histogram.entries.size());
+    assertEntry(histogram.entries.get(0), "byte[]", 1, 100, 100);
+    // The nodes of the list are retained once, through the first node.
+    assertEntry(histogram.entries.get(1), "com.example.Node", 3, 24, 32);
+    assertEntry(histogram.entries.get(2), "com.example.Leaky", 1, 9, 141);
+    // The payload that is also held by a static field isn't retained by the leaking instance.
+    assertEntry(histogram.entries.get(3), "com.example.Payload", 2, 8, 8);
+  }
+
+  @Test public void keepsLargestClasses() {
+    ClassHistogram histogram = RetainedHistogram.compute(leakingInstance, 2);
+
+    assertEquals(4, histogram.classCount);
+    assertEquals(2, histogram.entries.size());
+    assertEquals("byte[]", histogram.entries.get(0).className);
+    assertEquals("com.example.Node", histogram.entries.get(1).className);
+  }
+
+  private static void assertEntry(ClassHistogram.Entry entry, String className, int instanceCount,
+      long shallowSize, long retainedSize) {
+    assertEquals(className, entry.className);
+    assertEquals(instanceCount, entry.instanceCount);
+    assertEquals(shallowSize, entry.shallowSize);
+    assertEquals(retainedSize, entry.retainedSize);
+  }
+
+  /**
+   * A static field holds the leaking instance, which holds a byte array and a list of three nodes.
+   * Each node has a payload, and the last one is also held by another static field.
+   */
+  private static void writeHeapDump(File heapDumpFile) throws IOException {
+    HprofWriter writer = new HprofWriter(heapDumpFile);
+    writer.writeString(1, "com.example.Holder");
+    writer.writeString(2, "com.example.Leaky");
+    writer.writeString(3, "com.example.Node");
+    writer.writeString(4, "com.example.Payload");
+    writer.writeString(5, "sLeak");
+    writer.writeString(6, "sShared");
+    writer.writeString(7, "head");
+    writer.writeString(8, "bytes");
+    writer.writeString(9, "destroyed");
+    writer.writeString(10, "next");
+    writer.writeString(11, "payload");
+    writer.writeString(12, "value");
+    writer.writeLoadClass(HOLDER, 1);
+    writer.writeLoadClass(LEAKY, 2);
+    writer.writeLoadClass(NODE, 3);
+    writer.writeLoadClass(PAYLOAD, 4);
+
+    int[] none = new int[0];
+    writer.writeClassDump(HOLDER, 0, new int[] { 5, 6 },
+        new int[] { LEAKING_INSTANCE, SHARED_PAYLOAD }, none, none);
+    writer.writeClassDump(LEAKY, 0, none, none, new int[] { 7, 8, 9 },
+        new int[] { OBJECT, OBJECT, BOOLEAN });
+    writer.writeClassDump(NODE, 0, none, none, new int[] { 10, 11 },
+        new int[] { OBJECT, OBJECT });
+    writer.writeClassDump(PAYLOAD, 0, none, none, new int[] { 12 }, new int[] { INT });
+    writer.writeStickyClassRoot(HOLDER);
+
+    writer.writeInstance(LEAKING_INSTANCE, LEAKY,
+        ByteBuffer.allocate(9).putInt(FIRST_NODE).putInt(BYTES).put((byte) 1).array());
+    writer.writeInstance(FIRST_NODE, NODE, references(SECOND_NODE, FIRST_PAYLOAD));
+    writer.writeInstance(SECOND_NODE, NODE, references(THIRD_NODE, SECOND_PAYLOAD));
+    writer.writeInstance(THIRD_NODE, NODE, references(0, SHARED_PAYLOAD));
+    writer.writeInstance(FIRST_PAYLOAD, PAYLOAD, references(1));
+    writer.writeInstance(SECOND_PAYLOAD, PAYLOAD, references(2));
+    writer.writeInstance(SHARED_PAYLOAD, PAYLOAD, references(3));
+    writer.writePrimitiveArray(BYTES, BYTE, 100, new byte[100]);
+    writer.close();
+  }
+
+  private static byte[] references(int... ids) {
+    ByteBuffer buffer = ByteBuffer.allocate(ids.length * 4);
+    for (int id : ids) {
+      buffer.putInt(id);
+    }
+    return buffer.array();
+  }
+}
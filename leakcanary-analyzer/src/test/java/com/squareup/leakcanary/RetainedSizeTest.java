@@ -13,6 +13,7 @@ import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
 import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
 import static com.squareup.leakcanary.TestUtil.analyze;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * This test makes sure there is no regression on the retained size calculation.
@@ -48,4 +49,11 @@ public class RetainedSizeTest {
     AnalysisResult result = analyze(heapDumpFile, excludedRefs);
     assertEquals(expectedRetainedHeapSize, result.retainedHeapSize);
   }
+
+  @Test public void retainedSizeNotComputedWhenDisabled() {
+    AnalysisConfig config = AnalysisConfig.builder().computeRetainedHeapSize(false).build();
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, config);
+    assertTrue(result.leakFound);
+    assertEquals(0, result.retainedHeapSize);
+  }
 }
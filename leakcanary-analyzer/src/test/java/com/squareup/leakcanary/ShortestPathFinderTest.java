@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HprofWriter.OBJECT;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ShortestPathFinderTest {
+
+  private static final int LEAKY = 100;
+  private static final int WRAPPER = 101;
+  private static final int HOLDER = 102;
+  private static final int OTHER_HOLDER = 103;
+
+  private static final int LEAKING_INSTANCE = 1000;
+  private static final int WRAPPER_INSTANCE = 1001;
+  private static final int GARBAGE_INSTANCE = 1002;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Snapshot snapshot;
+  private Instance leakingInstance;
+
+  @Before public void setUp() throws IOException {
+    File heapDumpFile = folder.newFile("paths.hprof");
+    writeHeapDump(heapDumpFile);
+    snapshot = new HprofParser(new MemoryMappedFileBuffer(heapDumpFile)).parse();
+    leakingInstance = snapshot.findInstance(LEAKING_INSTANCE);
+  }
+
+  @Test public void findsShortestPathOnly() {
+    ShortestPathFinder.Result result = findPath(1);
+
+    assertHolderField(result.leakingNode);
+    assertEquals(0, result.otherLeakingNodes.size());
+  }
+
+  @Test public void findsPathsFromOtherHolders() {
+    ShortestPathFinder.Result result = findPath(5);
+
+    assertHolderField(result.leakingNode);
+    // sAgain and sLeak have the same holder, and self goes through the leaking instance.
+    assertEquals(1, result.otherLeakingNodes.size());
+    LeakNode otherNode = result.otherLeakingNodes.get(0);
+    assertEquals("leak", otherNode.referenceName);
+    assertEquals("sWrapper", otherNode.parent.referenceName);
+  }
+
+  @Test public void noPath() {
+    assertNull(findPath(snapshot.findInstance(GARBAGE_INSTANCE), 5).leakingNode);
+  }
+
+  /** Static fields are visited in no particular order, so either field of Holder may be first. */
+  private static void assertHolderField(LeakNode leakingNode) {
+    assertTrue(leakingNode.referenceName,
+        asList("sLeak", "sAgain").contains(leakingNode.referenceName));
+  }
+
+  private ShortestPathFinder.Result findPath(int maxPaths) {
+    return findPath(leakingInstance, maxPaths);
+  }
+
+  private ShortestPathFinder.Result findPath(Instance instance, int maxPaths) {
+    ShortestPathFinder pathFinder = new ShortestPathFinder(ExcludedRefs.builder().build(),
+        new ProgressReporter(AnalyzerProgressListener.NONE));
+    return pathFinder.findPath(snapshot, instance, maxPaths);
+  }
+
+  private static void writeHeapDump(File heapDumpFile) throws IOException {
+    HprofWriter writer = new HprofWriter(heapDumpFile);
+    writer.writeString(1, "com.example.Leaky");
+    writer.writeString(2, "com.example.Wrapper");
+    writer.writeString(3, "com.example.Holder");
+    writer.writeString(4, "com.example.OtherHolder");
+    writer.writeString(5, "self");
+    writer.writeString(6, "leak");
+    writer.writeString(7, "sLeak");
+    writer.writeString(8, "sAgain");
+    writer.writeString(9, "sWrapper");
+    writer.writeLoadClass(LEAKY, 1);
+    writer.writeLoadClass(WRAPPER, 2);
+    writer.writeLoadClass(HOLDER, 3);
+    writer.writeLoadClass(OTHER_HOLDER, 4);
+
+    int[] none = new int[0];
+    writer.writeClassDump(LEAKY, 0, none, none, new int[] { 5 }, new int[] { OBJECT });
+    writer.writeClassDump(WRAPPER, 0, none, none, new int[] { 6 }, new int[] { OBJECT });
+    writer.writeClassDump(HOLDER, 0, new int[] { 7, 8 },
+        new int[] { LEAKING_INSTANCE, LEAKING_INSTANCE }, none, none);
+    writer.writeClassDump(OTHER_HOLDER, 0, new int[] { 9 }, new int[] { WRAPPER_INSTANCE }, none,
+        none);
+    writer.writeStickyClassRoot(HOLDER);
+    writer.writeStickyClassRoot(OTHER_HOLDER);
+
+    writer.writeInstance(LEAKING_INSTANCE, LEAKY, reference(LEAKING_INSTANCE));
+    writer.writeInstance(WRAPPER_INSTANCE, WRAPPER, reference(LEAKING_INSTANCE));
+    writer.writeInstance(GARBAGE_INSTANCE, LEAKY, reference(LEAKING_INSTANCE));
+    writer.close();
+  }
+
+  private static byte[] reference(int id) {
+    return ByteBuffer.allocate(4).putInt(id).array();
+  }
+}
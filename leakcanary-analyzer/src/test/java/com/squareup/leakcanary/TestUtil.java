@@ -51,9 +51,15 @@ final class TestUtil {
   }
 
   static AnalysisResult analyze(HeapDumpFile heapDumpFile, ExcludedRefs.BuilderWithParams excludedRefs) {
+    return analyze(heapDumpFile, excludedRefs, AnalysisConfig.DEFAULT);
+  }
+
+  static AnalysisResult analyze(HeapDumpFile heapDumpFile,
+      ExcludedRefs.BuilderWithParams excludedRefs, AnalysisConfig config) {
     File file = fileFromName(heapDumpFile.filename);
     String referenceKey = heapDumpFile.referenceKey;
-    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(excludedRefs.build());
+    HeapAnalyzer heapAnalyzer =
+        new HeapAnalyzer(excludedRefs.build(), AnalyzerProgressListener.NONE, config);
     AnalysisResult result = heapAnalyzer.checkForLeak(file, referenceKey);
     if (result.failure != null) {
       result.failure.printStackTrace();
@@ -1,12 +1,17 @@
 package com.squareup.leakcanary;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
 import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
 import static com.squareup.leakcanary.TestUtil.findTrackedReferences;
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -25,4 +30,18 @@ public class TrackedReferencesTest {
     List<TrackedReference> trackedReferences = findTrackedReferences(ASYNC_TASK_PRE_M);
     assertThat(trackedReferences).hasSize(2);
   }
+
+  @Test public void checkForLeaksAnalyzesEveryTrackedRef() {
+    List<String> referenceKeys = new ArrayList<>();
+    for (TrackedReference trackedReference : findTrackedReferences(ASYNC_TASK_PRE_M)) {
+      referenceKeys.add(trackedReference.key);
+    }
+    referenceKeys.add("missing");
+    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(NO_EXCLUDED_REFS);
+    Map<String, AnalysisResult> results =
+        heapAnalyzer.checkForLeaks(fileFromName(ASYNC_TASK_PRE_M.filename), referenceKeys,
+            Collections.<String>emptySet());
+    assertThat(results).hasSize(2).doesNotContainKey("missing");
+    assertThat(results.get(ASYNC_TASK_PRE_M.referenceKey).failure).isNull();
+  }
 }
@@ -1,5 +1,7 @@
 package com.squareup.leakcanary;
 
+import java.util.Collection;
+
 /**
  * No-op implementation of {@link RefWatcher} for release builds. Please use {@link
  * RefWatcher#DISABLED}.
@@ -16,4 +18,7 @@ public final class RefWatcher {
 
   public void watch(Object watchedReference, String referenceName) {
   }
+
+  public void watchAll(Collection<?> watchedReferences, String groupName) {
+  }
 }
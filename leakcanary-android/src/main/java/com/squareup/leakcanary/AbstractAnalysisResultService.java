@@ -18,10 +18,10 @@ package com.squareup.leakcanary;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
+import java.io.IOException;
 
 public abstract class AbstractAnalysisResultService extends IntentService {
 
-  private static final String HEAP_DUMP_EXTRA = "heap_dump_extra";
   private static final String RESULT_EXTRA = "result_extra";
 
   public static void sendResultToListener(Context context, String listenerServiceClassName,
@@ -33,8 +33,7 @@ public abstract class AbstractAnalysisResultService extends IntentService {
       throw new RuntimeException(e);
     }
     Intent intent = new Intent(context, listenerServiceClass);
-    intent.putExtra(HEAP_DUMP_EXTRA, heapDump);
-    intent.putExtra(RESULT_EXTRA, result);
+    intent.putExtra(RESULT_EXTRA, ResultCodec.encode(heapDump, result));
     context.startService(intent);
   }
 
@@ -43,8 +42,14 @@ public abstract class AbstractAnalysisResultService extends IntentService {
   }
 
   @Override protected final void onHandleIntent(Intent intent) {
-    HeapDump heapDump = (HeapDump) intent.getSerializableExtra(HEAP_DUMP_EXTRA);
-    AnalysisResult result = (AnalysisResult) intent.getSerializableExtra(RESULT_EXTRA);
+    ResultCodec.Entry entry;
+    try {
+      entry = ResultCodec.decode(intent.getByteArrayExtra(RESULT_EXTRA));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    HeapDump heapDump = entry.heapDump;
+    AnalysisResult result = entry.result;
     try {
       onHeapAnalyzed(heapDump, result);
     } finally {
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import static android.content.Context.ACTIVITY_SERVICE;
+
+/**
+ * Memory available on the device before the system considers it to be in a low memory state and
+ * starts killing processes.
+ */
+public final class AndroidFreeMemory implements RateLimitedHeapDumpGovernor.FreeMemory {
+
+  private final ActivityManager activityManager;
+
+  public AndroidFreeMemory(Context context) {
+    activityManager = (ActivityManager) context.getSystemService(ACTIVITY_SERVICE);
+  }
+
+  @Override public long freeMemoryBytes() {
+    ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+    activityManager.getMemoryInfo(memoryInfo);
+    return memoryInfo.availMem - memoryInfo.threshold;
+  }
+}
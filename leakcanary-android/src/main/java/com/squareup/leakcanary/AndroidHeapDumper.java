@@ -25,7 +25,10 @@ import android.view.LayoutInflater;
 import android.widget.Toast;
 import com.squareup.leakcanary.internal.FutureResult;
 import java.io.File;
+import java.io.IOException;
 
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.heapDumpLock;
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.lockHolder;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public final class AndroidHeapDumper implements HeapDumper {
@@ -33,16 +36,40 @@ public final class AndroidHeapDumper implements HeapDumper {
   final Context context;
   private final LeakDirectoryProvider leakDirectoryProvider;
   private final Handler mainHandler;
+  private final HeapDumpLock heapDumpLock;
 
   public AndroidHeapDumper(Context context, LeakDirectoryProvider leakDirectoryProvider) {
     this.leakDirectoryProvider = leakDirectoryProvider;
     this.context = context.getApplicationContext();
     mainHandler = new Handler(Looper.getMainLooper());
+    heapDumpLock = heapDumpLock(this.context);
   }
 
+  /**
+   * Holds the {@link HeapDumpLock} from the creation of the heap dump file until the heap is
+   * dumped, so that other processes of the app don't dump the heap or analyze a heap dump at the
+   * same time.
+   */
+  @Override public File dumpHeap() {
+    try {
+      if (!heapDumpLock.tryLock(lockHolder("dumping the heap"))) {
+        CanaryLog.d("Could not dump heap, heap dump lock held by %s",
+            heapDumpLock.currentHolder());
+        return RETRY_LATER;
+      }
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not acquire heap dump lock");
+      return RETRY_LATER;
+    }
+    try {
+      return dumpHeapLocked();
+    } finally {
+      heapDumpLock.unlock();
+    }
+  }
 
   @SuppressWarnings("ReferenceEquality") // Explicitly checking for named null.
-  @Override public File dumpHeap() {
+  private File dumpHeapLocked() {
     File heapDumpFile = leakDirectoryProvider.newHeapDumpFile();
 
     if (heapDumpFile == RETRY_LATER) {
@@ -2,8 +2,10 @@ package com.squareup.leakcanary;
 
 import android.app.Application;
 import android.content.Context;
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
 import static com.squareup.leakcanary.RefWatcher.DISABLED;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -11,8 +13,15 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRefWatcherBuilder> {
 
   private static final long DEFAULT_WATCH_DELAY_MILLIS = SECONDS.toMillis(5);
+  private static final long DEFAULT_MIN_FREE_DISK_BYTES = 100 * 1024 * 1024;
 
   private final Context context;
+  /** Null until set or needed by the defaults. */
+  private LeakDirectoryProvider leakDirectoryProvider;
+  private Class<? extends AbstractAnalysisResultService> listenerServiceClass =
+      DisplayLeakService.class;
+  private boolean analyzeWhenIdleAndCharging;
+  private AnalysisConfig analysisConfig = AnalysisConfig.DEFAULT;
 
   AndroidRefWatcherBuilder(Context context) {
     this.context = context.getApplicationContext();
@@ -24,7 +33,31 @@ public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRef
    */
   public AndroidRefWatcherBuilder listenerServiceClass(
       Class<? extends AbstractAnalysisResultService> listenerServiceClass) {
-    return heapDumpListener(new ServiceHeapDumpListener(context, listenerServiceClass));
+    return listenerServiceClass(listenerServiceClass, false);
+  }
+
+  /**
+   * Same as {@link #listenerServiceClass(Class)}, but heap dumps wait until the device is
+   * charging and not interactive to be analyzed if {@code analyzeWhenIdleAndCharging} is true.
+   */
+  public AndroidRefWatcherBuilder listenerServiceClass(
+      Class<? extends AbstractAnalysisResultService> listenerServiceClass,
+      boolean analyzeWhenIdleAndCharging) {
+    this.listenerServiceClass = checkNotNull(listenerServiceClass, "listenerServiceClass");
+    this.analyzeWhenIdleAndCharging = analyzeWhenIdleAndCharging;
+    // The listener service is built with the analysis config, see defaultHeapDumpListener().
+    return heapDumpListener(null);
+  }
+
+  /**
+   * Configures the analysis of heap dumps sent to the listener service, e.g. to also report the
+   * destroyed activities and fragments that were never watched with {@link
+   * AnalysisConfig.Builder#findDestroyedComponents(boolean)}. Has no effect on a custom {@link
+   * #heapDumpListener(HeapDump.Listener)}.
+   */
+  public AndroidRefWatcherBuilder analysisConfig(AnalysisConfig analysisConfig) {
+    this.analysisConfig = checkNotNull(analysisConfig, "analysisConfig");
+    return self();
   }
 
   /**
@@ -44,8 +77,24 @@ public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRef
    * @throws IllegalArgumentException if maxStoredHeapDumps < 1.
    */
   public AndroidRefWatcherBuilder maxStoredHeapDumps(int maxStoredHeapDumps) {
-    LeakDirectoryProvider leakDirectoryProvider =
-        new DefaultLeakDirectoryProvider(context, maxStoredHeapDumps);
+    return leakDirectoryProvider(new DefaultLeakDirectoryProvider(context, maxStoredHeapDumps));
+  }
+
+  /**
+   * Sets limits on the heap dumps stored, see {@link DefaultLeakDirectoryProvider}. This
+   * overrides any call to {@link #heapDumper(HeapDumper)} as well as any call to
+   * {@link LeakCanary#setDisplayLeakActivityDirectoryProvider(LeakDirectoryProvider)})}
+   */
+  public AndroidRefWatcherBuilder heapDumpStorage(int maxStoredHeapDumps, long maxStoredBytes,
+      long minFreeBytes) {
+    return leakDirectoryProvider(
+        new DefaultLeakDirectoryProvider(context, maxStoredHeapDumps, maxStoredBytes,
+            minFreeBytes));
+  }
+
+  private AndroidRefWatcherBuilder leakDirectoryProvider(
+      LeakDirectoryProvider leakDirectoryProvider) {
+    this.leakDirectoryProvider = leakDirectoryProvider;
     LeakCanary.setDisplayLeakActivityDirectoryProvider(leakDirectoryProvider);
     return heapDumper(new AndroidHeapDumper(context, leakDirectoryProvider));
   }
@@ -67,8 +116,14 @@ public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRef
   }
 
   @Override protected HeapDumper defaultHeapDumper() {
-    LeakDirectoryProvider leakDirectoryProvider = new DefaultLeakDirectoryProvider(context);
-    return new AndroidHeapDumper(context, leakDirectoryProvider);
+    return new AndroidHeapDumper(context, leakDirectoryProvider());
+  }
+
+  private LeakDirectoryProvider leakDirectoryProvider() {
+    if (leakDirectoryProvider == null) {
+      leakDirectoryProvider = new DefaultLeakDirectoryProvider(context);
+    }
+    return leakDirectoryProvider;
   }
 
   @Override protected DebuggerControl defaultDebuggerControl() {
@@ -76,7 +131,8 @@ public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRef
   }
 
   @Override protected HeapDump.Listener defaultHeapDumpListener() {
-    return new ServiceHeapDumpListener(context, DisplayLeakService.class);
+    return new ServiceHeapDumpListener(context, listenerServiceClass, analyzeWhenIdleAndCharging,
+        analysisConfig);
   }
 
   @Override protected ExcludedRefs defaultExcludedRefs() {
@@ -86,4 +142,21 @@ public final class AndroidRefWatcherBuilder extends RefWatcherBuilder<AndroidRef
   @Override protected WatchExecutor defaultWatchExecutor() {
     return new AndroidWatchExecutor(DEFAULT_WATCH_DELAY_MILLIS);
   }
+
+  @Override protected HeapDumpGovernor defaultHeapDumpGovernor() {
+    final LeakDirectoryProvider leakDirectoryProvider = leakDirectoryProvider();
+    return RateLimitedHeapDumpGovernor.builder()
+        .minFreeDisk(new RateLimitedHeapDumpGovernor.HeapDumpDirectory() {
+          @Override public File heapDumpDirectory() {
+            if (leakDirectoryProvider instanceof DefaultLeakDirectoryProvider) {
+              return ((DefaultLeakDirectoryProvider) leakDirectoryProvider)
+                  .heapDumpStorageDirectory();
+            }
+            // Custom providers usually store heap dumps with app data.
+            return context.getFilesDir();
+          }
+        }, DEFAULT_MIN_FREE_DISK_BYTES)
+        .minFreeMemory(new AndroidFreeMemory(context), 0)
+        .build();
+  }
 }
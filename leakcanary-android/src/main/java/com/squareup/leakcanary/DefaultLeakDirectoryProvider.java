@@ -19,6 +19,7 @@ import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.os.Environment;
+import com.squareup.leakcanary.internal.LeakIndex;
 import com.squareup.leakcanary.internal.RequestStoragePermissionActivity;
 import java.io.File;
 import java.io.FilenameFilter;
@@ -26,7 +27,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import static android.Manifest.permission.WRITE_EXTERNAL_STORAGE;
@@ -35,11 +39,14 @@ import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.M;
 import static android.os.Environment.DIRECTORY_DOWNLOADS;
 import static com.squareup.leakcanary.HeapDumper.RETRY_LATER;
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.queuedHeapDumpFiles;
 import static com.squareup.leakcanary.internal.LeakCanaryInternals.showNotification;
 
 public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider {
 
   private static final int DEFAULT_MAX_STORED_HEAP_DUMPS = 7;
+  private static final long DEFAULT_MAX_STORED_BYTES = 500 * 1024 * 1024L;
+  private static final long DEFAULT_MIN_FREE_BYTES = 100 * 1024 * 1024L;
 
   private static final String HPROF_SUFFIX = ".hprof";
   private static final String PENDING_HEAPDUMP_SUFFIX = "_pending" + HPROF_SUFFIX;
@@ -49,6 +56,8 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
 
   private final Context context;
   private final int maxStoredHeapDumps;
+  private final long maxStoredBytes;
+  private final long minFreeBytes;
 
   private volatile boolean writeExternalStorageGranted;
   private volatile boolean permissionNotificationDisplayed;
@@ -58,11 +67,30 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
   }
 
   public DefaultLeakDirectoryProvider(Context context, int maxStoredHeapDumps) {
+    this(context, maxStoredHeapDumps, DEFAULT_MAX_STORED_BYTES, DEFAULT_MIN_FREE_BYTES);
+  }
+
+  /**
+   * @param maxStoredBytes total size of the stored heap dumps, which are compressed once
+   * analyzed by {@link DisplayLeakService}.
+   * @param minFreeBytes space that must remain free on the storage before dumping the heap. Older
+   * heap dumps are removed to make room, and the heap dump is postponed if that isn't enough.
+   */
+  public DefaultLeakDirectoryProvider(Context context, int maxStoredHeapDumps, long maxStoredBytes,
+      long minFreeBytes) {
     if (maxStoredHeapDumps < 1) {
       throw new IllegalArgumentException("maxStoredHeapDumps must be at least 1");
     }
+    if (maxStoredBytes < 1) {
+      throw new IllegalArgumentException("maxStoredBytes must be at least 1");
+    }
+    if (minFreeBytes < 0) {
+      throw new IllegalArgumentException("minFreeBytes must be positive");
+    }
     this.context = context.getApplicationContext();
     this.maxStoredHeapDumps = maxStoredHeapDumps;
+    this.maxStoredBytes = maxStoredBytes;
+    this.minFreeBytes = minFreeBytes;
   }
 
   @Override public List<File> listFiles(FilenameFilter filter) {
@@ -124,11 +152,41 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
         return RETRY_LATER;
       }
     }
-    // If two processes from the same app get to this step at the same time, they could both
-    // create a heap dump. This is an edge case we ignore.
+    long usableSpace = storageDirectory.getUsableSpace();
+    if (usableSpace < minFreeBytes) {
+      CanaryLog.d("Only %d bytes free in %s, needs %d", usableSpace,
+          storageDirectory.getAbsolutePath(), minFreeBytes);
+      return RETRY_LATER;
+    }
+    // AndroidHeapDumper calls this while holding the HeapDumpLock, so two processes from the same
+    // app can't both get to this step at the same time.
     return new File(storageDirectory, UUID.randomUUID().toString() + PENDING_HEAPDUMP_SUFFIX);
   }
 
+  /**
+   * The directory {@link #newHeapDumpFile()} would create a heap dump in right now, or null if
+   * neither storage is writable.
+   */
+  File heapDumpStorageDirectory() {
+    File storageDirectory = externalStorageDirectory();
+    if (directoryWritableAfterMkdirs(storageDirectory)) {
+      return storageDirectory;
+    }
+    storageDirectory = appStorageDirectory();
+    if (directoryWritableAfterMkdirs(storageDirectory)) {
+      return storageDirectory;
+    }
+    return null;
+  }
+
+  /**
+   * The directories {@link #listFiles(FilenameFilter)} looks in, whether they exist yet or not:
+   * heap dumps move from app storage to external storage once the storage permission is granted.
+   */
+  public List<File> leakDirectories() {
+    return Arrays.asList(externalStorageDirectory(), appStorageDirectory());
+  }
+
   @Override public void clearLeakDirectory() {
     List<File> allFilesExceptPending = listFiles(new FilenameFilter() {
       @Override public boolean accept(File dir, String filename) {
@@ -185,27 +243,90 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
     return (success || directory.exists()) && directory.canWrite();
   }
 
+  /**
+   * Removes heap dumps until there are at most {@link #maxStoredHeapDumps} using at most {@link
+   * #maxStoredBytes}, with at least {@link #minFreeBytes} free, in {@link #evictionOrder(List,
+   * List, Set)}.
+   */
   private void cleanupOldHeapDumps() {
     List<File> hprofFiles = listFiles(new FilenameFilter() {
       @Override public boolean accept(File dir, String filename) {
         return filename.endsWith(HPROF_SUFFIX);
       }
     });
-    int filesToRemove = hprofFiles.size() - maxStoredHeapDumps;
-    if (filesToRemove > 0) {
-      CanaryLog.d("Removing %d heap dumps", filesToRemove);
-      // Sort with oldest modified first.
-      Collections.sort(hprofFiles, new Comparator<File>() {
-        @Override public int compare(File lhs, File rhs) {
-          return Long.valueOf(lhs.lastModified()).compareTo(rhs.lastModified());
-        }
-      });
-      for (int i = 0; i < filesToRemove; i++) {
-        boolean deleted = hprofFiles.get(i).delete();
-        if (!deleted) {
-          CanaryLog.d("Could not delete old hprof file %s", hprofFiles.get(i).getPath());
-        }
+    if (hprofFiles.isEmpty()) {
+      return;
+    }
+    long storedBytes = 0;
+    for (File file : hprofFiles) {
+      storedBytes += file.length();
+    }
+    int storedHeapDumps = hprofFiles.size();
+    List<File> removableFiles =
+        evictionOrder(hprofFiles, LeakIndex.load(this), queuedHeapDumpFiles(context));
+    int removed = 0;
+    for (File file : removableFiles) {
+      if (storedHeapDumps <= maxStoredHeapDumps
+          && storedBytes <= maxStoredBytes
+          && file.getParentFile().getUsableSpace() >= minFreeBytes) {
+        continue;
+      }
+      long length = file.length();
+      boolean deleted = file.delete();
+      if (!deleted) {
+        CanaryLog.d("Could not delete old hprof file %s", file.getPath());
+        continue;
       }
+      removed++;
+      storedHeapDumps--;
+      storedBytes -= length;
+    }
+    if (removed > 0) {
+      CanaryLog.d("Removed %d heap dumps", removed);
+    }
+  }
+
+  /**
+   * Returns the heap dumps that can be removed, in the order they should be removed. Heap dumps
+   * without a result, i.e. pending heap dumps left by a crashed analysis, go first, then failed
+   * analysis and excluded leaks, then leaks. Older heap dumps go first within each group. Heap
+   * dumps still queued for analysis are never removed: {@link #newHeapDumpFile()} only checks
+   * that pending heap dumps are recent, and a queued analysis may wait for days until the device
+   * is idle and charging.
+   */
+  static List<File> evictionOrder(List<File> hprofFiles, List<LeakIndex.Entry> entries,
+      Set<File> queuedHeapDumpFiles) {
+    final Map<File, Integer> evictionRanks = new HashMap<>();
+    for (LeakIndex.Entry entry : entries) {
+      String resultFileName = entry.resultFile.getName();
+      File hprofFile = new File(entry.resultFile.getParentFile(),
+          resultFileName.substring(0, resultFileName.length() - LeakIndex.RESULT_SUFFIX.length()));
+      boolean leakFound = entry.failure == null && !entry.excludedLeak;
+      evictionRanks.put(hprofFile, leakFound ? 2 : 1);
     }
+    final Map<File, Long> lastModified = new HashMap<>();
+    List<File> removableFiles = new ArrayList<>();
+    for (File file : hprofFiles) {
+      if (!queuedHeapDumpFiles.contains(file)) {
+        lastModified.put(file, file.lastModified());
+        removableFiles.add(file);
+      }
+    }
+    Collections.sort(removableFiles, new Comparator<File>() {
+      @Override public int compare(File lhs, File rhs) {
+        int lhsRank = evictionRank(evictionRanks, lhs);
+        int rhsRank = evictionRank(evictionRanks, rhs);
+        if (lhsRank != rhsRank) {
+          return lhsRank < rhsRank ? -1 : 1;
+        }
+        return lastModified.get(lhs).compareTo(lastModified.get(rhs));
+      }
+    });
+    return removableFiles;
+  }
+
+  private static int evictionRank(Map<File, Integer> evictionRanks, File hprofFile) {
+    Integer rank = evictionRanks.get(hprofFile);
+    return rank != null ? rank : 0;
   }
 }
@@ -18,10 +18,10 @@ package com.squareup.leakcanary;
 import android.app.PendingIntent;
 import android.os.SystemClock;
 import com.squareup.leakcanary.internal.DisplayLeakActivity;
+import com.squareup.leakcanary.internal.LeakIndex;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -29,6 +29,7 @@ import java.util.Locale;
 import static android.text.format.Formatter.formatShortFileSize;
 import static com.squareup.leakcanary.LeakCanary.leakInfo;
 import static com.squareup.leakcanary.internal.LeakCanaryInternals.classSimpleName;
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.leakDirectories;
 import static com.squareup.leakcanary.internal.LeakCanaryInternals.showNotification;
 
 /**
@@ -40,14 +41,21 @@ import static com.squareup.leakcanary.internal.LeakCanaryInternals.showNotificat
  */
 public class DisplayLeakService extends AbstractAnalysisResultService {
 
+  private static final String COMPRESSING_SUFFIX = ".compressing";
+
   @Override protected final void onHeapAnalyzed(HeapDump heapDump, AnalysisResult result) {
     String leakInfo = leakInfo(this, heapDump, result, true);
     CanaryLog.d("%s", leakInfo);
 
     boolean resultSaved = false;
-    boolean shouldSaveResult = result.leakFound || result.failure != null;
+    boolean shouldSaveResult =
+        (result.leakFound && !result.duplicateLeak) || result.failure != null;
     if (shouldSaveResult) {
-      heapDump = renameHeapdump(heapDump);
+      // Results without a heap dump, e.g. destroyed components found in another heap dump, keep
+      // their unique name.
+      if (heapDump.heapDumpFile.exists()) {
+        heapDump = renameHeapdump(heapDump);
+      }
       resultSaved = saveResult(heapDump, result);
     }
 
@@ -55,7 +63,21 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
     String contentTitle;
     String contentText;
 
-    if (!shouldSaveResult) {
+    if (result.duplicateLeak) {
+      // Same leak as a saved result, the heap dump isn't kept. The occurrence goes next to the
+      // saved result, which may be in another leak directory.
+      String signature = result.leakTrace.signature();
+      File directory =
+          LeakIndex.directoryOf(leakDirectories(this, heapDump.heapDumpFile), signature);
+      if (directory == null) {
+        directory = heapDump.heapDumpFile.getParentFile();
+      }
+      LeakIndex.addOccurrence(directory, signature);
+      pendingIntent = DisplayLeakActivity.createPendingIntent(this);
+      contentTitle =
+          getString(R.string.leak_canary_leak_seen_again, classSimpleName(result.className));
+      contentText = getString(R.string.leak_canary_notification_message);
+    } else if (!shouldSaveResult) {
       contentTitle = getString(R.string.leak_canary_no_leak_title);
       contentText = getString(R.string.leak_canary_no_leak_text);
       pendingIntent = null;
@@ -83,20 +105,45 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
     int notificationId = (int) (SystemClock.uptimeMillis() / 1000);
     showNotification(this, contentTitle, contentText, pendingIntent, notificationId);
     afterDefaultHandling(heapDump, result, leakInfo);
+    if (resultSaved && compressHeapDumps()) {
+      compressHeapDump(heapDump.heapDumpFile);
+    }
+  }
+
+  /**
+   * Replaces the stored heap dump with a smaller {@link HprofCompression} copy, which can still
+   * be analyzed but has to be decompressed for other tools.
+   */
+  private void compressHeapDump(File heapDumpFile) {
+    if (!heapDumpFile.exists()) {
+      return;
+    }
+    File compressedFile =
+        new File(heapDumpFile.getParentFile(), heapDumpFile.getName() + COMPRESSING_SUFFIX);
+    try {
+      HprofCompression.compress(heapDumpFile, compressedFile);
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not compress heap dump %s", heapDumpFile.getPath());
+      //noinspection ResultOfMethodCallIgnored
+      compressedFile.delete();
+      return;
+    }
+    if (!compressedFile.renameTo(heapDumpFile)) {
+      CanaryLog.d("Could not rename compressed heap dump %s", compressedFile.getPath());
+      //noinspection ResultOfMethodCallIgnored
+      compressedFile.delete();
+    }
   }
 
   private boolean saveResult(HeapDump heapDump, AnalysisResult result) {
-    File resultFile = new File(heapDump.heapDumpFile.getParentFile(),
-        heapDump.heapDumpFile.getName() + ".result");
+    File resultFile = LeakIndex.resultFile(heapDump);
     FileOutputStream fos = null;
     try {
       fos = new FileOutputStream(resultFile);
-      ObjectOutputStream oos = new ObjectOutputStream(fos);
-      oos.writeObject(heapDump);
-      oos.writeObject(result);
-      return true;
+      ResultCodec.write(heapDump, result, fos);
     } catch (IOException e) {
       CanaryLog.d(e, "Could not save leak analysis result to disk.");
+      return false;
     } finally {
       if (fos != null) {
         try {
@@ -105,7 +152,8 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
         }
       }
     }
-    return false;
+    LeakIndex.add(LeakIndex.summarize(heapDump, result, resultFile, System.currentTimeMillis()));
+    return true;
   }
 
   private HeapDump renameHeapdump(HeapDump heapDump) {
@@ -123,6 +171,14 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
         heapDump.heapDumpDurationMs);
   }
 
+  /**
+   * Whether stored heap dumps should be compressed once {@link #afterDefaultHandling(HeapDump,
+   * AnalysisResult, String)} returns. Compressed heap dumps take about a fourth of the space.
+   */
+  protected boolean compressHeapDumps() {
+    return true;
+  }
+
   /**
    * You can override this method and do a blocking call to a server to upload the leak trace and
    * the heap dump. Don't forget to check {@link AnalysisResult#leakFound} and {@link
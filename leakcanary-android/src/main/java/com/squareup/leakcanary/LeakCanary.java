@@ -23,10 +23,12 @@ import android.os.Build;
 import android.util.Log;
 import com.squareup.leakcanary.internal.DisplayLeakActivity;
 import com.squareup.leakcanary.internal.HeapAnalyzerService;
+import java.io.IOException;
 
 import static android.text.format.Formatter.formatShortFileSize;
 import static com.squareup.leakcanary.BuildConfig.GIT_SHA;
 import static com.squareup.leakcanary.BuildConfig.LIBRARY_VERSION;
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.heapDumpLock;
 import static com.squareup.leakcanary.internal.LeakCanaryInternals.isInServiceProcess;
 import static com.squareup.leakcanary.internal.LeakCanaryInternals.setEnabled;
 
@@ -61,6 +63,16 @@ public final class LeakCanary {
     DisplayLeakActivity.setLeakDirectoryProvider(leakDirectoryProvider);
   }
 
+  /**
+   * Returns which process of the app is dumping the heap or analyzing a heap dump, or null if
+   * none is.
+   *
+   * @see HeapDumpLock#currentHolder()
+   */
+  public static String heapDumpLockHolder(Context context) throws IOException {
+    return heapDumpLock(context).currentHolder();
+  }
+
   /** Returns a string representation of the result of a heap analysis. */
   public static String leakInfo(Context context, HeapDump heapDump, AnalysisResult result,
       boolean detailed) {
@@ -85,7 +97,18 @@ public final class LeakCanary {
         info += " (" + heapDump.referenceName + ")";
       }
       info += " has leaked:\n" + result.leakTrace.toString() + "\n";
-      info += "* Retaining: " + formatShortFileSize(context, result.retainedHeapSize) + ".\n";
+      for (LeakTrace otherLeakTrace : result.otherLeakTraces) {
+        info += "* Other leak trace:\n" + otherLeakTrace.toString() + "\n";
+      }
+      if (result.duplicateLeak) {
+        info += "* Same leak as a previous analysis, retained size not computed.\n";
+      } else {
+        info += "* Retaining: " + formatShortFileSize(context, result.retainedHeapSize) + ".\n";
+        if (result.retainedHistogram != null) {
+          info += "* Retained by class:\n"
+              + histogramInfo(context, result.retainedHistogram, true);
+        }
+      }
       if (detailed) {
         detailedString = "\n* Details:\n" + result.leakTrace.toDetailedString();
       }
@@ -98,6 +121,10 @@ public final class LeakCanary {
       info += "* NO LEAK FOUND.\n\n";
     }
     if (detailed) {
+      if (result.heapHistogram != null) {
+        detailedString +=
+            "* Heap histogram:\n" + histogramInfo(context, result.heapHistogram, false);
+      }
       detailedString += "* Excluded Refs:\n" + heapDump.excludedRefs;
     }
 
@@ -137,6 +164,24 @@ public final class LeakCanary {
     return info;
   }
 
+  private static String histogramInfo(Context context, ClassHistogram histogram,
+      boolean retained) {
+    String info = "";
+    for (ClassHistogram.Entry entry : histogram.entries) {
+      info += "| " + entry.className + ": " + entry.instanceCount + " instances, "
+          + formatShortFileSize(context, entry.shallowSize) + " shallow";
+      if (retained) {
+        info += ", " + formatShortFileSize(context, entry.retainedSize) + " retained";
+      }
+      info += "\n";
+    }
+    int otherClasses = histogram.classCount - histogram.entries.size();
+    if (otherClasses > 0) {
+      info += "| ... " + otherClasses + " more classes\n";
+    }
+    return info;
+  }
+
   /**
    * Whether the current process is the process running the {@link HeapAnalyzerService}, which is
    * a different process than the normal app process.
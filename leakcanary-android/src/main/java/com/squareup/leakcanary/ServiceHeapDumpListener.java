@@ -25,17 +25,39 @@ public final class ServiceHeapDumpListener implements HeapDump.Listener {
 
   private final Context context;
   private final Class<? extends AbstractAnalysisResultService> listenerServiceClass;
+  private final boolean analyzeWhenIdleAndCharging;
+  private final AnalysisConfig analysisConfig;
 
   public ServiceHeapDumpListener(Context context,
       Class<? extends AbstractAnalysisResultService> listenerServiceClass) {
+    this(context, listenerServiceClass, false);
+  }
+
+  /**
+   * @param analyzeWhenIdleAndCharging whether heap dumps should wait until the device is charging
+   * and not interactive to be analyzed.
+   */
+  public ServiceHeapDumpListener(Context context,
+      Class<? extends AbstractAnalysisResultService> listenerServiceClass,
+      boolean analyzeWhenIdleAndCharging) {
+    this(context, listenerServiceClass, analyzeWhenIdleAndCharging, AnalysisConfig.DEFAULT);
+  }
+
+  /** @param analysisConfig configures the analysis of heap dumps in the analyzer process. */
+  public ServiceHeapDumpListener(Context context,
+      Class<? extends AbstractAnalysisResultService> listenerServiceClass,
+      boolean analyzeWhenIdleAndCharging, AnalysisConfig analysisConfig) {
     setEnabled(context, listenerServiceClass, true);
     setEnabled(context, HeapAnalyzerService.class, true);
     this.listenerServiceClass = checkNotNull(listenerServiceClass, "listenerServiceClass");
     this.context = checkNotNull(context, "context").getApplicationContext();
+    this.analyzeWhenIdleAndCharging = analyzeWhenIdleAndCharging;
+    this.analysisConfig = checkNotNull(analysisConfig, "analysisConfig");
   }
 
   @Override public void analyze(HeapDump heapDump) {
     checkNotNull(heapDump, "heapDump");
-    HeapAnalyzerService.runAnalysis(context, heapDump, listenerServiceClass);
+    HeapAnalyzerService.runAnalysis(context, heapDump, listenerServiceClass,
+        analyzeWhenIdleAndCharging, analysisConfig);
   }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import java.util.concurrent.TimeUnit;
+
+import static com.squareup.leakcanary.AndroidWatchExecutor.LEAK_CANARY_THREAD_NAME;
+import static com.squareup.leakcanary.Retryable.Result.RETRY;
+
+/**
+ * {@link WatchExecutor} with the same behavior as {@link AndroidWatchExecutor}, but suitable for
+ * watching a large number of references: each check waits for the main thread to be idle, then
+ * for its delay in a hashed timing wheel that ticks on a serial background thread, instead of one
+ * delayed message each. All the checks submitted before the main thread goes idle share a single
+ * idle handler, and the checks due on a tick run in one batch.
+ *
+ * Each check still costs a small wheel entry, but no messages, runnables or idle handlers. The
+ * delay is rounded up to the next tick. Install with
+ * {@link AndroidRefWatcherBuilder#watchExecutor(WatchExecutor)}.
+ */
+public final class TimingWheelWatchExecutor implements WatchExecutor {
+
+  private static final long DEFAULT_TICK_MILLIS = 100;
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private final Handler mainHandler;
+  private final Handler backgroundHandler;
+  private final long initialDelayMillis;
+  private final long maxBackoffFactor;
+  private final TimingWheel timingWheel;
+
+  private final Runnable tick = new Runnable() {
+    @Override public void run() {
+      onTick();
+    }
+  };
+  private final Runnable addIdleHandler = new Runnable() {
+    @Override public void run() {
+      Looper.myQueue().addIdleHandler(idleHandler);
+    }
+  };
+  private final MessageQueue.IdleHandler idleHandler = new MessageQueue.IdleHandler() {
+    @Override public boolean queueIdle() {
+      backgroundHandler.post(scheduleIdleChecks);
+      return false;
+    }
+  };
+  private final Runnable scheduleIdleChecks = new Runnable() {
+    @Override public void run() {
+      scheduleIdleChecks();
+    }
+  };
+
+  // Guarded by this.
+  private boolean waitingForIdle;
+  private TimingWheel.Entry checksWaitingForIdle;
+  private boolean ticking;
+  /** {@link SystemClock#uptimeMillis()} of the last tick of {@link #timingWheel}. */
+  private long lastTickUptimeMillis;
+
+  public TimingWheelWatchExecutor(long initialDelayMillis) {
+    this(initialDelayMillis, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /** @param tick the precision of the delay, trading scheduling accuracy for fewer wake ups. */
+  public TimingWheelWatchExecutor(long initialDelayMillis, long tick, TimeUnit tickUnit) {
+    mainHandler = new Handler(Looper.getMainLooper());
+    HandlerThread handlerThread = new HandlerThread(LEAK_CANARY_THREAD_NAME);
+    handlerThread.start();
+    backgroundHandler = new Handler(handlerThread.getLooper());
+    this.initialDelayMillis = initialDelayMillis;
+    maxBackoffFactor = Long.MAX_VALUE / initialDelayMillis;
+    timingWheel = new TimingWheel(tickUnit.toMillis(tick), DEFAULT_WHEEL_SIZE);
+  }
+
+  @Override public void execute(Retryable retryable) {
+    waitForIdle(new TimingWheel.Entry(retryable));
+  }
+
+  private void waitForIdle(TimingWheel.Entry entry) {
+    synchronized (this) {
+      entry.next = checksWaitingForIdle;
+      checksWaitingForIdle = entry;
+      if (waitingForIdle) {
+        return;
+      }
+      waitingForIdle = true;
+    }
+    if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
+      Looper.myQueue().addIdleHandler(idleHandler);
+    } else {
+      mainHandler.post(addIdleHandler);
+    }
+  }
+
+  /** Starts the delay of the checks that were waiting for the main thread to be idle. */
+  private synchronized void scheduleIdleChecks() {
+    TimingWheel.Entry entry = checksWaitingForIdle;
+    checksWaitingForIdle = null;
+    waitingForIdle = false;
+    long nowUptimeMillis = SystemClock.uptimeMillis();
+    if (!ticking) {
+      ticking = true;
+      lastTickUptimeMillis = nowUptimeMillis;
+      backgroundHandler.postAtTime(tick, lastTickUptimeMillis + timingWheel.tickMillis());
+    }
+    // The wheel counts delays from its last tick.
+    long sinceLastTickMillis = nowUptimeMillis - lastTickUptimeMillis;
+    while (entry != null) {
+      TimingWheel.Entry next = entry.next;
+      long exponentialBackoffFactor =
+          (long) Math.min(Math.pow(2, entry.failedAttempts), maxBackoffFactor);
+      timingWheel.schedule(entry, initialDelayMillis * exponentialBackoffFactor
+          + sinceLastTickMillis);
+      entry = next;
+    }
+  }
+
+  private void onTick() {
+    TimingWheel.Entry dueChecks = null;
+    synchronized (this) {
+      // Ticks are late under load: catch up with the elapsed time rather than drift.
+      long tickMillis = timingWheel.tickMillis();
+      long elapsedTicks = (SystemClock.uptimeMillis() - lastTickUptimeMillis) / tickMillis;
+      for (long i = 0; i < elapsedTicks; i++) {
+        TimingWheel.Entry expired = timingWheel.advance();
+        while (expired != null) {
+          TimingWheel.Entry next = expired.next;
+          expired.next = dueChecks;
+          dueChecks = expired;
+          expired = next;
+        }
+      }
+      lastTickUptimeMillis += elapsedTicks * tickMillis;
+      if (timingWheel.isEmpty()) {
+        ticking = false;
+      } else {
+        backgroundHandler.postAtTime(tick, lastTickUptimeMillis + tickMillis);
+      }
+    }
+    while (dueChecks != null) {
+      TimingWheel.Entry next = dueChecks.next;
+      dueChecks.next = null;
+      if (dueChecks.retryable.run() == RETRY) {
+        dueChecks.failedAttempts++;
+        waitForIdle(dueChecks);
+      }
+      dueChecks = next;
+    }
+  }
+}
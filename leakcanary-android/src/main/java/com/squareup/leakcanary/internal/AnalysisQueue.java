@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary.internal;
+
+import android.content.Context;
+import com.squareup.leakcanary.AnalysisConfig;
+import com.squareup.leakcanary.CanaryLog;
+import com.squareup.leakcanary.HeapDump;
+import com.squareup.leakcanary.ResultCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+/**
+ * Heap dumps waiting for {@link HeapAnalyzerService}, persisted as one job file each so that they
+ * survive the analyzer process being killed. Job files are written by the app process and
+ * consumed by the analyzer process.
+ */
+final class AnalysisQueue {
+
+  private static final String DIRECTORY_NAME = "leakcanary-analysis-queue";
+  private static final String JOB_SUFFIX = ".job";
+  /** Version 1 had no {@link AnalysisConfig}. */
+  private static final int VERSION = 2;
+
+  /** A heap dump that waited this long isn't worth analyzing anymore. */
+  private static final long MAX_JOB_AGE_MILLIS = DAYS.toMillis(7);
+
+  static final class Job {
+    final File file;
+    final String listenerClassName;
+    /** Whether the analysis should wait until the device is charging and not interactive. */
+    final boolean whenIdleAndCharging;
+    final long enqueuedAtMillis;
+    final AnalysisConfig analysisConfig;
+    final HeapDump heapDump;
+
+    Job(File file, String listenerClassName, boolean whenIdleAndCharging, long enqueuedAtMillis,
+        AnalysisConfig analysisConfig, HeapDump heapDump) {
+      this.file = file;
+      this.listenerClassName = listenerClassName;
+      this.whenIdleAndCharging = whenIdleAndCharging;
+      this.enqueuedAtMillis = enqueuedAtMillis;
+      this.analysisConfig = analysisConfig;
+      this.heapDump = heapDump;
+    }
+  }
+
+  static void enqueue(Context context, HeapDump heapDump, String listenerClassName,
+      boolean whenIdleAndCharging, AnalysisConfig analysisConfig) throws IOException {
+    enqueue(queueDirectory(context), heapDump, listenerClassName, whenIdleAndCharging,
+        analysisConfig, System.currentTimeMillis());
+  }
+
+  static void enqueue(File directory, HeapDump heapDump, String listenerClassName,
+      boolean whenIdleAndCharging, AnalysisConfig analysisConfig, long enqueuedAtMillis)
+      throws IOException {
+    if (!directory.mkdirs() && !directory.exists()) {
+      throw new IOException("Could not create " + directory);
+    }
+    String fileName = enqueuedAtMillis + "_" + heapDump.referenceKey + JOB_SUFFIX;
+    // The analyzer process must never see a partially written job.
+    File tmpFile = new File(directory, fileName + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tmpFile);
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+      output.writeInt(VERSION);
+      output.writeUTF(listenerClassName);
+      output.writeBoolean(whenIdleAndCharging);
+      output.writeLong(enqueuedAtMillis);
+      writeAnalysisConfig(output, analysisConfig);
+      byte[] encodedHeapDump = ResultCodec.encode(heapDump, null);
+      output.writeInt(encodedHeapDump.length);
+      output.write(encodedHeapDump);
+      output.flush();
+    } finally {
+      closeQuietly(out);
+    }
+    if (!tmpFile.renameTo(new File(directory, fileName))) {
+      //noinspection ResultOfMethodCallIgnored
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile);
+    }
+  }
+
+  static List<Job> load(Context context) {
+    return load(queueDirectory(context), System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the pending jobs, most recent first: a recent heap dump is more relevant. Cancels
+   * stale jobs, i.e. jobs older than a week and jobs whose heap dump was deleted.
+   */
+  static List<Job> load(File directory, long nowMillis) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String filename) {
+        return filename.endsWith(JOB_SUFFIX);
+      }
+    });
+    List<Job> jobs = new ArrayList<>();
+    if (files == null) {
+      return jobs;
+    }
+    for (File file : files) {
+      Job job = read(file);
+      if (job != null) {
+        jobs.add(job);
+      }
+    }
+    Collections.sort(jobs, new Comparator<Job>() {
+      @Override public int compare(Job lhs, Job rhs) {
+        return Long.valueOf(rhs.enqueuedAtMillis).compareTo(lhs.enqueuedAtMillis);
+      }
+    });
+    List<Job> pendingJobs = new ArrayList<>();
+    for (Job job : jobs) {
+      if (!job.heapDump.heapDumpFile.exists()) {
+        cancel(job, "heap dump deleted");
+      } else if (nowMillis - job.enqueuedAtMillis > MAX_JOB_AGE_MILLIS) {
+        cancel(job, "too old");
+      } else {
+        pendingJobs.add(job);
+      }
+    }
+    return pendingJobs;
+  }
+
+  /**
+   * Returns the jobs of {@code pendingJobs} enqueued before {@code job} for the same listener,
+   * most recent first. The references they watch may still be retained in the heap dump of
+   * {@code job}, which is analyzed with the {@link AnalysisConfig} of {@code job}.
+   */
+  static List<Job> olderJobs(Job job, List<Job> pendingJobs) {
+    List<Job> olderJobs = new ArrayList<>();
+    for (Job pendingJob : pendingJobs) {
+      if (pendingJob.enqueuedAtMillis < job.enqueuedAtMillis
+          && pendingJob.listenerClassName.equals(job.listenerClassName)) {
+        olderJobs.add(pendingJob);
+      }
+    }
+    return olderJobs;
+  }
+
+  /**
+   * Returns the heap dump files of the jobs in {@code directory}, without cancelling stale jobs
+   * or deleting corrupt ones: only the analyzer process does that, in {@link #load(Context)}.
+   */
+  static Set<File> queuedHeapDumpFiles(File directory) {
+    Set<File> heapDumpFiles = new HashSet<>();
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String filename) {
+        return filename.endsWith(JOB_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return heapDumpFiles;
+    }
+    for (File file : files) {
+      try {
+        heapDumpFiles.add(readJob(file).heapDump.heapDumpFile);
+      } catch (IOException e) {
+        // Possibly removed by the analyzer process while reading it.
+        CanaryLog.d(e, "Could not read analysis job %s", file);
+      }
+    }
+    return heapDumpFiles;
+  }
+
+  /** Removes a job once its result has been sent, keeping its heap dump. */
+  static void remove(Job job) {
+    if (!job.file.delete()) {
+      CanaryLog.d("Could not delete analysis job %s", job.file);
+    }
+  }
+
+  /** Removes a job that won't be analyzed, and deletes its heap dump. */
+  static void cancel(Job job, String reason) {
+    CanaryLog.d("Cancelling analysis of %s: %s", job.heapDump.heapDumpFile, reason);
+    remove(job);
+    //noinspection ResultOfMethodCallIgnored
+    job.heapDump.heapDumpFile.delete();
+  }
+
+  private static Job read(File file) {
+    try {
+      return readJob(file);
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not read analysis job %s, deleting it.", file);
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      return null;
+    }
+  }
+
+  private static Job readJob(File file) throws IOException {
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+      int version = input.readInt();
+      if (version != 1 && version != VERSION) {
+        throw new IOException("Unsupported analysis job version " + version);
+      }
+      String listenerClassName = input.readUTF();
+      boolean whenIdleAndCharging = input.readBoolean();
+      long enqueuedAtMillis = input.readLong();
+      AnalysisConfig analysisConfig =
+          version == 1 ? AnalysisConfig.DEFAULT : readAnalysisConfig(input);
+      byte[] encodedHeapDump = new byte[input.readInt()];
+      input.readFully(encodedHeapDump);
+      HeapDump heapDump = ResultCodec.decode(encodedHeapDump).heapDump;
+      return new Job(file, listenerClassName, whenIdleAndCharging, enqueuedAtMillis,
+          analysisConfig, heapDump);
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private static void writeAnalysisConfig(DataOutputStream output, AnalysisConfig config)
+      throws IOException {
+    output.writeBoolean(config.computeRetainedHeapSize);
+    output.writeBoolean(config.includeBitmapBuffers);
+    output.writeInt(config.retainedHistogramSize);
+    output.writeInt(config.heapHistogramSize);
+    output.writeBoolean(config.findDestroyedComponents);
+    output.writeInt(config.maxLeakTraces);
+  }
+
+  private static AnalysisConfig readAnalysisConfig(DataInputStream input) throws IOException {
+    try {
+      return AnalysisConfig.builder()
+          .computeRetainedHeapSize(input.readBoolean())
+          .includeBitmapBuffers(input.readBoolean())
+          .retainedHistogramSize(input.readInt())
+          .heapHistogramSize(input.readInt())
+          .findDestroyedComponents(input.readBoolean())
+          .maxLeakTraces(input.readInt())
+          .build();
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid analysis config", e);
+    }
+  }
+
+  static File queueDirectory(Context context) {
+    return new File(context.getFilesDir(), DIRECTORY_NAME);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private AnalysisQueue() {
+    throw new AssertionError();
+  }
+}
@@ -42,17 +42,20 @@ import com.squareup.leakcanary.AnalysisResult;
 import com.squareup.leakcanary.CanaryLog;
 import com.squareup.leakcanary.DefaultLeakDirectoryProvider;
 import com.squareup.leakcanary.HeapDump;
+import com.squareup.leakcanary.HprofCompression;
 import com.squareup.leakcanary.LeakDirectoryProvider;
 import com.squareup.leakcanary.R;
+import com.squareup.leakcanary.ResultCodec;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 import static android.app.PendingIntent.FLAG_UPDATE_CURRENT;
@@ -104,6 +107,12 @@ public final class DisplayLeakActivity extends Activity {
   private TextView failureView;
   private Button actionButton;
 
+  private final LeakListCache.Listener leakDirectoryListener = new LeakListCache.Listener() {
+    @Override public void onLeakDirectoryChanged() {
+      LoadLeaks.load(DisplayLeakActivity.this, leakDirectoryProvider(DisplayLeakActivity.this));
+    }
+  };
+
   @SuppressWarnings("unchecked")
   @Override protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -137,9 +146,31 @@ public final class DisplayLeakActivity extends Activity {
     outState.putString("visibleLeakRefKey", visibleLeakRefKey);
   }
 
+  /** Only reloads the leaks if a leak directory changed since they were last loaded. */
   @Override protected void onResume() {
     super.onResume();
-    LoadLeaks.load(this, leakDirectoryProvider(this));
+    LeakListCache.setListener(leakDirectoryListener);
+    List<LeakIndex.Entry> entries = LeakListCache.entries();
+    if (entries != null) {
+      onLeaksLoaded(entries);
+    } else {
+      LoadLeaks.load(this, leakDirectoryProvider(this));
+    }
+  }
+
+  @Override protected void onPause() {
+    super.onPause();
+    LeakListCache.setListener(null);
+  }
+
+  void onLeaksLoaded(List<LeakIndex.Entry> entries) {
+    List<Leak> loadedLeaks = new ArrayList<>();
+    for (LeakIndex.Entry entry : entries) {
+      loadedLeaks.add(new Leak(entry));
+    }
+    LoadLeaks.keepLoadedResults(leaks, loadedLeaks);
+    leaks = loadedLeaks;
+    updateUi();
   }
 
   @Override public void setTheme(int resid) {
@@ -155,11 +186,16 @@ public final class DisplayLeakActivity extends Activity {
   @Override protected void onDestroy() {
     super.onDestroy();
     LoadLeaks.forgetActivity();
+    LoadLeak.forgetActivity();
+    ShareHeapDump.forgetActivity();
+    if (isFinishing()) {
+      ShareHeapDump.deleteShareableFile(this);
+    }
   }
 
   @Override public boolean onCreateOptionsMenu(Menu menu) {
     Leak visibleLeak = getVisibleLeak();
-    if (visibleLeak != null) {
+    if (visibleLeak != null && visibleLeak.result != null) {
       menu.add(R.string.leak_canary_share_leak)
           .setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
             @Override public boolean onMenuItemClick(MenuItem item) {
@@ -209,7 +245,10 @@ public final class DisplayLeakActivity extends Activity {
 
   void shareHeapDump() {
     Leak visibleLeak = getVisibleLeak();
-    File heapDumpFile = visibleLeak.heapDump.heapDumpFile;
+    ShareHeapDump.share(this, visibleLeak.heapDump.heapDumpFile);
+  }
+
+  void shareHeapDump(File heapDumpFile) {
     heapDumpFile.setReadable(true, false);
     Intent intent = new Intent(Intent.ACTION_SEND);
     intent.setType("application/octet-stream");
@@ -220,11 +259,13 @@ public final class DisplayLeakActivity extends Activity {
   void deleteVisibleLeak() {
     Leak visibleLeak = getVisibleLeak();
     File heapDumpFile = visibleLeak.heapDump.heapDumpFile;
-    File resultFile = visibleLeak.resultFile;
+    File resultFile = visibleLeak.entry.resultFile;
     boolean resultDeleted = resultFile.delete();
     if (!resultDeleted) {
       CanaryLog.d("Could not delete result file %s", resultFile.getPath());
     }
+    LeakIndex.remove(resultFile);
+    LeakListCache.decodedResults.remove(resultFile);
     boolean heapDumpDeleted = heapDumpFile.delete();
     if (!heapDumpDeleted) {
       CanaryLog.d("Could not delete heap dump file %s", heapDumpFile.getPath());
@@ -236,6 +277,7 @@ public final class DisplayLeakActivity extends Activity {
 
   void deleteAllLeaks() {
     leakDirectoryProvider(DisplayLeakActivity.this).clearLeakDirectory();
+    LeakListCache.decodedResults.evictAll();
     leaks = Collections.emptyList();
     updateUi();
   }
@@ -252,6 +294,12 @@ public final class DisplayLeakActivity extends Activity {
     final Leak visibleLeak = getVisibleLeak();
     if (visibleLeak == null) {
       visibleLeakRefKey = null;
+    } else if (visibleLeak.result == null) {
+      ResultCodec.Entry decoded = LeakListCache.decodedResults.get(visibleLeak.entry.resultFile);
+      if (decoded != null) {
+        visibleLeak.heapDump = decoded.heapDump;
+        visibleLeak.result = decoded.result;
+      }
     }
 
     ListAdapter listAdapter = listView.getAdapter();
@@ -259,7 +307,16 @@ public final class DisplayLeakActivity extends Activity {
     listView.setVisibility(VISIBLE);
     failureView.setVisibility(GONE);
 
-    if (visibleLeak != null) {
+    if (visibleLeak != null && visibleLeak.result == null) {
+      setTitle("Loading leak...");
+      invalidateOptionsMenu();
+      listView.setAdapter(null);
+      actionButton.setVisibility(GONE);
+      if (!visibleLeak.loading) {
+        visibleLeak.loading = true;
+        LoadLeak.load(this, visibleLeak);
+      }
+    } else if (visibleLeak != null) {
       AnalysisResult result = visibleLeak.result;
       if (result.failure != null) {
         listView.setVisibility(GONE);
@@ -320,7 +377,7 @@ public final class DisplayLeakActivity extends Activity {
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
           @Override
           public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            visibleLeakRefKey = leaks.get(position).heapDump.referenceKey;
+            visibleLeakRefKey = leaks.get(position).entry.referenceKey;
             updateUi();
           }
         });
@@ -353,7 +410,7 @@ public final class DisplayLeakActivity extends Activity {
       return null;
     }
     for (Leak leak : leaks) {
-      if (leak.heapDump.referenceKey.equals(visibleLeakRefKey)) {
+      if (leak.entry.referenceKey.equals(visibleLeakRefKey)) {
         return leak;
       }
     }
@@ -381,43 +438,42 @@ public final class DisplayLeakActivity extends Activity {
       }
       TextView titleView = (TextView) convertView.findViewById(R.id.leak_canary_row_text);
       TextView timeView = (TextView) convertView.findViewById(R.id.leak_canary_row_time);
-      Leak leak = getItem(position);
+      LeakIndex.Entry entry = getItem(position).entry;
 
       String index = (leaks.size() - position) + ". ";
 
       String title;
-      if (leak.result.failure == null) {
-        String className = classSimpleName(leak.result.className);
-        String size = formatShortFileSize(DisplayLeakActivity.this, leak.result.retainedHeapSize);
+      if (entry.failure == null) {
+        String className = classSimpleName(entry.className);
+        String size = formatShortFileSize(DisplayLeakActivity.this, entry.retainedHeapSize);
         title = getString(R.string.leak_canary_class_has_leaked, className, size);
-        if (leak.result.excludedLeak) {
+        if (entry.excludedLeak) {
           title = getString(R.string.leak_canary_excluded_row, title);
         }
+        if (entry.occurrences > 1) {
+          title = getString(R.string.leak_canary_occurrences_row, title, entry.occurrences);
+        }
         title = index + title;
       } else {
-        title = index
-            + leak.result.failure.getClass().getSimpleName()
-            + " "
-            + leak.result.failure.getMessage();
+        title = index + entry.failure;
       }
       titleView.setText(title);
-      String time =
-          DateUtils.formatDateTime(DisplayLeakActivity.this, leak.resultFile.lastModified(),
-              FORMAT_SHOW_TIME | FORMAT_SHOW_DATE);
+      String time = DateUtils.formatDateTime(DisplayLeakActivity.this, entry.createdAtMillis,
+          FORMAT_SHOW_TIME | FORMAT_SHOW_DATE);
       timeView.setText(time);
       return convertView;
     }
   }
 
   static class Leak {
-    final HeapDump heapDump;
-    final AnalysisResult result;
-    final File resultFile;
-
-    Leak(HeapDump heapDump, AnalysisResult result, File resultFile) {
-      this.heapDump = heapDump;
-      this.result = result;
-      this.resultFile = resultFile;
+    final LeakIndex.Entry entry;
+    /** Null until loaded by {@link LoadLeak}. */
+    HeapDump heapDump;
+    AnalysisResult result;
+    boolean loading;
+
+    Leak(LeakIndex.Entry entry) {
+      this.entry = entry;
     }
   }
 
@@ -451,51 +507,202 @@ public final class DisplayLeakActivity extends Activity {
     }
 
     @Override public void run() {
-      final List<Leak> leaks = new ArrayList<>();
-      List<File> files = leakDirectoryProvider.listFiles(new FilenameFilter() {
-        @Override public boolean accept(File dir, String filename) {
-          return filename.endsWith(".result");
+      final int changeCount = LeakListCache.watch(leakDirectoryProvider);
+      final List<LeakIndex.Entry> entries = LeakIndex.load(leakDirectoryProvider);
+      mainHandler.post(new Runnable() {
+        @Override public void run() {
+          inFlight.remove(LoadLeaks.this);
+          boolean upToDate = LeakListCache.onLoaded(entries, changeCount);
+          if (activityOrNull != null) {
+            activityOrNull.onLeaksLoaded(entries);
+            if (!upToDate) {
+              load(activityOrNull, leakDirectoryProvider);
+            }
+          }
         }
       });
-      for (File resultFile : files) {
-        FileInputStream fis = null;
-        try {
-          fis = new FileInputStream(resultFile);
-          ObjectInputStream ois = new ObjectInputStream(fis);
-          HeapDump heapDump = (HeapDump) ois.readObject();
-          AnalysisResult result = (AnalysisResult) ois.readObject();
-          leaks.add(new Leak(heapDump, result, resultFile));
-        } catch (IOException | ClassNotFoundException e) {
-          // Likely a change in the serializable result class.
-          // Let's remove the files, we can't read them anymore.
-          boolean deleted = resultFile.delete();
-          if (deleted) {
-            CanaryLog.d(e, "Could not read result file %s, deleted it.", resultFile);
-          } else {
-            CanaryLog.d(e, "Could not read result file %s, could not delete it either.",
-                resultFile);
+    }
+
+    /** Reloading the list shouldn't reload the leak being displayed. */
+    static void keepLoadedResults(List<Leak> previousLeaks, List<Leak> leaks) {
+      if (previousLeaks == null) {
+        return;
+      }
+      Map<String, Leak> previousLeaksByKey = new HashMap<>();
+      for (Leak leak : previousLeaks) {
+        previousLeaksByKey.put(leak.entry.referenceKey, leak);
+      }
+      for (Leak leak : leaks) {
+        Leak previousLeak = previousLeaksByKey.get(leak.entry.referenceKey);
+        if (previousLeak != null) {
+          leak.heapDump = previousLeak.heapDump;
+          leak.result = previousLeak.result;
+          leak.loading = previousLeak.loading;
+        }
+      }
+    }
+  }
+
+  /** Reads the full result of a single leak, when it is opened. */
+  static class LoadLeak implements Runnable {
+
+    static final List<LoadLeak> inFlight = new ArrayList<>();
+
+    static void load(DisplayLeakActivity activity, Leak leak) {
+      LoadLeak loadLeak = new LoadLeak(activity, leak.entry);
+      inFlight.add(loadLeak);
+      LoadLeaks.backgroundExecutor.execute(loadLeak);
+    }
+
+    static void forgetActivity() {
+      for (LoadLeak loadLeak : inFlight) {
+        loadLeak.activityOrNull = null;
+      }
+      inFlight.clear();
+    }
+
+    DisplayLeakActivity activityOrNull;
+    private final LeakIndex.Entry entry;
+    private final Handler mainHandler;
+
+    LoadLeak(DisplayLeakActivity activity, LeakIndex.Entry entry) {
+      this.activityOrNull = activity;
+      this.entry = entry;
+      mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override public void run() {
+      ResultCodec.Entry decoded = null;
+      FileInputStream fis = null;
+      try {
+        fis = new FileInputStream(entry.resultFile);
+        decoded = ResultCodec.read(new BufferedInputStream(fis));
+        if (decoded.result == null) {
+          throw new IOException("No analysis result");
+        }
+        LeakListCache.decodedResults.put(entry.resultFile, decoded);
+      } catch (IOException e) {
+        CanaryLog.d(e, "Could not read result file %s", entry.resultFile);
+        decoded = null;
+        LeakIndex.remove(entry.resultFile);
+      } finally {
+        if (fis != null) {
+          try {
+            fis.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+      final ResultCodec.Entry loaded = decoded;
+      mainHandler.post(new Runnable() {
+        @Override public void run() {
+          inFlight.remove(LoadLeak.this);
+          if (activityOrNull == null || activityOrNull.leaks == null) {
+            return;
           }
-        } finally {
-          if (fis != null) {
-            try {
-              fis.close();
-            } catch (IOException ignored) {
+          Iterator<Leak> leaks = activityOrNull.leaks.iterator();
+          while (leaks.hasNext()) {
+            Leak leak = leaks.next();
+            if (leak.entry.referenceKey.equals(entry.referenceKey)) {
+              leak.loading = false;
+              if (loaded != null) {
+                leak.heapDump = loaded.heapDump;
+                leak.result = loaded.result;
+              } else {
+                leaks.remove();
+              }
             }
           }
+          activityOrNull.updateUi();
         }
+      });
+    }
+  }
+
+  /**
+   * Stored heap dumps are compressed, other tools need a decompressed copy. The copy is written
+   * to a single file outside of the leak directories, so that it doesn't count against the
+   * stored heap dumps limits, and replaced on each share.
+   */
+  static class ShareHeapDump implements Runnable {
+
+    private static final String SHAREABLE_FILE_NAME = "leakcanary_shared.hprof";
+
+    static final List<ShareHeapDump> inFlight = new ArrayList<>();
+
+    static void share(DisplayLeakActivity activity, File heapDumpFile) {
+      ShareHeapDump shareHeapDump = new ShareHeapDump(activity, heapDumpFile);
+      inFlight.add(shareHeapDump);
+      LoadLeaks.backgroundExecutor.execute(shareHeapDump);
+    }
+
+    static void forgetActivity() {
+      for (ShareHeapDump shareHeapDump : inFlight) {
+        shareHeapDump.activityOrNull = null;
       }
-      Collections.sort(leaks, new Comparator<Leak>() {
-        @Override public int compare(Leak lhs, Leak rhs) {
-          return Long.valueOf(rhs.resultFile.lastModified())
-              .compareTo(lhs.resultFile.lastModified());
+      inFlight.clear();
+    }
+
+    /** Deletes the last shared copy, after any share in progress. */
+    static void deleteShareableFile(Context context) {
+      final File decompressedFile = shareableFile(context);
+      LoadLeaks.backgroundExecutor.execute(new Runnable() {
+        @Override public void run() {
+          //noinspection ResultOfMethodCallIgnored
+          decompressedFile.delete();
         }
       });
+    }
+
+    /** External storage, when available, so that the app receiving the share can read it. */
+    private static File shareableFile(Context context) {
+      File directory = context.getExternalCacheDir();
+      if (directory == null) {
+        directory = context.getCacheDir();
+      }
+      return new File(directory, SHAREABLE_FILE_NAME);
+    }
+
+    DisplayLeakActivity activityOrNull;
+    private final File heapDumpFile;
+    private final File decompressedFile;
+    private final Handler mainHandler;
+
+    ShareHeapDump(DisplayLeakActivity activity, File heapDumpFile) {
+      this.activityOrNull = activity;
+      this.heapDumpFile = heapDumpFile;
+      decompressedFile = shareableFile(activity);
+      mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override public void run() {
+      // The previous copy, if any, is for another share.
+      //noinspection ResultOfMethodCallIgnored
+      decompressedFile.delete();
+      File shareableFile = heapDumpFile;
+      try {
+        if (HprofCompression.isCompressed(heapDumpFile)) {
+          File tmpFile = new File(decompressedFile.getPath() + ".tmp");
+          HprofCompression.decompress(heapDumpFile, tmpFile);
+          if (!tmpFile.renameTo(decompressedFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile);
+          }
+          shareableFile = decompressedFile;
+        }
+      } catch (IOException e) {
+        CanaryLog.d(e, "Could not decompress heap dump %s", heapDumpFile);
+        //noinspection ResultOfMethodCallIgnored
+        decompressedFile.delete();
+        shareableFile = null;
+      }
+      final File fileToShare = shareableFile;
       mainHandler.post(new Runnable() {
         @Override public void run() {
-          inFlight.remove(LoadLeaks.this);
-          if (activityOrNull != null) {
-            activityOrNull.leaks = leaks;
-            activityOrNull.updateUi();
+          inFlight.remove(ShareHeapDump.this);
+          if (activityOrNull != null && fileToShare != null) {
+            activityOrNull.shareHeapDump(fileToShare);
           }
         }
       });
@@ -15,30 +15,102 @@
  */
 package com.squareup.leakcanary.internal;
 
+import android.app.AlarmManager;
 import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import com.squareup.leakcanary.AbstractAnalysisResultService;
+import com.squareup.leakcanary.AnalysisConfig;
 import com.squareup.leakcanary.AnalysisResult;
+import com.squareup.leakcanary.AnalyzerProgressListener;
 import com.squareup.leakcanary.CanaryLog;
 import com.squareup.leakcanary.HeapAnalyzer;
 import com.squareup.leakcanary.HeapDump;
+import com.squareup.leakcanary.HeapDumpLock;
+import com.squareup.leakcanary.R;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
+import static android.os.Build.VERSION_CODES.KITKAT_WATCH;
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.heapDumpLock;
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.leakDirectories;
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.lockHolder;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 /**
  * This service runs in a separate process to avoid slowing down the app process or making it run
  * out of memory.
+ *
+ * Heap dumps go through a persistent {@link AnalysisQueue}, most recent first. When a reference
+ * watched by an older job is still retained in the heap dump being analyzed, that job is
+ * coalesced: its stale heap dump is deleted and its result is computed from the recent one, and
+ * reported with it.
  */
-public final class HeapAnalyzerService extends IntentService {
+public final class HeapAnalyzerService extends IntentService
+    implements AnalyzerProgressListener {
+
+  /** How long to wait before checking again if the device is idle and charging. */
+  private static final long CONSTRAINTS_RETRY_DELAY_MILLIS = MINUTES.toMillis(15);
 
-  private static final String LISTENER_CLASS_EXTRA = "listener_class_extra";
-  private static final String HEAPDUMP_EXTRA = "heapdump_extra";
+  private static final int PROGRESS_NOTIFICATION_ID = 0x4C43;
+  /** Keeps notification updates well under the rate the system drops them at. */
+  private static final int MIN_PROGRESS_PERCENT_INCREMENT = 5;
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private Step progressStep;
+  private int progressPercent;
 
   public static void runAnalysis(Context context, HeapDump heapDump,
       Class<? extends AbstractAnalysisResultService> listenerServiceClass) {
-    Intent intent = new Intent(context, HeapAnalyzerService.class);
-    intent.putExtra(LISTENER_CLASS_EXTRA, listenerServiceClass.getName());
-    intent.putExtra(HEAPDUMP_EXTRA, heapDump);
-    context.startService(intent);
+    runAnalysis(context, heapDump, listenerServiceClass, false);
+  }
+
+  /**
+   * @param whenIdleAndCharging whether to wait until the device is charging and not interactive
+   * before analyzing the heap dump.
+   */
+  public static void runAnalysis(Context context, HeapDump heapDump,
+      Class<? extends AbstractAnalysisResultService> listenerServiceClass,
+      boolean whenIdleAndCharging) {
+    runAnalysis(context, heapDump, listenerServiceClass, whenIdleAndCharging,
+        AnalysisConfig.DEFAULT);
+  }
+
+  /** @param analysisConfig configures the {@link HeapAnalyzer} of the analyzer process. */
+  public static void runAnalysis(Context context, HeapDump heapDump,
+      Class<? extends AbstractAnalysisResultService> listenerServiceClass,
+      boolean whenIdleAndCharging, AnalysisConfig analysisConfig) {
+    try {
+      AnalysisQueue.enqueue(context, heapDump, listenerServiceClass.getName(),
+          whenIdleAndCharging, analysisConfig);
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not enqueue analysis of %s", heapDump.heapDumpFile);
+      //noinspection ResultOfMethodCallIgnored
+      heapDump.heapDumpFile.delete();
+      return;
+    }
+    context.startService(new Intent(context, HeapAnalyzerService.class));
   }
 
   public HeapAnalyzerService() {
@@ -46,16 +118,247 @@ public final class HeapAnalyzerService extends IntentService {
   }
 
   @Override protected void onHandleIntent(Intent intent) {
-    if (intent == null) {
-      CanaryLog.d("HeapAnalyzerService received a null intent, ignoring.");
+    // Guards against looping on a job file that can't be deleted.
+    Set<File> startedJobFiles = new HashSet<>();
+    while (true) {
+      List<AnalysisQueue.Job> pendingJobs = AnalysisQueue.load(this);
+      boolean idleAndCharging = isIdleAndCharging();
+      boolean waitingForConstraints = false;
+      List<AnalysisQueue.Job> unstartedJobs = new ArrayList<>();
+      List<AnalysisQueue.Job> runnableJobs = new ArrayList<>();
+      for (AnalysisQueue.Job job : pendingJobs) {
+        if (startedJobFiles.contains(job.file)) {
+          continue;
+        }
+        unstartedJobs.add(job);
+        if (job.whenIdleAndCharging && !idleAndCharging) {
+          waitingForConstraints = true;
+        } else {
+          runnableJobs.add(job);
+        }
+      }
+      if (runnableJobs.isEmpty()) {
+        if (waitingForConstraints) {
+          scheduleRetry();
+        }
+        return;
+      }
+      AnalysisQueue.Job job = runnableJobs.get(0);
+      List<AnalysisQueue.Job> olderJobs = AnalysisQueue.olderJobs(job, unstartedJobs);
+      startedJobFiles.add(job.file);
+      analyze(job, olderJobs);
+    }
+  }
+
+  /**
+   * The job is removed from the queue before the analysis starts, so that a heap dump that
+   * crashes the analyzer process isn't retried forever. The older jobs stay queued until their
+   * reference is found in the heap dump of {@code job}, see {@link #coalesce(AnalysisQueue.Job,
+   * HeapDump, AnalysisResult)}.
+   */
+  private void analyze(AnalysisQueue.Job job, List<AnalysisQueue.Job> olderJobs) {
+    HeapDump heapDump = job.heapDump;
+    AnalysisQueue.remove(job);
+    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(heapDump.excludedRefs, this, job.analysisConfig);
+
+    // Leaks already saved in any leak directory are reported without computing their retained
+    // size.
+    Set<String> knownLeakSignatures =
+        LeakIndex.signatures(leakDirectories(this, heapDump.heapDumpFile));
+    Map<String, AnalysisResult> results;
+    // Waits for heap dumps in progress in the app processes, and keeps them from starting.
+    HeapDumpLock heapDumpLock = heapDumpLock(this);
+    try {
+      heapDumpLock.lock(lockHolder("analyzing " + heapDump.heapDumpFile.getName()));
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not acquire heap dump lock, analyzing anyway");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // The key of the job comes first: older keys that leak the same way are then duplicates.
+    List<String> referenceKeys = new ArrayList<>();
+    referenceKeys.add(heapDump.referenceKey);
+    for (AnalysisQueue.Job olderJob : olderJobs) {
+      referenceKeys.add(olderJob.heapDump.referenceKey);
+    }
+    try {
+      results = heapAnalyzer.checkForLeaks(heapDump.heapDumpFile, referenceKeys,
+          knownLeakSignatures);
+    } finally {
+      heapDumpLock.unlock();
+      progressStep = null;
+      NotificationManager notificationManager =
+          (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+      notificationManager.cancel(PROGRESS_NOTIFICATION_ID);
+    }
+
+    AnalysisResult result = results.get(heapDump.referenceKey);
+    if (result == null) {
+      Exception exception = new IllegalStateException(
+          "Could not find weak reference with key " + heapDump.referenceKey + " in "
+              + results.keySet());
+      result = AnalysisResult.failure(exception, 0);
+    }
+    // Before sending the result of the job, as the listener renames or deletes its heap dump.
+    List<HeapDump> coalescedHeapDumps = new ArrayList<>();
+    List<AnalysisResult> coalescedResults = new ArrayList<>();
+    for (AnalysisQueue.Job olderJob : olderJobs) {
+      AnalysisResult olderResult = results.get(olderJob.heapDump.referenceKey);
+      HeapDump coalescedHeapDump = coalesce(olderJob, heapDump, olderResult);
+      if (coalescedHeapDump != null) {
+        coalescedHeapDumps.add(coalescedHeapDump);
+        coalescedResults.add(olderResult);
+      }
+    }
+    // Older jobs have the same listener, which handles their results after this one.
+    AbstractAnalysisResultService.sendResultToListener(this, job.listenerClassName, heapDump,
+        result);
+    for (int i = 0; i < coalescedHeapDumps.size(); i++) {
+      AbstractAnalysisResultService.sendResultToListener(this, job.listenerClassName,
+          coalescedHeapDumps.get(i), coalescedResults.get(i));
+    }
+    sendDestroyedComponentResults(job, referenceKeys, results);
+  }
+
+  /**
+   * Sends the results of {@link AnalysisConfig#findDestroyedComponents}, keyed by class name and
+   * instance id. They are stored without a heap dump, like results whose heap dump was evicted:
+   * their heap dump file is named after the analyzed one but never exists.
+   */
+  private void sendDestroyedComponentResults(AnalysisQueue.Job job, List<String> referenceKeys,
+      Map<String, AnalysisResult> results) {
+    HeapDump heapDump = job.heapDump;
+    File directory = heapDump.heapDumpFile.getParentFile();
+    int index = 0;
+    for (Map.Entry<String, AnalysisResult> entry : results.entrySet()) {
+      if (referenceKeys.contains(entry.getKey())) {
+        continue;
+      }
+      File heapDumpFile =
+          new File(directory, heapDump.referenceKey + "_destroyed_" + index++ + ".hprof");
+      HeapDump destroyedHeapDump =
+          new HeapDump(heapDumpFile, entry.getKey(), "", heapDump.excludedRefs, 0, 0,
+              heapDump.heapDumpDurationMs);
+      AbstractAnalysisResultService.sendResultToListener(this, job.listenerClassName,
+          destroyedHeapDump, entry.getValue());
+    }
+  }
+
+  /**
+   * Removes {@code olderJob} from the queue if {@code result}, computed from the more recent
+   * {@code heapDump}, found its leak, and returns the heap dump to report the result with.
+   * Returns null if the older job should still be analyzed on its own, e.g. because its reference
+   * was cleared since or the analysis failed.
+   */
+  private static HeapDump coalesce(AnalysisQueue.Job olderJob, HeapDump heapDump,
+      AnalysisResult result) {
+    if (result == null || !result.leakFound) {
+      return null;
+    }
+    HeapDump olderHeapDump = olderJob.heapDump;
+    File heapDumpFile;
+    if (result.duplicateLeak) {
+      // Duplicate leaks don't keep their heap dump, no need for a copy.
+      AnalysisQueue.cancel(olderJob, "leak found in " + heapDump.heapDumpFile.getName());
+      heapDumpFile = heapDump.heapDumpFile;
+    } else {
+      // The result is saved along with its heap dump, which must be the one it was computed from.
+      try {
+        copy(heapDump.heapDumpFile, olderHeapDump.heapDumpFile);
+      } catch (IOException e) {
+        CanaryLog.d(e, "Could not copy %s, analyzing %s on its own", heapDump.heapDumpFile,
+            olderHeapDump.heapDumpFile);
+        return null;
+      }
+      AnalysisQueue.remove(olderJob);
+      heapDumpFile = olderHeapDump.heapDumpFile;
+    }
+    return new HeapDump(heapDumpFile, olderHeapDump.referenceKey, olderHeapDump.referenceName,
+        olderHeapDump.excludedRefs, olderHeapDump.watchDurationMs, olderHeapDump.gcDurationMs,
+        olderHeapDump.heapDumpDurationMs);
+  }
+
+  /** Replaces {@code destination} with a copy of {@code source}. */
+  private static void copy(File source, File destination) throws IOException {
+    File tmpFile = new File(destination.getParentFile(), destination.getName() + ".tmp");
+    InputStream in = null;
+    OutputStream out = null;
+    try {
+      in = new FileInputStream(source);
+      out = new FileOutputStream(tmpFile);
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      closeQuietly(in);
+      closeQuietly(out);
+    }
+    if (!tmpFile.renameTo(destination)) {
+      //noinspection ResultOfMethodCallIgnored
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /** Shows the analysis progress in an ongoing notification. */
+  @Override public void onProgressUpdate(Step step, double fraction) {
+    if (step == Step.DONE) {
       return;
     }
-    String listenerClassName = intent.getStringExtra(LISTENER_CLASS_EXTRA);
-    HeapDump heapDump = (HeapDump) intent.getSerializableExtra(HEAPDUMP_EXTRA);
+    int percent = (int) (fraction * 100);
+    if (step == progressStep && percent < progressPercent + MIN_PROGRESS_PERCENT_INCREMENT) {
+      return;
+    }
+    progressStep = step;
+    progressPercent = percent;
+    boolean indeterminate = step != Step.COMPUTING_HEAP_HISTOGRAM
+        && step != Step.PARSING_HEAP_DUMP
+        && step != Step.FINDING_SHORTEST_PATH;
+    Notification.Builder builder = new Notification.Builder(this) //
+        .setSmallIcon(R.drawable.leak_canary_notification)
+        .setContentTitle(getString(R.string.leak_canary_analysis_in_progress))
+        .setContentText(step.name().toLowerCase(Locale.US).replace('_', ' '))
+        .setProgress(100, percent, indeterminate)
+        .setOngoing(true);
+    Notification notification;
+    if (SDK_INT < JELLY_BEAN) {
+      notification = builder.getNotification();
+    } else {
+      notification = builder.build();
+    }
+    NotificationManager notificationManager =
+        (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+    notificationManager.notify(PROGRESS_NOTIFICATION_ID, notification);
+  }
 
-    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(heapDump.excludedRefs);
+  @SuppressWarnings("deprecation") // isScreenOn() is the only option before KitKat Watch.
+  private boolean isIdleAndCharging() {
+    Intent batteryStatus = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    boolean charging =
+        batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+    boolean interactive =
+        SDK_INT >= KITKAT_WATCH ? powerManager.isInteractive() : powerManager.isScreenOn();
+    return charging && !interactive;
+  }
 
-    AnalysisResult result = heapAnalyzer.checkForLeak(heapDump.heapDumpFile, heapDump.referenceKey);
-    AbstractAnalysisResultService.sendResultToListener(this, listenerClassName, heapDump, result);
+  private void scheduleRetry() {
+    Intent intent = new Intent(this, HeapAnalyzerService.class);
+    PendingIntent pendingIntent =
+        PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+    alarmManager.set(AlarmManager.ELAPSED_REALTIME,
+        SystemClock.elapsedRealtime() + CONSTRAINTS_RETRY_DELAY_MILLIS, pendingIntent);
   }
 }
@@ -26,8 +26,13 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import com.squareup.leakcanary.CanaryLog;
+import com.squareup.leakcanary.DefaultLeakDirectoryProvider;
+import com.squareup.leakcanary.HeapDumpLock;
 import com.squareup.leakcanary.R;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -50,10 +55,46 @@ public final class LeakCanaryInternals {
 
   private static final Executor fileIoExecutor = newSingleThreadExecutor("File-IO");
 
+  /** Outside of the leak directories, which get cleared. */
+  private static final String HEAP_DUMP_LOCK_FILE_NAME = "leakcanary-heap-dump.lock";
+
   public static void executeOnFileIoThread(Runnable runnable) {
     fileIoExecutor.execute(runnable);
   }
 
+  /**
+   * Serializes heap dumps and analysis between the processes of the app. The lock file is in app
+   * storage, which all processes of the app share.
+   */
+  public static HeapDumpLock heapDumpLock(Context context) {
+    return new HeapDumpLock(new File(context.getFilesDir(), HEAP_DUMP_LOCK_FILE_NAME));
+  }
+
+  /** Heap dumps still waiting for {@link HeapAnalyzerService}, which must be kept. */
+  public static Set<File> queuedHeapDumpFiles(Context context) {
+    return AnalysisQueue.queuedHeapDumpFiles(AnalysisQueue.queueDirectory(context));
+  }
+
+  /**
+   * The directories where {@link DefaultLeakDirectoryProvider} stores leaks, along with the
+   * directory of {@code heapDumpFile}, which may come from another provider. A leak may already
+   * be saved in any of them.
+   */
+  public static List<File> leakDirectories(Context context, File heapDumpFile) {
+    List<File> directories =
+        new ArrayList<>(new DefaultLeakDirectoryProvider(context).leakDirectories());
+    File heapDumpDirectory = heapDumpFile.getParentFile();
+    if (!directories.contains(heapDumpDirectory)) {
+      directories.add(heapDumpDirectory);
+    }
+    return directories;
+  }
+
+  /** Describes this process as a {@link HeapDumpLock} holder. */
+  public static String lockHolder(String action) {
+    return "pid " + android.os.Process.myPid() + " " + action;
+  }
+
   /** Extracts the class simple name out of a string containing a fully qualified class name. */
   public static String classSimpleName(String className) {
     int separator = className.lastIndexOf('.');
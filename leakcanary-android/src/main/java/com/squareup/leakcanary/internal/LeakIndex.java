@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary.internal;
+
+import com.squareup.leakcanary.AnalysisResult;
+import com.squareup.leakcanary.CanaryLog;
+import com.squareup.leakcanary.HeapDump;
+import com.squareup.leakcanary.LeakDirectoryProvider;
+import com.squareup.leakcanary.LeakTrace;
+import com.squareup.leakcanary.ResultCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.squareup.leakcanary.internal.LeakCanaryInternals.classSimpleName;
+
+/**
+ * Append-only summaries of the analysis results stored in each leak directory, so that the leak
+ * list can be displayed without reading every result file. Each directory holds one index file
+ * with a record per saved result and a record per deleted result, plus a record each time a leak
+ * with a known signature is seen again. The index is reconciled with the result files present
+ * when loading, then compacted once most records are obsolete.
+ */
+public final class LeakIndex {
+
+  public static final String RESULT_SUFFIX = ".result";
+  public static final String INDEX_FILE_NAME = "leaks.index";
+
+  private static final int MAGIC = 0x4C43_4958;
+  private static final int VERSION = 2;
+
+  private static final byte RECORD_ADDED = 1;
+  private static final byte RECORD_REMOVED = 2;
+  private static final byte RECORD_OCCURRENCES = 3;
+
+  /** Keeps records well under the 64KiB limit of {@link DataOutputStream#writeUTF(String)}. */
+  private static final int MAX_FAILURE_LENGTH = 1024;
+
+  /** Appends and compactions happen in the same process, from different threads. */
+  private static final Object LOCK = new Object();
+
+  /**
+   * Enough to display a leak in the list, and to find its result file. Only results with a leak
+   * trace or a failure are saved.
+   */
+  public static final class Entry {
+    public final String referenceKey;
+    /** {@link LeakTrace#signature()} of the leak, null if the analysis failed. */
+    public final String signature;
+    /** Null if the analysis failed. */
+    public final String className;
+    /** Simple name and message of the failure, null unless the analysis failed. */
+    public final String failure;
+    public final long retainedHeapSize;
+    public final boolean excludedLeak;
+    public final long createdAtMillis;
+    public final File resultFile;
+    /** How many analyses found this leak, including the one that saved the result file. */
+    int occurrences = 1;
+
+    /** @param description the class name of a leak, or the failure if signature is null. */
+    Entry(String referenceKey, String signature, String description, long retainedHeapSize,
+        boolean excludedLeak, long createdAtMillis, File resultFile) {
+      this.referenceKey = referenceKey;
+      this.signature = signature;
+      this.className = signature != null ? description : null;
+      this.failure = signature == null ? description : null;
+      this.retainedHeapSize = retainedHeapSize;
+      this.excludedLeak = excludedLeak;
+      this.createdAtMillis = createdAtMillis;
+      this.resultFile = resultFile;
+    }
+  }
+
+  public static File resultFile(HeapDump heapDump) {
+    return new File(heapDump.heapDumpFile.getParentFile(),
+        heapDump.heapDumpFile.getName() + RESULT_SUFFIX);
+  }
+
+  public static Entry summarize(HeapDump heapDump, AnalysisResult result, File resultFile,
+      long createdAtMillis) {
+    String failure = null;
+    if (result.failure != null) {
+      // Decoded failures aren't instances of the original class, but keep its name in toString().
+      String description = result.failure.toString();
+      int separator = description.indexOf(": ");
+      String failureClassName = separator == -1 ? description : description.substring(0, separator);
+      failure = classSimpleName(failureClassName) + " " + result.failure.getMessage();
+      if (failure.length() > MAX_FAILURE_LENGTH) {
+        failure = failure.substring(0, MAX_FAILURE_LENGTH);
+      }
+    }
+    if (failure != null) {
+      return new Entry(heapDump.referenceKey, null, failure, result.retainedHeapSize,
+          result.excludedLeak, createdAtMillis, resultFile);
+    }
+    return new Entry(heapDump.referenceKey, result.leakTrace.signature(), result.className,
+        result.retainedHeapSize, result.excludedLeak, createdAtMillis, resultFile);
+  }
+
+  /** Records a result file that was just saved. */
+  public static void add(Entry entry) {
+    synchronized (LOCK) {
+      File indexFile = new File(entry.resultFile.getParentFile(), INDEX_FILE_NAME);
+      try {
+        append(indexFile, entry.resultFile.getName(), entry);
+      } catch (IOException e) {
+        // The result file will be indexed next time the leaks are loaded.
+        CanaryLog.d(e, "Could not add %s to leak index", entry.resultFile);
+      }
+    }
+  }
+
+  /** Records that a result file was deleted. */
+  public static void remove(File resultFile) {
+    synchronized (LOCK) {
+      File indexFile = new File(resultFile.getParentFile(), INDEX_FILE_NAME);
+      try {
+        append(indexFile, resultFile.getName(), null);
+      } catch (IOException e) {
+        // The missing result file will be dropped next time the leaks are loaded.
+        CanaryLog.d(e, "Could not remove %s from leak index", resultFile);
+      }
+    }
+  }
+
+  /**
+   * Records that an analysis found a leak with the same signature as a saved result in
+   * {@code directory}, without saving a new result file.
+   */
+  public static void addOccurrence(File directory, String signature) {
+    synchronized (LOCK) {
+      File indexFile = new File(directory, INDEX_FILE_NAME);
+      OutputStream out = null;
+      try {
+        out = openForAppend(indexFile);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+        writeOccurrences(output, signature, 1);
+        output.flush();
+      } catch (IOException e) {
+        CanaryLog.d(e, "Could not record occurrence of %s in leak index", signature);
+      } finally {
+        closeQuietly(out);
+      }
+    }
+  }
+
+  /** Same as {@link #signatures(File)} for several directories. */
+  public static Set<String> signatures(List<File> directories) {
+    Set<String> signatures = new HashSet<>();
+    for (File directory : directories) {
+      signatures.addAll(signatures(directory));
+    }
+    return signatures;
+  }
+
+  /**
+   * Returns the first of {@code directories} that indexes a leak with {@code signature}, or null
+   * if there is none.
+   */
+  public static File directoryOf(List<File> directories, String signature) {
+    for (File directory : directories) {
+      if (signatures(directory).contains(signature)) {
+        return directory;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the signatures of the leaks indexed in {@code directory}, without reconciling the
+   * index with the result files. Returns the signatures read so far if the index is corrupted.
+   */
+  public static Set<String> signatures(File directory) {
+    File indexFile = new File(directory, INDEX_FILE_NAME);
+    Map<String, Entry> entriesByFileName = new LinkedHashMap<>();
+    Set<String> signatures = new HashSet<>();
+    synchronized (LOCK) {
+      if (!indexFile.exists()) {
+        return signatures;
+      }
+      InputStream in = null;
+      try {
+        in = new FileInputStream(indexFile);
+        read(new BufferedInputStream(in), directory, entriesByFileName,
+            new HashMap<String, Integer>());
+      } catch (IOException e) {
+        CanaryLog.d(e, "Could not fully read leak index %s", indexFile);
+      } finally {
+        closeQuietly(in);
+      }
+    }
+    for (Entry entry : entriesByFileName.values()) {
+      if (entry.signature != null) {
+        signatures.add(entry.signature);
+      }
+    }
+    return signatures;
+  }
+
+  /**
+   * Returns the entries of all the leak directories, most recent first. Result files that aren't
+   * indexed yet, e.g. written by a previous version, are read once and added to the index.
+   * Unreadable result files are deleted.
+   */
+  public static List<Entry> load(LeakDirectoryProvider leakDirectoryProvider) {
+    List<File> files = leakDirectoryProvider.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String filename) {
+        return filename.endsWith(RESULT_SUFFIX) || filename.equals(INDEX_FILE_NAME);
+      }
+    });
+    Map<File, Set<String>> resultFileNamesByDirectory = new LinkedHashMap<>();
+    for (File file : files) {
+      File directory = file.getParentFile();
+      Set<String> resultFileNames = resultFileNamesByDirectory.get(directory);
+      if (resultFileNames == null) {
+        resultFileNames = new HashSet<>();
+        resultFileNamesByDirectory.put(directory, resultFileNames);
+      }
+      if (!file.getName().equals(INDEX_FILE_NAME)) {
+        resultFileNames.add(file.getName());
+      }
+    }
+    List<Entry> entries = new ArrayList<>();
+    synchronized (LOCK) {
+      for (Map.Entry<File, Set<String>> directory : resultFileNamesByDirectory.entrySet()) {
+        entries.addAll(loadDirectory(directory.getKey(), directory.getValue()));
+      }
+    }
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override public int compare(Entry lhs, Entry rhs) {
+        return Long.valueOf(rhs.createdAtMillis).compareTo(lhs.createdAtMillis);
+      }
+    });
+    return entries;
+  }
+
+  private static List<Entry> loadDirectory(File directory, Set<String> resultFileNames) {
+    File indexFile = new File(directory, INDEX_FILE_NAME);
+    Map<String, Entry> entriesByFileName = new LinkedHashMap<>();
+    Map<String, Integer> extraOccurrences = new HashMap<>();
+    int recordCount = 0;
+    boolean corrupted = false;
+    if (indexFile.exists()) {
+      InputStream in = null;
+      try {
+        in = new FileInputStream(indexFile);
+        recordCount =
+            read(new BufferedInputStream(in), directory, entriesByFileName, extraOccurrences);
+      } catch (IOException e) {
+        CanaryLog.d(e, "Could not fully read leak index %s, rebuilding it.", indexFile);
+        corrupted = true;
+      } finally {
+        closeQuietly(in);
+      }
+    }
+
+    boolean rewrite = corrupted;
+    Set<String> indexedFileNames = new LinkedHashSet<>(entriesByFileName.keySet());
+    for (String fileName : indexedFileNames) {
+      if (!resultFileNames.contains(fileName)) {
+        entriesByFileName.remove(fileName);
+        rewrite = true;
+      }
+    }
+
+    List<Entry> added = new ArrayList<>();
+    for (String fileName : resultFileNames) {
+      if (!entriesByFileName.containsKey(fileName)) {
+        Entry entry = readResultFile(new File(directory, fileName));
+        if (entry != null) {
+          entriesByFileName.put(fileName, entry);
+          added.add(entry);
+        }
+      }
+    }
+
+    for (Entry entry : entriesByFileName.values()) {
+      Integer extra = entry.signature != null ? extraOccurrences.get(entry.signature) : null;
+      if (extra != null) {
+        entry.occurrences += extra;
+      }
+    }
+
+    // Compacts once obsolete records outnumber live ones.
+    int obsoleteRecords = recordCount - (entriesByFileName.size() - added.size());
+    rewrite |= obsoleteRecords > entriesByFileName.size();
+
+    try {
+      if (rewrite) {
+        rewrite(indexFile, entriesByFileName.values());
+      } else {
+        for (Entry entry : added) {
+          append(indexFile, entry.resultFile.getName(), entry);
+        }
+      }
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not update leak index %s", indexFile);
+    }
+    return new ArrayList<>(entriesByFileName.values());
+  }
+
+  private static Entry readResultFile(File resultFile) {
+    InputStream in = null;
+    try {
+      in = new FileInputStream(resultFile);
+      ResultCodec.Entry decoded = ResultCodec.read(new BufferedInputStream(in));
+      if (decoded.result == null) {
+        throw new IOException("No analysis result");
+      }
+      if (decoded.result.leakTrace == null && decoded.result.failure == null) {
+        throw new IOException("No leak trace nor failure");
+      }
+      return summarize(decoded.heapDump, decoded.result, resultFile, resultFile.lastModified());
+    } catch (IOException e) {
+      // Corrupted, or written with Java serialization by an older version.
+      // Let's remove the files, we can't read them anymore.
+      boolean deleted = resultFile.delete();
+      if (deleted) {
+        CanaryLog.d(e, "Could not read result file %s, deleted it.", resultFile);
+      } else {
+        CanaryLog.d(e, "Could not read result file %s, could not delete it either.", resultFile);
+      }
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * Replays the records of an index into {@code entriesByFileName}, and sums the occurrences
+   * recorded per signature into {@code extraOccurrences}.
+   *
+   * @return the number of records read.
+   */
+  private static int read(InputStream in, File directory, Map<String, Entry> entriesByFileName,
+      Map<String, Integer> extraOccurrences) throws IOException {
+    DataInputStream input = new DataInputStream(in);
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Not a leak index");
+    }
+    int version = input.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported leak index version " + version);
+    }
+    int recordCount = 0;
+    while (true) {
+      int type = input.read();
+      if (type == -1) {
+        return recordCount;
+      }
+      if (type == RECORD_OCCURRENCES) {
+        String signature = input.readUTF();
+        int count = input.readInt();
+        Integer previous = extraOccurrences.get(signature);
+        extraOccurrences.put(signature, previous == null ? count : previous + count);
+        recordCount++;
+        continue;
+      }
+      String fileName = input.readUTF();
+      if (type == RECORD_REMOVED) {
+        entriesByFileName.remove(fileName);
+      } else if (type == RECORD_ADDED) {
+        String referenceKey = input.readUTF();
+        String signature = readNullableUTF(input);
+        String description = input.readUTF();
+        long retainedHeapSize = input.readLong();
+        boolean excludedLeak = input.readBoolean();
+        long createdAtMillis = input.readLong();
+        entriesByFileName.put(fileName,
+            new Entry(referenceKey, signature, description, retainedHeapSize, excludedLeak,
+                createdAtMillis, new File(directory, fileName)));
+      } else {
+        throw new IOException("Unknown record type " + type);
+      }
+      recordCount++;
+    }
+  }
+
+  /** @param entry null to record that the result file was removed. */
+  private static void append(File indexFile, String fileName, Entry entry) throws IOException {
+    OutputStream out = null;
+    try {
+      out = openForAppend(indexFile);
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+      writeRecord(output, fileName, entry);
+      output.flush();
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  /** Opens the index for appending, after writing its header if it's new. */
+  private static OutputStream openForAppend(File indexFile) throws IOException {
+    boolean newFile = indexFile.length() == 0;
+    OutputStream out = new FileOutputStream(indexFile, true);
+    if (newFile) {
+      try {
+        DataOutputStream header = new DataOutputStream(out);
+        writeHeader(header);
+        header.flush();
+      } catch (IOException e) {
+        closeQuietly(out);
+        throw e;
+      }
+    }
+    return out;
+  }
+
+  private static void rewrite(File indexFile, Iterable<Entry> entries) throws IOException {
+    File tmpFile = new File(indexFile.getParentFile(), INDEX_FILE_NAME + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tmpFile);
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+      writeHeader(output);
+      Set<String> signatures = new HashSet<>();
+      for (Entry entry : entries) {
+        writeRecord(output, entry.resultFile.getName(), entry);
+        if (entry.occurrences > 1 && signatures.add(entry.signature)) {
+          writeOccurrences(output, entry.signature, entry.occurrences - 1);
+        }
+      }
+      output.flush();
+    } finally {
+      closeQuietly(out);
+    }
+    if (!tmpFile.renameTo(indexFile)) {
+      //noinspection ResultOfMethodCallIgnored
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile + " to " + indexFile);
+    }
+  }
+
+  private static void writeHeader(DataOutputStream output) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+  }
+
+  private static void writeRecord(DataOutputStream output, String fileName, Entry entry)
+      throws IOException {
+    output.writeByte(entry != null ? RECORD_ADDED : RECORD_REMOVED);
+    output.writeUTF(fileName);
+    if (entry != null) {
+      output.writeUTF(entry.referenceKey);
+      writeNullableUTF(output, entry.signature);
+      output.writeUTF(entry.signature != null ? entry.className : entry.failure);
+      output.writeLong(entry.retainedHeapSize);
+      output.writeBoolean(entry.excludedLeak);
+      output.writeLong(entry.createdAtMillis);
+    }
+  }
+
+  private static void writeOccurrences(DataOutputStream output, String signature, int count)
+      throws IOException {
+    output.writeByte(RECORD_OCCURRENCES);
+    output.writeUTF(signature);
+    output.writeInt(count);
+  }
+
+  private static void writeNullableUTF(DataOutputStream output, String value) throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) {
+      output.writeUTF(value);
+    }
+  }
+
+  private static String readNullableUTF(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private LeakIndex() {
+    throw new AssertionError();
+  }
+}
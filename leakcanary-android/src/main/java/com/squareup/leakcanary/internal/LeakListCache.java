@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary.internal;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import com.squareup.leakcanary.DefaultLeakDirectoryProvider;
+import com.squareup.leakcanary.LeakDirectoryProvider;
+import com.squareup.leakcanary.ResultCodec;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.os.FileObserver.CLOSE_WRITE;
+import static android.os.FileObserver.DELETE;
+import static android.os.FileObserver.DELETE_SELF;
+import static android.os.FileObserver.MOVED_FROM;
+import static android.os.FileObserver.MOVED_TO;
+import static android.os.FileObserver.MOVE_SELF;
+
+/**
+ * Process-wide state of {@link DisplayLeakActivity}, kept across activity instances: the leak
+ * summaries, which are only reloaded once a leak directory changes, and the most recently decoded
+ * results.
+ */
+final class LeakListCache {
+
+  /** Called on the main thread when a leak directory changed since the last load. */
+  interface Listener {
+    void onLeakDirectoryChanged();
+  }
+
+  private static final int MAX_DECODED_RESULTS = 8;
+  private static final int OBSERVED_EVENTS =
+      CLOSE_WRITE | MOVED_TO | DELETE | MOVED_FROM | DELETE_SELF | MOVE_SELF;
+
+  /** Result files to their decoded content. Thread-safe. */
+  static final LruCache<File, ResultCodec.Entry> decodedResults =
+      new LruCache<>(MAX_DECODED_RESULTS);
+
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /** Guarded by itself. Referenced so that they keep watching. */
+  private static final Map<File, FileObserver> observers = new HashMap<>();
+  /** Guarded by observers, true if all the leak directories of the last watch are observed. */
+  private static boolean observingAll;
+
+  /** Incremented on every change, from the observer threads. */
+  private static final AtomicInteger changeCount = new AtomicInteger();
+
+  /** Main thread only, null until loaded and once a leak directory changed. */
+  private static List<LeakIndex.Entry> entries;
+  /** Main thread only. */
+  private static Listener listener;
+
+  /**
+   * Returns the entries of the last load, or null if a leak directory changed since, or if a leak
+   * directory isn't observed, e.g. because it doesn't exist yet.
+   */
+  static List<LeakIndex.Entry> entries() {
+    synchronized (observers) {
+      if (!observingAll) {
+        return null;
+      }
+    }
+    return entries;
+  }
+
+  static void setListener(Listener listener) {
+    LeakListCache.listener = listener;
+  }
+
+  /**
+   * Starts watching the leak directories, from a background thread, before loading their
+   * entries.
+   *
+   * @return the change count, to pass to {@link #onLoaded(List, int)}.
+   */
+  static int watch(LeakDirectoryProvider leakDirectoryProvider) {
+    synchronized (observers) {
+      if (!(leakDirectoryProvider instanceof DefaultLeakDirectoryProvider)) {
+        // The directories of other providers are unknown, so the leaks are always reloaded.
+        observingAll = false;
+        return changeCount.get();
+      }
+      boolean observedAll = true;
+      for (File directory : ((DefaultLeakDirectoryProvider) leakDirectoryProvider)
+          .leakDirectories()) {
+        if (observers.containsKey(directory)) {
+          continue;
+        }
+        // Directories can only be observed once they exist, e.g. external storage may not be
+        // writable until the storage permission is granted.
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+          observedAll = false;
+          continue;
+        }
+        FileObserver observer = new LeakDirectoryObserver(directory);
+        observer.startWatching();
+        observers.put(directory, observer);
+      }
+      observingAll = observedAll;
+    }
+    return changeCount.get();
+  }
+
+  /**
+   * Keeps the loaded entries unless a leak directory changed while they were loading.
+   *
+   * @return false if the entries should be loaded again.
+   */
+  static boolean onLoaded(List<LeakIndex.Entry> loadedEntries, int loadChangeCount) {
+    if (loadChangeCount != changeCount.get()) {
+      return false;
+    }
+    entries = loadedEntries;
+    return true;
+  }
+
+  static void onLeakDirectoryChanged() {
+    changeCount.incrementAndGet();
+    mainHandler.post(new Runnable() {
+      @Override public void run() {
+        if (entries == null) {
+          return;
+        }
+        entries = null;
+        if (listener != null) {
+          listener.onLeakDirectoryChanged();
+        }
+      }
+    });
+  }
+
+  static final class LeakDirectoryObserver extends FileObserver {
+    private final File directory;
+
+    LeakDirectoryObserver(File directory) {
+      super(directory.getPath(), OBSERVED_EVENTS);
+      this.directory = directory;
+    }
+
+    @Override public void onEvent(int event, String path) {
+      if ((event & (DELETE_SELF | MOVE_SELF)) != 0) {
+        // Observed again once the next load creates it.
+        synchronized (observers) {
+          if (observers.get(directory) == this) {
+            observers.remove(directory);
+            observingAll = false;
+          }
+        }
+        stopWatching();
+        onLeakDirectoryChanged();
+        return;
+      }
+      if (path != null
+          && (path.endsWith(LeakIndex.RESULT_SUFFIX) || path.equals(LeakIndex.INDEX_FILE_NAME))) {
+        onLeakDirectoryChanged();
+      }
+    }
+  }
+
+  private LeakListCache() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.leakcanary.internal.LeakIndex;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class DefaultLeakDirectoryProviderTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File leakDirectory;
+
+  @Before public void setUp() throws IOException {
+    CanaryLog.setLogger(null);
+    leakDirectory = folder.newFolder("leakcanary");
+  }
+
+  @Test public void evictsHeapDumpsWithoutResultThenFailuresThenLeaks() throws IOException {
+    File newLeak = heapDump("new_leak.hprof", 4000);
+    saveResult(newLeak, leak());
+    File oldLeak = heapDump("old_leak.hprof", 1000);
+    saveResult(oldLeak, leak());
+    File failure = heapDump("failure.hprof", 3000);
+    saveResult(failure, AnalysisResult.failure(new IllegalStateException("failed"), 0));
+    File crashed = heapDump("crashed_pending.hprof", 5000);
+
+    List<File> evictionOrder = DefaultLeakDirectoryProvider.evictionOrder(
+        Arrays.asList(newLeak, oldLeak, failure, crashed), loadLeakIndex(),
+        Collections.<File>emptySet());
+
+    assertEquals(Arrays.asList(crashed, failure, oldLeak, newLeak), evictionOrder);
+  }
+
+  @Test public void keepsQueuedHeapDumps() throws IOException {
+    File leak = heapDump("leak.hprof", 2000);
+    saveResult(leak, leak());
+    File queued = heapDump("queued_pending.hprof", 1000);
+
+    List<File> evictionOrder = DefaultLeakDirectoryProvider.evictionOrder(
+        Arrays.asList(leak, queued), loadLeakIndex(), Collections.singleton(queued));
+
+    assertEquals(Collections.singletonList(leak), evictionOrder);
+  }
+
+  private File heapDump(String fileName, long lastModified) throws IOException {
+    File file = new File(leakDirectory, fileName);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[16]);
+    out.close();
+    //noinspection ResultOfMethodCallIgnored
+    file.setLastModified(lastModified);
+    return file;
+  }
+
+  private static AnalysisResult leak() {
+    LeakTrace leakTrace = new LeakTrace(Collections.singletonList(
+        new LeakTraceElement(null, null, OBJECT, "com.example.Leaky", null, null,
+            Collections.<String>emptyList())));
+    return AnalysisResult.leakDetected(false, "com.example.Leaky", leakTrace, 16, 7);
+  }
+
+  private static void saveResult(File heapDumpFile, AnalysisResult result) throws IOException {
+    HeapDump heapDump = new HeapDump(heapDumpFile, heapDumpFile.getName(), "name",
+        ExcludedRefs.builder().build(), 1, 2, 3);
+    FileOutputStream out = new FileOutputStream(LeakIndex.resultFile(heapDump));
+    ResultCodec.write(heapDump, result, out);
+    out.close();
+  }
+
+  private List<LeakIndex.Entry> loadLeakIndex() {
+    return LeakIndex.load(new LeakDirectoryProvider() {
+      @Override public List<File> listFiles(FilenameFilter filter) {
+        return Arrays.asList(leakDirectory.listFiles(filter));
+      }
+
+      @Override public File newHeapDumpFile() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public void clearLeakDirectory() {
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary.internal;
+
+import com.squareup.leakcanary.AnalysisConfig;
+import com.squareup.leakcanary.CanaryLog;
+import com.squareup.leakcanary.ExcludedRefs;
+import com.squareup.leakcanary.HeapDump;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AnalysisQueueTest {
+
+  private static final String LISTENER = "com.example.Listener";
+  private static final long NOW = DAYS.toMillis(365);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File queueDirectory;
+
+  @Before public void setUp() throws IOException {
+    CanaryLog.setLogger(null);
+    queueDirectory = new File(folder.getRoot(), "queue");
+  }
+
+  @Test public void loadsMostRecentFirst() throws IOException {
+    HeapDump older = heapDump("older");
+    HeapDump recent = heapDump("recent");
+    enqueue(older, LISTENER, false, NOW - 2000);
+    enqueue(recent, LISTENER, true, NOW - 1000);
+
+    List<AnalysisQueue.Job> jobs = AnalysisQueue.load(queueDirectory, NOW);
+
+    assertEquals(2, jobs.size());
+    AnalysisQueue.Job recentJob = jobs.get(0);
+    assertEquals("recent", recentJob.heapDump.referenceKey);
+    assertEquals(recent.heapDumpFile, recentJob.heapDump.heapDumpFile);
+    assertEquals(LISTENER, recentJob.listenerClassName);
+    assertTrue(recentJob.whenIdleAndCharging);
+    assertEquals(NOW - 1000, recentJob.enqueuedAtMillis);
+    assertEquals("older", jobs.get(1).heapDump.referenceKey);
+    assertFalse(jobs.get(1).whenIdleAndCharging);
+  }
+
+  @Test public void cancelsJobsOlderThanAWeek() throws IOException {
+    HeapDump heapDump = heapDump("old");
+    enqueue(heapDump, LISTENER, false, NOW - DAYS.toMillis(8));
+
+    assertTrue(AnalysisQueue.load(queueDirectory, NOW).isEmpty());
+    assertFalse(heapDump.heapDumpFile.exists());
+    assertEquals(0, queueDirectory.list().length);
+  }
+
+  @Test public void cancelsJobsWithDeletedHeapDump() throws IOException {
+    HeapDump heapDump = heapDump("deleted");
+    enqueue(heapDump, LISTENER, false, NOW);
+    assertTrue(heapDump.heapDumpFile.delete());
+
+    assertTrue(AnalysisQueue.load(queueDirectory, NOW).isEmpty());
+    assertEquals(0, queueDirectory.list().length);
+  }
+
+  @Test public void keepsJobsOfEveryKey() throws IOException {
+    enqueue(heapDump("older"), LISTENER, false, NOW - 2000);
+    enqueue(heapDump("recent"), LISTENER, false, NOW - 1000);
+
+    List<AnalysisQueue.Job> jobs = AnalysisQueue.load(queueDirectory, NOW);
+
+    assertEquals(2, jobs.size());
+    assertTrue(jobs.get(1).heapDump.heapDumpFile.exists());
+  }
+
+  @Test public void olderJobsAreEnqueuedBeforeForTheSameListener() throws IOException {
+    enqueue(heapDump("oldest"), LISTENER, true, NOW - 3000);
+    enqueue(heapDump("other"), "com.example.Other", false, NOW - 2500);
+    enqueue(heapDump("older"), LISTENER, false, NOW - 2000);
+    enqueue(heapDump("analyzed"), LISTENER, false, NOW - 1000);
+    enqueue(heapDump("recent"), LISTENER, true, NOW);
+    List<AnalysisQueue.Job> jobs = AnalysisQueue.load(queueDirectory, NOW);
+    AnalysisQueue.Job analyzed = jobs.get(1);
+
+    List<AnalysisQueue.Job> olderJobs = AnalysisQueue.olderJobs(analyzed, jobs);
+
+    assertEquals(2, olderJobs.size());
+    assertEquals("older", olderJobs.get(0).heapDump.referenceKey);
+    assertEquals("oldest", olderJobs.get(1).heapDump.referenceKey);
+  }
+
+  @Test public void cancelDeletesHeapDump() throws IOException {
+    HeapDump heapDump = heapDump("key");
+    enqueue(heapDump, LISTENER, false, NOW);
+
+    AnalysisQueue.cancel(AnalysisQueue.load(queueDirectory, NOW).get(0), "coalesced");
+
+    assertEquals(0, queueDirectory.list().length);
+    assertFalse(heapDump.heapDumpFile.exists());
+  }
+
+  @Test public void deletesCorruptJobFiles() throws IOException {
+    enqueue(heapDump("valid"), LISTENER, false, NOW);
+    File corrupt = new File(queueDirectory, NOW + "_corrupt.job");
+    FileOutputStream out = new FileOutputStream(corrupt);
+    out.write(new byte[] { 0, 0, 0, 1, 0, 42 });
+    out.close();
+
+    List<AnalysisQueue.Job> jobs = AnalysisQueue.load(queueDirectory, NOW);
+
+    assertEquals(1, jobs.size());
+    assertEquals("valid", jobs.get(0).heapDump.referenceKey);
+    assertFalse(corrupt.exists());
+  }
+
+  @Test public void listsQueuedHeapDumpFilesWithoutDeletingAnything() throws IOException {
+    HeapDump heapDump = heapDump("key");
+    enqueue(heapDump, LISTENER, false, NOW - DAYS.toMillis(8));
+    File corrupt = new File(queueDirectory, NOW + "_corrupt.job");
+    assertTrue(corrupt.createNewFile());
+
+    assertEquals(Collections.singleton(heapDump.heapDumpFile),
+        AnalysisQueue.queuedHeapDumpFiles(queueDirectory));
+    assertTrue(heapDump.heapDumpFile.exists());
+    assertTrue(corrupt.exists());
+  }
+
+  @Test public void removeKeepsHeapDump() throws IOException {
+    HeapDump heapDump = heapDump("key");
+    enqueue(heapDump, LISTENER, false, NOW);
+    AnalysisQueue.Job job = AnalysisQueue.load(queueDirectory, NOW).get(0);
+
+    AnalysisQueue.remove(job);
+
+    assertTrue(AnalysisQueue.load(queueDirectory, NOW).isEmpty());
+    assertTrue(heapDump.heapDumpFile.exists());
+  }
+
+  @Test public void keepsAnalysisConfig() throws IOException {
+    AnalysisConfig analysisConfig = AnalysisConfig.builder()
+        .computeRetainedHeapSize(false)
+        .heapHistogramSize(0)
+        .findDestroyedComponents(true)
+        .maxLeakTraces(3)
+        .build();
+    AnalysisQueue.enqueue(queueDirectory, heapDump("key"), LISTENER, false, analysisConfig, NOW);
+
+    AnalysisQueue.Job job = AnalysisQueue.load(queueDirectory, NOW).get(0);
+
+    assertEquals(analysisConfig.toString(), job.analysisConfig.toString());
+  }
+
+  private void enqueue(HeapDump heapDump, String listenerClassName, boolean whenIdleAndCharging,
+      long enqueuedAtMillis) throws IOException {
+    AnalysisQueue.enqueue(queueDirectory, heapDump, listenerClassName, whenIdleAndCharging,
+        AnalysisConfig.DEFAULT, enqueuedAtMillis);
+  }
+
+  private HeapDump heapDump(String referenceKey) throws IOException {
+    return new HeapDump(folder.newFile(referenceKey + ".hprof"), referenceKey, "name",
+        ExcludedRefs.builder().build(), 1, 2, 3);
+  }
+}
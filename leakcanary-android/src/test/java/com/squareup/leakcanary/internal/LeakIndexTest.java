@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary.internal;
+
+import com.squareup.leakcanary.CanaryLog;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class LeakIndexTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File externalDirectory;
+  private File appDirectory;
+  private List<File> directories;
+
+  @Before public void setUp() throws IOException {
+    CanaryLog.setLogger(null);
+    externalDirectory = folder.newFolder("external");
+    appDirectory = folder.newFolder("app");
+    directories = Arrays.asList(externalDirectory, appDirectory);
+  }
+
+  @Test public void mergesSignaturesOfAllDirectories() {
+    String externalSignature = add(externalDirectory, "external");
+    String appSignature = add(appDirectory, "app");
+
+    assertEquals(new HashSet<>(Arrays.asList(externalSignature, appSignature)),
+        LeakIndex.signatures(directories));
+  }
+
+  @Test public void findsDirectoryOfSignature() {
+    String appSignature = add(appDirectory, "app");
+
+    assertEquals(appDirectory, LeakIndex.directoryOf(directories, appSignature));
+    assertNull(LeakIndex.directoryOf(directories, "unknown"));
+  }
+
+  /** Indexes a leak with {@code signature} in {@code directory} and returns the signature. */
+  private static String add(File directory, String signature) {
+    File resultFile = new File(directory, signature + ".hprof.result");
+    LeakIndex.add(new LeakIndex.Entry("key", signature, "com.example.Leaky", 16, false, 0,
+        resultFile));
+    return signature;
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Analyzes every .hprof file in a directory, e.g. heap dumps collected from test devices. Every
+ * {@link KeyedWeakReference} in a heap dump is analyzed, and the results are written next to it
+ * in a .result file, as consecutive {@link ResultCodec} entries.
+ *
+ * <pre>
+ * java -jar leakcanary-cli.jar [--excluded-refs file] [--output directory] [--threads n]
+ *     [--no-retained-size] [--destroyed-components] [--leak-traces n] heap_dump_directory
+ * </pre>
+ *
+ * See {@link ExcludedRefsConfig} for the format of the excluded refs file. By default only
+ * references that never cause leaks are excluded. {@code --no-retained-size} skips computing
+ * dominators, the longest step of each analysis. {@code --destroyed-components} also reports
+ * destroyed activities and fragments that are still reachable, even if they were never watched.
+ * {@code --leak-traces} reports up to n paths to GC roots per leak, held by different instances.
+ */
+public final class BatchAnalyzer {
+
+  static final String HPROF_SUFFIX = ".hprof";
+  static final String RESULT_SUFFIX = ".result";
+
+  /** perflib keeps the whole object graph in memory, a few times the size of the heap dump. */
+  static final int HEAP_BYTES_PER_HEAP_DUMP_BYTE = 3;
+
+  public static void main(String[] args) throws Exception {
+    File excludedRefsFile = null;
+    File outputDirectory = null;
+    int threads = 0;
+    AnalysisConfig.Builder config = AnalysisConfig.builder();
+    File heapDumpDirectory = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--excluded-refs":
+            excludedRefsFile = new File(args[++i]);
+            break;
+          case "--output":
+            outputDirectory = new File(args[++i]);
+            break;
+          case "--threads":
+            threads = Integer.parseInt(args[++i]);
+            break;
+          case "--no-retained-size":
+            config.computeRetainedHeapSize(false);
+            break;
+          case "--destroyed-components":
+            config.findDestroyedComponents(true);
+            break;
+          case "--leak-traces":
+            config.maxLeakTraces(Integer.parseInt(args[++i]));
+            break;
+          default:
+            if (heapDumpDirectory != null) {
+              throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            heapDumpDirectory = new File(args[i]);
+        }
+      }
+      if (heapDumpDirectory == null) {
+        throw new IllegalArgumentException("Missing heap dump directory");
+      }
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Usage: [--excluded-refs file] [--output directory] [--threads n] "
+          + "[--no-retained-size] [--destroyed-components] [--leak-traces n] "
+          + "heap_dump_directory");
+      System.exit(2);
+      return;
+    }
+
+    ExcludedRefs.Builder excludedRefs = createDefaults();
+    if (excludedRefsFile != null) {
+      Reader reader = new InputStreamReader(new FileInputStream(excludedRefsFile),
+          Charset.forName("UTF-8"));
+      try {
+        ExcludedRefsConfig.parse(reader, excludedRefs);
+      } finally {
+        reader.close();
+      }
+    }
+
+    File[] heapDumpFiles = heapDumpDirectory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.endsWith(HPROF_SUFFIX);
+      }
+    });
+    if (heapDumpFiles == null) {
+      System.err.println("Not a directory: " + heapDumpDirectory);
+      System.exit(2);
+      return;
+    }
+    Arrays.sort(heapDumpFiles);
+
+    if (outputDirectory == null) {
+      outputDirectory = heapDumpDirectory;
+    } else if (!outputDirectory.mkdirs() && !outputDirectory.isDirectory()) {
+      System.err.println("Could not create " + outputDirectory);
+      System.exit(2);
+      return;
+    }
+    if (threads <= 0) {
+      long largestHeapDump = 0;
+      for (File heapDumpFile : heapDumpFiles) {
+        largestHeapDump = Math.max(largestHeapDump, heapDumpFile.length());
+      }
+      threads = poolSize(Runtime.getRuntime().maxMemory(), largestHeapDump,
+          Runtime.getRuntime().availableProcessors());
+    }
+
+    BatchAnalyzer batchAnalyzer =
+        new BatchAnalyzer(excludedRefs.build(), config.build(), outputDirectory, System.out);
+    boolean allAnalyzed = batchAnalyzer.analyze(Arrays.asList(heapDumpFiles), threads);
+    System.exit(allAnalyzed ? 0 : 1);
+  }
+
+  /** References that are never the cause of a leak. */
+  static ExcludedRefs.Builder createDefaults() {
+    ExcludedRefs.Builder excluded = ExcludedRefs.builder();
+    excluded.clazz(WeakReference.class.getName()).alwaysExclude();
+    excluded.clazz(SoftReference.class.getName()).alwaysExclude();
+    excluded.clazz(PhantomReference.class.getName()).alwaysExclude();
+    excluded.clazz("java.lang.ref.Finalizer").alwaysExclude();
+    excluded.clazz("java.lang.ref.FinalizerReference").alwaysExclude();
+    return excluded;
+  }
+
+  /**
+   * As many threads as processors, as long as each can hold the object graph of the largest heap
+   * dump in memory. Always at least one thread.
+   */
+  static int poolSize(long maxMemory, long largestHeapDump, int processors) {
+    long memoryPerAnalysis = Math.max(1, largestHeapDump * HEAP_BYTES_PER_HEAP_DUMP_BYTE);
+    long fitting = maxMemory / memoryPerAnalysis;
+    return (int) Math.max(1, Math.min(processors, fitting));
+  }
+
+  /** Outcome of the analysis of one heap dump. */
+  static final class HeapDumpResult {
+    final File heapDumpFile;
+    /** Results by reference key, empty if the heap dump could not be parsed. */
+    final Map<String, AnalysisResult> results;
+    /** Null unless the heap dump could not be parsed or the results could not be written. */
+    final Exception failure;
+    final long durationMs;
+
+    HeapDumpResult(File heapDumpFile, Map<String, AnalysisResult> results, Exception failure,
+        long durationMs) {
+      this.heapDumpFile = heapDumpFile;
+      this.results = results;
+      this.failure = failure;
+      this.durationMs = durationMs;
+    }
+  }
+
+  private final ExcludedRefs excludedRefs;
+  private final AnalysisConfig config;
+  private final File outputDirectory;
+  private final PrintStream out;
+
+  BatchAnalyzer(ExcludedRefs excludedRefs, AnalysisConfig config, File outputDirectory,
+      PrintStream out) {
+    this.excludedRefs = excludedRefs;
+    this.config = config;
+    this.outputDirectory = outputDirectory;
+    this.out = out;
+  }
+
+  /**
+   * Analyzes the heap dumps on {@code threads} threads, printing each outcome as it completes and
+   * then aggregate timings.
+   *
+   * @return false if any heap dump could not be analyzed.
+   */
+  boolean analyze(List<File> heapDumpFiles, int threads) throws InterruptedException {
+    long startNanoTime = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    ExecutorCompletionService<HeapDumpResult> completionService =
+        new ExecutorCompletionService<>(executor);
+    List<HeapDumpResult> heapDumpResults = new ArrayList<>();
+    try {
+      for (final File heapDumpFile : heapDumpFiles) {
+        completionService.submit(new Callable<HeapDumpResult>() {
+          @Override public HeapDumpResult call() {
+            return analyze(heapDumpFile);
+          }
+        });
+      }
+      out.printf(Locale.US, "Analyzing %d heap dumps on %d threads%n", heapDumpFiles.size(),
+          threads);
+      for (int i = 0; i < heapDumpFiles.size(); i++) {
+        Future<HeapDumpResult> future = completionService.take();
+        HeapDumpResult heapDumpResult;
+        try {
+          heapDumpResult = future.get();
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+        heapDumpResults.add(heapDumpResult);
+        long elapsedMs = NANOSECONDS.toMillis(System.nanoTime() - startNanoTime);
+        long remainingMs = elapsedMs * (heapDumpFiles.size() - (i + 1)) / (i + 1);
+        printResult(heapDumpResult, i + 1, heapDumpFiles.size(), remainingMs);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return printSummary(heapDumpResults, NANOSECONDS.toMillis(System.nanoTime() - startNanoTime));
+  }
+
+  HeapDumpResult analyze(File heapDumpFile) {
+    long startNanoTime = System.nanoTime();
+    HeapAnalyzer heapAnalyzer =
+        new HeapAnalyzer(excludedRefs, AnalyzerProgressListener.NONE, config);
+    Map<String, AnalysisResult> results;
+    try {
+      results = heapAnalyzer.checkForLeaks(heapDumpFile, Collections.<String>emptySet());
+    } catch (RuntimeException e) {
+      return new HeapDumpResult(heapDumpFile, Collections.<String, AnalysisResult>emptyMap(), e,
+          NANOSECONDS.toMillis(System.nanoTime() - startNanoTime));
+    }
+    Exception failure = null;
+    try {
+      writeResults(heapDumpFile, results);
+    } catch (IOException e) {
+      failure = e;
+    }
+    return new HeapDumpResult(heapDumpFile, results, failure,
+        NANOSECONDS.toMillis(System.nanoTime() - startNanoTime));
+  }
+
+  private void writeResults(File heapDumpFile, Map<String, AnalysisResult> results)
+      throws IOException {
+    File resultFile = new File(outputDirectory, heapDumpFile.getName() + RESULT_SUFFIX);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(resultFile));
+    try {
+      for (Map.Entry<String, AnalysisResult> entry : results.entrySet()) {
+        HeapDump heapDump = new HeapDump(heapDumpFile, entry.getKey(), "", excludedRefs, 0, 0, 0);
+        ResultCodec.write(heapDump, entry.getValue(), out);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void printResult(HeapDumpResult heapDumpResult, int index, int count,
+      long remainingMs) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.US, "[%d/%d] %s (%d ms, ETA %s)%n", index, count,
+        heapDumpResult.heapDumpFile.getName(), heapDumpResult.durationMs,
+        formatDuration(remainingMs)));
+    if (heapDumpResult.failure != null) {
+      sb.append("  FAILURE ").append(heapDumpResult.failure).append('\n');
+    }
+    for (Map.Entry<String, AnalysisResult> entry : heapDumpResult.results.entrySet()) {
+      AnalysisResult result = entry.getValue();
+      sb.append("  ").append(entry.getKey()).append(": ");
+      if (result.failure != null) {
+        sb.append("FAILURE ").append(result.failure);
+      } else if (!result.leakFound) {
+        sb.append("no leak");
+      } else {
+        if (result.excludedLeak) {
+          sb.append("[excluded] ");
+        }
+        sb.append(result.className);
+        if (config.computeRetainedHeapSize) {
+          sb.append(" retaining ").append(result.retainedHeapSize).append(" bytes");
+        }
+        if (!result.otherLeakTraces.isEmpty()) {
+          sb.append(", ").append(result.otherLeakTraces.size() + 1).append(" paths");
+        }
+      }
+      sb.append('\n');
+    }
+    out.print(sb);
+  }
+
+  private boolean printSummary(List<HeapDumpResult> heapDumpResults, long wallTimeMs) {
+    int leaks = 0;
+    int excludedLeaks = 0;
+    int failures = 0;
+    long totalAnalysisMs = 0;
+    HeapDumpResult slowest = null;
+    Map<String, Integer> leaksByClassName = new LinkedHashMap<>();
+    for (HeapDumpResult heapDumpResult : heapDumpResults) {
+      totalAnalysisMs += heapDumpResult.durationMs;
+      if (slowest == null || heapDumpResult.durationMs > slowest.durationMs) {
+        slowest = heapDumpResult;
+      }
+      if (heapDumpResult.failure != null) {
+        failures++;
+      }
+      for (AnalysisResult result : heapDumpResult.results.values()) {
+        if (result.failure != null) {
+          failures++;
+        } else if (result.excludedLeak) {
+          excludedLeaks++;
+        } else if (result.leakFound) {
+          leaks++;
+          Integer count = leaksByClassName.get(result.className);
+          leaksByClassName.put(result.className, count == null ? 1 : count + 1);
+        }
+      }
+    }
+    out.printf(Locale.US, "%n%d heap dumps: %d leaks, %d excluded leaks, %d failures%n",
+        heapDumpResults.size(), leaks, excludedLeaks, failures);
+    for (Map.Entry<String, Integer> entry : leaksByClassName.entrySet()) {
+      out.printf(Locale.US, "  %5d %s%n", entry.getValue(), entry.getKey());
+    }
+    if (!heapDumpResults.isEmpty()) {
+      out.printf(Locale.US, "Wall time %s, analysis time %s, %d ms per heap dump on average%n",
+          formatDuration(wallTimeMs), formatDuration(totalAnalysisMs),
+          totalAnalysisMs / heapDumpResults.size());
+      out.printf(Locale.US, "Slowest: %s (%d ms)%n", slowest.heapDumpFile.getName(),
+          slowest.durationMs);
+    }
+    return failures == 0;
+  }
+
+  static String formatDuration(long durationMs) {
+    long seconds = durationMs / 1000;
+    if (seconds < 60) {
+      return String.format(Locale.US, "%.1f s", durationMs / 1000f);
+    }
+    return String.format(Locale.US, "%d min %02d s", seconds / 60, seconds % 60);
+  }
+}
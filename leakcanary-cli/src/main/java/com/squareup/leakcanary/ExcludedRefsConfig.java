@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads {@link ExcludedRefs} from a text file with one exclusion per line:
+ *
+ * <pre>
+ * # Comments and blank lines are ignored.
+ * instance_field android.view.inputmethod.InputMethodManager mServedView
+ * static_field android.app.ActivityThread sCurrentActivity always
+ * thread "AsyncTask #1" reason "Tasks are short lived"
+ * class java.lang.ref.WeakReference always
+ * </pre>
+ *
+ * Arguments that contain spaces are quoted. An exclusion can be followed by {@code always}, by
+ * {@code name} and by {@code reason}, see {@link ExcludedRefs.BuilderWithParams}.
+ */
+final class ExcludedRefsConfig {
+
+  static void parse(Reader reader, ExcludedRefs.Builder builder) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    int lineNumber = 0;
+    String line;
+    while ((line = lines.readLine()) != null) {
+      lineNumber++;
+      List<String> tokens;
+      try {
+        tokens = tokenize(line);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage(), e);
+      }
+      if (tokens.isEmpty()) {
+        continue;
+      }
+      try {
+        parseExclusion(tokens, builder);
+      } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        throw new IllegalArgumentException("Line " + lineNumber + ": invalid exclusion " + line,
+            e);
+      }
+    }
+  }
+
+  private static void parseExclusion(List<String> tokens, ExcludedRefs.Builder builder) {
+    String kind = tokens.get(0);
+    ExcludedRefs.BuilderWithParams params;
+    int next;
+    switch (kind) {
+      case "instance_field":
+        params = builder.instanceField(tokens.get(1), tokens.get(2));
+        next = 3;
+        break;
+      case "static_field":
+        params = builder.staticField(tokens.get(1), tokens.get(2));
+        next = 3;
+        break;
+      case "thread":
+        params = builder.thread(tokens.get(1));
+        next = 2;
+        break;
+      case "class":
+        params = builder.clazz(tokens.get(1));
+        next = 2;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown exclusion " + kind);
+    }
+    while (next < tokens.size()) {
+      String option = tokens.get(next++);
+      switch (option) {
+        case "always":
+          params.alwaysExclude();
+          break;
+        case "name":
+          params.named(tokens.get(next++));
+          break;
+        case "reason":
+          params.reason(tokens.get(next++));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + option);
+      }
+    }
+  }
+
+  /** Splits on whitespace, except within double quotes. Stops at the first unquoted #. */
+  static List<String> tokenize(String line) {
+    List<String> tokens = new ArrayList<>();
+    StringBuilder token = null;
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"') {
+          tokens.add(token.toString());
+          token = null;
+          quoted = false;
+        } else {
+          token.append(c);
+        }
+      } else if (c == '#') {
+        break;
+      } else if (c == '"') {
+        if (token != null) {
+          throw new IllegalArgumentException("Unexpected quote at " + i);
+        }
+        token = new StringBuilder();
+        quoted = true;
+      } else if (Character.isWhitespace(c)) {
+        if (token != null) {
+          tokens.add(token.toString());
+          token = null;
+        }
+      } else {
+        if (token == null) {
+          token = new StringBuilder();
+        }
+        token.append(c);
+      }
+    }
+    if (quoted) {
+      throw new IllegalArgumentException("Unterminated quote");
+    }
+    if (token != null) {
+      tokens.add(token.toString());
+    }
+    return tokens;
+  }
+
+  private ExcludedRefsConfig() {
+    throw new AssertionError();
+  }
+}
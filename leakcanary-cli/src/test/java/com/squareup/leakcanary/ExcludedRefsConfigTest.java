@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class ExcludedRefsConfigTest {
+
+  @Test public void tokenizeQuotesAndComments() {
+    assertEquals(asList("thread", "AsyncTask #1", "always"),
+        ExcludedRefsConfig.tokenize("  thread \"AsyncTask #1\"  always # comment"));
+    assertEquals(asList(), ExcludedRefsConfig.tokenize("# only a comment"));
+  }
+
+  @Test public void tokenizeRejectsUnterminatedQuote() {
+    try {
+      ExcludedRefsConfig.tokenize("thread \"AsyncTask");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void parseBuildsExclusions() throws IOException {
+    String config = ""
+        + "# Excluded refs\n"
+        + "\n"
+        + "instance_field com.example.Foo mListener reason \"Cleared in onDestroy\"\n"
+        + "static_field com.example.Bar sInstance always\n"
+        + "thread \"AsyncTask #1\" name \"Short lived\"\n"
+        + "class java.lang.ref.WeakReference always\n";
+    ExcludedRefs.Builder builder = ExcludedRefs.builder();
+    ExcludedRefsConfig.parse(new StringReader(config), builder);
+    ExcludedRefs excludedRefs = builder.build();
+
+    Exclusion field = excludedRefs.fieldNameByClassName.get("com.example.Foo").get("mListener");
+    assertEquals("Cleared in onDestroy", field.reason);
+    assertFalse(field.alwaysExclude);
+    assertTrue(excludedRefs.staticFieldNameByClassName.get("com.example.Bar")
+        .get("sInstance").alwaysExclude);
+    assertEquals("Short lived", excludedRefs.threadNames.get("AsyncTask #1").name);
+    assertTrue(excludedRefs.classNames.get("java.lang.ref.WeakReference").alwaysExclude);
+  }
+
+  @Test public void parseReportsLineOfUnknownExclusion() throws IOException {
+    try {
+      ExcludedRefsConfig.parse(new StringReader("class Foo\nmethod Foo bar\n"),
+          ExcludedRefs.builder());
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().startsWith("Line 2:"));
+    }
+  }
+
+  @Test public void parseRejectsMissingArgument() throws IOException {
+    try {
+      ExcludedRefsConfig.parse(new StringReader("instance_field Foo\n"), ExcludedRefs.builder());
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().startsWith("Line 1:"));
+    }
+  }
+
+  @Test public void poolSizeBoundedByMemoryAndProcessors() {
+    long mb = 1024 * 1024;
+    assertEquals(2, BatchAnalyzer.poolSize(600 * mb, 100 * mb, 8));
+    assertEquals(4, BatchAnalyzer.poolSize(8192 * mb, 100 * mb, 4));
+    assertEquals(1, BatchAnalyzer.poolSize(100 * mb, 100 * mb, 8));
+  }
+}
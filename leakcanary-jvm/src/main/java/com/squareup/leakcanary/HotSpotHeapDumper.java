@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * {@link HeapDumper} backed by {@link HotSpotDiagnosticMXBean#dumpHeap(String, boolean)}, which is
+ * available on HotSpot based JVMs (Oracle JDK, OpenJDK).
+ */
+public final class HotSpotHeapDumper implements HeapDumper {
+
+  private static final Logger LOGGER = Logger.getLogger(HotSpotHeapDumper.class.getName());
+
+  private final File heapDumpDirectory;
+  private final boolean liveObjectsOnly;
+
+  /**
+   * @param liveObjectsOnly if true, only objects that are reachable from others are dumped, which
+   * triggers a full GC and yields a smaller heap dump. Leak analysis only needs live objects.
+   */
+  public HotSpotHeapDumper(File heapDumpDirectory, boolean liveObjectsOnly) {
+    this.heapDumpDirectory = checkNotNull(heapDumpDirectory, "heapDumpDirectory");
+    this.liveObjectsOnly = liveObjectsOnly;
+  }
+
+  @Override public File dumpHeap() {
+    if (!heapDumpDirectory.mkdirs() && !heapDumpDirectory.isDirectory()) {
+      LOGGER.warning("Could not create heap dump directory " + heapDumpDirectory);
+      return RETRY_LATER;
+    }
+    // dumpHeap() fails if the file already exists.
+    File heapDumpFile = new File(heapDumpDirectory, UUID.randomUUID().toString() + ".hprof");
+    try {
+      HotSpotDiagnosticMXBean diagnosticBean =
+          ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      if (diagnosticBean == null) {
+        LOGGER.warning("HotSpotDiagnosticMXBean not available, cannot dump the heap");
+        return RETRY_LATER;
+      }
+      diagnosticBean.dumpHeap(heapDumpFile.getAbsolutePath(), liveObjectsOnly);
+      return heapDumpFile;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Could not dump heap", e);
+      //noinspection ResultOfMethodCallIgnored
+      heapDumpFile.delete();
+      // Abort heap dump
+      return RETRY_LATER;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Logger;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * {@link HeapDump.Listener} that analyzes heap dumps in the current process, on a bounded pool of
+ * daemon worker threads, and reports results to a {@link Callback}. Heap dumps that can't be
+ * queued because the pool is saturated are dropped and deleted.
+ *
+ * Leaks already reported by this listener are reported again as {@link
+ * AnalysisResult#duplicateLeak}, without computing their retained size.
+ */
+public final class InProcessHeapDumpListener implements HeapDump.Listener {
+
+  /** Receives analysis results. */
+  public interface Callback {
+    Callback NONE = new Callback() {
+      @Override public void onHeapAnalyzed(HeapDump heapDump, AnalysisResult result) {
+      }
+    };
+
+    /**
+     * Called after a heap dump is analyzed, whether or not a leak was found, from a worker thread.
+     * It's OK to block here. The heap dump file will be deleted immediately after this callback
+     * returns.
+     */
+    void onHeapAnalyzed(HeapDump heapDump, AnalysisResult result);
+  }
+
+  static final String ANALYZER_THREAD_NAME = "LeakCanary-Analyzer";
+  private static final int DEFAULT_MAX_QUEUED_HEAP_DUMPS = 2;
+  private static final Logger LOGGER = Logger.getLogger(InProcessHeapDumpListener.class.getName());
+
+  private final Executor executor;
+  private final Callback callback;
+  private final Set<String> knownLeakSignatures =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /** Analyzes on a single worker thread, queuing at most a couple of heap dumps. */
+  public InProcessHeapDumpListener(Callback callback) {
+    this(callback, 1, DEFAULT_MAX_QUEUED_HEAP_DUMPS);
+  }
+
+  /**
+   * @param workerThreads the maximum number of heap dumps analyzed concurrently. Analysis loads
+   * the whole heap dump in memory, so keep this low.
+   * @param maxQueuedHeapDumps the maximum number of heap dumps waiting for a worker thread.
+   */
+  public InProcessHeapDumpListener(Callback callback, int workerThreads, int maxQueuedHeapDumps) {
+    this(callback, newBoundedExecutor(workerThreads, maxQueuedHeapDumps));
+  }
+
+  /** The executor should reject work rather than queue an unbounded number of heap dumps. */
+  public InProcessHeapDumpListener(Callback callback, Executor executor) {
+    this.callback = checkNotNull(callback, "callback");
+    this.executor = checkNotNull(executor, "executor");
+  }
+
+  @Override public void analyze(final HeapDump heapDump) {
+    checkNotNull(heapDump, "heapDump");
+    try {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          runAnalysis(heapDump);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.warning("Too many heap dumps waiting for analysis, dropping " + heapDump.heapDumpFile);
+      //noinspection ResultOfMethodCallIgnored
+      heapDump.heapDumpFile.delete();
+    }
+  }
+
+  private static Executor newBoundedExecutor(int workerThreads, int maxQueuedHeapDumps) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(workerThreads, workerThreads, 5, SECONDS,
+        new ArrayBlockingQueue<Runnable>(maxQueuedHeapDumps),
+        new DaemonThreadFactory(ANALYZER_THREAD_NAME));
+    // Analysis is rare, don't keep idle threads around.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  void runAnalysis(HeapDump heapDump) {
+    try {
+      HeapAnalyzer heapAnalyzer = new HeapAnalyzer(heapDump.excludedRefs);
+      AnalysisResult result = heapAnalyzer.checkForLeak(heapDump.heapDumpFile,
+          heapDump.referenceKey, knownLeakSignatures);
+      if (result.leakFound) {
+        knownLeakSignatures.add(result.leakTrace.signature());
+      }
+      callback.onHeapAnalyzed(heapDump, result);
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      heapDump.heapDumpFile.delete();
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.lang.management.ManagementFactory;
+
+/** Detects a debugger by looking for the JDWP agent in the JVM arguments. */
+public final class JvmDebuggerControl implements DebuggerControl {
+
+  private final boolean debuggerAttached;
+
+  public JvmDebuggerControl() {
+    boolean jdwp = false;
+    for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (argument.startsWith("-agentlib:jdwp") || argument.startsWith("-Xrunjdwp")) {
+        jdwp = true;
+        break;
+      }
+    }
+    debuggerAttached = jdwp;
+  }
+
+  @Override public boolean isDebuggerAttached() {
+    return debuggerAttached;
+  }
+}
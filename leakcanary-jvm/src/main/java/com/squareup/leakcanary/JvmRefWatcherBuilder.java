@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A {@link RefWatcherBuilder} with appropriate defaults for a plain HotSpot JVM: heaps are dumped
+ * to the temporary directory and analyzed in process.
+ */
+public final class JvmRefWatcherBuilder extends RefWatcherBuilder<JvmRefWatcherBuilder> {
+
+  private static final long DEFAULT_WATCH_DELAY_MILLIS = SECONDS.toMillis(5);
+  private static final long DEFAULT_MIN_FREE_DISK_BYTES = 500 * 1024 * 1024;
+
+  private File heapDumpDirectory = new File(System.getProperty("java.io.tmpdir"), "leakcanary");
+
+  /**
+   * Sets a custom delay for how long the {@link RefWatcher} should wait until it checks if a
+   * tracked object has been garbage collected. This overrides any call to {@link
+   * #watchExecutor(WatchExecutor)}.
+   */
+  public JvmRefWatcherBuilder watchDelay(long delay, TimeUnit unit) {
+    return watchExecutor(new JvmWatchExecutor(unit.toMillis(delay)));
+  }
+
+  /**
+   * Sets the directory where the default {@link HeapDumper} writes heap dumps, and where the
+   * default {@link HeapDumpGovernor} checks for free disk space.
+   */
+  public JvmRefWatcherBuilder heapDumpDirectory(File heapDumpDirectory) {
+    this.heapDumpDirectory = heapDumpDirectory;
+    return this;
+  }
+
+  /**
+   * Sets a {@link InProcessHeapDumpListener.Callback} to receive analysis results. This overrides
+   * any call to {@link #heapDumpListener(HeapDump.Listener)}.
+   */
+  public JvmRefWatcherBuilder analysisCallback(InProcessHeapDumpListener.Callback callback) {
+    return heapDumpListener(new InProcessHeapDumpListener(callback));
+  }
+
+  @Override protected HeapDumper defaultHeapDumper() {
+    return new HotSpotHeapDumper(heapDumpDirectory, true);
+  }
+
+  @Override protected DebuggerControl defaultDebuggerControl() {
+    return new JvmDebuggerControl();
+  }
+
+  @Override protected HeapDump.Listener defaultHeapDumpListener() {
+    return new InProcessHeapDumpListener(InProcessHeapDumpListener.Callback.NONE);
+  }
+
+  @Override protected ExcludedRefs defaultExcludedRefs() {
+    return createJvmDefaults().build();
+  }
+
+  @Override protected WatchExecutor defaultWatchExecutor() {
+    return new JvmWatchExecutor(DEFAULT_WATCH_DELAY_MILLIS);
+  }
+
+  @Override protected HeapDumpGovernor defaultHeapDumpGovernor() {
+    return RateLimitedHeapDumpGovernor.builder()
+        .minFreeDisk(heapDumpDirectory, DEFAULT_MIN_FREE_DISK_BYTES)
+        .build();
+  }
+
+  /** References that are never the cause of a leak on a JVM. */
+  public static ExcludedRefs.Builder createJvmDefaults() {
+    ExcludedRefs.Builder excluded = ExcludedRefs.builder();
+    excluded.clazz(WeakReference.class.getName()).alwaysExclude();
+    excluded.clazz(SoftReference.class.getName()).alwaysExclude();
+    excluded.clazz(PhantomReference.class.getName()).alwaysExclude();
+    excluded.clazz("java.lang.ref.Finalizer").alwaysExclude();
+    // Holds on to the last watched reference while checking it.
+    excluded.thread(JvmWatchExecutor.LEAK_CANARY_THREAD_NAME).alwaysExclude();
+    return excluded;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * {@link WatchExecutor} suitable for watching reference leaks on a plain JVM. Posts to a serial
+ * daemon background thread with the delay specified by
+ * {@link JvmRefWatcherBuilder#watchDelay(long, TimeUnit)}, backing off exponentially on retries.
+ */
+public final class JvmWatchExecutor implements WatchExecutor {
+
+  static final String LEAK_CANARY_THREAD_NAME = "LeakCanary-Heap-Dump";
+  private final ScheduledExecutorService executor;
+  private final long initialDelayMillis;
+  private final long maxBackoffFactor;
+
+  public JvmWatchExecutor(long initialDelayMillis) {
+    this(new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(LEAK_CANARY_THREAD_NAME)),
+        initialDelayMillis);
+  }
+
+  /** The executor should be serial: {@link RefWatcher} does not expect concurrent checks. */
+  public JvmWatchExecutor(ScheduledExecutorService executor, long initialDelayMillis) {
+    if (initialDelayMillis < 1) {
+      throw new IllegalArgumentException("initialDelayMillis must be at least 1");
+    }
+    this.executor = executor;
+    this.initialDelayMillis = initialDelayMillis;
+    maxBackoffFactor = Long.MAX_VALUE / initialDelayMillis;
+  }
+
+  @Override public void execute(Retryable retryable) {
+    scheduleWithDelay(retryable, 0);
+  }
+
+  void scheduleWithDelay(final Retryable retryable, final int failedAttempts) {
+    long exponentialBackoffFactor = (long) Math.min(Math.pow(2, failedAttempts), maxBackoffFactor);
+    long delayMillis = initialDelayMillis * exponentialBackoffFactor;
+    executor.schedule(new Runnable() {
+      @Override public void run() {
+        Retryable.Result result = retryable.run();
+        if (result == RETRY) {
+          scheduleWithDelay(retryable, failedAttempts + 1);
+        }
+      }
+    }, delayMillis, MILLISECONDS);
+  }
+}
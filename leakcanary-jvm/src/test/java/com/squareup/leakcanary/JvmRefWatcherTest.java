@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Dumps and analyzes the heap of the JVM running the test. */
+@RunWith(JUnit4.class)
+public class JvmRefWatcherTest {
+
+  static class Leaky {
+  }
+
+  @SuppressWarnings("unused") static Object leakyHolder;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private HeapDump heapDump;
+  private AnalysisResult result;
+  private CountDownLatch analyzed;
+
+  @Before public void setUp() {
+    analyzed = new CountDownLatch(1);
+  }
+
+  @After public void tearDown() {
+    leakyHolder = null;
+  }
+
+  @Test public void leakingInstanceFound() throws InterruptedException {
+    File heapDumpDirectory = temporaryFolder.getRoot();
+    RefWatcher refWatcher = new JvmRefWatcherBuilder().watchDelay(1, MILLISECONDS)
+        .heapDumpDirectory(heapDumpDirectory)
+        .analysisCallback(new InProcessHeapDumpListener.Callback() {
+          @Override public void onHeapAnalyzed(HeapDump heapDump, AnalysisResult result) {
+            JvmRefWatcherTest.this.heapDump = heapDump;
+            JvmRefWatcherTest.this.result = result;
+            analyzed.countDown();
+          }
+        })
+        .build();
+
+    // No local variable, the test thread would otherwise be the shortest path to the leak.
+    leakyHolder = new Leaky();
+    refWatcher.watch(leakyHolder, "leaky");
+
+    assertThat(analyzed.await(1, TimeUnit.MINUTES)).isTrue();
+    assertThat(result.failure).isNull();
+    assertThat(result.leakFound).isTrue();
+    assertThat(result.className).isEqualTo(Leaky.class.getName());
+    List<LeakTraceElement> elements = result.leakTrace.elements;
+    LeakTraceElement holder = elements.get(elements.size() - 2);
+    assertThat(holder.className).isEqualTo(JvmRefWatcherTest.class.getName());
+    assertThat(holder.referenceName).isEqualTo("leakyHolder");
+    assertThat(heapDump.referenceName).isEqualTo("leaky");
+  }
+}
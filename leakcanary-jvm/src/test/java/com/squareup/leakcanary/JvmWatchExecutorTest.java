@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.Retryable.Result.DONE;
+import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class JvmWatchExecutorTest {
+
+  @Test public void retriesUntilDone() throws InterruptedException {
+    JvmWatchExecutor executor = new JvmWatchExecutor(1);
+    final AtomicInteger runs = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(1);
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        if (runs.incrementAndGet() < 3) {
+          return RETRY;
+        }
+        done.countDown();
+        return DONE;
+      }
+    });
+    assertTrue(done.await(5, SECONDS));
+    assertEquals(3, runs.get());
+  }
+
+  @Test public void runsOnDaemonThread() throws InterruptedException {
+    JvmWatchExecutor executor = new JvmWatchExecutor(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    final Thread[] thread = new Thread[1];
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        thread[0] = Thread.currentThread();
+        done.countDown();
+        return DONE;
+      }
+    });
+    assertTrue(done.await(5, SECONDS));
+    assertTrue(thread[0].isDaemon());
+    assertEquals(JvmWatchExecutor.LEAK_CANARY_THREAD_NAME, thread[0].getName());
+  }
+}
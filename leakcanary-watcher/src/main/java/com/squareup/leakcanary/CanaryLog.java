@@ -1,6 +1,8 @@
 package com.squareup.leakcanary;
 
-import android.util.Log;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
 
 public final class CanaryLog {
 
@@ -12,23 +14,52 @@ public final class CanaryLog {
     void d(Throwable throwable, String message, Object... args);
   }
 
+  /**
+   * Logs to logcat on Android. This module doesn't depend on Android, so {@code
+   * android.util.Log} is looked up at runtime, and logs go to {@link System#out} without it.
+   */
   private static class DefaultLogger implements Logger {
-    DefaultLogger() { }
+    private static final String TAG = "LeakCanary";
+
+    /** android.util.Log#d(String, String), null outside of Android. */
+    private final Method logcat;
+
+    DefaultLogger() {
+      Method method;
+      try {
+        method = Class.forName("android.util.Log").getMethod("d", String.class, String.class);
+      } catch (Exception e) {
+        method = null;
+      }
+      logcat = method;
+    }
 
     @Override public void d(String message, Object... args) {
       String formatted = String.format(message, args);
-      if (formatted.length() < 4000) {
-        Log.d("LeakCanary", formatted);
+      if (logcat == null) {
+        System.out.println(TAG + ": " + formatted);
+      } else if (formatted.length() < 4000) {
+        logcat(formatted);
       } else {
         String[] lines = formatted.split("\n");
         for (String line : lines) {
-          Log.d("LeakCanary", line);
+          logcat(line);
         }
       }
     }
 
     @Override public void d(Throwable throwable, String message, Object... args) {
-      d(String.format(message, args) + '\n' + Log.getStackTraceString(throwable));
+      StringWriter stackTrace = new StringWriter();
+      throwable.printStackTrace(new PrintWriter(stackTrace));
+      d("%s", String.format(message, args) + '\n' + stackTrace);
+    }
+
+    private void logcat(String line) {
+      try {
+        logcat.invoke(null, TAG, line);
+      } catch (Exception e) {
+        System.out.println(TAG + ": " + line);
+      }
     }
   }
 
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * Decides whether {@link RefWatcher} may dump the heap when it finds a retained reference. Dumping
+ * the heap freezes the process and writes a large file, so a leaky build should not do it over
+ * and over again.
+ */
+public interface HeapDumpGovernor {
+  HeapDumpGovernor NONE = new HeapDumpGovernor() {
+    @Override public Verdict beforeHeapDump() {
+      return Verdict.DUMP;
+    }
+
+    @Override public void onHeapDumped() {
+    }
+  };
+
+  /** Called before every heap dump. */
+  Verdict beforeHeapDump();
+
+  /** Called after the heap was dumped, following a {@link Verdict#DUMP} verdict. */
+  void onHeapDumped();
+
+  /** The outcome of {@link #beforeHeapDump()}. */
+  final class Verdict {
+
+    public enum Action {
+      /** Dump the heap now. */
+      DUMP,
+      /** Check the reference again later, with the next {@link WatchExecutor} backoff. */
+      RETRY,
+      /** Give up on the reference, the heap will not be dumped for it. */
+      DROP
+    }
+
+    public static final Verdict DUMP = new Verdict(Action.DUMP, "");
+
+    public static Verdict retry(String reason) {
+      return new Verdict(Action.RETRY, reason);
+    }
+
+    public static Verdict drop(String reason) {
+      return new Verdict(Action.DROP, reason);
+    }
+
+    public final Action action;
+    /** Why the heap should not be dumped now, empty for {@link #DUMP}. */
+    public final String reason;
+
+    private Verdict(Action action, String reason) {
+      this.action = action;
+      this.reason = checkNotNull(reason, "reason");
+    }
+
+    @Override public String toString() {
+      return reason.isEmpty() ? action.name() : action + " (" + reason + ")";
+    }
+  }
+}
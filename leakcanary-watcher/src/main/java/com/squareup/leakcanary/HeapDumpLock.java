@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * Serializes heap dumps and heap analysis across processes, with a {@link FileLock} on a lock
+ * file that all processes of an app can reach. The lock file holds a description of the current
+ * holder, see {@link #currentHolder()}.
+ *
+ * <p>File locks are held on behalf of the whole process, so locks of the same file are also
+ * serialized between the instances of this class in a process.
+ *
+ * <p>The lock file must never be deleted while in use, it would let two processes hold a lock at
+ * the same time.
+ */
+public final class HeapDumpLock {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Paths of the lock files held in this process, guarded by itself. */
+  private static final Set<String> LOCKED_PATHS = new HashSet<>();
+
+  private final File lockFile;
+  private final String path;
+  /** Guarded by this, null unless locked. */
+  private RandomAccessFile lockedFile;
+  /** Guarded by this, null unless locked. */
+  private FileLock fileLock;
+
+  public HeapDumpLock(File lockFile) {
+    this.lockFile = checkNotNull(lockFile, "lockFile");
+    path = lockFile.getAbsolutePath();
+  }
+
+  /**
+   * Acquires the lock unless it is held, by another process or in this process.
+   *
+   * @param holder Describes the new holder, e.g. its process and what it is doing.
+   * @return false if the lock is held.
+   */
+  public synchronized boolean tryLock(String holder) throws IOException {
+    checkNotNull(holder, "holder");
+    synchronized (LOCKED_PATHS) {
+      if (fileLock != null || !LOCKED_PATHS.add(path)) {
+        return false;
+      }
+    }
+    boolean locked = false;
+    try {
+      RandomAccessFile file = open();
+      try {
+        FileLock lock;
+        try {
+          lock = file.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+          // Locked in this process but not through this class.
+          return false;
+        }
+        if (lock == null) {
+          return false;
+        }
+        onLocked(file, lock, holder);
+        locked = true;
+        return true;
+      } finally {
+        if (!locked) {
+          closeQuietly(file);
+        }
+      }
+    } finally {
+      if (!locked) {
+        releasePath();
+      }
+    }
+  }
+
+  /**
+   * Acquires the lock, waiting for other processes and for other instances in this process to
+   * release it.
+   *
+   * @param holder Describes the new holder, e.g. its process and what it is doing.
+   */
+  public synchronized void lock(String holder) throws IOException, InterruptedException {
+    checkNotNull(holder, "holder");
+    if (fileLock != null) {
+      throw new IllegalStateException("Already locked by " + currentHolder());
+    }
+    synchronized (LOCKED_PATHS) {
+      while (!LOCKED_PATHS.add(path)) {
+        LOCKED_PATHS.wait();
+      }
+    }
+    boolean locked = false;
+    try {
+      RandomAccessFile file = open();
+      try {
+        onLocked(file, file.getChannel().lock(), holder);
+        locked = true;
+      } finally {
+        if (!locked) {
+          closeQuietly(file);
+        }
+      }
+    } finally {
+      if (!locked) {
+        releasePath();
+      }
+    }
+  }
+
+  /** Releases the lock if this instance holds it. */
+  public synchronized void unlock() {
+    if (fileLock == null) {
+      return;
+    }
+    try {
+      fileLock.release();
+    } catch (IOException e) {
+      // Closing the file releases the lock anyway.
+    }
+    closeQuietly(lockedFile);
+    fileLock = null;
+    lockedFile = null;
+    releasePath();
+  }
+
+  public synchronized boolean isHeldByThisInstance() {
+    return fileLock != null;
+  }
+
+  /**
+   * Returns the description of the current holder, in any process, or null if the lock isn't
+   * held. Checking whether another process holds the lock briefly acquires it, which can make a
+   * concurrent {@link #tryLock(String)} fail.
+   */
+  public String currentHolder() throws IOException {
+    synchronized (LOCKED_PATHS) {
+      if (LOCKED_PATHS.contains(path)) {
+        return readHolder();
+      }
+      if (!lockFile.exists()) {
+        return null;
+      }
+      RandomAccessFile file = open();
+      try {
+        FileLock lock;
+        try {
+          lock = file.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+          // Locked in this process but not through this class.
+          return readHolder();
+        }
+        if (lock == null) {
+          return readHolder();
+        }
+        lock.release();
+        return null;
+      } finally {
+        closeQuietly(file);
+      }
+    }
+  }
+
+  private RandomAccessFile open() throws IOException {
+    File parent = lockFile.getParentFile();
+    if (parent != null && !parent.mkdirs() && !parent.exists()) {
+      throw new IOException("Could not create " + parent);
+    }
+    return new RandomAccessFile(lockFile, "rw");
+  }
+
+  private void onLocked(RandomAccessFile file, FileLock lock, String holder) throws IOException {
+    FileChannel channel = file.getChannel();
+    channel.truncate(0);
+    channel.write(ByteBuffer.wrap(holder.getBytes(UTF_8)), 0);
+    lockedFile = file;
+    fileLock = lock;
+  }
+
+  private String readHolder() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(lockFile, "r");
+    try {
+      byte[] bytes = new byte[(int) file.length()];
+      file.readFully(bytes);
+      return new String(bytes, UTF_8);
+    } finally {
+      closeQuietly(file);
+    }
+  }
+
+  private void releasePath() {
+    synchronized (LOCKED_PATHS) {
+      LOCKED_PATHS.remove(path);
+      LOCKED_PATHS.notifyAll();
+    }
+  }
+
+  private static void closeQuietly(RandomAccessFile file) {
+    try {
+      file.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -17,18 +17,58 @@ package com.squareup.leakcanary;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.List;
 
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
 
 /** @see {@link HeapDump#referenceKey}. */
-final class KeyedWeakReference extends WeakReference<Object> {
+final class KeyedWeakReference extends WeakReference<Object> implements Watched {
   public final String key;
   public final String name;
+  final long watchStartNanoTime;
+  /** Null unless watched with {@link RefWatcher#watchForResult(Object, String)}. */
+  final WatchHandle handle;
+  /** Whether a {@link RefWatcher} check already found this reference retained. */
+  private boolean retained;
 
   KeyedWeakReference(Object referent, String key, String name,
-      ReferenceQueue<Object> referenceQueue) {
+      ReferenceQueue<Object> referenceQueue, long watchStartNanoTime) {
+    this(referent, key, name, referenceQueue, watchStartNanoTime, null);
+  }
+
+  KeyedWeakReference(Object referent, String key, String name,
+      ReferenceQueue<Object> referenceQueue, long watchStartNanoTime, WatchHandle handle) {
     super(checkNotNull(referent, "referent"), checkNotNull(referenceQueue, "referenceQueue"));
     this.key = checkNotNull(key, "key");
     this.name = checkNotNull(name, "name");
+    this.watchStartNanoTime = watchStartNanoTime;
+    this.handle = handle;
+  }
+
+  @Override public String key() {
+    return key;
+  }
+
+  @Override public String name() {
+    return name;
+  }
+
+  @Override public boolean markRetained() {
+    if (retained) {
+      return false;
+    }
+    retained = true;
+    return true;
+  }
+
+  @Override public WatchHandle handle() {
+    return handle;
+  }
+
+  @Override public void addRetainedInstances(List<Object> instances) {
+    Object instance = get();
+    if (instance != null) {
+      instances.add(instance);
+    }
   }
 }
\ No newline at end of file
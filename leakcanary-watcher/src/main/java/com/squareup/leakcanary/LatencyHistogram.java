@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative values, with buckets of exponentially increasing size: the
+ * first 16 buckets hold a single value each, then every power of two range is split into 16
+ * buckets. Values are recorded with a relative error of at most 1/16 over the whole {@code long}
+ * range, using a fixed amount of memory, and recording does not allocate.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Negative values are recorded as 0. */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketIndex(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax;
+    while ((currentMax = max.get()) < value) {
+      if (max.compareAndSet(currentMax, value)) {
+        break;
+      }
+    }
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long count = this.count.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * Returns the largest value that is equivalent to the value at the given percentile, or 0 if
+   * nothing was recorded.
+   *
+   * @param percentile between 0 and 100.
+   */
+  public long valueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be in [0, 100], not " + percentile);
+    }
+    long totalCount = count.get();
+    if (totalCount == 0) {
+      return 0;
+    }
+    long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= countAtPercentile) {
+        return Math.min(bucketHighestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** Number of buckets, for exporting the histogram with {@link #bucketCount(int)}. */
+  public int buckets() {
+    return BUCKET_COUNT;
+  }
+
+  public long bucketCount(int bucket) {
+    return counts.get(bucket);
+  }
+
+  /** Smallest value recorded in the given bucket. */
+  public long bucketLowestValue(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+    int subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    return (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+  }
+
+  /** Largest value recorded in the given bucket. */
+  public long bucketHighestValue(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : bucketLowestValue(bucket + 1) - 1;
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  @Override public String toString() {
+    return "count=" + count() + ", mean=" + (long) mean() + ", p50=" + valueAtPercentile(50)
+        + ", p90=" + valueAtPercentile(90) + ", p99=" + valueAtPercentile(99) + ", max=" + max();
+  }
+}
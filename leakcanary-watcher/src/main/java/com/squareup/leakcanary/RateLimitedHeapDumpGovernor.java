@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+
+import static com.squareup.leakcanary.HeapDumpGovernor.Verdict.drop;
+import static com.squareup.leakcanary.HeapDumpGovernor.Verdict.retry;
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * {@link HeapDumpGovernor} that limits how often the heap is dumped with a token bucket (at most
+ * {@link Builder#maxHeapDumpsPerHour(int)}, with bursts of that size) and a minimum interval
+ * between two heap dumps, and that requires enough free disk space and free memory.
+ *
+ * Rate limits and low memory are transient, so they yield {@link Verdict.Action#RETRY}. Low disk
+ * space yields {@link Verdict.Action#DROP}: waiting won't fix it and retrying would keep every
+ * retained reference alive in the {@link WatchExecutor}.
+ */
+public final class RateLimitedHeapDumpGovernor implements HeapDumpGovernor {
+
+  /** Measures free memory, in bytes. */
+  public interface FreeMemory {
+    /** Heap space left before the Java heap reaches its maximum size. */
+    FreeMemory JAVA_HEAP = new FreeMemory() {
+      @Override public long freeMemoryBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+      }
+    };
+
+    long freeMemoryBytes();
+  }
+
+  /** The directory heap dumps are written to, which can change between heap dumps. */
+  public interface HeapDumpDirectory {
+    /** Null if there is nowhere to write heap dumps to right now. */
+    File heapDumpDirectory();
+  }
+
+  interface Clock {
+    Clock SYSTEM = new Clock() {
+      @Override public long nanoTime() {
+        return System.nanoTime();
+      }
+    };
+
+    long nanoTime();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final int maxHeapDumpsPerHour;
+  private final long minIntervalNanos;
+  private final HeapDumpDirectory heapDumpDirectory;
+  private final long minFreeDiskBytes;
+  private final FreeMemory freeMemory;
+  private final long minFreeMemoryBytes;
+  private final Clock clock;
+  private final long nanosPerToken;
+
+  // Guarded by this.
+  private double tokens;
+  private long lastRefillNanos;
+  private long lastHeapDumpNanos;
+  private boolean dumpedOnce;
+
+  RateLimitedHeapDumpGovernor(Builder builder, Clock clock) {
+    maxHeapDumpsPerHour = builder.maxHeapDumpsPerHour;
+    minIntervalNanos = builder.minIntervalNanos;
+    heapDumpDirectory = builder.heapDumpDirectory;
+    minFreeDiskBytes = builder.minFreeDiskBytes;
+    freeMemory = builder.freeMemory;
+    minFreeMemoryBytes = builder.minFreeMemoryBytes;
+    this.clock = clock;
+    nanosPerToken = HOURS.toNanos(1) / maxHeapDumpsPerHour;
+    tokens = maxHeapDumpsPerHour;
+    lastRefillNanos = clock.nanoTime();
+  }
+
+  @Override public synchronized Verdict beforeHeapDump() {
+    long now = clock.nanoTime();
+    refill(now);
+    if (tokens < 1) {
+      return retry("At most " + maxHeapDumpsPerHour + " heap dumps per hour");
+    }
+    if (dumpedOnce && now - lastHeapDumpNanos < minIntervalNanos) {
+      return retry("Less than " + NANOSECONDS.toSeconds(minIntervalNanos)
+          + " seconds since last heap dump");
+    }
+    File directory = heapDumpDirectory != null ? heapDumpDirectory.heapDumpDirectory() : null;
+    if (directory != null) {
+      long usableSpace = directory.getUsableSpace();
+      // 0 when the directory does not exist yet, the heap dumper takes care of that.
+      if (usableSpace != 0 && usableSpace < minFreeDiskBytes) {
+        return drop("Only " + usableSpace + " bytes free in " + directory + ", needs "
+            + minFreeDiskBytes);
+      }
+    }
+    long freeMemoryBytes = freeMemory.freeMemoryBytes();
+    if (freeMemoryBytes < minFreeMemoryBytes) {
+      return retry(
+          "Only " + freeMemoryBytes + " bytes of free memory, needs " + minFreeMemoryBytes);
+    }
+    return Verdict.DUMP;
+  }
+
+  @Override public synchronized void onHeapDumped() {
+    long now = clock.nanoTime();
+    refill(now);
+    tokens = Math.max(0, tokens - 1);
+    lastHeapDumpNanos = now;
+    dumpedOnce = true;
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(maxHeapDumpsPerHour,
+        tokens + (double) (now - lastRefillNanos) / nanosPerToken);
+    lastRefillNanos = now;
+  }
+
+  public static final class Builder {
+    int maxHeapDumpsPerHour = 3;
+    long minIntervalNanos = MINUTES.toNanos(1);
+    HeapDumpDirectory heapDumpDirectory;
+    long minFreeDiskBytes;
+    FreeMemory freeMemory = FreeMemory.JAVA_HEAP;
+    long minFreeMemoryBytes;
+
+    Builder() {
+    }
+
+    /** Size of the token bucket, and the rate at which it refills. Defaults to 3. */
+    public Builder maxHeapDumpsPerHour(int maxHeapDumpsPerHour) {
+      if (maxHeapDumpsPerHour < 1) {
+        throw new IllegalArgumentException(
+            "maxHeapDumpsPerHour must be at least 1, not " + maxHeapDumpsPerHour);
+      }
+      this.maxHeapDumpsPerHour = maxHeapDumpsPerHour;
+      return this;
+    }
+
+    /** Minimum time between two heap dumps. Defaults to 1 minute. */
+    public Builder minIntervalMillis(long minIntervalMillis) {
+      minIntervalNanos = MILLISECONDS.toNanos(minIntervalMillis);
+      return this;
+    }
+
+    /**
+     * Heap dumps are dropped if the file system of this directory has less than {@code
+     * minFreeDiskBytes} of usable space. No check unless set.
+     */
+    public Builder minFreeDisk(final File heapDumpDirectory, long minFreeDiskBytes) {
+      checkNotNull(heapDumpDirectory, "heapDumpDirectory");
+      return minFreeDisk(new HeapDumpDirectory() {
+        @Override public File heapDumpDirectory() {
+          return heapDumpDirectory;
+        }
+      }, minFreeDiskBytes);
+    }
+
+    /**
+     * Same as {@link #minFreeDisk(File, long)}, for heap dumpers that pick a directory on every
+     * heap dump.
+     */
+    public Builder minFreeDisk(HeapDumpDirectory heapDumpDirectory, long minFreeDiskBytes) {
+      this.heapDumpDirectory = checkNotNull(heapDumpDirectory, "heapDumpDirectory");
+      this.minFreeDiskBytes = minFreeDiskBytes;
+      return this;
+    }
+
+    /**
+     * Heap dumps are retried later while free memory is under {@code minFreeMemoryBytes}. Defaults
+     * to {@link FreeMemory#JAVA_HEAP} with no minimum.
+     */
+    public Builder minFreeMemory(FreeMemory freeMemory, long minFreeMemoryBytes) {
+      this.freeMemory = checkNotNull(freeMemory, "freeMemory");
+      this.minFreeMemoryBytes = minFreeMemoryBytes;
+      return this;
+    }
+
+    public RateLimitedHeapDumpGovernor build() {
+      return new RateLimitedHeapDumpGovernor(this, Clock.SYSTEM);
+    }
+  }
+}
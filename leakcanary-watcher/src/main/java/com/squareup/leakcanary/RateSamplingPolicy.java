@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link SamplingPolicy} that watches references in a random fraction of sessions (a session
+ * being the lifetime of this object, typically the process), then 1 in N references of each class,
+ * and no more than a fixed number of references at a time.
+ */
+public final class RateSamplingPolicy implements SamplingPolicy {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final boolean sessionSampled;
+  private final int oneInNPerClass;
+  private final int maxOutstandingWatches;
+  /** Keyed by class name rather than class, to not keep class loaders alive. */
+  private final ConcurrentMap<String, AtomicInteger> countsByClassName;
+
+  RateSamplingPolicy(Builder builder, Random random) {
+    sessionSampled = random.nextDouble() < builder.sessionSampleRate;
+    oneInNPerClass = builder.oneInNPerClass;
+    maxOutstandingWatches = builder.maxOutstandingWatches;
+    countsByClassName = new ConcurrentHashMap<>();
+  }
+
+  /** Whether this session was picked, in which case references may be watched. */
+  public boolean isSessionSampled() {
+    return sessionSampled;
+  }
+
+  @Override public boolean shouldWatch(Object watchedReference, int outstandingWatches) {
+    if (!sessionSampled || outstandingWatches >= maxOutstandingWatches) {
+      return false;
+    }
+    if (oneInNPerClass == 1) {
+      return true;
+    }
+    String className = watchedReference.getClass().getName();
+    AtomicInteger count = countsByClassName.get(className);
+    if (count == null) {
+      AtomicInteger newCount = new AtomicInteger();
+      count = countsByClassName.putIfAbsent(className, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    // The first reference of each class is always watched.
+    return count.getAndIncrement() % oneInNPerClass == 0;
+  }
+
+  public static final class Builder {
+    double sessionSampleRate = 1;
+    int oneInNPerClass = 1;
+    int maxOutstandingWatches = Integer.MAX_VALUE;
+
+    Builder() {
+    }
+
+    /** Probability that references are watched at all in this session, defaults to 1. */
+    public Builder sessionSampleRate(double sessionSampleRate) {
+      if (sessionSampleRate < 0 || sessionSampleRate > 1) {
+        throw new IllegalArgumentException(
+            "sessionSampleRate must be in [0, 1], not " + sessionSampleRate);
+      }
+      this.sessionSampleRate = sessionSampleRate;
+      return this;
+    }
+
+    /** Watch only 1 in {@code oneInNPerClass} references of each class, defaults to 1. */
+    public Builder oneInNPerClass(int oneInNPerClass) {
+      if (oneInNPerClass < 1) {
+        throw new IllegalArgumentException(
+            "oneInNPerClass must be at least 1, not " + oneInNPerClass);
+      }
+      this.oneInNPerClass = oneInNPerClass;
+      return this;
+    }
+
+    /** References are not watched while this many watched references are pending. */
+    public Builder maxOutstandingWatches(int maxOutstandingWatches) {
+      if (maxOutstandingWatches < 1) {
+        throw new IllegalArgumentException(
+            "maxOutstandingWatches must be at least 1, not " + maxOutstandingWatches);
+      }
+      this.maxOutstandingWatches = maxOutstandingWatches;
+      return this;
+    }
+
+    public RateSamplingPolicy build() {
+      return new RateSamplingPolicy(this, new Random());
+    }
+  }
+}
@@ -15,11 +15,15 @@
  */
 package com.squareup.leakcanary;
 
+import com.squareup.leakcanary.HeapDumpGovernor.Verdict;
 import java.io.File;
 import java.lang.ref.ReferenceQueue;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.squareup.leakcanary.HeapDumper.RETRY_LATER;
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
@@ -37,25 +41,58 @@ public final class RefWatcher {
 
   public static final RefWatcher DISABLED = new RefWatcherBuilder<>().build();
 
+  private static final String HEAP_DUMPER_RETRY_LATER = "HeapDumper returned RETRY_LATER";
+  private static final String HEAP_DUMP_IN_PROGRESS = "Another RefWatcher is dumping the heap";
+
   private final WatchExecutor watchExecutor;
   private final DebuggerControl debuggerControl;
   private final GcTrigger gcTrigger;
   private final HeapDumper heapDumper;
-  private final Set<String> retainedKeys;
+  private final WatchCoordinator coordinator;
+  /** Shared with the other watchers of {@link #coordinator}. */
+  private final ConcurrentMap<String, RefWatcher> retainedKeys;
+  /** Keys of this watcher in {@link #retainedKeys}. */
+  private final AtomicInteger outstandingWatches = new AtomicInteger();
+  /** Shared with the other watchers of {@link #coordinator}. */
   private final ReferenceQueue<Object> queue;
   private final HeapDump.Listener heapdumpListener;
   private final ExcludedRefs excludedRefs;
+  private final HeapDumpGovernor heapDumpGovernor;
+  private final WatchEventListener watchEventListener;
+  private final SamplingPolicy samplingPolicy;
+  /** Null unless heap dumps are disabled. */
+  private final RetainedReferenceListener retainedReferenceListener;
 
-  RefWatcher(WatchExecutor watchExecutor, DebuggerControl debuggerControl, GcTrigger gcTrigger,
-      HeapDumper heapDumper, HeapDump.Listener heapdumpListener, ExcludedRefs excludedRefs) {
-    this.watchExecutor = checkNotNull(watchExecutor, "watchExecutor");
-    this.debuggerControl = checkNotNull(debuggerControl, "debuggerControl");
-    this.gcTrigger = checkNotNull(gcTrigger, "gcTrigger");
-    this.heapDumper = checkNotNull(heapDumper, "heapDumper");
-    this.heapdumpListener = checkNotNull(heapdumpListener, "heapdumpListener");
-    this.excludedRefs = checkNotNull(excludedRefs, "excludedRefs");
-    retainedKeys = new CopyOnWriteArraySet<>();
-    queue = new ReferenceQueue<>();
+  /**
+   * Falls back to the {@link WatchCoordinator} then to the builder defaults for anything that
+   * wasn't set.
+   */
+  RefWatcher(RefWatcherBuilder<?> builder) {
+    coordinator = builder.coordinator != null ? builder.coordinator
+        : new WatchCoordinator(null, null);
+    watchExecutor = checkNotNull(builder.watchExecutor != null ? builder.watchExecutor
+        : coordinator.watchExecutor != null ? coordinator.watchExecutor
+            : builder.defaultWatchExecutor(), "watchExecutor");
+    debuggerControl = checkNotNull(builder.debuggerControl != null ? builder.debuggerControl
+        : builder.defaultDebuggerControl(), "debuggerControl");
+    gcTrigger = checkNotNull(builder.gcTrigger != null ? builder.gcTrigger
+        : builder.defaultGcTrigger(), "gcTrigger");
+    heapDumper = checkNotNull(builder.heapDumper != null ? builder.heapDumper
+        : builder.defaultHeapDumper(), "heapDumper");
+    heapdumpListener = checkNotNull(builder.heapDumpListener != null ? builder.heapDumpListener
+        : builder.defaultHeapDumpListener(), "heapdumpListener");
+    excludedRefs = checkNotNull(builder.excludedRefs != null ? builder.excludedRefs
+        : builder.defaultExcludedRefs(), "excludedRefs");
+    heapDumpGovernor = checkNotNull(builder.heapDumpGovernor != null ? builder.heapDumpGovernor
+        : coordinator.heapDumpGovernor != null ? coordinator.heapDumpGovernor
+            : builder.defaultHeapDumpGovernor(), "heapDumpGovernor");
+    watchEventListener = checkNotNull(builder.watchEventListener != null
+        ? builder.watchEventListener : builder.defaultWatchEventListener(), "watchEventListener");
+    samplingPolicy = checkNotNull(builder.samplingPolicy != null ? builder.samplingPolicy
+        : builder.defaultSamplingPolicy(), "samplingPolicy");
+    retainedReferenceListener = builder.retainedReferenceListener;
+    retainedKeys = coordinator.retainedKeys;
+    queue = coordinator.queue;
   }
 
   /**
@@ -80,66 +117,192 @@ public final class RefWatcher {
     }
     checkNotNull(watchedReference, "watchedReference");
     checkNotNull(referenceName, "referenceName");
+    if (!samplingPolicy.shouldWatch(watchedReference, outstandingWatches.get())) {
+      return;
+    }
     final long watchStartNanoTime = System.nanoTime();
     String key = UUID.randomUUID().toString();
-    retainedKeys.add(key);
+    addRetainedKey(key);
     final KeyedWeakReference reference =
-        new KeyedWeakReference(watchedReference, key, referenceName, queue);
+        new KeyedWeakReference(watchedReference, key, referenceName, queue, watchStartNanoTime);
+    watchEventListener.onReferenceWatched();
 
     ensureGoneAsync(watchStartNanoTime, reference);
   }
 
-  private void ensureGoneAsync(final long watchStartNanoTime, final KeyedWeakReference reference) {
+  /**
+   * Same as {@link #watch(Object, String)}, except that the heap isn't dumped: the returned handle
+   * is done once the reference is found collected, or retained after a GC, using the same checks
+   * on the {@link WatchExecutor}. Useful to wait for collection in tests, or to dump the heap once
+   * for many retained references.
+   *
+   * <p>The handle is done right away and not {@link WatchHandle#isWatched() watched} if this
+   * watcher is {@link #DISABLED} or the {@link SamplingPolicy} skips the reference.
+   */
+  public WatchHandle watchForResult(Object watchedReference, String referenceName) {
+    checkNotNull(watchedReference, "watchedReference");
+    checkNotNull(referenceName, "referenceName");
+    String key = UUID.randomUUID().toString();
+    WatchHandle handle = new WatchHandle(key, referenceName);
+    if (this == DISABLED
+        || !samplingPolicy.shouldWatch(watchedReference, outstandingWatches.get())) {
+      handle.skip();
+      return handle;
+    }
+    final long watchStartNanoTime = System.nanoTime();
+    addRetainedKey(key);
+    final KeyedWeakReference reference = new KeyedWeakReference(watchedReference, key,
+        referenceName, queue, watchStartNanoTime, handle);
+    handle.reference = reference;
+    watchEventListener.onReferenceWatched();
+
+    ensureGoneAsync(watchStartNanoTime, reference);
+    return handle;
+  }
+
+  /**
+   * Same as {@link #watch(Object, String)} for many references at once, e.g. all the views of a
+   * hierarchy, under a single key: they are checked together and the members that are retained
+   * are reported together, in a single heap dump. Each member only costs a weak reference.
+   *
+   * <p>The {@link SamplingPolicy} is called once, with the whole collection.
+   *
+   * @param groupName A logical identifier for the watched group.
+   */
+  public void watchAll(Collection<?> watchedReferences, String groupName) {
+    if (this == DISABLED) {
+      return;
+    }
+    checkNotNull(watchedReferences, "watchedReferences");
+    checkNotNull(groupName, "groupName");
+    if (watchedReferences.isEmpty()
+        || !samplingPolicy.shouldWatch(watchedReferences, outstandingWatches.get())) {
+      return;
+    }
+    final long watchStartNanoTime = System.nanoTime();
+    String key = UUID.randomUUID().toString();
+    addRetainedKey(key);
+    final WatchedGroup group =
+        new WatchedGroup(watchedReferences, key, groupName, queue, watchStartNanoTime);
+    watchEventListener.onReferenceWatched();
+
+    ensureGoneAsync(watchStartNanoTime, group);
+  }
+
+  private void ensureGoneAsync(final long watchStartNanoTime, final Watched watched) {
     watchExecutor.execute(new Retryable() {
       @Override public Retryable.Result run() {
-        return ensureGone(reference, watchStartNanoTime);
+        return ensureGone(watched, watchStartNanoTime);
       }
     });
   }
 
-  @SuppressWarnings("ReferenceEquality") // Explicitly checking for named null.
-  Retryable.Result ensureGone(final KeyedWeakReference reference, final long watchStartNanoTime) {
+  Retryable.Result ensureGone(final Watched watched, final long watchStartNanoTime) {
     long gcStartNanoTime = System.nanoTime();
     long watchDurationMs = NANOSECONDS.toMillis(gcStartNanoTime - watchStartNanoTime);
 
-    removeWeaklyReachableReferences();
+    coordinator.removeWeaklyReachableReferences();
 
     if (debuggerControl.isDebuggerAttached()) {
       // The debugger can create false leaks.
       return RETRY;
     }
-    if (gone(reference)) {
+    if (gone(watched)) {
       return DONE;
     }
-    gcTrigger.runGc();
-    removeWeaklyReachableReferences();
-    if (!gone(reference)) {
-      long startDumpHeap = System.nanoTime();
-      long gcDurationMs = NANOSECONDS.toMillis(startDumpHeap - gcStartNanoTime);
-
-      File heapDumpFile = heapDumper.dumpHeap();
-      if (heapDumpFile == RETRY_LATER) {
-        // Could not dump the heap.
+    long gcRunDurationMs = coordinator.runGc(gcTrigger, gcStartNanoTime);
+    if (gcRunDurationMs != -1) {
+      watchEventListener.onGcRun(gcRunDurationMs);
+    }
+    coordinator.removeWeaklyReachableReferences();
+    if (!gone(watched)) {
+      if (watched.markRetained()) {
+        watchEventListener.onReferenceRetained(watchDurationMs);
+      }
+      WatchHandle handle = watched.handle();
+      if (handle != null) {
+        removeRetainedKey(watched.key());
+        handle.complete(true, watchDurationMs);
+        return DONE;
+      }
+      if (retainedReferenceListener != null) {
+        // Could have been enqueued since the last check.
+        List<Object> retainedInstances = new ArrayList<>();
+        watched.addRetainedInstances(retainedInstances);
+        for (Object retainedInstance : retainedInstances) {
+          retainedReferenceListener.onReferenceRetained(watched.key(), watched.name(),
+              retainedInstance.getClass().getName(), watchDurationMs);
+        }
+        removeRetainedKey(watched.key());
+        return DONE;
+      }
+      if (!coordinator.acquireHeapDump()) {
+        watchEventListener.onHeapDumpRetried(HEAP_DUMP_IN_PROGRESS);
         return RETRY;
       }
-      long heapDumpDurationMs = NANOSECONDS.toMillis(System.nanoTime() - startDumpHeap);
-      heapdumpListener.analyze(
-          new HeapDump(heapDumpFile, reference.key, reference.name, excludedRefs, watchDurationMs,
-              gcDurationMs, heapDumpDurationMs));
+      try {
+        return dumpHeap(watched, watchDurationMs, gcStartNanoTime);
+      } finally {
+        coordinator.releaseHeapDump();
+      }
+    }
+    return DONE;
+  }
+
+  @SuppressWarnings("ReferenceEquality") // Explicitly checking for named null.
+  private Retryable.Result dumpHeap(Watched watched, long watchDurationMs, long gcStartNanoTime) {
+    Verdict verdict = heapDumpGovernor.beforeHeapDump();
+    if (verdict.action == Verdict.Action.RETRY) {
+      CanaryLog.d("Heap dump of %s postponed: %s", watched.key(), verdict);
+      watchEventListener.onHeapDumpRetried(verdict.reason);
+      return RETRY;
     }
+    if (verdict.action == Verdict.Action.DROP) {
+      CanaryLog.d("Heap dump of %s dropped, the reference won't be reported: %s", watched.key(),
+          verdict);
+      watchEventListener.onHeapDumpDropped(verdict.reason);
+      // Stop tracking the reference, it will never be reported.
+      removeRetainedKey(watched.key());
+      return DONE;
+    }
+
+    long startDumpHeap = System.nanoTime();
+    long gcDurationMs = NANOSECONDS.toMillis(startDumpHeap - gcStartNanoTime);
+
+    watchEventListener.onHeapDumpStarted();
+    File heapDumpFile = heapDumper.dumpHeap();
+    if (heapDumpFile == RETRY_LATER) {
+      // Could not dump the heap.
+      watchEventListener.onHeapDumpRetried(HEAP_DUMPER_RETRY_LATER);
+      return RETRY;
+    }
+    heapDumpGovernor.onHeapDumped();
+    long heapDumpDurationMs = NANOSECONDS.toMillis(System.nanoTime() - startDumpHeap);
+    watchEventListener.onHeapDumpFinished(heapDumpDurationMs);
+    heapdumpListener.analyze(
+        new HeapDump(heapDumpFile, watched.key(), watched.name(), excludedRefs, watchDurationMs,
+            gcDurationMs, heapDumpDurationMs));
     return DONE;
   }
 
-  private boolean gone(KeyedWeakReference reference) {
-    return !retainedKeys.contains(reference.key);
+  private void addRetainedKey(String key) {
+    outstandingWatches.incrementAndGet();
+    retainedKeys.put(key, this);
   }
 
-  private void removeWeaklyReachableReferences() {
-    // WeakReferences are enqueued as soon as the object to which they point to becomes weakly
-    // reachable. This is before finalization or garbage collection has actually happened.
-    KeyedWeakReference ref;
-    while ((ref = (KeyedWeakReference) queue.poll()) != null) {
-      retainedKeys.remove(ref.key);
+  private void removeRetainedKey(String key) {
+    if (retainedKeys.remove(key) != null) {
+      outstandingWatches.decrementAndGet();
     }
   }
+
+  /** Called by {@link #coordinator} once it removed a key of this watcher. */
+  void onReferenceCollected(long watchDurationMs) {
+    outstandingWatches.decrementAndGet();
+    watchEventListener.onReferenceCollected(watchDurationMs);
+  }
+
+  private boolean gone(Watched watched) {
+    return !retainedKeys.containsKey(watched.key());
+  }
 }
@@ -6,12 +6,17 @@ package com.squareup.leakcanary;
  */
 public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
 
-  private ExcludedRefs excludedRefs;
-  private HeapDump.Listener heapDumpListener;
-  private DebuggerControl debuggerControl;
-  private HeapDumper heapDumper;
-  private WatchExecutor watchExecutor;
-  private GcTrigger gcTrigger;
+  ExcludedRefs excludedRefs;
+  HeapDump.Listener heapDumpListener;
+  DebuggerControl debuggerControl;
+  HeapDumper heapDumper;
+  WatchExecutor watchExecutor;
+  GcTrigger gcTrigger;
+  HeapDumpGovernor heapDumpGovernor;
+  WatchEventListener watchEventListener;
+  SamplingPolicy samplingPolicy;
+  RetainedReferenceListener retainedReferenceListener;
+  WatchCoordinator coordinator;
 
   /** @see HeapDump.Listener */
   public final T heapDumpListener(HeapDump.Listener heapDumpListener) {
@@ -49,44 +54,46 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return self();
   }
 
-  /** Creates a {@link RefWatcher}. */
-  public final RefWatcher build() {
-    if (isDisabled()) {
-      return RefWatcher.DISABLED;
-    }
-
-    ExcludedRefs excludedRefs = this.excludedRefs;
-    if (excludedRefs == null) {
-      excludedRefs = defaultExcludedRefs();
-    }
+  /** @see HeapDumpGovernor */
+  public final T heapDumpGovernor(HeapDumpGovernor heapDumpGovernor) {
+    this.heapDumpGovernor = heapDumpGovernor;
+    return self();
+  }
 
-    HeapDump.Listener heapDumpListener = this.heapDumpListener;
-    if (heapDumpListener == null) {
-      heapDumpListener = defaultHeapDumpListener();
-    }
+  /** @see WatchEventListener */
+  public final T watchEventListener(WatchEventListener watchEventListener) {
+    this.watchEventListener = watchEventListener;
+    return self();
+  }
 
-    DebuggerControl debuggerControl = this.debuggerControl;
-    if (debuggerControl == null) {
-      debuggerControl = defaultDebuggerControl();
-    }
+  /** @see SamplingPolicy */
+  public final T samplingPolicy(SamplingPolicy samplingPolicy) {
+    this.samplingPolicy = samplingPolicy;
+    return self();
+  }
 
-    HeapDumper heapDumper = this.heapDumper;
-    if (heapDumper == null) {
-      heapDumper = defaultHeapDumper();
-    }
+  /**
+   * Disables heap dumps: retained references are reported to {@code retainedReferenceListener}
+   * then forgotten, and the {@link HeapDumper}, {@link HeapDumpGovernor} and
+   * {@link HeapDump.Listener} are never called.
+   */
+  public final T retainedReferenceListener(RetainedReferenceListener retainedReferenceListener) {
+    this.retainedReferenceListener = retainedReferenceListener;
+    return self();
+  }
 
-    WatchExecutor watchExecutor = this.watchExecutor;
-    if (watchExecutor == null) {
-      watchExecutor = defaultWatchExecutor();
-    }
+  /** @see WatchCoordinator */
+  public final T coordinator(WatchCoordinator coordinator) {
+    this.coordinator = coordinator;
+    return self();
+  }
 
-    GcTrigger gcTrigger = this.gcTrigger;
-    if (gcTrigger == null) {
-      gcTrigger = defaultGcTrigger();
+  /** Creates a {@link RefWatcher}. */
+  public final RefWatcher build() {
+    if (isDisabled()) {
+      return RefWatcher.DISABLED;
     }
-
-    return new RefWatcher(watchExecutor, debuggerControl, gcTrigger, heapDumper, heapDumpListener,
-        excludedRefs);
+    return new RefWatcher(this);
   }
 
   protected boolean isDisabled() {
@@ -117,6 +124,18 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return WatchExecutor.NONE;
   }
 
+  protected HeapDumpGovernor defaultHeapDumpGovernor() {
+    return HeapDumpGovernor.NONE;
+  }
+
+  protected WatchEventListener defaultWatchEventListener() {
+    return WatchEventListener.NONE;
+  }
+
+  protected SamplingPolicy defaultSamplingPolicy() {
+    return SamplingPolicy.ALL;
+  }
+
   @SuppressWarnings("unchecked")
   protected final T self() {
     return (T) this;
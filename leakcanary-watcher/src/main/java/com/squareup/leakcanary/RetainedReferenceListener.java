@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Receives references that were still not weakly reachable after a GC, instead of dumping the
+ * heap. Useful to measure leak rates where heap dumps are too costly, e.g. in production.
+ *
+ * @see RefWatcherBuilder#retainedReferenceListener(RetainedReferenceListener)
+ */
+public interface RetainedReferenceListener {
+  /**
+   * Called from the {@link WatchExecutor} thread. The reference stops being watched when this
+   * returns.
+   *
+   * @param className the class of the retained instance.
+   * @param watchDurationMs time from the request to watch the reference until it was found
+   * retained.
+   */
+  void onReferenceRetained(String referenceKey, String referenceName, String className,
+      long watchDurationMs);
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Decides whether {@link RefWatcher#watch(Object)} actually watches a reference, so that
+ * watching can be enabled in a fraction of production sessions at a low cost.
+ *
+ * @see RateSamplingPolicy
+ */
+public interface SamplingPolicy {
+  SamplingPolicy ALL = new SamplingPolicy() {
+    @Override public boolean shouldWatch(Object watchedReference, int outstandingWatches) {
+      return true;
+    }
+  };
+
+  /**
+   * Called from the thread calling {@link RefWatcher#watch(Object)}, must be thread safe.
+   *
+   * @param outstandingWatches the number of references watched by this {@link RefWatcher} that
+   * haven't been found collected yet. References watched by other watchers of the same
+   * {@link WatchCoordinator} aren't counted.
+   */
+  boolean shouldWatch(Object watchedReference, int outstandingWatches);
+}
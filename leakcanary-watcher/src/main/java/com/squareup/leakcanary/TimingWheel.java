@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Hashed timing wheel holding {@link Retryable} instances until their deadline. Scheduling is
+ * O(1) and {@link #advance()} only visits the entries of a single bucket, so thousands of pending
+ * reference checks cost one tick at a time instead of one timer each. Deadlines are rounded up to
+ * the next tick.
+ *
+ * Not thread safe.
+ */
+final class TimingWheel {
+
+  /** A pending {@link Retryable}. Entries are linked lists and can be rescheduled once expired. */
+  static final class Entry {
+    final Retryable retryable;
+    int failedAttempts;
+    long remainingRounds;
+    Entry next;
+
+    Entry(Retryable retryable) {
+      this.retryable = retryable;
+    }
+  }
+
+  private final long tickMillis;
+  private final Entry[] buckets;
+  /** Index of the bucket visited by the last call to {@link #advance()}. */
+  private int cursor;
+  private int size;
+
+  TimingWheel(long tickMillis, int wheelSize) {
+    if (tickMillis < 1) {
+      throw new IllegalArgumentException("tickMillis must be at least 1, not " + tickMillis);
+    }
+    if (wheelSize < 1) {
+      throw new IllegalArgumentException("wheelSize must be at least 1, not " + wheelSize);
+    }
+    this.tickMillis = tickMillis;
+    buckets = new Entry[wheelSize];
+  }
+
+  long tickMillis() {
+    return tickMillis;
+  }
+
+  /** Schedules the entry to expire after {@code delayMillis}, counted from the last tick. */
+  void schedule(Entry entry, long delayMillis) {
+    long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+    entry.remainingRounds = (ticks - 1) / buckets.length;
+    int index = (int) ((cursor + ticks) % buckets.length);
+    entry.next = buckets[index];
+    buckets[index] = entry;
+    size++;
+  }
+
+  /**
+   * Moves to the next tick.
+   *
+   * @return the entries that expired on this tick, linked through {@link Entry#next}, or null.
+   */
+  Entry advance() {
+    cursor = (cursor + 1) % buckets.length;
+    Entry expired = null;
+    Entry pending = null;
+    Entry entry = buckets[cursor];
+    while (entry != null) {
+      Entry next = entry.next;
+      if (entry.remainingRounds == 0) {
+        entry.next = expired;
+        expired = entry;
+        size--;
+      } else {
+        entry.remainingRounds--;
+        entry.next = pending;
+        pending = entry;
+      }
+      entry = next;
+    }
+    buckets[cursor] = pending;
+    return expired;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Shares the cost of watching references between the {@link RefWatcher} instances of a process,
+ * e.g. one built by the app and one built by a library. Build each of them with the same
+ * coordinator, see {@link RefWatcherBuilder#coordinator(WatchCoordinator)}:
+ *
+ * <ul>
+ * <li>Watched references go to a single reference queue, drained by whichever watcher checks a
+ * reference first.
+ * <li>A watcher skips its GC if another watcher started and finished one since it started its
+ * check: its reference already had a chance to be enqueued.
+ * <li>Only one watcher dumps the heap at a time, the others retry later.
+ * <li>Watchers that don't set their own {@link WatchExecutor} or {@link HeapDumpGovernor} share
+ * the coordinator's, so they also share a thread and a heap dump budget.
+ * </ul>
+ *
+ * <p>This class is thread-safe.
+ */
+public final class WatchCoordinator {
+
+  final WatchExecutor watchExecutor;
+  final HeapDumpGovernor heapDumpGovernor;
+  final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+  /** Keys of the references that haven't been found collected, to their watcher. */
+  final ConcurrentMap<String, RefWatcher> retainedKeys = new ConcurrentHashMap<>();
+  private final AtomicBoolean dumpingHeap = new AtomicBoolean();
+  private final Object gcLock = new Object();
+  /** Guarded by gcLock, start time of the last GC that returned. */
+  private long lastGcStartNanoTime;
+  /** Guarded by gcLock. */
+  private boolean gcRunOnce;
+
+  /**
+   * @param watchExecutor Used by watchers that don't set their own, or null to use their default.
+   * @param heapDumpGovernor Used by watchers that don't set their own, or null to use their
+   * default.
+   */
+  public WatchCoordinator(WatchExecutor watchExecutor, HeapDumpGovernor heapDumpGovernor) {
+    this.watchExecutor = watchExecutor;
+    this.heapDumpGovernor = heapDumpGovernor;
+  }
+
+  /**
+   * Runs a GC, unless a GC started after {@code sinceNanoTime} has already returned.
+   *
+   * @return the duration of the GC, or -1 if it was skipped.
+   */
+  long runGc(GcTrigger gcTrigger, long sinceNanoTime) {
+    synchronized (gcLock) {
+      if (gcRunOnce && lastGcStartNanoTime - sinceNanoTime > 0) {
+        return -1;
+      }
+      long gcStartNanoTime = System.nanoTime();
+      gcTrigger.runGc();
+      lastGcStartNanoTime = gcStartNanoTime;
+      gcRunOnce = true;
+      return NANOSECONDS.toMillis(System.nanoTime() - gcStartNanoTime);
+    }
+  }
+
+  /** Returns false if another watcher is dumping the heap. */
+  boolean acquireHeapDump() {
+    return dumpingHeap.compareAndSet(false, true);
+  }
+
+  void releaseHeapDump() {
+    dumpingHeap.set(false);
+  }
+
+  void removeWeaklyReachableReferences() {
+    // WeakReferences are enqueued as soon as the object to which they point to becomes weakly
+    // reachable. This is before finalization or garbage collection has actually happened.
+    Reference<?> ref;
+    while ((ref = queue.poll()) != null) {
+      String key;
+      long watchStartNanoTime;
+      WatchHandle handle = null;
+      if (ref instanceof WatchedGroup.Member) {
+        WatchedGroup group = ((WatchedGroup.Member) ref).group;
+        if (!group.onMemberEnqueued()) {
+          continue;
+        }
+        key = group.key;
+        watchStartNanoTime = group.watchStartNanoTime;
+      } else {
+        KeyedWeakReference keyedRef = (KeyedWeakReference) ref;
+        key = keyedRef.key;
+        watchStartNanoTime = keyedRef.watchStartNanoTime;
+        handle = keyedRef.handle;
+      }
+      RefWatcher watcher = retainedKeys.remove(key);
+      if (watcher != null) {
+        long watchDurationMs = NANOSECONDS.toMillis(System.nanoTime() - watchStartNanoTime);
+        watcher.onReferenceCollected(watchDurationMs);
+        if (handle != null) {
+          handle.complete(false, watchDurationMs);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+/**
+ * Receives events from a {@link RefWatcher}, e.g. to monitor how long watched references take to
+ * become weakly reachable and how often the heap is dumped. Calls are made from the thread that
+ * calls {@link RefWatcher#watch(Object)} and from the {@link WatchExecutor} thread, and should
+ * return quickly.
+ *
+ * @see WatchMetrics
+ */
+public interface WatchEventListener {
+  WatchEventListener NONE = new WatchEventListener() {
+    @Override public void onReferenceWatched() {
+    }
+
+    @Override public void onReferenceCollected(long watchDurationMs) {
+    }
+
+    @Override public void onReferenceRetained(long watchDurationMs) {
+    }
+
+    @Override public void onGcRun(long gcDurationMs) {
+    }
+
+    @Override public void onHeapDumpStarted() {
+    }
+
+    @Override public void onHeapDumpFinished(long heapDumpDurationMs) {
+    }
+
+    @Override public void onHeapDumpRetried(String reason) {
+    }
+
+    @Override public void onHeapDumpDropped(String reason) {
+    }
+  };
+
+  void onReferenceWatched();
+
+  /**
+   * A watched reference was found in the reference queue, {@code watchDurationMs} after it started
+   * being watched. This is an upper bound, the queue is only polled when references are checked.
+   */
+  void onReferenceCollected(long watchDurationMs);
+
+  /** A watched reference was still not weakly reachable after a GC. Called once per reference. */
+  void onReferenceRetained(long watchDurationMs);
+
+  /** {@link GcTrigger#runGc()} was called. */
+  void onGcRun(long gcDurationMs);
+
+  void onHeapDumpStarted();
+
+  void onHeapDumpFinished(long heapDumpDurationMs);
+
+  /** The {@link HeapDumpGovernor} or the {@link HeapDumper} postponed a heap dump. */
+  void onHeapDumpRetried(String reason);
+
+  /** The {@link HeapDumpGovernor} refused to dump the heap for a retained reference. */
+  void onHeapDumpDropped(String reason);
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a reference watched with {@link RefWatcher#watchForResult(Object, String)}: done
+ * once the reference has been found collected, or retained after a GC.
+ *
+ * <p>The heap isn't dumped for retained references. Keep their handles until the heap is dumped:
+ * a handle keeps its {@link KeyedWeakReference}, so that the heap dump can be analyzed for
+ * {@link #key}.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class WatchHandle {
+
+  public interface Callback {
+    /**
+     * Called once the handle is done, from the {@link WatchExecutor} thread, or from the thread
+     * adding the callback if the handle is already done.
+     */
+    void onWatchDone(WatchHandle handle);
+  }
+
+  /** The {@link HeapDump#referenceKey} of the watched reference. */
+  public final String key;
+  public final String name;
+  private final CountDownLatch doneLatch = new CountDownLatch(1);
+  /** Guarded by this, null once done. */
+  private List<Callback> callbacks = new ArrayList<>();
+  /** Null for handles that aren't watched. Keeps the key in later heap dumps. */
+  @SuppressWarnings("unused") KeyedWeakReference reference;
+  private volatile boolean watched = true;
+  private volatile boolean retained;
+  private volatile long watchDurationMs;
+
+  WatchHandle(String key, String name) {
+    this.key = key;
+    this.name = name;
+  }
+
+  public boolean isDone() {
+    return doneLatch.getCount() == 0;
+  }
+
+  /**
+   * False if the reference was skipped rather than watched, because the {@link RefWatcher} is
+   * {@link RefWatcher#DISABLED} or its {@link SamplingPolicy} skipped it. Skipped handles are done
+   * right away and are never retained.
+   */
+  public boolean isWatched() {
+    return watched;
+  }
+
+  /**
+   * True if the reference was still not weakly reachable after a GC, false if it was collected
+   * or {@link #isWatched() skipped}. Only meaningful once {@link #isDone()}. A retained instance
+   * may still be collected later.
+   */
+  public boolean isRetained() {
+    return retained;
+  }
+
+  /** Time from the request to watch the reference until it was found collected or retained. */
+  public long watchDurationMs() {
+    return watchDurationMs;
+  }
+
+  /**
+   * Blocks until this handle is done, or the timeout elapses.
+   *
+   * @return true if this handle is done.
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return doneLatch.await(timeout, unit);
+  }
+
+  public void addCallback(Callback callback) {
+    synchronized (this) {
+      if (callbacks != null) {
+        callbacks.add(callback);
+        return;
+      }
+    }
+    callback.onWatchDone(this);
+  }
+
+  void skip() {
+    watched = false;
+    complete(false, 0);
+  }
+
+  void complete(boolean retained, long watchDurationMs) {
+    List<Callback> doneCallbacks;
+    synchronized (this) {
+      if (callbacks == null) {
+        return;
+      }
+      this.retained = retained;
+      this.watchDurationMs = watchDurationMs;
+      doneCallbacks = callbacks;
+      callbacks = null;
+    }
+    doneLatch.countDown();
+    for (Callback callback : doneCallbacks) {
+      callback.onWatchDone(this);
+    }
+  }
+}
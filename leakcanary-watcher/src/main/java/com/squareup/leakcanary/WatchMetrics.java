@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link WatchEventListener} that aggregates counters and latency histograms, in milliseconds.
+ * Recording is lock free and does not allocate, so it can stay installed in production builds.
+ * Read the values periodically to export them.
+ */
+public final class WatchMetrics implements WatchEventListener {
+
+  private final AtomicLong watched = new AtomicLong();
+  private final AtomicLong collected = new AtomicLong();
+  private final AtomicLong retained = new AtomicLong();
+  private final AtomicLong heapDumpsStarted = new AtomicLong();
+  private final AtomicLong heapDumpsRetried = new AtomicLong();
+  private final AtomicLong heapDumpsDropped = new AtomicLong();
+
+  /** Time until watched references were found collected. */
+  public final LatencyHistogram collectionMs = new LatencyHistogram();
+  /** Time until watched references were found retained after a GC. */
+  public final LatencyHistogram retentionMs = new LatencyHistogram();
+  public final LatencyHistogram gcMs = new LatencyHistogram();
+  public final LatencyHistogram heapDumpMs = new LatencyHistogram();
+
+  @Override public void onReferenceWatched() {
+    watched.incrementAndGet();
+  }
+
+  @Override public void onReferenceCollected(long watchDurationMs) {
+    collected.incrementAndGet();
+    collectionMs.record(watchDurationMs);
+  }
+
+  @Override public void onReferenceRetained(long watchDurationMs) {
+    retained.incrementAndGet();
+    retentionMs.record(watchDurationMs);
+  }
+
+  @Override public void onGcRun(long gcDurationMs) {
+    gcMs.record(gcDurationMs);
+  }
+
+  @Override public void onHeapDumpStarted() {
+    heapDumpsStarted.incrementAndGet();
+  }
+
+  @Override public void onHeapDumpFinished(long heapDumpDurationMs) {
+    heapDumpMs.record(heapDumpDurationMs);
+  }
+
+  @Override public void onHeapDumpRetried(String reason) {
+    heapDumpsRetried.incrementAndGet();
+  }
+
+  @Override public void onHeapDumpDropped(String reason) {
+    heapDumpsDropped.incrementAndGet();
+  }
+
+  public long watchedCount() {
+    return watched.get();
+  }
+
+  public long collectedCount() {
+    return collected.get();
+  }
+
+  public long retainedCount() {
+    return retained.get();
+  }
+
+  public long gcRunCount() {
+    return gcMs.count();
+  }
+
+  public long heapDumpsStartedCount() {
+    return heapDumpsStarted.get();
+  }
+
+  public long heapDumpsFinishedCount() {
+    return heapDumpMs.count();
+  }
+
+  public long heapDumpsRetriedCount() {
+    return heapDumpsRetried.get();
+  }
+
+  public long heapDumpsDroppedCount() {
+    return heapDumpsDropped.get();
+  }
+
+  @Override public String toString() {
+    return "WatchMetrics{watched=" + watchedCount()
+        + ", collected=" + collectedCount()
+        + ", retained=" + retainedCount()
+        + ", gcRuns=" + gcRunCount()
+        + ", heapDumps=" + heapDumpsFinishedCount() + "/" + heapDumpsStartedCount()
+        + ", heapDumpsRetried=" + heapDumpsRetriedCount()
+        + ", heapDumpsDropped=" + heapDumpsDroppedCount()
+        + ", collectionMs={" + collectionMs + "}"
+        + ", retentionMs={" + retentionMs + "}"
+        + ", gcMs={" + gcMs + "}"
+        + ", heapDumpMs={" + heapDumpMs + "}"
+        + "}";
+  }
+}
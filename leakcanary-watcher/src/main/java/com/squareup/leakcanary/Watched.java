@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.List;
+
+/** What a {@link RefWatcher} tracks under a single key: one reference, or a group of them. */
+interface Watched {
+
+  String key();
+
+  String name();
+
+  /** Returns true the first time the watched references are found retained, false after. */
+  boolean markRetained();
+
+  /** Adds the watched instances that haven't been cleared yet to {@code instances}. */
+  void addRetainedInstances(List<Object> instances);
+
+  /** Null unless watched with {@link RefWatcher#watchForResult(Object, String)}. */
+  WatchHandle handle();
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * References watched together with {@link RefWatcher#watchAll(Collection, String)}. Members only
+ * hold their group, which is gone once every member has been enqueued.
+ *
+ * @see {@link HeapDump#referenceKey}.
+ */
+final class WatchedGroup implements Watched {
+
+  static final class Member extends WeakReference<Object> {
+    final WatchedGroup group;
+
+    Member(Object referent, WatchedGroup group, ReferenceQueue<Object> referenceQueue) {
+      super(checkNotNull(referent, "referent"), referenceQueue);
+      this.group = group;
+    }
+  }
+
+  public final String key;
+  public final String name;
+  final long watchStartNanoTime;
+  final Member[] members;
+  private final AtomicInteger remaining;
+  /** Whether a {@link RefWatcher} check already found this group retained. */
+  private boolean retained;
+
+  WatchedGroup(Collection<?> referents, String key, String name,
+      ReferenceQueue<Object> referenceQueue, long watchStartNanoTime) {
+    checkNotNull(referenceQueue, "referenceQueue");
+    this.key = checkNotNull(key, "key");
+    this.name = checkNotNull(name, "name");
+    this.watchStartNanoTime = watchStartNanoTime;
+    members = new Member[referents.size()];
+    int i = 0;
+    for (Object referent : referents) {
+      members[i++] = new Member(referent, this, referenceQueue);
+    }
+    remaining = new AtomicInteger(members.length);
+  }
+
+  /** Returns true when the last member is enqueued. */
+  boolean onMemberEnqueued() {
+    return remaining.decrementAndGet() == 0;
+  }
+
+  @Override public String key() {
+    return key;
+  }
+
+  @Override public String name() {
+    return name;
+  }
+
+  @Override public boolean markRetained() {
+    if (retained) {
+      return false;
+    }
+    retained = true;
+    return true;
+  }
+
+  @Override public WatchHandle handle() {
+    return null;
+  }
+
+  @Override public void addRetainedInstances(List<Object> instances) {
+    for (Member member : members) {
+      Object instance = member.get();
+      if (instance != null) {
+        instances.add(instance);
+      }
+    }
+  }
+}
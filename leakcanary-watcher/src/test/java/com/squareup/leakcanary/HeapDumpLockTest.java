@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class HeapDumpLockTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File lockFile() {
+    return new File(temporaryFolder.getRoot(), "heap-dump.lock");
+  }
+
+  @Test public void tryLock_heldByOtherInstance() throws IOException {
+    HeapDumpLock lock1 = new HeapDumpLock(lockFile());
+    HeapDumpLock lock2 = new HeapDumpLock(lockFile());
+    assertTrue(lock1.tryLock("first"));
+    assertFalse(lock2.tryLock("second"));
+    lock1.unlock();
+    assertTrue(lock2.tryLock("second"));
+    lock2.unlock();
+  }
+
+  @Test public void currentHolder() throws IOException {
+    HeapDumpLock lock1 = new HeapDumpLock(lockFile());
+    HeapDumpLock lock2 = new HeapDumpLock(lockFile());
+    assertNull(lock2.currentHolder());
+    assertTrue(lock1.tryLock("pid 42 dumping the heap"));
+    assertEquals("pid 42 dumping the heap", lock2.currentHolder());
+    lock1.unlock();
+    assertNull(lock2.currentHolder());
+  }
+
+  @Test public void lock_waitsForRelease() throws Exception {
+    final HeapDumpLock lock1 = new HeapDumpLock(lockFile());
+    final HeapDumpLock lock2 = new HeapDumpLock(lockFile());
+    assertTrue(lock1.tryLock("first"));
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          lock2.lock("second");
+          locked.countDown();
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+    thread.start();
+    assertFalse(locked.await(100, MILLISECONDS));
+    lock1.unlock();
+    assertTrue(locked.await(5, SECONDS));
+    assertEquals("second", lock1.currentHolder());
+    lock2.unlock();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+
+  @Test public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+    assertEquals(10, histogram.count());
+    assertEquals(5, histogram.valueAtPercentile(50));
+    assertEquals(9, histogram.valueAtPercentile(90));
+    assertEquals(10, histogram.valueAtPercentile(100));
+    assertEquals(5.5, histogram.mean(), 0);
+  }
+
+  @Test public void largeValuesWithinRelativeError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    long[] values = { 17, 100, 1000, 5000, 123456789, Long.MAX_VALUE };
+    for (long value : values) {
+      int bucket = LatencyHistogram.bucketIndex(value);
+      long lowest = histogram.bucketLowestValue(bucket);
+      long highest = histogram.bucketHighestValue(bucket);
+      assertTrue(value + " in bucket " + bucket, lowest <= value && value <= highest);
+      assertTrue(value + " relative error", (double) (highest - lowest) / lowest <= 1d / 16);
+    }
+  }
+
+  @Test public void bucketsAreContiguous() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i < histogram.buckets(); i++) {
+      assertEquals(histogram.bucketHighestValue(i - 1) + 1, histogram.bucketLowestValue(i));
+    }
+  }
+
+  @Test public void percentileCappedByMax() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    assertEquals(1000, histogram.valueAtPercentile(50));
+    assertEquals(1000, histogram.max());
+  }
+
+  @Test public void empty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.valueAtPercentile(99));
+    assertEquals(0, histogram.mean(), 0);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.leakcanary.HeapDumpGovernor.Verdict;
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HeapDumpGovernor.Verdict.Action.DROP;
+import static com.squareup.leakcanary.HeapDumpGovernor.Verdict.Action.DUMP;
+import static com.squareup.leakcanary.HeapDumpGovernor.Verdict.Action.RETRY;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class RateLimitedHeapDumpGovernorTest {
+
+  static class FakeClock implements RateLimitedHeapDumpGovernor.Clock {
+    long nanoTime;
+
+    @Override public long nanoTime() {
+      return nanoTime;
+    }
+
+    void advanceMinutes(long minutes) {
+      nanoTime += MINUTES.toNanos(minutes);
+    }
+  }
+
+  private final FakeClock clock = new FakeClock();
+
+  @Test public void minIntervalBetweenHeapDumps() {
+    HeapDumpGovernor governor = governor(RateLimitedHeapDumpGovernor.builder()
+        .maxHeapDumpsPerHour(10)
+        .minIntervalMillis(MINUTES.toMillis(2)));
+    dump(governor);
+    clock.advanceMinutes(1);
+    assertEquals(RETRY, governor.beforeHeapDump().action);
+    clock.advanceMinutes(1);
+    assertEquals(DUMP, governor.beforeHeapDump().action);
+  }
+
+  @Test public void tokenBucketAllowsBurstThenRefills() {
+    HeapDumpGovernor governor = governor(RateLimitedHeapDumpGovernor.builder()
+        .maxHeapDumpsPerHour(2)
+        .minIntervalMillis(0));
+    dump(governor);
+    dump(governor);
+    assertEquals(RETRY, governor.beforeHeapDump().action);
+    clock.advanceMinutes(29);
+    assertEquals(RETRY, governor.beforeHeapDump().action);
+    clock.advanceMinutes(1);
+    dump(governor);
+    assertEquals(RETRY, governor.beforeHeapDump().action);
+  }
+
+  @Test public void failedHeapDumpDoesNotConsumeToken() {
+    HeapDumpGovernor governor = governor(RateLimitedHeapDumpGovernor.builder()
+        .maxHeapDumpsPerHour(1));
+    assertEquals(DUMP, governor.beforeHeapDump().action);
+    assertEquals(DUMP, governor.beforeHeapDump().action);
+  }
+
+  @Test public void lowDiskSpaceDrops() {
+    File directory = new File(System.getProperty("java.io.tmpdir"));
+    HeapDumpGovernor governor =
+        governor(RateLimitedHeapDumpGovernor.builder().minFreeDisk(directory, Long.MAX_VALUE));
+    assertEquals(DROP, governor.beforeHeapDump().action);
+  }
+
+  @Test public void checksCurrentHeapDumpDirectory() {
+    final File[] directory = { null };
+    HeapDumpGovernor governor = governor(RateLimitedHeapDumpGovernor.builder()
+        .minFreeDisk(new RateLimitedHeapDumpGovernor.HeapDumpDirectory() {
+          @Override public File heapDumpDirectory() {
+            return directory[0];
+          }
+        }, Long.MAX_VALUE));
+    assertEquals(DUMP, governor.beforeHeapDump().action);
+    directory[0] = new File(System.getProperty("java.io.tmpdir"));
+    assertEquals(DROP, governor.beforeHeapDump().action);
+  }
+
+  @Test public void lowMemoryRetries() {
+    final long[] freeMemory = { 10 };
+    HeapDumpGovernor governor = governor(RateLimitedHeapDumpGovernor.builder()
+        .minFreeMemory(new RateLimitedHeapDumpGovernor.FreeMemory() {
+          @Override public long freeMemoryBytes() {
+            return freeMemory[0];
+          }
+        }, 100));
+    Verdict verdict = governor.beforeHeapDump();
+    assertEquals(RETRY, verdict.action);
+    assertEquals("Only 10 bytes of free memory, needs 100", verdict.reason);
+    freeMemory[0] = 100;
+    assertEquals(DUMP, governor.beforeHeapDump().action);
+  }
+
+  private HeapDumpGovernor governor(RateLimitedHeapDumpGovernor.Builder builder) {
+    return new RateLimitedHeapDumpGovernor(builder, clock);
+  }
+
+  private void dump(HeapDumpGovernor governor) {
+    assertEquals(DUMP, governor.beforeHeapDump().action);
+    governor.onHeapDumped();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class RateSamplingPolicyTest {
+
+  static class FixedRandom extends Random {
+    private final double value;
+
+    FixedRandom(double value) {
+      this.value = value;
+    }
+
+    @Override public double nextDouble() {
+      return value;
+    }
+  }
+
+  @Test public void sessionNotSampled() {
+    RateSamplingPolicy policy = policy(RateSamplingPolicy.builder().sessionSampleRate(0.1), 0.5);
+    assertFalse(policy.isSessionSampled());
+    assertFalse(policy.shouldWatch(new Object(), 0));
+  }
+
+  @Test public void sessionSampled() {
+    RateSamplingPolicy policy = policy(RateSamplingPolicy.builder().sessionSampleRate(0.1), 0.05);
+    assertTrue(policy.isSessionSampled());
+    assertTrue(policy.shouldWatch(new Object(), 0));
+  }
+
+  @Test public void oneInNPerClass() {
+    RateSamplingPolicy policy = policy(RateSamplingPolicy.builder().oneInNPerClass(3), 0);
+    assertTrue(policy.shouldWatch(new Object(), 0));
+    assertTrue(policy.shouldWatch("a string", 0));
+    assertFalse(policy.shouldWatch(new Object(), 0));
+    assertFalse(policy.shouldWatch(new Object(), 0));
+    assertTrue(policy.shouldWatch(new Object(), 0));
+  }
+
+  @Test public void maxOutstandingWatches() {
+    RateSamplingPolicy policy = policy(RateSamplingPolicy.builder().maxOutstandingWatches(2), 0);
+    assertTrue(policy.shouldWatch(new Object(), 1));
+    assertFalse(policy.shouldWatch(new Object(), 2));
+  }
+
+  private RateSamplingPolicy policy(RateSamplingPolicy.Builder builder, double random) {
+    return new RateSamplingPolicy(builder, new FixedRandom(random));
+  }
+}
@@ -15,12 +15,20 @@
  */
 package com.squareup.leakcanary;
 
+import com.squareup.leakcanary.HeapDumpGovernor.Verdict;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import static com.squareup.leakcanary.Retryable.Result.DONE;
+import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(JUnit4.class)
@@ -73,6 +81,209 @@ public class RefWatcherTest {
     assertTrue(dumper.called);
   }
 
+  @Test public void governorRetry_noDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = governedWatcher(dumper, executor, Verdict.retry("busy"));
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertEquals(RETRY, executor.retryable.run());
+    assertFalse(dumper.called);
+  }
+
+  @Test public void governorDrop_noDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = governedWatcher(dumper, executor, Verdict.drop("full"));
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertEquals(DONE, executor.retryable.run());
+    assertFalse(dumper.called);
+  }
+
+  @Test public void retainedObject_reportsEvents() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    WatchMetrics metrics = new WatchMetrics();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpListener(new TestListener())
+        .watchEventListener(metrics)
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    assertEquals(1, metrics.watchedCount());
+    assertEquals(1, metrics.retainedCount());
+    assertEquals(0, metrics.collectedCount());
+    assertEquals(1, metrics.gcRunCount());
+    assertEquals(1, metrics.heapDumpsStartedCount());
+    assertEquals(1, metrics.heapDumpsFinishedCount());
+  }
+
+  @Test public void notSampled_notWatched() {
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .samplingPolicy(new SamplingPolicy() {
+          @Override public boolean shouldWatch(Object watchedReference, int outstandingWatches) {
+            return false;
+          }
+        })
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertNull(executor.retryable);
+  }
+
+  @Test public void retainedReferenceListener_noDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    final String[] retainedClassName = new String[1];
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .retainedReferenceListener(new RetainedReferenceListener() {
+          @Override public void onReferenceRetained(String referenceKey, String referenceName,
+              String className, long watchDurationMs) {
+            retainedClassName[0] = className;
+          }
+        })
+        .build();
+    ref = "retained";
+    refWatcher.watch(ref);
+    assertEquals(DONE, executor.retryable.run());
+    assertFalse(dumper.called);
+    assertEquals(String.class.getName(), retainedClassName[0]);
+  }
+
+  @Test public void unreachableGroup_noDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor);
+    refWatcher.watchAll(asList(new Object(), new Object()), "group");
+    executor.retryable.run();
+    assertFalse(dumper.called);
+  }
+
+  @Test public void retainedGroupMember_triggersSingleDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    final List<HeapDump> heapDumps = new ArrayList<>();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpListener(new HeapDump.Listener() {
+          @Override public void analyze(HeapDump heapDump) {
+            heapDumps.add(heapDump);
+          }
+        })
+        .build();
+    ref = asList(new Object(), new Object());
+    refWatcher.watchAll(asList(new Object(), ref, "retained"), "group");
+    assertEquals(DONE, executor.retryable.run());
+    assertEquals(1, heapDumps.size());
+    assertEquals("group", heapDumps.get(0).referenceName);
+  }
+
+  @Test public void retainedGroup_reportsEachRetainedMember() {
+    TestExecutor executor = new TestExecutor();
+    final List<String> retainedClassNames = new ArrayList<>();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .retainedReferenceListener(new RetainedReferenceListener() {
+          @Override public void onReferenceRetained(String referenceKey, String referenceName,
+              String className, long watchDurationMs) {
+            retainedClassNames.add(className);
+          }
+        })
+        .build();
+    ref = new Integer[] { 1 };
+    refWatcher.watchAll(asList(ref, new Object(), "retained"), "group");
+    assertEquals(DONE, executor.retryable.run());
+    assertEquals(asList(Integer[].class.getName(), String.class.getName()), retainedClassNames);
+  }
+
+  @Test public void watchForResult_retained_noDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor);
+    ref = new Object();
+    WatchHandle handle = refWatcher.watchForResult(ref, "name");
+    assertFalse(handle.isDone());
+    assertEquals(DONE, executor.retryable.run());
+    assertTrue(handle.isDone());
+    assertTrue(handle.isWatched());
+    assertTrue(handle.isRetained());
+    assertFalse(dumper.called);
+  }
+
+  @Test public void watchForResult_unreachable_collected() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor);
+    WatchHandle handle = refWatcher.watchForResult(new Object(), "name");
+    executor.retryable.run();
+    assertTrue(handle.isDone());
+    assertTrue(handle.isWatched());
+    assertFalse(handle.isRetained());
+  }
+
+  @Test public void watchForResult_callsCallback() {
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(new TestDumper(), executor);
+    ref = new Object();
+    final List<WatchHandle> doneHandles = new ArrayList<>();
+    WatchHandle.Callback callback = new WatchHandle.Callback() {
+      @Override public void onWatchDone(WatchHandle handle) {
+        doneHandles.add(handle);
+      }
+    };
+    WatchHandle handle = refWatcher.watchForResult(ref, "name");
+    handle.addCallback(callback);
+    assertTrue(doneHandles.isEmpty());
+    executor.retryable.run();
+    assertEquals(asList(handle), doneHandles);
+    // Callbacks added once done are called right away.
+    handle.addCallback(callback);
+    assertEquals(asList(handle, handle), doneHandles);
+  }
+
+  @Test public void watchForResult_notSampled_notWatched() {
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .samplingPolicy(new SamplingPolicy() {
+          @Override public boolean shouldWatch(Object watchedReference, int outstandingWatches) {
+            return false;
+          }
+        })
+        .build();
+    ref = new Object();
+    WatchHandle handle = refWatcher.watchForResult(ref, "name");
+    assertTrue(handle.isDone());
+    assertFalse(handle.isWatched());
+    assertFalse(handle.isRetained());
+    assertNull(executor.retryable);
+  }
+
+  @Test public void watchForResult_disabled_notWatched() {
+    WatchHandle handle = RefWatcher.DISABLED.watchForResult(new Object(), "name");
+    assertTrue(handle.isDone());
+    assertFalse(handle.isWatched());
+  }
+
+  private RefWatcher governedWatcher(TestDumper dumper, TestExecutor executor,
+      final Verdict verdict) {
+    return new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpListener(new TestListener())
+        .heapDumpGovernor(new HeapDumpGovernor() {
+          @Override public Verdict beforeHeapDump() {
+            return verdict;
+          }
+
+          @Override public void onHeapDumped() {
+          }
+        })
+        .build();
+  }
+
   private RefWatcher defaultWatcher(TestDumper dumper, TestExecutor executor) {
     return new RefWatcherBuilder<>().watchExecutor(executor)
         .heapDumper(dumper)
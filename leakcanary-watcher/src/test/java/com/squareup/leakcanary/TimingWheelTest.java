@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class TimingWheelTest {
+
+  private static final Retryable RETRYABLE = new Retryable() {
+    @Override public Result run() {
+      return Result.DONE;
+    }
+  };
+
+  @Test public void expiresAfterDelayRoundedUpToTick() {
+    TimingWheel wheel = new TimingWheel(10, 8);
+    TimingWheel.Entry entry = new TimingWheel.Entry(RETRYABLE);
+    wheel.schedule(entry, 25);
+    assertNull(wheel.advance());
+    assertNull(wheel.advance());
+    assertSame(entry, wheel.advance());
+    assertTrue(wheel.isEmpty());
+  }
+
+  @Test public void zeroDelayExpiresOnNextTick() {
+    TimingWheel wheel = new TimingWheel(10, 8);
+    TimingWheel.Entry entry = new TimingWheel.Entry(RETRYABLE);
+    wheel.schedule(entry, 0);
+    assertSame(entry, wheel.advance());
+  }
+
+  @Test public void delayLongerThanWheelWaitsForExtraRounds() {
+    TimingWheel wheel = new TimingWheel(1, 4);
+    TimingWheel.Entry entry = new TimingWheel.Entry(RETRYABLE);
+    wheel.schedule(entry, 10);
+    for (int i = 0; i < 9; i++) {
+      assertNull(wheel.advance());
+    }
+    assertSame(entry, wheel.advance());
+  }
+
+  @Test public void batchesEntriesExpiringOnSameTick() {
+    TimingWheel wheel = new TimingWheel(1, 4);
+    TimingWheel.Entry first = new TimingWheel.Entry(RETRYABLE);
+    TimingWheel.Entry second = new TimingWheel.Entry(RETRYABLE);
+    TimingWheel.Entry later = new TimingWheel.Entry(RETRYABLE);
+    wheel.schedule(first, 2);
+    wheel.schedule(second, 2);
+    wheel.schedule(later, 6);
+    assertEquals(3, wheel.size());
+    assertNull(wheel.advance());
+    TimingWheel.Entry expired = wheel.advance();
+    assertEquals(2, count(expired));
+    assertEquals(1, wheel.size());
+  }
+
+  @Test public void scheduleIsRelativeToLastTick() {
+    TimingWheel wheel = new TimingWheel(1, 4);
+    wheel.advance();
+    wheel.advance();
+    wheel.advance();
+    TimingWheel.Entry entry = new TimingWheel.Entry(RETRYABLE);
+    wheel.schedule(entry, 3);
+    assertNull(wheel.advance());
+    assertNull(wheel.advance());
+    assertSame(entry, wheel.advance());
+  }
+
+  private static int count(TimingWheel.Entry entry) {
+    int count = 0;
+    while (entry != null) {
+      count++;
+      entry = entry.next;
+    }
+    return count;
+  }
+}
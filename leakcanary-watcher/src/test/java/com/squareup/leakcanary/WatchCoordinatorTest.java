@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.leakcanary.RefWatcherTest.TestDumper;
+import com.squareup.leakcanary.RefWatcherTest.TestExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.Retryable.Result.DONE;
+import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class WatchCoordinatorTest {
+
+  static class CountingGcTrigger implements GcTrigger {
+    int gcCount;
+
+    @Override public void runGc() {
+      gcCount++;
+    }
+  }
+
+  @SuppressWarnings("FieldCanBeLocal") Object ref;
+
+  private final WatchCoordinator coordinator = new WatchCoordinator(null, null);
+
+  @Test public void skipsGcThatAlreadyRanSinceCheckStarted() {
+    CountingGcTrigger gcTrigger = new CountingGcTrigger();
+    long checkStartNanoTime = System.nanoTime();
+    assertTrue(coordinator.runGc(gcTrigger, checkStartNanoTime) >= 0);
+    assertEquals(-1, coordinator.runGc(gcTrigger, checkStartNanoTime));
+    assertEquals(1, gcTrigger.gcCount);
+    assertTrue(coordinator.runGc(gcTrigger, System.nanoTime()) >= 0);
+    assertEquals(2, gcTrigger.gcCount);
+  }
+
+  @Test public void sharesRetainedKeysAndQueue() {
+    TestExecutor executor1 = new TestExecutor();
+    TestExecutor executor2 = new TestExecutor();
+    WatchMetrics metrics1 = new WatchMetrics();
+    RefWatcher watcher1 = new RefWatcherBuilder<>().coordinator(coordinator)
+        .watchExecutor(executor1)
+        .watchEventListener(metrics1)
+        .build();
+    RefWatcher watcher2 = new RefWatcherBuilder<>().coordinator(coordinator)
+        .watchExecutor(executor2)
+        .build();
+    watcher1.watch(new Object());
+    ref = new Object();
+    watcher2.watch(ref);
+    assertEquals(2, coordinator.retainedKeys.size());
+    // The check of watcher2 drains the reference watched by watcher1.
+    executor2.retryable.run();
+    assertEquals(1, coordinator.retainedKeys.size());
+    assertEquals(1, metrics1.collectedCount());
+    assertEquals(DONE, executor1.retryable.run());
+  }
+
+  @Test public void samplingPolicyCountsOwnWatches() {
+    final List<Integer> outstandingWatches = new ArrayList<>();
+    SamplingPolicy recordingPolicy = new SamplingPolicy() {
+      @Override public boolean shouldWatch(Object watchedReference, int outstanding) {
+        outstandingWatches.add(outstanding);
+        return true;
+      }
+    };
+    RefWatcher watcher1 = new RefWatcherBuilder<>().coordinator(coordinator)
+        .watchExecutor(new TestExecutor())
+        .build();
+    TestExecutor executor2 = new TestExecutor();
+    RefWatcher watcher2 = new RefWatcherBuilder<>().coordinator(coordinator)
+        .watchExecutor(executor2)
+        .samplingPolicy(recordingPolicy)
+        .build();
+    ref = new Object();
+    watcher1.watch(ref);
+    watcher2.watch(new Object());
+    // The check of watcher2 finds its reference collected.
+    executor2.retryable.run();
+    watcher2.watch(ref);
+    watcher2.watch(ref);
+    assertEquals(asList(0, 0, 1), outstandingWatches);
+  }
+
+  @Test public void oneHeapDumpAtATime() {
+    TestExecutor executor = new TestExecutor();
+    TestDumper dumper = new TestDumper();
+    RefWatcher watcher = new RefWatcherBuilder<>().coordinator(coordinator)
+        .watchExecutor(executor)
+        .heapDumper(dumper)
+        .build();
+    ref = new Object();
+    watcher.watch(ref);
+    assertTrue(coordinator.acquireHeapDump());
+    assertEquals(RETRY, executor.retryable.run());
+    assertFalse(dumper.called);
+    coordinator.releaseHeapDump();
+    assertEquals(DONE, executor.retryable.run());
+    assertTrue(dumper.called);
+  }
+
+  @Test public void watchersFallBackToCoordinatorExecutor() {
+    TestExecutor executor = new TestExecutor();
+    RefWatcher watcher = new RefWatcherBuilder<>().coordinator(
+        new WatchCoordinator(executor, null)).build();
+    ref = new Object();
+    watcher.watch(ref);
+    assertNotNull(executor.retryable);
+  }
+}